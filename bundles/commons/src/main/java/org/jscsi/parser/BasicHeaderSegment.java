@@ -43,7 +43,7 @@ public final class BasicHeaderSegment {
     /**
      * The BHS has a fixed size of <code>48</code> bytes.
      */
-    static final int BHS_FIXED_SIZE = 48;
+    public static final int BHS_FIXED_SIZE = 48;
 
     /**
      * Offset of the byte <code>8</code> till <code>11</code> in the BHS.
@@ -128,6 +128,18 @@ public final class BasicHeaderSegment {
      */
     private AbstractMessageParser parser;
 
+    /**
+     * The parser of the previous message, which has been cleared by {@link #clear()}. It is reused if the next
+     * deserialized message has the same operation code, so that reading PDUs into a recycled
+     * <code>ProtocolDataUnit</code> does not create a new parser each time.
+     */
+    private AbstractMessageParser recycledParser;
+
+    /**
+     * The operation code of the message parsed by the {@link #recycledParser}.
+     */
+    private OperationCode recycledOperationCode;
+
     /**
      * Default constructor, creates new, empty BasicHeaderSegment object.
      */
@@ -144,7 +156,7 @@ public final class BasicHeaderSegment {
      * @return The length (in bytes) of the serialized form of this BHS object.
      * @throws InternetSCSIException If any violation of the iSCSI-Standard emerge.
      */
-    final int serialize(final ByteBuffer dst, final int offset) throws InternetSCSIException {
+    public final int serialize(final ByteBuffer dst, final int offset) throws InternetSCSIException {
         // has the destination array enough space to store this basic header
         // segment
         dst.position(offset);
@@ -165,7 +177,7 @@ public final class BasicHeaderSegment {
         dst.putInt(line);
 
         dst.putInt(dataSegmentLength | (totalAHSLength << Constants.THREE_BYTES_SHIFT));
-        dst.putInt(BYTES_16_19, initiatorTaskTag);
+        dst.putInt(offset + BYTES_16_19, initiatorTaskTag);
 
         parser.serializeBasicHeaderSegment(dst, offset);
 
@@ -201,7 +213,13 @@ public final class BasicHeaderSegment {
 
         initiatorTaskTag = src.getInt(BYTES_16_19);
 
-        parser = MessageParserFactory.getParser(protocolDataUnit, operationCode);
+        if (recycledParser != null && recycledOperationCode == operationCode) {
+            parser = recycledParser;
+            parser.clear();
+        } else {
+            parser = MessageParserFactory.getParser(protocolDataUnit, operationCode);
+        }
+        recycledParser = null;
 
         src.rewind();
 
@@ -411,6 +429,12 @@ public final class BasicHeaderSegment {
      * Clears all the stored content of this BasicHeaderSegment object.
      */
     final void clear() {
+        if (parser != null) {
+            recycledParser = parser;
+            recycledOperationCode = operationCode;
+        }
+        parser = null;
+
         immediateFlag = false;
         operationCode = OperationCode.LOGIN_REQUEST;
         finalFlag = false;
@@ -418,8 +442,6 @@ public final class BasicHeaderSegment {
         totalAHSLength = 0x00;
         dataSegmentLength = 0x00000000;
         initiatorTaskTag = 0x00000000;
-
-        parser = null;
     }
 
 }
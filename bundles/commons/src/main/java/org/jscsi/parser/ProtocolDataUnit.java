@@ -25,13 +25,17 @@ import org.jscsi.parser.digest.IDigest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SocketChannel;
 import java.security.DigestException;
 import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.function.IntFunction;
 
 /**
  * <h1>ProtocolDataUnit</h1>
@@ -52,6 +56,21 @@ public final class ProtocolDataUnit {
      */
     private static final Logger LOGGER = LoggerFactory.getLogger(ProtocolDataUnit.class);
 
+    /**
+     * Allocates a new heap buffer for every received data segment.
+     */
+    private static final IntFunction<ByteBuffer> HEAP_ALLOCATOR = ByteBuffer::allocate;
+
+    /**
+     * The digests are calculated over words of this size, so the data segment is padded to a multiple of it.
+     */
+    private static final int DIGEST_WORD_SIZE = 4;
+
+    /**
+     * The data segment of PDUs without one. Since it is empty, it can be shared by all PDUs.
+     */
+    private static final ByteBuffer EMPTY_DATA_SEGMENT = ByteBuffer.allocate(0);
+
     /**
      * The Basic Header Segment of this PDU.
      */
@@ -94,6 +113,18 @@ public final class ProtocolDataUnit {
      */
     private IDigest dataDigest;
 
+    /**
+     * The buffer the Basic Header Segment is read into by {@link #read(ReadableByteChannel, IntFunction)}, which is
+     * allocated once and reused whenever this PDU is read again.
+     */
+    private ByteBuffer headerBuffer;
+
+    /**
+     * The buffer the received digests are read into by {@link #read(ReadableByteChannel, IntFunction)}, which is
+     * allocated once and reused like the {@link #headerBuffer}.
+     */
+    private ByteBuffer digestBuffer;
+
     /**
      * Default constructor, creates a new, empty ProtcolDataUnit object.
      *
@@ -106,7 +137,7 @@ public final class ProtocolDataUnit {
 
         additionalHeaderSegments = new ArrayList<AdditionalHeaderSegment>(AHS_INITIAL_SIZE);
 
-        dataSegment = ByteBuffer.allocate(0);
+        dataSegment = EMPTY_DATA_SEGMENT;
         dataDigest = initDataDigest;
     }
 
@@ -118,9 +149,26 @@ public final class ProtocolDataUnit {
      * @throws IOException           if an I/O error occurs.
      */
     public final ByteBuffer serialize() throws InternetSCSIException, IOException {
+        return serialize(null);
+    }
+
+    /**
+     * Serialize all informations of this PDU object to its byte representation, reusing the given buffer if it is large
+     * enough. This allows a sender to serialize all PDUs into the same buffer.
+     *
+     * @param buffer The buffer to serialize this PDU into, or <code>null</code>.
+     * @return The byte representation of this PDU, either in <i>buffer</i> or in a new buffer, from position
+     *         <code>0</code> to the limit.
+     * @throws InternetSCSIException If any violation of the iSCSI-Standard emerge.
+     * @throws IOException           if an I/O error occurs.
+     */
+    public final ByteBuffer serialize(final ByteBuffer buffer) throws InternetSCSIException, IOException {
         basicHeaderSegment.getParser().checkIntegrity();
 
-        final ByteBuffer pdu = ByteBuffer.allocate(calcSize());
+        final int size = calcSize();
+        final ByteBuffer pdu = buffer != null && buffer.capacity() >= size ? buffer : ByteBuffer.allocate(size);
+        pdu.clear();
+        pdu.limit(size);
 
         int offset = 0;
         offset += basicHeaderSegment.serialize(pdu, offset);
@@ -132,23 +180,81 @@ public final class ProtocolDataUnit {
         offset += serializeAdditionalHeaderSegments(pdu, offset);
 
         // write header digest
-        // TODO: Move CRC calculation in BasicHeaderSegment.serialize?
         if (basicHeaderSegment.getParser().canHaveDigests()) {
-            offset += serializeDigest(pdu, headerDigest);
+            offset += serializeDigest(pdu, 0, offset, headerDigest);
         }
 
-        // serialize data segment
+        // serialize data segment, a reused buffer may contain stale padding bytes
+        final int dataSegmentOffset = offset;
         offset += serializeDataSegment(pdu, offset);
+        final int paddedEnd = dataSegmentOffset + AbstractDataSegment.getTotalLength(basicHeaderSegment.getDataSegmentLength());
+        while (offset < paddedEnd) {
+            pdu.put(offset++, (byte) 0);
+        }
 
-        // write data segment digest
-        // TODO: Move CRC calculation in BasicHeaderSegment.serialize?
-        if (basicHeaderSegment.getParser().canHaveDigests()) {
-            offset += serializeDigest(pdu, dataDigest);
+        // write data segment digest, which covers the padding bytes, a zero-length data segment has no digest
+        if (basicHeaderSegment.getParser().canHaveDigests() && basicHeaderSegment.getDataSegmentLength() > 0) {
+            offset += serializeDigest(pdu, dataSegmentOffset, AbstractDataSegment.getTotalLength(basicHeaderSegment.getDataSegmentLength()), dataDigest);
         }
 
         return (ByteBuffer) pdu.rewind();
     }
 
+    /**
+     * Serializes this PDU into three separate buffers, which can be written with a single gathering write. In contrast
+     * to {@link #serialize()}, the data segment is not copied.
+     * <p>
+     * The first buffer contains the Basic Header Segment, the Additional Header Segments and the header digest. The
+     * second buffer is a view of the data segment, and the third one contains the padding bytes of the data segment and
+     * the data digest. If the length of the data segment has been set by {@link #setDataSegmentLength(int)}, the
+     * second buffer is empty and the content of the data segment has to be written between the first and the third
+     * buffer.
+     *
+     * @return The header segments, the data segment and the padding followed by the data digest.
+     * @throws InternetSCSIException If any violation of the iSCSI-Standard emerge.
+     */
+    public final ByteBuffer[] serializeSegments() throws InternetSCSIException {
+        basicHeaderSegment.getParser().checkIntegrity();
+
+        final boolean digests = basicHeaderSegment.getParser().canHaveDigests();
+        final int headerLength = BasicHeaderSegment.BHS_FIXED_SIZE + basicHeaderSegment.getTotalAHSLength() * AdditionalHeaderSegment.AHS_FACTOR;
+        final ByteBuffer header = ByteBuffer.allocate(headerLength + (digests ? headerDigest.getSize() : 0));
+        basicHeaderSegment.serialize(header, 0);
+        serializeAdditionalHeaderSegments(header, BasicHeaderSegment.BHS_FIXED_SIZE);
+        if (digests && headerDigest.getSize() > 0) {
+            headerDigest.reset();
+            headerDigest.update((ByteBuffer) header.duplicate().limit(headerLength), 0, headerLength);
+            header.putInt(headerLength, (int) headerDigest.getValue());
+        }
+        header.rewind();
+
+        final int dataSegmentLength = basicHeaderSegment.getDataSegmentLength();
+        final ByteBuffer data = dataSegment.duplicate();
+        data.rewind();
+        data.limit(Math.min(data.capacity(), dataSegmentLength));
+
+        final int padding = AbstractDataSegment.getTotalLength(dataSegmentLength) - dataSegmentLength;
+        final boolean dataDigestUsed = digests && dataSegmentLength > 0 && dataDigest.getSize() > 0;
+        final ByteBuffer trailer = ByteBuffer.allocate(padding + (dataDigestUsed ? dataDigest.getSize() : 0));
+        if (dataDigestUsed) {
+            if (data.remaining() < dataSegmentLength) {
+                throw new InternetSCSIException("The data digest cannot be calculated without the data segment.");
+            }
+            // the data digest covers the padding bytes, which complete the last word of the data segment
+            final int alignedLength = dataSegmentLength - dataSegmentLength % DIGEST_WORD_SIZE;
+            dataDigest.reset();
+            dataDigest.update((ByteBuffer) data.duplicate().limit(data.position() + alignedLength), data.position(), alignedLength);
+            if (padding > 0) {
+                final ByteBuffer lastWord = ByteBuffer.allocate(DIGEST_WORD_SIZE);
+                lastWord.put((ByteBuffer) data.duplicate().position(data.position() + alignedLength));
+                dataDigest.update(lastWord, 0, DIGEST_WORD_SIZE);
+            }
+            trailer.putInt(padding, (int) dataDigest.getValue());
+        }
+
+        return new ByteBuffer[] { header, data, trailer };
+    }
+
     /**
      * Deserializes (parses) a given byte representation of a PDU to an PDU object.
      *
@@ -162,6 +268,12 @@ public final class ProtocolDataUnit {
         int offset = deserializeBasicHeaderSegment(pdu);
 
         offset += deserializeAdditionalHeaderSegments(pdu, offset);
+
+        // read header digest and validate, it covers the Basic and the Additional Header Segments
+        if (basicHeaderSegment.getParser().canHaveDigests()) {
+            offset += deserializeDigest(pdu, 0, offset, headerDigest);
+        }
+
         offset += deserializeDataSegment(pdu, offset);
 
         basicHeaderSegment.getParser().checkIntegrity();
@@ -174,16 +286,11 @@ public final class ProtocolDataUnit {
      * BasicHeaderSegment object..
      *
      * @param bhs The array to read from.
+     * @return The length of the Basic Header Segment.
      * @throws InternetSCSIException If any violation of the iSCSI-Standard emerge.
-     * @throws DigestException       There is a mismatch of the digest.
      */
-    private final int deserializeBasicHeaderSegment(final ByteBuffer bhs) throws InternetSCSIException, DigestException {
-        int len = basicHeaderSegment.deserialize(this, bhs);
-
-        // read header digest and validate
-        if (basicHeaderSegment.getParser().canHaveDigests()) {
-            len += deserializeDigest(bhs, bhs.position() - BasicHeaderSegment.BHS_FIXED_SIZE, BasicHeaderSegment.BHS_FIXED_SIZE, headerDigest);
-        }
+    private final int deserializeBasicHeaderSegment(final ByteBuffer bhs) throws InternetSCSIException {
+        final int len = basicHeaderSegment.deserialize(this, bhs);
 
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace("Deserialized Basic Header Segment:\n" + toString());
@@ -240,8 +347,9 @@ public final class ProtocolDataUnit {
      */
     private int serializeAdditionalHeaderSegments(final ByteBuffer dst, final int offset) throws InternetSCSIException {
         int off = offset;
-        for (AdditionalHeaderSegment ahs : additionalHeaderSegments) {
-            off += ahs.serialize(dst, off);
+        // an indexed loop does not create an iterator for each serialized PDU
+        for (int i = 0; i < additionalHeaderSegments.size(); i++) {
+            off += additionalHeaderSegments.get(i).serialize(dst, off);
         }
 
         return off - offset;
@@ -275,24 +383,26 @@ public final class ProtocolDataUnit {
      */
     private int deserializeDataSegment(final ByteBuffer pdu, final int offset) throws IOException, InternetSCSIException, DigestException {
         final int length = basicHeaderSegment.getDataSegmentLength();
-
-        if (dataSegment == null || dataSegment.limit() < length) {
-            dataSegment = ByteBuffer.allocate(AbstractDataSegment.getTotalLength(length));
+        if (length == 0) {
+            return 0;
         }
-        dataSegment.put(pdu);
 
+        // the data segment is followed by its padding and the data digest, which must not become part of it
+        final int totalLength = AbstractDataSegment.getTotalLength(length);
+        dataSegment = ByteBuffer.allocate(totalLength);
+        final ByteBuffer src = pdu.duplicate();
+        src.limit(offset + totalLength);
+        src.position(offset);
+        dataSegment.put(src);
         dataSegment.flip();
 
         // read data segment digest and validate
+        int digestSize = 0;
         if (basicHeaderSegment.getParser().canHaveDigests()) {
-            deserializeDigest(pdu, offset, length, dataDigest);
+            digestSize = deserializeDigest(pdu, offset, totalLength, dataDigest);
         }
 
-        if (dataSegment == null) {
-            return 0;
-        } else {
-            return dataSegment.limit();
-        }
+        return totalLength + digestSize;
     }
 
     /**
@@ -320,20 +430,72 @@ public final class ProtocolDataUnit {
     }
 
     /**
-     * Reads from the given <code>SocketChannel</code> all the neccassary bytes to fill this PDU.
+     * Writes this <code>ProtocolDataUnit</code> object to the given <code>GatheringByteChannel</code> without copying
+     * the data segment into an intermediate buffer.
      *
-     * @param sChannel <code>SocketChannel</code> to read from.
+     * @param channel The blocking channel to write to.
+     * @return The number of bytes written.
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge.
+     * @throws IOException           if an I/O error occurs.
+     * @see #serializeSegments()
+     */
+    public final long gatheringWrite(final GatheringByteChannel channel) throws InternetSCSIException, IOException {
+        // print debug informations
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(basicHeaderSegment.getParser().getShortInfo());
+        }
+
+        final ByteBuffer[] srcs = serializeSegments();
+        long total = 0;
+        for (ByteBuffer src : srcs) {
+            total += src.remaining();
+        }
+        long length = 0;
+
+        while (length < total) {
+            length += channel.write(srcs);
+        }
+
+        return length;
+    }
+
+    /**
+     * Reads from the given <code>ReadableByteChannel</code> all the neccassary bytes to fill this PDU.
+     *
+     * @param sChannel <code>ReadableByteChannel</code> to read from, usually a <code>SocketChannel</code>.
      * @return The number of bytes, possibly zero,or <code>-1</code> if the channel has reached end-of-stream
      * @throws IOException           if an I/O error occurs.
      * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge.
      * @throws DigestException       if a mismatch of the digest exists.
      */
-    public final int read(final SocketChannel sChannel) throws InternetSCSIException, IOException, DigestException {
+    public final int read(final ReadableByteChannel sChannel) throws InternetSCSIException, IOException, DigestException {
+        return read(sChannel, HEAP_ALLOCATOR);
+    }
+
+    /**
+     * Reads from the given <code>ReadableByteChannel</code> all the neccassary bytes to fill this PDU. The data segment
+     * is read into a buffer obtained from <i>dataSegmentAllocator</i>, which allows the caller to provide pooled or
+     * direct buffers. The allocator is called with the padded length of the data segment and must return a buffer with
+     * at least that capacity, which will become the data segment of this PDU. It is called after the Basic Header Segment has been deserialized, so it may
+     * inspect {@link #getBasicHeaderSegment()}.
+     *
+     * @param sChannel             <code>ReadableByteChannel</code> to read from, usually a <code>SocketChannel</code>.
+     * @param dataSegmentAllocator provides the buffer the data segment is read into
+     * @return The number of bytes, possibly zero,or <code>-1</code> if the channel has reached end-of-stream
+     * @throws IOException           if an I/O error occurs.
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge.
+     * @throws DigestException       if a mismatch of the digest exists.
+     */
+    public final int read(final ReadableByteChannel sChannel, final IntFunction<ByteBuffer> dataSegmentAllocator) throws InternetSCSIException, IOException, DigestException {
         // read Basic Header Segment first to determine the total length of this
         // Protocol Data Unit.
         clear();
 
-        final ByteBuffer bhs = ByteBuffer.allocate(BasicHeaderSegment.BHS_FIXED_SIZE);
+        if (headerBuffer == null) {
+            headerBuffer = ByteBuffer.allocate(BasicHeaderSegment.BHS_FIXED_SIZE);
+        }
+        final ByteBuffer bhs = headerBuffer;
+        bhs.clear();
         int len = 0;
         while (len < BasicHeaderSegment.BHS_FIXED_SIZE) {
             int lens = sChannel.read(bhs);
@@ -344,16 +506,20 @@ public final class ProtocolDataUnit {
                 return lens;
             }
             len += lens;
-            LOGGER.trace("Receiving through SocketChannel: " + len + " of maximal " + BasicHeaderSegment.BHS_FIXED_SIZE);
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Receiving through SocketChannel: " + len + " of maximal " + BasicHeaderSegment.BHS_FIXED_SIZE);
+            }
 
         }
         bhs.flip();
 
         deserializeBasicHeaderSegment(bhs);
+        final boolean digests = basicHeaderSegment.getParser().canHaveDigests();
 
         // check for further reading
+        ByteBuffer ahs = null;
         if (getBasicHeaderSegment().getTotalAHSLength() > 0) {
-            final ByteBuffer ahs = ByteBuffer.allocate(basicHeaderSegment.getTotalAHSLength());
+            ahs = ByteBuffer.allocate(basicHeaderSegment.getTotalAHSLength());
             int ahsLength = 0;
             while (ahsLength < getBasicHeaderSegment().getTotalAHSLength()) {
                 ahsLength += sChannel.read(ahs);
@@ -363,14 +529,42 @@ public final class ProtocolDataUnit {
 
             deserializeAdditionalHeaderSegments(ahs);
         }
+
+        // read header digest and validate, it covers the Basic and the Additional Header Segments
+        if (digests && headerDigest.getSize() > 0) {
+            headerDigest.reset();
+            headerDigest.update(bhs, 0, bhs.limit());
+            if (ahs != null) {
+                headerDigest.update(ahs, 0, ahs.limit());
+            }
+            len += readDigest(sChannel, headerDigest);
+        }
+
         if (basicHeaderSegment.getDataSegmentLength() > 0) {
-            dataSegment = ByteBuffer.allocate(AbstractDataSegment.getTotalLength(basicHeaderSegment.getDataSegmentLength()));
+            final int totalLength = AbstractDataSegment.getTotalLength(basicHeaderSegment.getDataSegmentLength());
+            dataSegment = dataSegmentAllocator.apply(totalLength);
+            dataSegment.clear();
+            dataSegment.limit(totalLength);
+            // the padding has to be consumed as well, otherwise it would be taken for the next PDU
             int dataSegmentLength = 0;
-            while (dataSegmentLength < basicHeaderSegment.getDataSegmentLength()) {
-                dataSegmentLength += sChannel.read(dataSegment);
+            while (dataSegment.hasRemaining()) {
+                final int read = sChannel.read(dataSegment);
+                if (read == -1) {
+                    throw new EOFException("end-of-stream within the data segment");
+                }
+                dataSegmentLength += read;
             }
             len += dataSegmentLength;
             dataSegment.flip();
+
+            // read data segment digest and validate, it covers the padding bytes
+            if (digests && dataDigest.getSize() > 0) {
+                dataDigest.reset();
+                dataDigest.update(dataSegment, 0, dataSegment.limit());
+                // not every digest leaves the position unchanged
+                dataSegment.rewind();
+                len += readDigest(sChannel, dataDigest);
+            }
         }
 
         // print debug informations
@@ -381,6 +575,33 @@ public final class ProtocolDataUnit {
         return len;
     }
 
+    /**
+     * Reads a digest following a range, which has already been passed to <i>digest</i>, and validates it.
+     *
+     * @param sChannel The channel to read the digest from.
+     * @param digest   The digest, which has been updated with the digested range.
+     * @return The size of the digest.
+     * @throws IOException     if an I/O error occurs, or if the channel ends within the digest.
+     * @throws DigestException There is a mismatch of the digest.
+     */
+    private int readDigest(final ReadableByteChannel sChannel, final IDigest digest) throws IOException, DigestException {
+        if (digestBuffer == null) {
+            digestBuffer = ByteBuffer.allocate(DIGEST_WORD_SIZE);
+        }
+        digestBuffer.clear();
+        digestBuffer.limit(digest.getSize());
+        while (digestBuffer.hasRemaining()) {
+            if (sChannel.read(digestBuffer) == -1) {
+                throw new EOFException("end-of-stream within a digest");
+            }
+        }
+        digestBuffer.flip();
+        digest.update(digestBuffer, 0, digestBuffer.limit());
+        digest.validate();
+
+        return digest.getSize();
+    }
+
     /**
      * Clears all stored content of this ProtocolDataUnit object.
      */
@@ -430,6 +651,18 @@ public final class ProtocolDataUnit {
         basicHeaderSegment.setDataSegmentLength(dataSegment.capacity());
     }
 
+    /**
+     * Sets the length of the data segment without providing its content, which will be written separately, e.g. by
+     * <code>FileChannel.transferTo</code>. The current data segment of this PDU is discarded.
+     *
+     * @param length The length of the data segment in bytes, without padding.
+     * @see #serializeSegments()
+     */
+    public final void setDataSegmentLength(final int length) {
+        dataSegment = EMPTY_DATA_SEGMENT;
+        basicHeaderSegment.setDataSegmentLength(length);
+    }
+
     /**
      * Sets a new data segment in this PDU.
      *
@@ -549,35 +782,61 @@ public final class ProtocolDataUnit {
         int size = BasicHeaderSegment.BHS_FIXED_SIZE;
         size += basicHeaderSegment.getTotalAHSLength() * AdditionalHeaderSegment.AHS_FACTOR;
 
-        // plus the sizes of the used digests
-        size += headerDigest.getSize();
-        size += dataDigest.getSize();
+        // plus the sizes of the used digests, Login PDUs and zero-length data segments have none
+        if (basicHeaderSegment.getParser().canHaveDigests()) {
+            size += headerDigest.getSize();
+            if (basicHeaderSegment.getDataSegmentLength() > 0) {
+                size += dataDigest.getSize();
+            }
+        }
 
         size += AbstractDataSegment.getTotalLength(basicHeaderSegment.getDataSegmentLength());
 
         return size;
     }
 
-    private int serializeDigest(final ByteBuffer pdu, final IDigest digest) {
+    /**
+     * Calculates the digest over the given range of <i>pdu</i> and writes it directly behind the range.
+     *
+     * @param pdu    The buffer containing the serialized PDU.
+     * @param offset The start of the digested range.
+     * @param length The length of the digested range.
+     * @param digest The digest to calculate.
+     * @return The size of the digest.
+     */
+    private int serializeDigest(final ByteBuffer pdu, final int offset, final int length, final IDigest digest) {
         final int size = digest.getSize();
         if (size > 0) {
             digest.reset();
-            pdu.mark();
-            digest.update(pdu, 0, BasicHeaderSegment.BHS_FIXED_SIZE);
-            pdu.putInt((int) digest.getValue());
-            pdu.reset();
+            digest.update((ByteBuffer) pdu.duplicate().limit(offset + length), offset, length);
+            pdu.putInt(offset + length, (int) digest.getValue());
         }
 
         return size;
     }
 
+    /**
+     * Validates the digest over the given range of <i>pdu</i>, which is followed by the received digest.
+     *
+     * @param pdu    The buffer containing the received PDU.
+     * @param offset The start of the digested range.
+     * @param length The length of the digested range, without the digest itself.
+     * @param digest The digest to validate.
+     * @return The size of the digest.
+     * @throws DigestException There is a mismatch of the digest.
+     */
     private int deserializeDigest(final ByteBuffer pdu, final int offset, final int length, final IDigest digest) throws DigestException {
-        pdu.mark();
-        digest.update(pdu, offset, length);
-        digest.validate();
-        pdu.reset();
+        final int size = digest.getSize();
+        if (size > 0) {
+            // a view ending behind the digest, since not every digest respects the given length
+            final ByteBuffer range = pdu.duplicate();
+            range.limit(offset + length + size);
+            digest.reset();
+            digest.update(range, offset, length + size);
+            digest.validate();
+        }
 
-        return digest.getSize();
+        return size;
     }
 
 }
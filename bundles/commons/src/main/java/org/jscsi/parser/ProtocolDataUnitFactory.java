@@ -34,13 +34,25 @@ public final class ProtocolDataUnitFactory {
     /**
      * The factory to create the supported digests.
      */
-    private final DigestFactory digestFactory = new DigestFactory();
+    private final DigestFactory digestFactory;
 
     /**
      * Default constructor to create a new, empty <code>ProtocolDataUnitFactory</code> instance.
      */
     public ProtocolDataUnitFactory() {
+        digestFactory = new DigestFactory();
+    }
 
+    /**
+     * Creates a new <code>ProtocolDataUnitFactory</code> instance, whose PDUs calculate the <code>CRC32C</code> digests
+     * of large data segments in parallel.
+     *
+     * @param parallelDigestThreshold The minimum length of a data segment, whose digest is calculated in parallel, or
+     *                                <code>0</code> to calculate all digests in the calling thread.
+     * @see DigestFactory#DigestFactory(int)
+     */
+    public ProtocolDataUnitFactory(final int parallelDigestThreshold) {
+        digestFactory = new DigestFactory(parallelDigestThreshold);
     }
 
     /**
@@ -30,18 +30,52 @@ public final class DigestFactory {
     // --------------------------------------------------------------------------
     // --------------------------------------------------------------------------
 
+    /**
+     * The minimum length of a buffer, which is digested in parallel, or <code>0</code> if digests are always
+     * calculated by the calling thread.
+     */
+    private final int parallelThreshold;
+
+    /**
+     * Since a <code>NullDigest</code> has no state, all PDUs without digests share this instance.
+     */
+    private static final IDigest NULL_DIGEST = new NullDigest();
+
+    // --------------------------------------------------------------------------
+    // --------------------------------------------------------------------------
+
     /**
      * Constructor to create new, empty <code>DigestFactory</code> instance.
      */
     public DigestFactory() {
 
+        this(0);
+    }
+
+    /**
+     * Constructor to create a new <code>DigestFactory</code> instance, whose <code>CRC32C</code> digests calculate the
+     * digest of large buffers in parallel.
+     *
+     * @param parallelThreshold The minimum length of a buffer, which is digested in parallel, or <code>0</code> if
+     *            digests are always calculated by the calling thread.
+     * @see ParallelCRC32CDigest
+     */
+    public DigestFactory(final int parallelThreshold) {
+
+        if (parallelThreshold < 0) {
+            throw new IllegalArgumentException("The threshold must not be negative.");
+        }
+        this.parallelThreshold = parallelThreshold;
     }
 
     // --------------------------------------------------------------------------
     // --------------------------------------------------------------------------
 
     /**
-     * This method creates an <code>IDigest</code> instance of the given type.
+     * This method creates an <code>IDigest</code> instance of the given type. A <code>CRC32C</code> digest is calculated
+     * by <code>java.util.zip.CRC32C</code> if the JVM provides it, and by the table-driven {@link CRC32CDigest}
+     * otherwise. In the former case, large buffers are digested in parallel if a threshold has been given. The stateless
+     * <code>None</code> digest is shared instead of being created again.
      *
      * @param digestName The name of the digest type.
      * @return The <code>IDigest</code> instance of the given type.
@@ -50,9 +84,15 @@ public final class DigestFactory {
 
         IDigest digest;
         if (digestName.compareTo("None") == 0) {
-            digest = new NullDigest();
+            digest = NULL_DIGEST;
         } else if (digestName.compareTo("CRC32C") == 0) {
-            digest = new CRC32CDigest();
+            if (!IntrinsicCRC32CDigest.isAvailable()) {
+                digest = new CRC32CDigest();
+            } else if (parallelThreshold > 0) {
+                digest = new ParallelCRC32CDigest(parallelThreshold);
+            } else {
+                digest = new IntrinsicCRC32CDigest();
+            }
         } else {
             throw new IllegalArgumentException("Digest Type (" + digestName + ") is unknown.");
         }
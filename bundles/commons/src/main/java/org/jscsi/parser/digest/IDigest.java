@@ -34,7 +34,8 @@ import java.util.zip.Checksum;
 public interface IDigest extends Checksum {
 
     /**
-     * This method updates the used digest with the values of the given <code>ByteBuffer</code> object.
+     * This method updates the used digest with the values of the given <code>ByteBuffer</code> object. Successive calls
+     * continue the digest until it is reset.
      *
      * @param data The values used for updating the checksum.
      * @param off Start offset.
@@ -0,0 +1,152 @@
+package org.jscsi.parser.digest;
+
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.util.zip.Checksum;
+
+
+/**
+ * <h1>IntrinsicCRC32CDigest</h1>
+ * <p>
+ * This class computes the same CRC32C digest as {@link CRC32CDigest}, but delegates the calculation to
+ * <code>java.util.zip.CRC32C</code>, which the JVM replaces by the CRC32 instructions of SSE4.2 and ARMv8. In contrast
+ * to {@link CRC32CDigest}, the digest accepts arbitrary lengths as well as direct buffers, and successive calls of
+ * {@link #update(ByteBuffer, int, int)} continue the digest until it is {@link #reset()}. So a digest over a sequence of
+ * buffers, e.g. a data segment and its padding, is calculated without copying the buffers together.
+ * <p>
+ * <code>java.util.zip.CRC32C</code> has been added in Java 9, so it is looked up at runtime. If it is not available,
+ * {@link DigestFactory} falls back to {@link CRC32CDigest}.
+ */
+final class IntrinsicCRC32CDigest implements IDigest {
+
+    /** The size of the digest number (in bytes) to serialize. */
+    private static final int DIGEST_SIZE = 4;
+
+    /**
+     * The value of the digest after calculating it over data, which is followed by its correct digest.
+     */
+    static final long FINAL_REMAINDER = 0x48674BC7L;
+
+    /** Creates a new <code>java.util.zip.CRC32C</code> as a {@link Checksum}. */
+    private static final MethodHandle CONSTRUCTOR;
+
+    /** Invokes <code>java.util.zip.CRC32C.update(ByteBuffer)</code>. */
+    private static final MethodHandle UPDATE;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            final Class<?> crc32c = Class.forName("java.util.zip.CRC32C");
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(crc32c, MethodType.methodType(void.class)).asType(MethodType.methodType(Checksum.class));
+            update = lookup.findVirtual(crc32c, "update", MethodType.methodType(void.class, ByteBuffer.class)).asType(MethodType.methodType(void.class, Checksum.class, ByteBuffer.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            // Java 8, the table-driven implementation is used instead
+            constructor = null;
+            update = null;
+        }
+        CONSTRUCTOR = constructor;
+        UPDATE = update;
+    }
+
+    /** The underlying <code>java.util.zip.CRC32C</code>. */
+    private final Checksum checksum;
+
+    /**
+     * Creates a new <code>IntrinsicCRC32CDigest</code>.
+     *
+     * @throws UnsupportedOperationException if <code>java.util.zip.CRC32C</code> is not available
+     */
+    public IntrinsicCRC32CDigest() {
+        if (!isAvailable()) {
+            throw new UnsupportedOperationException("java.util.zip.CRC32C is not available.");
+        }
+        try {
+            checksum = (Checksum) CONSTRUCTOR.invokeExact();
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns whether <code>java.util.zip.CRC32C</code> is provided by the running JVM.
+     *
+     * @return <code>true</code> if this digest can be created
+     */
+    static boolean isAvailable() {
+        return CONSTRUCTOR != null;
+    }
+
+    /** {@inheritDoc} */
+    public void update(final int b) {
+        checksum.update(b);
+    }
+
+    /** {@inheritDoc} */
+    public void update(final byte[] b, final int off, final int len) {
+        checksum.update(b, off, len);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The length may be arbitrary, and the position and limit of <i>data</i> are left unchanged.
+     */
+    public void update(final ByteBuffer data, final int off, final int len) {
+        final ByteBuffer range = data.duplicate();
+        range.limit(off + len);
+        range.position(off);
+        try {
+            UPDATE.invokeExact(checksum, range);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Continues the digest with the remaining bytes of the given buffers, in the given order. The positions of the
+     * buffers are left unchanged.
+     *
+     * @param data the buffers to digest
+     */
+    public void update(final ByteBuffer... data) {
+        for (ByteBuffer buffer : data) {
+            update(buffer, buffer.position(), buffer.remaining());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void reset() {
+        checksum.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Like {@link CRC32CDigest#getValue()}, the bytes of the digest are reversed, so that writing the value into a
+     * big-endian buffer yields the byte order required by the iSCSI standard.
+     */
+    public long getValue() {
+        return Integer.reverseBytes((int) checksum.getValue());
+    }
+
+    /** {@inheritDoc} */
+    public void validate() throws DigestException {
+        if (checksum.getValue() != FINAL_REMAINDER) {
+            throw new DigestException("Invalid CRC32C Digest: " + getValue());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int getSize() {
+        return DIGEST_SIZE;
+    }
+
+}
@@ -0,0 +1,253 @@
+package org.jscsi.parser.digest;
+
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+/**
+ * <h1>ParallelCRC32CDigest</h1>
+ * <p>
+ * This class computes the same CRC32C digest as {@link CRC32CDigest}, but calculates the digest of large buffers in
+ * parallel. A buffer of at least <i>threshold</i> bytes is split into pieces, whose CRCs are calculated by the common
+ * <code>ForkJoinPool</code>, and the CRCs of the pieces are combined afterwards. All other updates are calculated by
+ * the calling thread.
+ * <p>
+ * The CRC of the concatenation of two messages <i>A</i> and <i>B</i> is the CRC of <i>A</i> multiplied by
+ * <code>x^(8 * length(B))</code> modulo the generator polynom, added (XOR) to the CRC of <i>B</i>. The powers
+ * <code>x^(2^n)</code> are precomputed, so combining two CRCs takes at most one polynom multiplication per bit of the
+ * length.
+ *
+ * @see IntrinsicCRC32CDigest
+ */
+final class ParallelCRC32CDigest implements IDigest {
+
+    /** The size of the digest number (in bytes) to serialize. */
+    private static final int DIGEST_SIZE = 4;
+
+    /** The reflected generator polynom of CRC32C. */
+    private static final int POLYNOM = 0x82F63B78;
+
+    /** The polynom <code>x^0</code>, i.e. <code>1</code>, in reflected representation. */
+    private static final int ONE = 0x80000000;
+
+    /**
+     * The smallest piece, whose CRC is calculated by a separate task. Smaller pieces would not outweigh the cost of
+     * scheduling the task.
+     */
+    static final int MINIMUM_PIECE_LENGTH = 64 * 1024;
+
+    /**
+     * <code>x^(2^n)</code> modulo the generator polynom, in reflected representation, for all powers needed by
+     * {@link #xPower8N(long)}.
+     */
+    private static final int[] X_POWER_2_N = new int[Long.SIZE + 3];
+
+    static {
+        int p = ONE >>> 1;// x^1
+        X_POWER_2_N[0] = p;
+        for (int n = 1; n < X_POWER_2_N.length; n++) {
+            p = multiply(p, p);
+            X_POWER_2_N[n] = p;
+        }
+    }
+
+    /** Buffers of at least this length are digested in parallel. */
+    private final int threshold;
+
+    /** Digests the updates since the CRC has been combined last. */
+    private final IntrinsicCRC32CDigest pending = new IntrinsicCRC32CDigest();
+
+    /** The number of bytes digested by {@link #pending}. */
+    private long pendingLength;
+
+    /** The CRC of all bytes preceding the ones digested by {@link #pending}. */
+    private int crc;
+
+    /**
+     * Whether any buffer has been digested in parallel since the last reset. If not, {@link #pending} has digested all
+     * bytes and no CRCs have to be combined.
+     */
+    private boolean combined;
+
+    /**
+     * Creates a new <code>ParallelCRC32CDigest</code>.
+     *
+     * @param threshold the minimum length of a buffer, which is digested in parallel
+     * @throws UnsupportedOperationException if <code>java.util.zip.CRC32C</code> is not available
+     */
+    public ParallelCRC32CDigest(final int threshold) {
+        this.threshold = threshold;
+    }
+
+    /** {@inheritDoc} */
+    public void update(final int b) {
+        pending.update(b);
+        pendingLength++;
+    }
+
+    /** {@inheritDoc} */
+    public void update(final byte[] b, final int off, final int len) {
+        pending.update(b, off, len);
+        pendingLength += len;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The length may be arbitrary, and the position and limit of <i>data</i> are left unchanged.
+     */
+    public void update(final ByteBuffer data, final int off, final int len) {
+        if (len < threshold) {
+            pending.update(data, off, len);
+            pendingLength += len;
+        } else {
+            final int pieceLength = Math.max(MINIMUM_PIECE_LENGTH, len / ForkJoinPool.getCommonPoolParallelism() + 1);
+            crc = combine(getCrc(), ForkJoinPool.commonPool().invoke(new PieceTask(data, off, len, pieceLength)), len);
+            combined = true;
+            pending.reset();
+            pendingLength = 0;
+        }
+    }
+
+    /** {@inheritDoc} */
+    public void reset() {
+        pending.reset();
+        pendingLength = 0;
+        crc = 0;
+        combined = false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Like {@link CRC32CDigest#getValue()}, the bytes of the digest are reversed, so that writing the value into a
+     * big-endian buffer yields the byte order required by the iSCSI standard.
+     */
+    public long getValue() {
+        return Integer.reverseBytes(getCrc());
+    }
+
+    /** {@inheritDoc} */
+    public void validate() throws DigestException {
+        if ((getCrc() & 0xFFFFFFFFL) != IntrinsicCRC32CDigest.FINAL_REMAINDER) {
+            throw new DigestException("Invalid CRC32C Digest: " + getValue());
+        }
+    }
+
+    /** {@inheritDoc} */
+    public int getSize() {
+        return DIGEST_SIZE;
+    }
+
+    /**
+     * Returns the CRC of all bytes digested since the last reset.
+     *
+     * @return the CRC
+     */
+    private int getCrc() {
+        if (!combined) {
+            return crcOf(pending);
+        }
+        return pendingLength == 0 ? crc : combine(crc, crcOf(pending), pendingLength);
+    }
+
+    /**
+     * Returns the CRC calculated by the given digest.
+     *
+     * @param digest a CRC32C digest
+     * @return the CRC, in the representation used by {@link #combine(int, int, long)}
+     */
+    private static int crcOf(final IntrinsicCRC32CDigest digest) {
+        return Integer.reverseBytes((int) digest.getValue());
+    }
+
+    /**
+     * Returns the CRC of the concatenation of two messages.
+     *
+     * @param crc1    the CRC of the first message
+     * @param crc2    the CRC of the second message
+     * @param length2 the length of the second message in bytes
+     * @return the CRC of both messages
+     */
+    static int combine(final int crc1, final int crc2, final long length2) {
+        return multiply(xPower8N(length2), crc1) ^ crc2;
+    }
+
+    /**
+     * Returns <code>x^(8 * n)</code> modulo the generator polynom.
+     *
+     * @param n the exponent in bytes
+     * @return the power of <code>x</code>
+     */
+    private static int xPower8N(long n) {
+        int p = ONE;
+        // x^(8 * n) is the product of x^(2^(k + 3)) for every bit k set in n
+        for (int k = 3; n != 0; n >>>= 1, k++) {
+            if ((n & 1) != 0) {
+                p = multiply(X_POWER_2_N[k], p);
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Multiplies two polynoms modulo the generator polynom.
+     *
+     * @param a a polynom other than zero, in reflected representation
+     * @param b a polynom, in reflected representation
+     * @return the product of <i>a</i> and <i>b</i>
+     */
+    private static int multiply(final int a, int b) {
+        int product = 0;
+        for (int m = ONE; ; m >>>= 1) {
+            if ((a & m) != 0) {
+                product ^= b;
+                if ((a & (m - 1)) == 0) {
+                    return product;
+                }
+            }
+            b = (b & 1) != 0 ? (b >>> 1) ^ POLYNOM : b >>> 1;
+        }
+    }
+
+    /**
+     * Calculates the CRC of a range of a buffer by splitting it in halves, until the pieces are short enough.
+     */
+    private static final class PieceTask extends RecursiveTask<Integer> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer data;
+
+        private final int off;
+
+        private final int len;
+
+        private final int pieceLength;
+
+        PieceTask(final ByteBuffer data, final int off, final int len, final int pieceLength) {
+            this.data = data;
+            this.off = off;
+            this.len = len;
+            this.pieceLength = pieceLength;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (len <= pieceLength) {
+                final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+                digest.update(data, off, len);
+                return crcOf(digest);
+            }
+            final int half = len / 2;
+            final PieceTask first = new PieceTask(data, off, half, pieceLength);
+            first.fork();
+            final int second = new PieceTask(data, off + half, len - half, pieceLength).compute();
+            return combine(first.join(), second, len - half);
+        }
+    }
+
+}
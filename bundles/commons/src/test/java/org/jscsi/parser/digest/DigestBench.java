@@ -0,0 +1,66 @@
+package org.jscsi.parser.digest;
+
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+/**
+ * Compares the throughput of the table-driven {@link CRC32CDigest} with the {@link IntrinsicCRC32CDigest} and the
+ * {@link ParallelCRC32CDigest} for a Basic Header Segment and for typical data segment lengths, both in heap and in
+ * direct buffers. The parallel digest splits buffers of at least {@link #PARALLEL_THRESHOLD} bytes.
+ * <p>
+ * Usage: <code>DigestBench [megabytesPerRun]</code>
+ */
+public class DigestBench {
+
+    static final int[] LENGTHS = { 48, 512, 8192, 65536, 262144, 1048576 };
+
+    static final int PARALLEL_THRESHOLD = 256 * 1024;
+
+    static final int RUNS = 5;
+
+    public static void main (String[] args) {
+        final long bytesPerRun = (args.length > 0 ? Long.parseLong(args[0]) : 256) << 20;
+
+        System.out.println("length   buffer  table [MiB/s]  intrinsic [MiB/s]  parallel [MiB/s]");
+        for (int length : LENGTHS) {
+            final byte[] data = new byte[length];
+            new Random(length).nextBytes(data);
+            final ByteBuffer heap = ByteBuffer.wrap(data);
+            final ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(data).flip();
+
+            for (ByteBuffer buffer : new ByteBuffer[] { heap, direct }) {
+                final int iterations = (int) Math.max(1, bytesPerRun / length);
+                final double table = run(new CRC32CDigest(), buffer, iterations);
+                final double intrinsic = run(new IntrinsicCRC32CDigest(), buffer, iterations);
+                final double parallel = run(new ParallelCRC32CDigest(PARALLEL_THRESHOLD), buffer, iterations);
+                System.out.println(String.format("%7d  %-6s  %13.0f  %17.0f  %16.0f", length, buffer.isDirect() ? "direct" : "heap", table, intrinsic, parallel));
+            }
+        }
+    }
+
+    /**
+     * Returns the best throughput of the given digest in MiB/s.
+     */
+    static double run (final IDigest digest, final ByteBuffer buffer, final int iterations) {
+        final int length = buffer.limit();
+        long best = Long.MAX_VALUE;
+        long sink = 0;
+        for (int r = 0; r < RUNS; r++) {
+            final long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++) {
+                digest.reset();
+                digest.update(buffer, 0, length);
+                sink += digest.getValue();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        if (sink == 42) {
+            System.out.println();// keeps the results alive
+        }
+        return (double) length * iterations / (1 << 20) / (best / 1e9);
+    }
+
+}
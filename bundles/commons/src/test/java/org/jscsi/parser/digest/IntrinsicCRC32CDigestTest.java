@@ -0,0 +1,183 @@
+package org.jscsi.parser.digest;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestException;
+import java.util.Random;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSICommandParser.TaskAttributes;
+import org.testng.annotations.Test;
+
+
+/**
+ * Tests the {@link IntrinsicCRC32CDigest} against the test vectors of the iSCSI standard and against the
+ * {@link CRC32CDigest}.
+ */
+public class IntrinsicCRC32CDigestTest {
+
+    /** An iSCSI Read Command PDU, the test case B.4 of RFC 3720. */
+    private static final int[] READ_COMMAND = { 0x01C00000, 0x00000000, 0x00000000, 0x00000000, 0x14000000, 0x00000400, 0x00000014, 0x00000018, 0x28000000, 0x00000000, 0x02000000, 0x00000000 };
+
+    @Test
+    public void testSelectedByFactory () {
+        assertTrue(IntrinsicCRC32CDigest.isAvailable());
+        assertTrue(new DigestFactory().create("CRC32C") instanceof IntrinsicCRC32CDigest);
+    }
+
+    @Test
+    public void testStandardTestVectors () {
+        final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+
+        digest.update(ByteBuffer.allocate(32), 0, 32);
+        assertEquals(digest.getValue(), (long) 0xAA36918A);
+
+        final ByteBuffer command = ByteBuffer.allocate(READ_COMMAND.length * 4);
+        command.asIntBuffer().put(READ_COMMAND);
+        digest.reset();
+        digest.update(command, 0, command.capacity());
+        assertEquals(digest.getValue(), 0x563A96D9L);
+    }
+
+    @Test
+    public void testSameAsTableImplementation () {
+        final ByteBuffer data = randomData(8192);
+        final CRC32CDigest table = new CRC32CDigest();
+        final int[] words = new int[data.capacity() / 4];
+        data.asIntBuffer().get(words);
+        table.slicingBy4(words);
+
+        final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+        digest.update(data, 0, data.capacity());
+        assertEquals(digest.getValue(), table.getValue());
+    }
+
+    @Test
+    public void testScatteredDirectBuffers () {
+        final ByteBuffer data = randomData(4099);
+        final IntrinsicCRC32CDigest whole = new IntrinsicCRC32CDigest();
+        whole.update(data, 0, data.capacity());
+
+        // the same bytes, split at arbitrary positions into direct buffers
+        final ByteBuffer first = ByteBuffer.allocateDirect(7);
+        final ByteBuffer second = ByteBuffer.allocateDirect(4000);
+        final ByteBuffer third = ByteBuffer.allocateDirect(92);
+        final ByteBuffer source = data.duplicate();
+        for (ByteBuffer buffer : new ByteBuffer[] { first, second, third }) {
+            source.limit(source.position() + buffer.capacity());
+            buffer.put(source);
+            buffer.flip();
+        }
+
+        final IntrinsicCRC32CDigest scattered = new IntrinsicCRC32CDigest();
+        scattered.update(first, second, third);
+        assertEquals(scattered.getValue(), whole.getValue());
+        // the buffers have not been consumed
+        assertEquals(second.position(), 0);
+    }
+
+    @Test
+    public void testValidate () throws DigestException {
+        final ByteBuffer data = randomData(516);
+        final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+        digest.update(data, 0, 512);
+        data.putInt(512, (int) digest.getValue());
+
+        digest.reset();
+        digest.update(data, 0, data.capacity());
+        digest.validate();
+    }
+
+    @Test(expectedExceptions = DigestException.class)
+    public void testValidateCorruptedData () throws DigestException {
+        final ByteBuffer data = randomData(516);
+        final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+        digest.update(data, 0, 512);
+        data.putInt(512, (int) digest.getValue());
+        data.put(17, (byte) ~data.get(17));
+
+        digest.reset();
+        digest.update(data, 0, data.capacity());
+        digest.validate();
+    }
+
+    /**
+     * The digests of a PDU, whose data segment is not a multiple of four bytes long, must not depend on whether the
+     * PDU is serialized into a single buffer or into separate segments.
+     */
+    @Test
+    public void testProtocolDataUnitDigests () throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "CRC32C", "CRC32C");
+        ((SCSICommandParser) pdu.getBasicHeaderSegment().getParser()).setTaskAttributes(TaskAttributes.SIMPLE);
+        pdu.setDataSegment(randomData(13));
+
+        final ByteBuffer serialized = pdu.serialize();
+        final ByteBuffer[] segments = pdu.serializeSegments();
+        assertEquals(segments[0].getInt(48), serialized.getInt(48));
+        assertEquals(segments[2].getInt(3), serialized.getInt(52 + 16));
+
+        // the data segment, its padding and the data digest yield the final remainder
+        final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+        digest.update(serialized, 52, 16 + 4);
+        digest.validate();
+    }
+
+    /**
+     * A PDU read from a channel must consume and validate both digests, so that the next PDU can be read.
+     */
+    @Test
+    public void testProtocolDataUnitRead () throws Exception {
+        final ByteBuffer serialized = serializeWithDigests(randomData(13));
+        final ByteBuffer twice = ByteBuffer.allocate(2 * serialized.limit());
+        twice.put(serialized.duplicate()).put(serialized.duplicate()).flip();
+        final ReadableByteChannel channel = Channels.newChannel(new ByteArrayInputStream(twice.array()));
+
+        for (int i = 0; i < 2; ++i) {
+            final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create("CRC32C", "CRC32C");
+            assertEquals(pdu.read(channel), 48 + 4 + 16 + 4);
+            assertEquals(pdu.getBasicHeaderSegment().getDataSegmentLength(), 13);
+            assertEquals(pdu.getDataSegment().limit(13), randomData(13));
+        }
+
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create("CRC32C", "CRC32C");
+        pdu.deserialize(serialized);
+        assertEquals(pdu.getDataSegment().limit(13), randomData(13));
+    }
+
+    @Test(expectedExceptions = DigestException.class)
+    public void testProtocolDataUnitReadCorruptedHeader () throws Exception {
+        final ByteBuffer serialized = serializeWithDigests(randomData(13));
+        serialized.put(20, (byte) ~serialized.get(20));
+        new ProtocolDataUnitFactory().create("CRC32C", "CRC32C").read(Channels.newChannel(new ByteArrayInputStream(serialized.array(), 0, serialized.limit())));
+    }
+
+    @Test(expectedExceptions = DigestException.class)
+    public void testProtocolDataUnitReadCorruptedData () throws Exception {
+        final ByteBuffer serialized = serializeWithDigests(randomData(13));
+        serialized.put(60, (byte) ~serialized.get(60));
+        new ProtocolDataUnitFactory().create("CRC32C", "CRC32C").read(Channels.newChannel(new ByteArrayInputStream(serialized.array(), 0, serialized.limit())));
+    }
+
+    private static ByteBuffer serializeWithDigests (final ByteBuffer dataSegment) throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "CRC32C", "CRC32C");
+        ((SCSICommandParser) pdu.getBasicHeaderSegment().getParser()).setTaskAttributes(TaskAttributes.SIMPLE);
+        pdu.setDataSegment(dataSegment);
+        return pdu.serialize();
+    }
+
+    private static ByteBuffer randomData (final int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+
+}
@@ -0,0 +1,96 @@
+package org.jscsi.parser.digest;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+
+/**
+ * Tests that the {@link ParallelCRC32CDigest} yields the same digests as the serial implementations.
+ */
+public class ParallelCRC32CDigestTest {
+
+    private static final int THRESHOLD = 256 * 1024;
+
+    @Test
+    public void testSelectedByFactory () {
+        assertTrue(new DigestFactory(THRESHOLD).create("CRC32C") instanceof ParallelCRC32CDigest);
+        assertTrue(new DigestFactory().create("CRC32C") instanceof IntrinsicCRC32CDigest);
+    }
+
+    @Test
+    public void testCombine () {
+        final ByteBuffer data = randomData(1001);
+        for (int split : new int[] { 0, 1, 3, 500, 1000, 1001 }) {
+            final int first = crc(data, 0, split);
+            final int second = crc(data, split, data.capacity() - split);
+            assertEquals(ParallelCRC32CDigest.combine(first, second, data.capacity() - split), crc(data, 0, data.capacity()), "split at " + split);
+        }
+    }
+
+    @Test
+    public void testSameAsTableImplementation () {
+        final ByteBuffer data = randomData(1024 * 1024);
+        final CRC32CDigest table = new CRC32CDigest();
+        final int[] words = new int[data.capacity() / 4];
+        data.asIntBuffer().get(words);
+        table.slicingBy4(words);
+
+        final ParallelCRC32CDigest digest = new ParallelCRC32CDigest(THRESHOLD);
+        digest.update(data, 0, data.capacity());
+        assertEquals(digest.getValue(), table.getValue());
+    }
+
+    @Test
+    public void testMixedUpdates () {
+        final ByteBuffer data = ByteBuffer.allocateDirect(3 * THRESHOLD + 13);
+        data.put(randomData(data.capacity())).flip();
+        final IntrinsicCRC32CDigest serial = new IntrinsicCRC32CDigest();
+        serial.update(data, 0, data.capacity());
+
+        // a small update, a parallel one of an odd length, single bytes and another parallel one
+        final ParallelCRC32CDigest digest = new ParallelCRC32CDigest(THRESHOLD);
+        digest.update(data, 0, 10);
+        digest.update(data, 10, THRESHOLD + 1);
+        for (int i = THRESHOLD + 11; i < THRESHOLD + 13; i++) {
+            digest.update(data.get(i));
+        }
+        digest.update(data, THRESHOLD + 13, data.capacity() - THRESHOLD - 13);
+        assertEquals(digest.getValue(), serial.getValue());
+
+        digest.reset();
+        serial.reset();
+        assertEquals(digest.getValue(), serial.getValue());
+    }
+
+    @Test
+    public void testValidate () throws DigestException {
+        final ByteBuffer data = randomData(THRESHOLD + 4);
+        final ParallelCRC32CDigest digest = new ParallelCRC32CDigest(THRESHOLD);
+        digest.update(data, 0, THRESHOLD);
+        data.putInt(THRESHOLD, (int) digest.getValue());
+
+        digest.reset();
+        digest.update(data, 0, data.capacity());
+        digest.validate();
+    }
+
+    private static int crc (final ByteBuffer data, final int off, final int len) {
+        final IntrinsicCRC32CDigest digest = new IntrinsicCRC32CDigest();
+        digest.update(data, off, len);
+        return Integer.reverseBytes((int) digest.getValue());
+    }
+
+    private static ByteBuffer randomData (final int length) {
+        final byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return ByteBuffer.wrap(data);
+    }
+
+}
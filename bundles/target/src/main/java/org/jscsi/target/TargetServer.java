@@ -1,13 +1,22 @@
 package org.jscsi.target;
 
 import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.connection.CommandDispatcher;
+import org.jscsi.target.connection.Connection;
 import org.jscsi.target.connection.TargetConnection;
+import org.jscsi.target.connection.TargetReactor;
 import org.jscsi.target.connection.TargetSession;
 import org.jscsi.target.connection.TargetSessionManager;
+import org.jscsi.target.connection.trace.PduFlightRecorder;
 import org.jscsi.target.context.Configuration;
+import org.jscsi.target.context.ConnectionMode;
+import org.jscsi.target.context.LogicalUnit;
 import org.jscsi.target.context.Target;
 import org.jscsi.target.context.TargetContext;
 import org.jscsi.target.scsi.inquiry.DeviceIdentificationVpdPage;
+import org.jscsi.target.storage.StorageCopier;
+import org.jscsi.target.storage.cache.CachingStorageModule;
+import org.jscsi.target.util.BufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -18,8 +27,10 @@ import java.nio.channels.SocketChannel;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -57,11 +68,38 @@ public class TargetServer implements Callable<Void>, TargetContext {
      */
     private final HashMap<String, Target> targets = new HashMap<>();
 
+    /**
+     * Creates the threads of the {@link #workerPool} and of the sessions' {@link CommandDispatcher}s, i.e. virtual
+     * threads in {@link ConnectionMode#VIRTUAL_THREAD} mode.
+     */
+    private final ThreadFactory workerThreadFactory;
+
     /**
      * The thread pool.
      */
     private final ExecutorService workerPool;
 
+    /**
+     * Copies data between the logical units of a target on behalf of <code>EXTENDED COPY</code> commands, using
+     * the {@link #workerPool}.
+     */
+    private final StorageCopier storageCopier;
+
+    /**
+     * Records the PDUs sent and received by all connections, or <code>null</code> if no capacity has been configured.
+     */
+    private final PduFlightRecorder flightRecorder;
+
+    /**
+     * Provides the direct buffers write data is received into, shared by all connections.
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Serves all connections if the {@link ConnectionMode#REACTOR} has been configured, otherwise <code>null</code>.
+     */
+    private TargetReactor reactor;
+
     /**
      * A target-wide counter used for providing the value of sent {@link ProtocolDataUnit}s'
      * <code>Target Transfer Tag</code> field, unless that field is reserved.
@@ -90,7 +128,46 @@ public class TargetServer implements Callable<Void>, TargetContext {
         }
 
         this.deviceIdentificationVpdPage = new DeviceIdentificationVpdPage(this);
-        this.workerPool = Executors.newCachedThreadPool();
+        this.workerThreadFactory = createWorkerThreadFactory(getConfig().getConnectionMode());
+        this.workerPool = Executors.newCachedThreadPool(workerThreadFactory);
+        this.storageCopier = new StorageCopier(workerPool);
+        for (Target target : targetInfo) {
+            for (LogicalUnit logicalUnit : target.getLogicalUnits()) {
+                if (logicalUnit.getStorageModule() instanceof CachingStorageModule) {
+                    ((CachingStorageModule) logicalUnit.getStorageModule()).setReadAheadExecutor(getStorageExecutor());
+                }
+            }
+        }
+        this.bufferPool = new BufferPool(getConfig().getBufferPoolCapacity());
+        if (getConfig().getFlightRecorderCapacity() > 0) {
+            this.flightRecorder = new PduFlightRecorder(getConfig().getFlightRecorderCapacity());
+            this.flightRecorder.register(getConfig().getPort());
+        } else {
+            this.flightRecorder = null;
+        }
+    }
+
+    /**
+     * Creates the factory of the threads serving the connections and executing their commands. If
+     * {@link ConnectionMode#VIRTUAL_THREAD} has been configured, the factory creates virtual threads. Since virtual
+     * threads are not available on all supported Java runtimes, the factory is looked up reflectively, falling back to
+     * platform threads if it does not exist.
+     *
+     * @param connectionMode the configured connection mode
+     * @return the factory of the worker threads
+     */
+    private static ThreadFactory createWorkerThreadFactory(final ConnectionMode connectionMode) {
+        if (connectionMode == ConnectionMode.VIRTUAL_THREAD) {
+            try {
+                final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+                final ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+                LOGGER.info("   connections are served by virtual threads");
+                return factory;
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads are not supported by this Java runtime, using platform threads instead");
+            }
+        }
+        return Executors.defaultThreadFactory();
     }
 
     /**
@@ -129,11 +206,13 @@ public class TargetServer implements Callable<Void>, TargetContext {
                 // coming back from call() means the session is ended
                 // we can delete the target from local cache.
                 synchronized (targets) {
-                    Target target = targetConnection.getTargetSession().getTarget();
+                    // rejected connections belong to no session
+                    final TargetSession session = targetConnection.getTargetSession();
+                    Target target = session == null ? null : session.getTarget();
                     if (target != null) {
                         targets.remove(target.getTargetName());
                         try {
-                            target.getStorageModule().close();
+                            target.close();
                         } catch (Exception e) {
                             LOGGER.error("Error when closing storage:", e);
                         }
@@ -159,6 +238,12 @@ public class TargetServer implements Callable<Void>, TargetContext {
             // Making sure the socket is bound to the address used in the config.
             serverSocketChannel.socket().bind(new InetSocketAddress(getConfig().getTargetAddress(), getConfig().getPort()));
 
+            if (getConfig().getConnectionMode() == ConnectionMode.REACTOR) {
+                LOGGER.info("   selector threads: " + getConfig().getSelectorThreads());
+                reactor = new TargetReactor(this, getConfig().getSelectorThreads(), workerPool);
+                reactor.start();
+            }
+
             while (running) {
                 // Accept the connection request.
                 // If serverSocketChannel is blocking, this method blocks.
@@ -168,18 +253,31 @@ public class TargetServer implements Callable<Void>, TargetContext {
                 // deactivate Nagle algorithm
                 socketChannel.socket().setTcpNoDelay(true);
 
-                workerPool.submit(() -> new TargetWorkHandler(socketChannel, this).handle());
+                if (reactor != null) {
+                    reactor.register(socketChannel);
+                } else {
+                    workerPool.submit(() -> new TargetWorkHandler(socketChannel, this).handle());
+                }
             }
         } catch (IOException e) {
             // this block is entered if the desired port is already in use
             LOGGER.error("Throws Exception", e);
         }
 
+        if (reactor != null) {
+            reactor.stop();
+        }
+        if (flightRecorder != null) {
+            flightRecorder.unregister(getConfig().getPort());
+        }
+
         System.out.println("Closing socket channel.");
         serverSocketChannel.close();
         for (TargetSession session : sessionManager.iterable()) {
             System.out.println("Commiting uncommited changes.");
-            session.getStorageModule().close();
+            if (session.getTarget() != null) {
+                session.getTarget().close();
+            }
         }
         return null;
     }
@@ -192,6 +290,38 @@ public class TargetServer implements Callable<Void>, TargetContext {
         return deviceIdentificationVpdPage;
     }
 
+    public StorageCopier getStorageCopier() {
+        return storageCopier;
+    }
+
+    /**
+     * Returns the factory of the threads executing the commands of the sessions concurrently, which creates virtual
+     * threads in {@link ConnectionMode#VIRTUAL_THREAD} mode.
+     *
+     * @return the factory of the worker threads
+     */
+    public ThreadFactory getWorkerThreadFactory() {
+        return workerThreadFactory;
+    }
+
+    /**
+     * Returns the executor for storage accesses which are overlapped with network transfers, i.e. the read-ahead of
+     * <code>READ</code> commands and the write-behind of <code>WRITE</code> commands.
+     *
+     * @return the executor for storage accesses
+     */
+    public Executor getStorageExecutor() {
+        return workerPool;
+    }
+
+    public PduFlightRecorder getFlightRecorder() {
+        return flightRecorder;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
     public Target getTarget(String targetName) {
         synchronized (targets) {
             return targets.get(targetName);
@@ -200,11 +330,16 @@ public class TargetServer implements Callable<Void>, TargetContext {
 
     public void removeTarget(TargetConnection targetConnection) {
         synchronized (targets) {
-            Target target = targetConnection.getTargetSession().getTarget();
+            final TargetSession session = targetConnection.getTargetSession();
+            if (session == null || !session.getConnections().isEmpty()) {
+                // other connections of the session are still using the target
+                return;
+            }
+            Target target = session.getTarget();
             if (target != null) {
                 targets.remove(target.getTargetName());
                 try {
-                    target.getStorageModule().close();
+                    target.close();
                 } catch (Exception e) {
                     LOGGER.error("Error when closing storage:", e);
                 }
@@ -250,9 +385,11 @@ public class TargetServer implements Callable<Void>, TargetContext {
     public void stop() {
         this.running = false;
         for (TargetSession session : sessionManager.iterable()) {
-            if (!session.getConnection().stop()) {
-                this.running = true;
-                LOGGER.error("Unable to stop session for " + session.getTargetName());
+            for (Connection connection : session.getConnections()) {
+                if (!connection.stop()) {
+                    this.running = true;
+                    LOGGER.error("Unable to stop session for " + session.getTargetName());
+                }
             }
         }
     }
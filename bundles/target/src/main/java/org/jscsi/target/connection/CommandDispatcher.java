@@ -0,0 +1,422 @@
+package org.jscsi.target.connection;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.connection.stage.TargetStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.settings.SettingsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.DigestException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A session-wide dispatcher which keeps track of all SCSI commands that have been received in a {@link TargetSession}
+ * but have not yet been completed, i.e. for which no status has been sent.
+ * <p>
+ * Commands are identified by their <code>Initiator Task Tag</code>. Each outstanding command occupies one slot of the
+ * session's command window, so that the <code>MaxCmdSN</code> value reported to the initiator is only advanced once a
+ * command has retired.
+ * <p>
+ * If the command window is larger than <code>1</code>, stages which only send PDUs (and never receive any PDUs
+ * themselves) may be executed concurrently by the dispatcher's worker threads, allowing several commands to be in
+ * progress at the same time. All other stages are executed by the calling thread after all concurrently running stages
+ * have finished.
+ * <p>
+ * In a session with several connections, the stages of each connection are tracked separately, so that waiting for
+ * stages to finish and reporting their failures does not affect the other connections.
+ * <p>
+ * Each logical unit has a queue of its own, which is served by at most {@link LogicalUnit#getWorkers()} threads, and
+ * stages addressed to a logical unit only wait for the concurrently executed stages of the same logical unit. A slow
+ * logical unit therefore neither takes up the threads of the others nor delays their commands. The threads are created
+ * by the factory of the target's worker threads, so that concurrent stages run on virtual threads in
+ * {@link org.jscsi.target.context.ConnectionMode#VIRTUAL_THREAD} mode.
+ */
+public final class CommandDispatcher {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CommandDispatcher.class);
+
+    /**
+     * The number of commands the initiator may send without having to wait for a previous command to finish.
+     */
+    private final int commandWindowSize;
+
+    /**
+     * Creates the threads of the {@link #executors}.
+     */
+    private final ThreadFactory threadFactory;
+
+    /**
+     * Maps the <code>Initiator Task Tag</code>s of all received commands which have not yet been completed to the
+     * {@link Connection} they have been received over.
+     */
+    private final Map<Integer, Connection> outstandingTasks = new ConcurrentHashMap<>();
+
+    /**
+     * Guards {@link #executors}, {@link #runningStages} and {@link #failures}. A {@link Lock} is used instead of
+     * <code>synchronized</code> blocks, so that virtual threads waiting for stages to finish are not pinned.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Signalled whenever a concurrently executed stage has finished.
+     */
+    private final Condition stageFinished = lock.newCondition();
+
+    /**
+     * Used for executing stages concurrently, by the {@link LogicalUnit} addressed by the stage. Stages which do not
+     * address a logical unit are mapped to <code>null</code>. Executors will only be created if
+     * {@link #commandWindowSize} is larger than <code>1</code>.
+     */
+    private final Map<LogicalUnit, ExecutorService> executors = new HashMap<>();
+
+    /**
+     * The number of stages currently being executed by the {@link #executors}, by the {@link Connection} and the
+     * {@link LogicalUnit} of the stage.
+     */
+    private final Map<Connection, Map<LogicalUnit, Integer>> runningStages = new HashMap<>();
+
+    /**
+     * The first {@link Exception} thrown by a concurrently executed stage of each {@link Connection}.
+     */
+    private final Map<Connection, Exception> failures = new HashMap<>();
+
+    /**
+     * Creates a dispatcher executing stages concurrently on platform threads.
+     *
+     * @param commandWindowSize the size of the session's command window
+     */
+    public CommandDispatcher(final int commandWindowSize) {
+        this(commandWindowSize, Executors.defaultThreadFactory());
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param commandWindowSize the size of the session's command window
+     * @param threadFactory     creates the threads executing stages concurrently
+     */
+    public CommandDispatcher(final int commandWindowSize, final ThreadFactory threadFactory) {
+        if (commandWindowSize < 1) {
+            throw new IllegalArgumentException("command window size must be positive: " + commandWindowSize);
+        }
+        this.commandWindowSize = commandWindowSize;
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Returns the size of the command window.
+     *
+     * @return the size of the command window
+     */
+    public int getCommandWindowSize() {
+        return commandWindowSize;
+    }
+
+    /**
+     * Registers a newly received, non-immediate command.
+     *
+     * @param initiatorTaskTag the <code>Initiator Task Tag</code> of the command
+     * @param connection       the connection the command has been received over
+     */
+    public void register(final int initiatorTaskTag, final Connection connection) {
+        outstandingTasks.put(initiatorTaskTag, connection);
+    }
+
+    /**
+     * Marks the command with the specified <code>Initiator Task Tag</code> as completed, freeing its slot in the
+     * command window. Tags of unknown (e.g. immediate) commands are ignored.
+     *
+     * @param initiatorTaskTag the <code>Initiator Task Tag</code> of the command
+     * @return <code>true</code> if the command had been outstanding
+     */
+    public boolean complete(final int initiatorTaskTag) {
+        return outstandingTasks.remove(initiatorTaskTag) != null;
+    }
+
+    /**
+     * Marks all commands received over the specified connection as completed, e.g. because the connection has been
+     * closed before their status could be sent.
+     *
+     * @param connection the connection the commands have been received over
+     * @return <code>true</code> if any command had been outstanding
+     */
+    public boolean completeAll(final Connection connection) {
+        return outstandingTasks.values().removeIf(received -> received == connection);
+    }
+
+    /**
+     * Returns <code>true</code> if the command with the specified <code>Initiator Task Tag</code> has been received
+     * but not yet completed.
+     *
+     * @param initiatorTaskTag the <code>Initiator Task Tag</code> of the command
+     * @return <code>true</code> if the command is outstanding
+     */
+    public boolean isOutstanding(final int initiatorTaskTag) {
+        return outstandingTasks.containsKey(initiatorTaskTag);
+    }
+
+    /**
+     * Returns the number of received commands which have not been completed yet.
+     *
+     * @return the number of outstanding commands
+     */
+    public int getOutstandingCount() {
+        return outstandingTasks.size();
+    }
+
+    /**
+     * Returns the <code>MaxCmdSN</code> value resulting from the specified <code>ExpCmdSN</code>, the size of the
+     * command window and the number of outstanding commands.
+     *
+     * @param expectedCommandSequenceNumber the current <code>ExpCmdSN</code>
+     * @return the highest <code>CmdSN</code> the target will currently accept
+     */
+    public int getMaximumCommandSequenceNumber(final int expectedCommandSequenceNumber) {
+        return expectedCommandSequenceNumber + commandWindowSize - 1 - outstandingTasks.size();
+    }
+
+    /**
+     * Executes the specified stage, which does not address a logical unit.
+     *
+     * @param stage      the stage to execute
+     * @param pdu        the PDU to be processed by the stage
+     * @param concurrent <code>true</code> if the stage does not receive PDUs and may therefore be executed concurrently
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the calling thread was interrupted while waiting
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a setting required by the stage has not been negotiated
+     * @see #dispatch(TargetStage, ProtocolDataUnit, LogicalUnit, boolean)
+     */
+    public void dispatch(final TargetStage stage, final ProtocolDataUnit pdu, final boolean concurrent) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        dispatch(stage, pdu, null, concurrent);
+    }
+
+    /**
+     * Executes the specified stage. If <i>concurrent</i> is <code>true</code> and the command window is large enough,
+     * the stage will be executed asynchronously by the executor of the logical unit, otherwise this method will wait
+     * until all asynchronously executed stages of the same logical unit (or of all logical units, if the stage does not
+     * address any) have finished and then execute the stage in the calling thread.
+     *
+     * @param stage       the stage to execute
+     * @param pdu         the PDU to be processed by the stage
+     * @param logicalUnit the logical unit addressed by the stage, or <code>null</code>
+     * @param concurrent  <code>true</code> if the stage does not receive PDUs and may therefore be executed
+     *                    concurrently
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the calling thread was interrupted while waiting
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a setting required by the stage has not been negotiated
+     */
+    public void dispatch(final TargetStage stage, final ProtocolDataUnit pdu, final LogicalUnit logicalUnit, final boolean concurrent) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final Connection connection = stage.getConnection();
+        if (!concurrent || commandWindowSize == 1) {
+            if (logicalUnit == null) {
+                awaitCompletion(connection);
+            } else {
+                awaitCompletion(connection, logicalUnit);
+            }
+            try {
+                stage.execute(pdu);
+            } catch (final Exception e) {
+                // no status will be sent for the command, which must not keep its slot in the command window
+                complete(pdu.getBasicHeaderSegment().getInitiatorTaskTag());
+                throw e;
+            }
+            return;
+        }
+
+        final ExecutorService workers;
+        lock.lock();
+        try {
+            checkFailure(connection);
+            workers = executors.computeIfAbsent(logicalUnit, this::createExecutor);
+            runningStages.computeIfAbsent(connection, key -> new HashMap<>()).merge(logicalUnit, 1, Integer::sum);
+        } finally {
+            lock.unlock();
+        }
+        workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    stage.execute(pdu);
+                } catch (Exception e) {
+                    LOGGER.error("Exception in concurrently executed " + stage.getClass().getSimpleName(), e);
+                    complete(pdu.getBasicHeaderSegment().getInitiatorTaskTag());
+                    lock.lock();
+                    try {
+                        failures.putIfAbsent(connection, e);
+                    } finally {
+                        lock.unlock();
+                    }
+                } finally {
+                    lock.lock();
+                    try {
+                        final Map<LogicalUnit, Integer> running = runningStages.get(connection);
+                        running.compute(logicalUnit, (key, count) -> count == 1 ? null : count - 1);
+                        if (running.isEmpty()) {
+                            runningStages.remove(connection);
+                        }
+                        stageFinished.signalAll();
+                    } finally {
+                        lock.unlock();
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the executor serving the queue of a logical unit. Its number of threads is limited by the worker budget
+     * of the logical unit, or by the command window if the logical unit has no budget.
+     *
+     * @param logicalUnit the logical unit, or <code>null</code> for stages not addressing any logical unit
+     * @return the executor
+     */
+    private ExecutorService createExecutor(final LogicalUnit logicalUnit) {
+        if (logicalUnit == null || logicalUnit.getWorkers() == 0 || logicalUnit.getWorkers() >= commandWindowSize) {
+            // the number of threads is limited by the command window
+            return Executors.newCachedThreadPool(threadFactory);
+        }
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(logicalUnit.getWorkers(), logicalUnit.getWorkers(), 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Blocks until all concurrently executed stages of all connections have finished.
+     *
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the calling thread was interrupted while waiting
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a setting required by a stage has not been negotiated
+     */
+    public void awaitCompletion() throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        lock.lock();
+        try {
+            while (!runningStages.isEmpty()) {
+                stageFinished.await();
+            }
+            final Iterator<Connection> failed = failures.keySet().iterator();
+            if (failed.hasNext()) {
+                checkFailure(failed.next());
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all concurrently executed stages of the specified connection have finished.
+     *
+     * @param connection the connection whose stages are to be awaited
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the calling thread was interrupted while waiting
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a setting required by a stage has not been negotiated
+     */
+    public void awaitCompletion(final Connection connection) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        lock.lock();
+        try {
+            while (runningStages.containsKey(connection)) {
+                stageFinished.await();
+            }
+            checkFailure(connection);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Blocks until all concurrently executed stages of the specified connection which address the specified logical
+     * unit have finished.
+     *
+     * @param connection  the connection whose stages are to be awaited
+     * @param logicalUnit the logical unit addressed by the stages
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the calling thread was interrupted while waiting
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a setting required by a stage has not been negotiated
+     */
+    public void awaitCompletion(final Connection connection, final LogicalUnit logicalUnit) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        lock.lock();
+        try {
+            while (runningStages.containsKey(connection) && runningStages.get(connection).containsKey(logicalUnit)) {
+                stageFinished.await();
+            }
+            checkFailure(connection);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Rethrows the first exception thrown by a concurrently executed stage of the specified connection.
+     *
+     * @param connection the connection of the stages
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if a stage was interrupted
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard, or if the failure was caused by any
+     *                               other exception
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a setting required by a stage has not been negotiated
+     */
+    private void checkFailure(final Connection connection) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final Exception e = failures.remove(connection);
+        if (e == null) {
+            return;
+        }
+        if (e instanceof IOException) {
+            throw (IOException) e;
+        } else if (e instanceof InterruptedException) {
+            throw (InterruptedException) e;
+        } else if (e instanceof InternetSCSIException) {
+            throw (InternetSCSIException) e;
+        } else if (e instanceof DigestException) {
+            throw (DigestException) e;
+        } else if (e instanceof SettingsException) {
+            throw (SettingsException) e;
+        }
+        throw new InternetSCSIException(e);
+    }
+
+    /**
+     * Stops the worker threads. Stages which are currently being executed will still be finished.
+     */
+    public void shutdown() {
+        lock.lock();
+        try {
+            for (final ExecutorService executor : executors.values()) {
+                executor.shutdown();
+            }
+            executors.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CommandDispatcher[window=" + commandWindowSize + ", outstanding=" + outstandingTasks.size() + "]";
+    }
+}
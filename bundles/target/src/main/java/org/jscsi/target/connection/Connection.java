@@ -2,13 +2,16 @@ package org.jscsi.target.connection;
 
 import org.jscsi.exception.InternetSCSIException;
 import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.context.DataInMode;
 import org.jscsi.target.settings.ConnectionSettingsNegotiator;
 import org.jscsi.target.settings.SessionSettingsNegotiator;
 import org.jscsi.target.settings.Settings;
 import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.util.BufferPool;
 import org.jscsi.target.util.SerialArithmeticNumber;
 
 import java.io.IOException;
+import java.nio.channels.FileChannel;
 import java.security.DigestException;
 import java.util.concurrent.Callable;
 
@@ -35,6 +38,10 @@ public interface Connection {
 
     void sendPdu(ProtocolDataUnit pDataUnit) throws InterruptedException, IOException, InternetSCSIException;
 
+    void sendPdu(ProtocolDataUnit pDataUnit, FileChannel pSource, long pPosition) throws IOException, InternetSCSIException;
+
+    DataInMode getDataInMode();
+
     ConnectionSettingsNegotiator getConnectionSettingsNegotiator();
 
     void setSession(TargetSession pSession);
@@ -47,6 +54,10 @@ public interface Connection {
 
     byte[] getDataInArray(int pLength);
 
+    BufferPool getBufferPool();
+
+    PduPool getPduPool();
+
     public boolean stop();
 
 }
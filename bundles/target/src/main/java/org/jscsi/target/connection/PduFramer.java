@@ -0,0 +1,186 @@
+package org.jscsi.target.connection;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.settings.Settings;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.util.BufferPool;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Queue;
+
+/**
+ * Instances of this class split the byte stream read from a non-blocking channel into serialized
+ * {@link ProtocolDataUnit}s.
+ * <p>
+ * Just like {@link ProtocolDataUnit#read(ReadableByteChannel)}, the Basic Header Segment is read first in order to
+ * determine the total length of the PDU, i.e. the length of the Additional Header Segments and of the (padded) data
+ * segment. Since the channel may deliver only parts of a PDU at a time, the framer keeps all partially received bytes
+ * until the PDU is complete. Header and data digests are part of the frame once they have been negotiated.
+ */
+final class PduFramer {
+
+    /**
+     * The length of the Basic Header Segment in bytes.
+     */
+    static final int BHS_LENGTH = 48;
+
+    /**
+     * Position of the <code>TotalAHSLength</code> field within the Basic Header Segment.
+     */
+    private static final int TOTAL_AHS_LENGTH_INDEX = 4;
+
+    /**
+     * Position of the three byte <code>DataSegmentLength</code> field within the Basic Header Segment.
+     */
+    private static final int DATA_SEGMENT_LENGTH_INDEX = 5;
+
+    /**
+     * The operation code is stored in the lower six bits of the first byte of the Basic Header Segment.
+     */
+    private static final int OPERATION_CODE_MASK = 0x3f;
+
+    /**
+     * The length of Additional Header Segments is specified in multiples of this value, and data segments are padded
+     * to a multiple of it.
+     */
+    private static final int WORD_LENGTH = 4;
+
+    /**
+     * The length of a <code>CRC32C</code> digest, the only digest besides <code>None</code>.
+     */
+    private static final int DIGEST_LENGTH = 4;
+
+    /**
+     * The connection the PDUs are received over, which provides the negotiated digests and the buffers the frames
+     * are held in.
+     */
+    private final Connection connection;
+
+    /**
+     * No further PDUs are read while the queue the complete PDUs are added to holds this many frames.
+     */
+    private final int maxQueuedFrames;
+
+    /**
+     * Holds the Basic Header Segment of the PDU currently being received.
+     */
+    private final ByteBuffer basicHeaderSegment = ByteBuffer.allocate(BHS_LENGTH);
+
+    /**
+     * Holds the complete PDU currently being received, or is <code>null</code> if the Basic Header Segment has not been
+     * received completely.
+     */
+    private ByteBuffer frame;
+
+    /**
+     * The constructor.
+     *
+     * @param connection      the connection the PDUs are received over
+     * @param maxQueuedFrames the maximum number of frames in the queue passed to
+     *                        {@link #read(ReadableByteChannel, Queue)}
+     */
+    PduFramer(final Connection connection, final int maxQueuedFrames) {
+        this.connection = connection;
+        this.maxQueuedFrames = maxQueuedFrames;
+    }
+
+    /**
+     * Reads the bytes currently available from the given channel and adds every completely received PDU to
+     * <i>frames</i>. Reading stops as soon as <i>frames</i> holds the maximum number of frames, in which case more
+     * bytes may be available.
+     * <p>
+     * The frames are leased from the {@link org.jscsi.target.util.BufferPool} of the connection, and should be
+     * released once they have been parsed.
+     *
+     * @param channel a non-blocking channel
+     * @param frames  the queue the complete serialized PDUs are added to, each one ready for reading
+     * @return the number of bytes read, or <code>-1</code> if the channel has reached end-of-stream
+     * @throws IOException if an I/O error occurs
+     */
+    int read(final ReadableByteChannel channel, final Queue<ByteBuffer> frames) throws IOException {
+        int total = 0;
+        while (frames.size() < maxQueuedFrames) {
+            final ByteBuffer dst = frame == null ? basicHeaderSegment : frame;
+            final int read = channel.read(dst);
+            if (read == -1) {
+                return -1;
+            }
+            if (read == 0 && dst.hasRemaining()) {
+                return total;
+            }
+            total += read;
+
+            if (frame == null && !basicHeaderSegment.hasRemaining()) {
+                // the Basic Header Segment is complete, so the total length is known
+                frame = allocateFrame(BHS_LENGTH + getRemainingLength(basicHeaderSegment));
+                basicHeaderSegment.flip();
+                frame.put(basicHeaderSegment);
+                basicHeaderSegment.clear();
+            }
+            if (frame != null && !frame.hasRemaining()) {
+                frame.flip();
+                frames.add(frame);
+                frame = null;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Returns a buffer for a frame of the given length, with the limit set to the length.
+     *
+     * @param length the length of the frame
+     * @return the buffer
+     */
+    private ByteBuffer allocateFrame(final int length) {
+        if (length > BufferPool.MAX_BUFFER_SIZE) {
+            // larger than any data segment the initiator may send, so it is not worth pooling
+            return ByteBuffer.allocate(length);
+        }
+        return connection.getBufferPool().lease(length);
+    }
+
+    /**
+     * Returns the number of bytes following the given Basic Header Segment which belong to the same PDU, including
+     * the digests negotiated for the connection.
+     *
+     * @param bhs a complete Basic Header Segment
+     * @return the length of the Additional Header Segments, the padded data segment and the digests
+     * @throws IOException if the digests of the connection have not been negotiated
+     */
+    private int getRemainingLength(final ByteBuffer bhs) throws IOException {
+        // Login Request PDUs never carry digests, and neither do PDUs preceding the first Login Request PDU
+        if ((bhs.get(0) & OPERATION_CODE_MASK) == OperationCode.LOGIN_REQUEST.value() || connection.getConnectionSettingsNegotiator() == null) {
+            return getRemainingLength(bhs, 0, 0);
+        }
+        try {
+            final Settings settings = connection.getSettings();
+            return getRemainingLength(bhs, getDigestLength(settings.getHeaderDigest()), getDigestLength(settings.getDataDigest()));
+        } catch (SettingsException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int getDigestLength(final String digest) {
+        return TextKeyword.NONE.equals(digest) ? 0 : DIGEST_LENGTH;
+    }
+
+    /**
+     * Returns the number of bytes following the given Basic Header Segment which belong to the same PDU.
+     *
+     * @param bhs                a complete Basic Header Segment
+     * @param headerDigestLength the length of the header digest
+     * @param dataDigestLength   the length of the data digest, which is only present if the data segment is not empty
+     * @return the length of the Additional Header Segments, the padded data segment and the digests
+     */
+    static int getRemainingLength(final ByteBuffer bhs, final int headerDigestLength, final int dataDigestLength) {
+        final int totalAhsLength = (bhs.get(TOTAL_AHS_LENGTH_INDEX) & 0xff) * WORD_LENGTH;
+        final int dataSegmentLength = ((bhs.get(DATA_SEGMENT_LENGTH_INDEX) & 0xff) << 16) | ((bhs.get(DATA_SEGMENT_LENGTH_INDEX + 1) & 0xff) << 8) | (bhs.get(DATA_SEGMENT_LENGTH_INDEX + 2) & 0xff);
+        final int padding = (WORD_LENGTH - dataSegmentLength % WORD_LENGTH) % WORD_LENGTH;
+        return totalAhsLength + headerDigestLength + dataSegmentLength + padding + (dataSegmentLength == 0 ? 0 : dataDigestLength);
+    }
+}
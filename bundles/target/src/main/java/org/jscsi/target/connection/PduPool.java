@@ -0,0 +1,144 @@
+package org.jscsi.target.connection;
+
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+
+
+/**
+ * A pool of the {@link ProtocolDataUnit} objects received PDUs are read into.
+ * <p>
+ * A recycled PDU keeps its digests, its buffer for the Basic Header Segment and the parser of the last PDU read into
+ * it, which is reused if the next PDU has the same operation code. Reading a Data-Out PDU into a recycled object
+ * therefore does not allocate anything, except for the buffer of the data segment, which is leased from the
+ * connection's {@link org.jscsi.target.util.BufferPool}.
+ * <p>
+ * {@link #lease(String, String)} must only be called by the thread receiving the PDUs of the connection, whereas
+ * {@link #release(ProtocolDataUnit)} may be called by the thread executing the stage that processed the PDU. A PDU
+ * must not be released as long as any part of it, e.g. its parser, is still in use.
+ */
+public final class PduPool {
+
+    /**
+     * The default maximum number of pooled PDUs.
+     */
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Creates the PDUs if the pool is empty.
+     */
+    private final ProtocolDataUnitFactory protocolDataUnitFactory;
+
+    /**
+     * The released PDUs.
+     */
+    private final ArrayBlockingQueue<ProtocolDataUnit> freeList;
+
+    /**
+     * The names of the header and data digests of the pooled PDUs.
+     */
+    private String headerDigest;
+
+    private String dataDigest;
+
+    /**
+     * The lengths of the header and data digests of the pooled PDUs, which tell released PDUs with other digests apart.
+     */
+    private volatile int headerDigestSize;
+
+    private volatile int dataDigestSize;
+
+    /**
+     * Creates a pool keeping up to {@link #DEFAULT_CAPACITY} PDUs.
+     */
+    public PduPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param capacity the maximum number of pooled PDUs
+     */
+    public PduPool(final int capacity) {
+        this(capacity, 0);
+    }
+
+    /**
+     * Creates a pool whose PDUs calculate the <code>CRC32C</code> digests of large data segments in parallel.
+     *
+     * @param capacity                the maximum number of pooled PDUs
+     * @param parallelDigestThreshold the minimum length of a data segment whose digest is calculated in parallel, or
+     *                                <code>0</code> to calculate all digests in the calling thread
+     * @see ProtocolDataUnitFactory#ProtocolDataUnitFactory(int)
+     */
+    public PduPool(final int capacity, final int parallelDigestThreshold) {
+        freeList = new ArrayBlockingQueue<>(capacity);
+        protocolDataUnitFactory = new ProtocolDataUnitFactory(parallelDigestThreshold);
+    }
+
+    /**
+     * Returns a PDU using the specified digests, which can be read into.
+     * <p>
+     * The digests are only negotiated during the login phase, so the pooled PDUs are discarded whenever other digests
+     * are requested.
+     *
+     * @param headerDigest the name of the header digest
+     * @param dataDigest   the name of the data digest
+     * @return a PDU with the specified digests
+     */
+    public ProtocolDataUnit lease(final String headerDigest, final String dataDigest) {
+        if (!matches(this.headerDigest, headerDigest) || !matches(this.dataDigest, dataDigest)) {
+            freeList.clear();
+            final ProtocolDataUnit pdu = protocolDataUnitFactory.create(headerDigest, dataDigest);
+            this.headerDigest = headerDigest;
+            this.dataDigest = dataDigest;
+            headerDigestSize = pdu.getHeaderDigest().getSize();
+            dataDigestSize = pdu.getDataDigest().getSize();
+            return pdu;
+        }
+        ProtocolDataUnit pdu;
+        while ((pdu = freeList.poll()) != null) {
+            if (hasCurrentDigests(pdu)) {
+                return pdu;
+            }
+        }
+        return protocolDataUnitFactory.create(headerDigest, dataDigest);
+    }
+
+    /**
+     * Returns a PDU obtained by {@link #lease(String, String)} to this pool. Its data segment is discarded, so the
+     * buffer holding it must have been released separately if it has been leased. The PDU must not be used by the
+     * caller afterwards.
+     *
+     * @param pdu the PDU to return
+     */
+    public void release(final ProtocolDataUnit pdu) {
+        // the pooled PDU must not refer to a buffer which may be leased again
+        pdu.setDataSegmentLength(0);
+        if (hasCurrentDigests(pdu)) {
+            freeList.offer(pdu);
+        }
+    }
+
+    /**
+     * Returns the number of released PDUs currently kept by this pool.
+     *
+     * @return the number of pooled PDUs
+     */
+    public int size() {
+        return freeList.size();
+    }
+
+    private boolean hasCurrentDigests(final ProtocolDataUnit pdu) {
+        return pdu.getHeaderDigest().getSize() == headerDigestSize && pdu.getDataDigest().getSize() == dataDigestSize;
+    }
+
+    private static boolean matches(final String current, final String requested) {
+        // the negotiated names are usually the same instances
+        return current == requested || (current != null && current.equals(requested));
+    }
+
+}
@@ -3,6 +3,9 @@ package org.jscsi.target.connection;
 import org.jscsi.exception.InternetSCSIException;
 import org.jscsi.parser.OperationCode;
 import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.login.LoginRequestParser;
+import org.jscsi.parser.login.LoginStatus;
+import org.jscsi.target.context.DataInMode;
 import org.jscsi.target.context.TargetContext;
 import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
 import org.jscsi.target.connection.phase.TargetLoginPhase;
@@ -13,15 +16,22 @@ import org.jscsi.target.settings.ConnectionSettingsNegotiator;
 import org.jscsi.target.settings.SessionSettingsNegotiator;
 import org.jscsi.target.settings.Settings;
 import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.settings.TextParameter;
+import org.jscsi.target.util.BufferPool;
 import org.jscsi.target.util.FastByteArrayProvider;
+import org.jscsi.target.util.ReadWrite;
 import org.jscsi.target.util.SerialArithmeticNumber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.naming.OperationNotSupportedException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.security.DigestException;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * @author wangyue1
@@ -59,9 +69,28 @@ public class TargetConnection implements Connection {
 
     /**
      * Will manage and serve as a source of byte arrays to be used for sending Data In PDUs in the {@link ReadStage}
-     * .
+     * . Since {@link ReadStage}s of different commands may be executed concurrently, each thread uses its own
+     * provider.
      */
-    private FastByteArrayProvider dataInArrayProvider = new FastByteArrayProvider(4);
+    private final ThreadLocal<FastByteArrayProvider> dataInArrayProvider = new ThreadLocal<FastByteArrayProvider>() {
+
+        @Override
+        protected FastByteArrayProvider initialValue() {
+            return new FastByteArrayProvider(4);
+        }
+    };
+
+    /**
+     * Provides the direct buffers the write data received on this connection is read into, i.e. the data segments of
+     * SCSI Command PDUs with immediate data and of Data-Out PDUs. The pool is shared by all connections of the target.
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Provides the objects the PDUs received on this connection are read into. Data-Out PDUs are returned to the pool
+     * once their data segments have been stored.
+     */
+    private final PduPool pduPool;
 
     /**
      * <code>true</code> if and only if this connection is the first connection to be associated with its parent
@@ -69,7 +98,7 @@ public class TargetConnection implements Connection {
      * <p>
      * This distinction is necessary because some parameters may only be declared over the leading connection.
      */
-    private final boolean isLeadingConnection;
+    private boolean isLeadingConnection;
 
     private final TargetContext targetContext;
     /**
@@ -85,9 +114,25 @@ public class TargetConnection implements Connection {
      *                            associated with its enclosing session
      */
     public TargetConnection(SocketChannel socketChannel, final boolean isLeadingConnection, final TargetContext targetContext) {
+        this(socketChannel, null, isLeadingConnection, targetContext);
+    }
+
+    /**
+     * The {@link TargetConnection} constructor for connections served by a {@link TargetReactor}.
+     *
+     * @param socketChannel       used for sending PDUs, and for receiving PDUs if <i>receivedFrames</i> is
+     *                            <code>null</code>
+     * @param receivedFrames      the queue the reactor puts complete serialized PDUs into, or <code>null</code>
+     * @param isLeadingConnection <code>true</code> if and only if this connection is the first connection
+     *                            associated with its enclosing session
+     */
+    TargetConnection(SocketChannel socketChannel, final BlockingQueue<ByteBuffer> receivedFrames, final boolean isLeadingConnection, final TargetContext targetContext) {
         this.isLeadingConnection = isLeadingConnection;
-        this.senderWorker = new TargetSenderWorker(this, socketChannel);
         this.targetContext = targetContext;
+        this.bufferPool = targetContext == null ? new BufferPool() : targetContext.getBufferPool();
+        final int parallelDigestThreshold = targetContext == null ? 0 : targetContext.getConfig().getParallelDigestThreshold();
+        this.pduPool = new PduPool(PduPool.DEFAULT_CAPACITY, parallelDigestThreshold);
+        this.senderWorker = new TargetSenderWorker(this, socketChannel, receivedFrames, getDataInMode(), targetContext == null ? null : targetContext.getFlightRecorder(), parallelDigestThreshold);
     }
 
     /**
@@ -98,7 +143,36 @@ public class TargetConnection implements Connection {
      * @return a byte array of the specified length
      */
     public byte[] getDataInArray(final int length) {
-        return dataInArrayProvider.getArray(length);
+        return dataInArrayProvider.get().getArray(length);
+    }
+
+    /**
+     * Returns the pool providing the buffers write data is received into. Buffers should be returned to the pool once
+     * their content has been stored.
+     *
+     * @return the {@link BufferPool} of this connection
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the pool providing the objects received PDUs are read into. PDUs should be returned to the pool once
+     * they have been processed, unless they are still referenced, e.g. by the CDB of a command being executed.
+     *
+     * @return the {@link PduPool} of this connection
+     */
+    public PduPool getPduPool() {
+        return pduPool;
+    }
+
+    /**
+     * Returns the configured way of writing the data segments of Data-In PDUs.
+     *
+     * @return the configured {@link DataInMode}
+     */
+    public DataInMode getDataInMode() {
+        return targetContext == null ? DataInMode.COPY : targetContext.getConfig().getDataInMode();
     }
 
     /**
@@ -149,7 +223,7 @@ public class TargetConnection implements Connection {
         // System.out.println("******************************\nRecieving\nSystem Time: " + new
         // java.sql.Timestamp(System.currentTimeMillis()).toString() + "\n" + lastReceivedPDU +
         // "\n******************************");
-        LOGGER.info("receiving pdu: " + lastReceivedPDU);
+        // the PDU is logged at DEBUG level and recorded by the flight recorder of the TargetSenderWorker
         return lastReceivedPDU;
     }
 
@@ -162,13 +236,26 @@ public class TargetConnection implements Connection {
      * @throws InternetSCSIException
      */
     public void sendPdu(ProtocolDataUnit pdu) throws InterruptedException, IOException, InternetSCSIException {
-        LOGGER.info("sending pdu: " + lastReceivedPDU);
         // System.out.println("******************************\nSending\nSystem Time: " + new
         // java.sql.Timestamp(System.currentTimeMillis()).toString() + "\n" + pdu +
         // "\n******************************");
         senderWorker.sendOverWire(pdu);
     }
 
+    /**
+     * Sends a {@link ProtocolDataUnit} whose data segment is transferred directly from a file to the initiator.
+     *
+     * @param pdu      the PDU, whose data segment length has been set by
+     *                 {@link ProtocolDataUnit#setDataSegmentLength(int)}
+     * @param source   the file containing the data segment
+     * @param position the position of the data segment within the file
+     * @throws IOException           if an I/O error occurs
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge
+     */
+    public void sendPdu(ProtocolDataUnit pdu, FileChannel source, long position) throws IOException, InternetSCSIException {
+        senderWorker.sendOverWire(pdu, source, position);
+    }
+
     /**
      * Starts the processing of PDUs by this connection.
      * <p>
@@ -177,28 +264,8 @@ public class TargetConnection implements Connection {
      */
     public void establish() {
         try {
-            final ProtocolDataUnit pdu = receivePdu();
-            // confirm OpCode-
-            if (pdu.getBasicHeaderSegment().getOpCode() != OperationCode.LOGIN_REQUEST) {
-                throw new InternetSCSIException();
-            }
-
-            this.targetSession = this.targetContext.getSessionManager().createTargetSession(pdu, this, targetContext);
-
-            // *** login phase ***
-            phase = new TargetLoginPhase(this);
-            if (phase.execute(lastReceivedPDU)) {
-                LOGGER.info("Login Phase successful");
-
-                // if this is the leading connection, set the session type
-                final Settings settings = getSettings();
-                if (isLeadingConnection) {
-                    targetSession.setSessionType(SessionType.getSessionType(settings.getSessionType()));
-                }
-                targetSession.setTargetName(settings.getTargetName());
+            if (login()) {
                 // *** full feature phase ***
-                phase = new TargetFullFeaturePhase(this);
-
                 phase.execute();
             }
             senderWorker.close();
@@ -206,8 +273,132 @@ public class TargetConnection implements Connection {
             LOGGER.error("Exception throws", e);
         }
 
-        targetSession.removeTargetConnection(this);
+        if (targetSession != null) {
+            targetSession.removeTargetConnection(this);
+        }
+
+        LOGGER.info("closed connection");
+    }
+
+    /**
+     * Receives the leading Login Request PDU and executes the login phase. If the login was successful, the connection
+     * will be ready for the full feature phase.
+     *
+     * @return <code>true</code> if and only if the login phase was successful
+     */
+    private boolean login() throws OperationNotSupportedException, IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final ProtocolDataUnit pdu = receivePdu();
+        // confirm OpCode-
+        if (pdu.getBasicHeaderSegment().getOpCode() != OperationCode.LOGIN_REQUEST) {
+            throw new InternetSCSIException();
+        }
+
+        final LoginRequestParser parser = (LoginRequestParser) pdu.getBasicHeaderSegment().getParser();
+        if (parser.getTargetSessionIdentifyingHandle() == 0) {
+            this.targetSession = this.targetContext.getSessionManager().createTargetSession(pdu, this, targetContext);
+        } else if (!joinSession(parser)) {
+            return false;
+        }
+
+        // *** login phase ***
+        phase = new TargetLoginPhase(this);
+        if (phase.execute(lastReceivedPDU)) {
+            LOGGER.info("Login Phase successful");
+
+            // if this is the leading connection, set the session type, which allows further connections to join
+            final Settings settings = getSettings();
+            targetSession.setTargetName(settings.getTargetName());
+            if (isLeadingConnection) {
+                targetSession.setSessionType(SessionType.getSessionType(settings.getSessionType()));
+            }
+            phase = new TargetFullFeaturePhase(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Adds this connection to the existing session specified by the <code>InitiatorName</code>, <code>ISID</code> and
+     * <code>TSIH</code> of the leading Login Request PDU. If the connection cannot join the session, a Login Response
+     * PDU rejecting the login is sent, while the connection belongs to no session.
+     *
+     * @param parser the parser of the leading Login Request PDU
+     * @return <code>true</code> if and only if the connection has been added to the session
+     */
+    private boolean joinSession(final LoginRequestParser parser) throws IOException, InterruptedException, InternetSCSIException, SettingsException {
+        final TargetSession session = targetContext.getSessionManager().getTargetSession(parser.getInitiatorSessionID(), parser.getTargetSessionIdentifyingHandle());
+        final LoginStatus status = session == null ? LoginStatus.SESSION_DOSE_NOT_EXIST : session.addTargetConnection(this, getInitiatorName(lastReceivedPDU), parser.getExpectedStatusSequenceNumber());
+        if (status == LoginStatus.SUCCESS) {
+            isLeadingConnection = false;
+            return true;
+        }
+
+        LOGGER.warn("Rejecting connection to session " + parser.getTargetSessionIdentifyingHandle() + ": " + status);
+        setStatusSequenceNumber(parser.getExpectedStatusSequenceNumber());
+        sendPdu(TargetPduFactory.createLoginResponsePdu(false,// transitFlag
+                false,// continueFlag
+                parser.getCurrentStageNumber(),// currentStage
+                parser.getCurrentStageNumber(),// nextStage
+                parser.getInitiatorSessionID(),// initiatorSessionID
+                parser.getTargetSessionIdentifyingHandle(),// targetSessionIdentifyingHandle
+                lastReceivedPDU.getBasicHeaderSegment().getInitiatorTaskTag(),// initiatorTaskTag
+                status,// status
+                ByteBuffer.allocate(0)));// dataSegment
+        return false;
+    }
+
+    /**
+     * Returns the value of the <code>InitiatorName</code> key in the data segment of a Login Request PDU. The
+     * initiator must send it in the first Login Request PDU of each connection.
+     *
+     * @param pdu a Login Request PDU
+     * @return the <code>InitiatorName</code>, or <code>null</code> if the key is missing
+     */
+    private static String getInitiatorName(final ProtocolDataUnit pdu) {
+        final StringBuilder keyValuePairs = new StringBuilder();
+        ReadWrite.appendTextDataSegmentToStringBuffer(pdu.getDataSegment(), keyValuePairs);
+        for (String keyValuePair : TextParameter.tokenizeKeyValuePairs(keyValuePairs.toString())) {
+            final String initiatorName = TextParameter.getSuffix(keyValuePair, TextKeyword.INITIATOR_NAME + TextKeyword.EQUALS);
+            if (initiatorName != null) {
+                return initiatorName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Processes all PDUs the {@link TargetReactor} has received for this connection so far. The first call executes
+     * the login phase, all subsequent calls hand the PDUs to the full feature phase one at a time.
+     * <p>
+     * Stages which have to wait for further PDUs (e.g. Data-Out PDUs) will block until the reactor has received them.
+     *
+     * @return <code>false</code> if the connection is to be closed
+     */
+    boolean processReceivedPdus() throws OperationNotSupportedException, IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        if (phase == null) {
+            return login();
+        }
+        while (senderWorker.hasReceivedFrames()) {
+            lastReceivedPDU = senderWorker.receiveFromWire();
+            if (!((TargetFullFeaturePhase) phase).process(lastReceivedPDU)) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    /**
+     * Closes a connection served by a {@link TargetReactor} and removes it from its session.
+     */
+    void close() {
+        try {
+            senderWorker.close();
+        } catch (IOException e) {
+            LOGGER.error("Exception throws", e);
+        }
+        if (targetSession != null) {
+            targetSession.removeTargetConnection(this);
+        }
         LOGGER.info("closed connection");
     }
 
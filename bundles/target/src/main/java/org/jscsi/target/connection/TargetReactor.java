@@ -0,0 +1,365 @@
+package org.jscsi.target.connection;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.context.TargetContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reactor serving the connections of the jSCSI Target with a small, fixed number of selector threads instead of a
+ * dedicated thread per connection.
+ * <p>
+ * Each connection is assigned to one of the selector threads, which reads from the connection's non-blocking
+ * {@link SocketChannel} whenever bytes are available and splits the byte stream into complete {@link ProtocolDataUnit}
+ * s with a {@link PduFramer}. Complete PDUs are queued and the connection is scheduled for execution on the worker
+ * pool, where its phases and stages are executed. A connection occupies a worker thread only while it has PDUs to
+ * process.
+ * <p>
+ * At most {@link #MAX_QUEUED_FRAMES} PDUs are queued per connection. If the worker pool does not keep up, the selector
+ * thread stops reading from the connection until the worker has taken a PDU from the full queue, so that the TCP
+ * receive window rather than the heap absorbs the backlog.
+ */
+public final class TargetReactor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TargetReactor.class);
+
+    /**
+     * The maximum number of received PDUs queued per connection.
+     */
+    static final int MAX_QUEUED_FRAMES = 64;
+
+    /**
+     * Signals the end of the stream to the worker processing a connection.
+     */
+    private static final ByteBuffer END_OF_STREAM = ByteBuffer.allocate(0);
+
+    /**
+     * The context of the connections served by this reactor.
+     */
+    private final TargetContext targetContext;
+
+    /**
+     * Executes the phases and stages of connections with received PDUs.
+     */
+    private final ExecutorService workerPool;
+
+    /**
+     * The selector loops, one per selector thread.
+     */
+    private final SelectorLoop[] selectorLoops;
+
+    /**
+     * Used for assigning new connections to the {@link #selectorLoops} in a round-robin fashion.
+     */
+    private final AtomicInteger nextSelectorLoop = new AtomicInteger();
+
+    /**
+     * The constructor. The selector threads are started by {@link #start()}.
+     *
+     * @param targetContext   the context of the served connections
+     * @param selectorThreads the number of selector threads
+     * @param workerPool      the pool executing the phases and stages of the served connections
+     * @throws IOException if a selector could not be opened
+     */
+    public TargetReactor(final TargetContext targetContext, final int selectorThreads, final ExecutorService workerPool) throws IOException {
+        this.targetContext = targetContext;
+        this.workerPool = workerPool;
+        selectorLoops = new SelectorLoop[selectorThreads];
+        for (int i = 0; i < selectorThreads; ++i) {
+            selectorLoops[i] = new SelectorLoop(Selector.open());
+        }
+    }
+
+    /**
+     * Starts the selector threads.
+     */
+    public void start() {
+        for (int i = 0; i < selectorLoops.length; ++i) {
+            final Thread thread = new Thread(selectorLoops[i], "jscsi-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the selector threads. Connections which are still open will be closed.
+     */
+    public void stop() {
+        for (SelectorLoop loop : selectorLoops) {
+            loop.running = false;
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * Hands a newly accepted connection over to the reactor.
+     *
+     * @param socketChannel the channel of the new connection
+     * @throws IOException if the channel could not be switched to non-blocking mode
+     */
+    public void register(final SocketChannel socketChannel) throws IOException {
+        socketChannel.configureBlocking(false);
+        final SelectorLoop loop = selectorLoops[(nextSelectorLoop.getAndIncrement() & Integer.MAX_VALUE) % selectorLoops.length];
+        loop.pendingChannels.add(new ChannelHandler(socketChannel));
+        loop.selector.wakeup();
+    }
+
+    /**
+     * The loop executed by a selector thread.
+     */
+    private final class SelectorLoop implements Runnable {
+
+        /**
+         * The selector multiplexing all connections assigned to this loop.
+         */
+        private final Selector selector;
+
+        /**
+         * Connections which have been assigned to this loop, but have not been registered with the {@link #selector}
+         * yet.
+         */
+        private final Queue<ChannelHandler> pendingChannels = new ConcurrentLinkedQueue<>();
+
+        /**
+         * The loop will run while this is <code>true</code>.
+         */
+        private volatile boolean running = true;
+
+        SelectorLoop(final Selector selector) {
+            this.selector = selector;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPendingChannels();
+
+                    final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        if (key.isValid() && key.isReadable()) {
+                            ((ChannelHandler) key.attachment()).read(key);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                LOGGER.error("Selector loop terminated", e);
+            }
+
+            // close all remaining connections
+            for (SelectionKey key : selector.keys()) {
+                ((ChannelHandler) key.attachment()).endOfStream(key);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                LOGGER.error("Error when closing selector", e);
+            }
+        }
+
+        /**
+         * Registers all {@link #pendingChannels} with the {@link #selector}.
+         */
+        private void registerPendingChannels() {
+            ChannelHandler handler;
+            while ((handler = pendingChannels.poll()) != null) {
+                try {
+                    handler.key = handler.socketChannel.register(selector, SelectionKey.OP_READ, handler);
+                } catch (IOException e) {
+                    LOGGER.error("Unable to register connection", e);
+                    handler.connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Connects a {@link TargetConnection} with the reactor. Received PDUs are queued by the selector thread, and
+     * processed by the worker pool.
+     */
+    private final class ChannelHandler implements Runnable {
+
+        /**
+         * The channel of the connection.
+         */
+        private final SocketChannel socketChannel;
+
+        /**
+         * The complete serialized PDUs which have not been processed yet.
+         */
+        private final FrameQueue receivedFrames = new FrameQueue();
+
+        /**
+         * Splits the received bytes into PDUs.
+         */
+        private final PduFramer framer;
+
+        /**
+         * The served connection.
+         */
+        private final TargetConnection connection;
+
+        /**
+         * <code>true</code> while the connection has been handed to the worker pool.
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        /**
+         * <code>true</code> while the selector thread does not read from the channel, since {@link #receivedFrames} is
+         * full.
+         */
+        private final AtomicBoolean readingSuspended = new AtomicBoolean();
+
+        /**
+         * <code>true</code> once the connection has been closed.
+         */
+        private volatile boolean closed;
+
+        /**
+         * The selection key of the channel, which is set once the channel has been registered with the selector.
+         */
+        private volatile SelectionKey key;
+
+        ChannelHandler(final SocketChannel socketChannel) {
+            this.socketChannel = socketChannel;
+            this.connection = new TargetConnection(socketChannel, receivedFrames, true, targetContext);
+            this.framer = new PduFramer(connection, MAX_QUEUED_FRAMES);
+        }
+
+        /**
+         * Called by the selector thread if the channel is readable.
+         *
+         * @param key the selection key of the channel
+         */
+        void read(final SelectionKey key) {
+            try {
+                if (framer.read(socketChannel, receivedFrames) == -1) {
+                    endOfStream(key);
+                    return;
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Error when reading from connection", e);
+                endOfStream(key);
+                return;
+            }
+            if (receivedFrames.size() >= MAX_QUEUED_FRAMES) {
+                // the interest is dropped before the flag is set, so that a concurrent resumeReading() cannot be undone
+                key.interestOps(0);
+                readingSuspended.set(true);
+                if (receivedFrames.size() < MAX_QUEUED_FRAMES) {
+                    // a frame has been taken in the meantime
+                    resumeReading();
+                }
+            }
+            schedule();
+        }
+
+        /**
+         * Lets the selector thread read from the channel again, if it has stopped reading because the queue of
+         * received PDUs was full. Called whenever a PDU has been taken from the queue.
+         */
+        void resumeReading() {
+            if (readingSuspended.compareAndSet(true, false)) {
+                try {
+                    key.interestOps(SelectionKey.OP_READ);
+                    key.selector().wakeup();
+                } catch (CancelledKeyException e) {
+                    // the connection has been closed in the meantime
+                }
+            }
+        }
+
+        /**
+         * Stops monitoring the channel and notifies the worker processing the connection.
+         *
+         * @param key the selection key of the channel
+         */
+        void endOfStream(final SelectionKey key) {
+            key.cancel();
+            // the queue has a slot left for the marker, since no PDUs are read while it holds MAX_QUEUED_FRAMES, and
+            // only fails to take a marker if the end of the stream has already been signalled
+            receivedFrames.offer(END_OF_STREAM);
+            schedule();
+        }
+
+        /**
+         * Hands the connection to the worker pool, unless it is already being processed.
+         */
+        private void schedule() {
+            if (!closed && !receivedFrames.isEmpty() && scheduled.compareAndSet(false, true)) {
+                workerPool.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                boolean open = true;
+                while (open && !receivedFrames.isEmpty()) {
+                    open = connection.processReceivedPdus();
+                }
+                if (!open) {
+                    close();
+                }
+            } catch (Exception e) {
+                LOGGER.error("Exception throws", e);
+                close();
+            } finally {
+                scheduled.set(false);
+            }
+            // PDUs may have arrived after the last check
+            schedule();
+        }
+
+        /**
+         * Closes the connection.
+         */
+        private void close() {
+            if (!closed) {
+                closed = true;
+                connection.close();
+                if (connection.getTargetSession() != null) {
+                    targetContext.removeTarget(connection);
+                }
+            }
+        }
+
+        /**
+         * The queue of the received PDUs, which resumes reading from the channel whenever a PDU is taken. It has one
+         * slot more than {@link #MAX_QUEUED_FRAMES} for the end-of-stream marker.
+         */
+        private final class FrameQueue extends ArrayBlockingQueue<ByteBuffer> {
+
+            private static final long serialVersionUID = 1L;
+
+            FrameQueue() {
+                super(MAX_QUEUED_FRAMES + 1);
+            }
+
+            @Override
+            public ByteBuffer take() throws InterruptedException {
+                final ByteBuffer frame = super.take();
+                resumeReading();
+                return frame;
+            }
+        }
+    }
+}
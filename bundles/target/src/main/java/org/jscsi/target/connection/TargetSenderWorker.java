@@ -7,19 +7,34 @@ import org.jscsi.parser.OperationCode;
 import org.jscsi.parser.ProtocolDataUnit;
 import org.jscsi.parser.ProtocolDataUnitFactory;
 import org.jscsi.parser.TargetMessageParser;
+import org.jscsi.parser.data.DataInParser;
+import org.jscsi.parser.digest.DigestFactory;
+import org.jscsi.parser.digest.IDigest;
 import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.connection.trace.PduFlightRecorder;
+import org.jscsi.target.context.DataInMode;
 import org.jscsi.target.scsi.cdb.ScsiOperationCode;
 import org.jscsi.target.settings.Settings;
 import org.jscsi.target.settings.SettingsException;
 import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.util.BufferPool;
 import org.jscsi.target.util.Debug;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
 import java.security.DigestException;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.IntFunction;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Instances of this class are used by {@link Connection} objects for sending and receiving {@link ProtocolDataUnit}
@@ -46,12 +61,55 @@ public class TargetSenderWorker {
      */
     final private SocketChannel socketChannel;
 
+    /**
+     * If the connection is served by a {@link TargetReactor}, this queue contains the serialized PDUs which have been
+     * read from the non-blocking {@link #socketChannel} by the reactor. Otherwise it is <code>null</code> and PDUs are
+     * read directly from the blocking {@link #socketChannel}.
+     */
+    final private BlockingQueue<ByteBuffer> receivedFrames;
+
+    /**
+     * Used for waiting until a non-blocking {@link #socketChannel} can accept more bytes. Will be initialized on
+     * demand.
+     */
+    private Selector writeSelector;
+
+    /**
+     * Serializes calls of {@link #sendOverWire(ProtocolDataUnit)}. A {@link Lock} is used instead of a
+     * <code>synchronized</code> method, so that virtual threads blocked in socket writes are not pinned to their
+     * carrier threads.
+     */
+    private final Lock sendLock = new ReentrantLock();
+
+    /**
+     * Determines whether data segments are copied into a buffer holding the whole serialized PDU, or written by
+     * gathering writes.
+     */
+    private final DataInMode dataInMode;
+
     /**
      * Will be used to create {@link ProtocolDataUnit} objects from the byte stream read from the {@link #socketChannel}
      * .
      */
     final private ProtocolDataUnitFactory protocolDataUnitFactory;
 
+    /**
+     * Creates the digests of the sent PDUs.
+     */
+    private final DigestFactory digestFactory;
+
+    /**
+     * The names and instances of the digests of the sent PDUs. Since PDUs are sent one at a time, all of them share the
+     * same digests, which are only replaced once other digests have been negotiated.
+     */
+    private String sendHeaderDigestName;
+
+    private IDigest sendHeaderDigest;
+
+    private String sendDataDigestName;
+
+    private IDigest sendDataDigest;
+
     /**
      * If this is <code>true</code>, then the next PDU read from the {@link #socketChannel} will be the first PDU
      * received in the {@link #session}.
@@ -65,6 +123,38 @@ public class TargetSenderWorker {
      */
     private boolean initialPdu;
 
+    /**
+     * Records the sent and received PDUs, or <code>null</code> if PDUs are not recorded.
+     */
+    private final PduFlightRecorder flightRecorder;
+
+    /**
+     * Identifies this connection in the records of the {@link #flightRecorder}.
+     */
+    private final int connectionNumber;
+
+    /**
+     * The PDU which is currently read from the {@link #socketChannel}.
+     */
+    private ProtocolDataUnit receivingPdu;
+
+    /**
+     * Provides the buffer the data segment of the {@link #receivingPdu} is read into.
+     */
+    private final IntFunction<ByteBuffer> dataSegmentAllocator = length -> allocateDataSegment(receivingPdu, length);
+
+    /**
+     * The buffer the sent PDUs are serialized into if the {@link #dataInMode} is {@link DataInMode#COPY}. Since a PDU
+     * has been written completely when {@link #send(ProtocolDataUnit, FileChannel, long)} returns, the buffer is
+     * reused for the next one and only replaced if it is too small.
+     */
+    private ByteBuffer sendBuffer;
+
+    /**
+     * Parses the frames received by the {@link TargetReactor}.
+     */
+    private final FrameChannel frameChannel = new FrameChannel();
+
     /**
      * Creates a new {@link TargetSenderWorker} object.
      *
@@ -72,9 +162,30 @@ public class TargetSenderWorker {
      * @param socketChannel used for sending and receiving serialized PDU to and from the target
      */
     public TargetSenderWorker(final Connection connection, final SocketChannel socketChannel) {
+        this(connection, socketChannel, null, DataInMode.COPY, null, 0);
+    }
+
+    /**
+     * Creates a new {@link TargetSenderWorker} object.
+     *
+     * @param connection     the connection that will use this object for sending and receiving PDUs
+     * @param socketChannel  used for sending and receiving serialized PDU to and from the target
+     * @param receivedFrames the queue containing the serialized PDUs received by a {@link TargetReactor}, or
+     *                       <code>null</code> if PDUs are to be read from the <i>socketChannel</i>
+     * @param dataInMode     determines how the data segments of sent PDUs are written
+     * @param flightRecorder records the sent and received PDUs, or <code>null</code>
+     * @param parallelDigestThreshold the minimum length of a data segment whose <code>CRC32C</code> digest is
+     *                       calculated in parallel, or <code>0</code> to calculate all digests in the calling thread
+     */
+    TargetSenderWorker(final Connection connection, final SocketChannel socketChannel, final BlockingQueue<ByteBuffer> receivedFrames, final DataInMode dataInMode, final PduFlightRecorder flightRecorder, final int parallelDigestThreshold) {
         this.connection = connection;
         this.socketChannel = socketChannel;
-        protocolDataUnitFactory = new ProtocolDataUnitFactory();
+        this.receivedFrames = receivedFrames;
+        this.dataInMode = dataInMode;
+        this.flightRecorder = flightRecorder;
+        this.connectionNumber = flightRecorder == null ? 0 : flightRecorder.nextConnectionNumber();
+        protocolDataUnitFactory = new ProtocolDataUnitFactory(parallelDigestThreshold);
+        digestFactory = new DigestFactory(parallelDigestThreshold);
         initialPdu = connection.isLeadingConnection();
     }
 
@@ -98,6 +209,37 @@ public class TargetSenderWorker {
      */
     public final void close() throws IOException {
         socketChannel.close();
+        if (writeSelector != null) {
+            writeSelector.close();
+        }
+    }
+
+    /**
+     * Returns <code>true</code> if the {@link TargetReactor} serving the connection has received PDUs which have not
+     * been processed yet.
+     *
+     * @return <code>true</code> if {@link #receiveFromWire()} will not block
+     */
+    boolean hasReceivedFrames() {
+        return receivedFrames != null && !receivedFrames.isEmpty();
+    }
+
+    /**
+     * Returns the buffer the data segment of a received PDU is read into. The data segments of SCSI Command and
+     * Data-Out PDUs, i.e. write data, are read into direct buffers leased from the connection's {@link BufferPool},
+     * which are released once the data has been stored. All other data segments are read into heap buffers.
+     *
+     * @param pdu    the PDU being received, with its Basic Header Segment already deserialized
+     * @param length the padded length of the data segment
+     * @return a buffer with a capacity of at least <i>length</i> bytes
+     */
+    private ByteBuffer allocateDataSegment(final ProtocolDataUnit pdu, final int length) {
+        final OperationCode opCode = pdu.getBasicHeaderSegment().getOpCode();
+        final BufferPool bufferPool = connection.getBufferPool();
+        if (bufferPool != null && (opCode == OperationCode.SCSI_COMMAND || opCode == OperationCode.SCSI_DATA_OUT)) {
+            return bufferPool.lease(length);
+        }
+        return ByteBuffer.allocate(length);
     }
 
     /**
@@ -111,27 +253,55 @@ public class TargetSenderWorker {
      * @throws SettingsException
      */
     ProtocolDataUnit receiveFromWire() throws DigestException, InternetSCSIException, IOException, SettingsException {
-        ProtocolDataUnit pdu;
+        final String headerDigest;
+        final String dataDigest;
         if (initialPdu) {
             /*
              * The connection's ConnectionSettingsNegotiator has not been initialized, hence getSettings() would throw a
              * NullPointerException. Initialize PDU with default values, i.e. no digests.
              */
-            pdu = protocolDataUnitFactory.create(
-                    TextKeyword.NONE,// header digest
-                    TextKeyword.NONE);// data digest
+            headerDigest = TextKeyword.NONE;
+            dataDigest = TextKeyword.NONE;
         } else {
             // use negotiated or (now available) default settings
             final Settings settings = connection.getSettings();
-            pdu = protocolDataUnitFactory.create(settings.getHeaderDigest(), settings.getDataDigest());
+            headerDigest = settings.getHeaderDigest();
+            dataDigest = settings.getDataDigest();
         }
+        // recycle the PDUs which have been processed already
+        final PduPool pduPool = connection.getPduPool();
+        final ProtocolDataUnit pdu = pduPool == null ? protocolDataUnitFactory.create(headerDigest, dataDigest) : pduPool.lease(headerDigest, dataDigest);
 
+        receivingPdu = pdu;
         try {
-            pdu.read(socketChannel);
+            if (receivedFrames == null) {
+                pdu.read(socketChannel, dataSegmentAllocator);
+            } else {
+                // an empty frame signals that the initiator has closed the connection
+                final ByteBuffer frame = receivedFrames.take();
+                if (!frame.hasRemaining()) {
+                    throw new ClosedChannelException();
+                }
+                frameChannel.frame = frame;
+                try {
+                    pdu.read(frameChannel, dataSegmentAllocator);
+                } finally {
+                    frameChannel.frame = null;
+                    connection.getBufferPool().release(frame);
+                }
+            }
         } catch (ClosedChannelException e) {
             throw new InternetSCSIException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternetSCSIException(e);
+        } finally {
+            receivingPdu = null;
         }
 
+        if (flightRecorder != null) {
+            flightRecorder.record(connectionNumber, true, pdu);
+        }
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Receiving this PDU:\n" + pdu);
         }
@@ -183,13 +353,17 @@ public class TargetSenderWorker {
             // throw new InternetSCSIException("received ExpStatusSN != local StatusSN + 1");
         }
 
-        // increment CmdSN if not immediate PDU (or Data-Out PDU)
-        try {
-            if (parser.incrementSequenceNumber()) {
-                session.getExpectedCommandSequenceNumber().increment();
+        // advance the session-wide ExpCmdSN if not immediate PDU (or Data-Out PDU), the session is null while the
+        // leading Login Request PDU of the connection is received, the parser if the connection has been closed
+        if (session != null && parser != null && parser.incrementSequenceNumber()) {
+            // SCSI commands occupy a slot in the command window until their status has been sent, commands received
+            // ahead of ExpCmdSN are held until the other connections of the session have closed the gap
+            try {
+                session.acceptCommand(parser.getCommandSequenceNumber(), bhs.getInitiatorTaskTag(), connection, bhs.getOpCode() == OperationCode.SCSI_COMMAND);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InternetSCSIException(e);
             }
-        } catch (NullPointerException exc) {
-
         }
 
         return pdu;
@@ -197,6 +371,8 @@ public class TargetSenderWorker {
 
     /**
      * Sends the given <code>ProtocolDataUnit</code> instance over the socket to the connected iSCSI Target.
+     * <p>
+     * Since stages of different commands may be executed concurrently, calls of this method are serialized.
      *
      * @param pdu The <code>ProtocolDataUnit</code> instances to send.
      * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge.
@@ -207,20 +383,84 @@ public class TargetSenderWorker {
      */
 
     final void sendOverWire(final ProtocolDataUnit pdu) throws InternetSCSIException, IOException, InterruptedException {
-        // set sequence counters
-        final TargetMessageParser parser = (TargetMessageParser) pdu.getBasicHeaderSegment().getParser();
-        parser.setExpectedCommandSequenceNumber(session.getExpectedCommandSequenceNumber().getValue());
-        parser.setMaximumCommandSequenceNumber(session.getMaximumCommandSequenceNumber().getValue());
+        sendLock.lock();
+        try {
+            send(pdu, null, 0);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the given <code>ProtocolDataUnit</code>, whose data segment is transferred directly from the specified
+     * file by {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}. The length of the data
+     * segment must have been set by {@link ProtocolDataUnit#setDataSegmentLength(int)}, and the PDU must not use a data
+     * digest.
+     *
+     * @param pdu      the <code>ProtocolDataUnit</code> to send
+     * @param source   the file containing the data segment
+     * @param position the position of the data segment within the file
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge.
+     * @throws IOException           if an I/O error occurs, or if the file ends before the data segment
+     */
+    final void sendOverWire(final ProtocolDataUnit pdu, final FileChannel source, final long position) throws InternetSCSIException, IOException {
+        sendLock.lock();
+        try {
+            send(pdu, source, position);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Sends the given PDU. Must only be called while holding the {@link #sendLock}.
+     *
+     * @param pdu      the PDU to send
+     * @param source   the file containing the data segment, or <code>null</code> if the data segment is part of the PDU
+     * @param position the position of the data segment within <i>source</i>
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge
+     * @throws IOException           if an I/O error occurs
+     */
+    private void send(final ProtocolDataUnit pdu, final FileChannel source, final long position) throws InternetSCSIException, IOException {
+        // retire the command before MaxCmdSN is calculated, if this PDU carries its status
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        if (bhs.getOpCode() == OperationCode.SCSI_RESPONSE || (bhs.getOpCode() == OperationCode.SCSI_DATA_IN && ((DataInParser) bhs.getParser()).isStatusFlag())) {
+            session.getCommandDispatcher().complete(bhs.getInitiatorTaskTag());
+        }
+
+        // set sequence counters, a Login Response PDU rejecting a connection is sent without a session
+        final TargetMessageParser parser = (TargetMessageParser) bhs.getParser();
+        if (session != null) {
+            parser.setExpectedCommandSequenceNumber(session.getExpectedCommandSequenceNumber());
+            parser.setMaximumCommandSequenceNumber(session.getMaximumCommandSequenceNumber());
+        }
         final boolean incrementSequenceNumber = parser.incrementSequenceNumber();
         if (incrementSequenceNumber) {// set StatSN only if field is not reserved
             parser.setStatusSequenceNumber(connection.getStatusSequenceNumber().getValue());
         }
+        setDigests(pdu);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("Sending this PDU:\n" + pdu);
         }
 
         // send pdu
-        pdu.write(socketChannel);
+        if (source != null) {
+            final ByteBuffer[] segments = pdu.serializeSegments();
+            writeFully(segments[0]);
+            transferFully(source, position, bhs.getDataSegmentLength());
+            writeFully(segments[2]);
+        } else if (dataInMode == DataInMode.COPY) {
+            sendBuffer = pdu.serialize(sendBuffer);
+            writeFully(sendBuffer);
+        } else if (socketChannel.isBlocking()) {
+            pdu.gatheringWrite(socketChannel);
+        } else {
+            writeFully(pdu.serializeSegments());
+        }
+
+        if (flightRecorder != null) {
+            flightRecorder.record(connectionNumber, false, pdu);
+        }
 
         // increment StatusSN if this was a Response PDU (with status)
         // or if special cases apply
@@ -229,4 +469,146 @@ public class TargetSenderWorker {
         }
     }
 
+    /**
+     * Sets the negotiated digests of the connection on a PDU to be sent, which has been created without digests, e.g.
+     * by the {@link TargetPduFactory}. Login PDUs never have digests.
+     *
+     * @param pdu the PDU to send
+     * @throws InternetSCSIException if the negotiated digests cannot be accessed
+     */
+    private void setDigests(final ProtocolDataUnit pdu) throws InternetSCSIException {
+        if (!pdu.getBasicHeaderSegment().getParser().canHaveDigests() || connection.getConnectionSettingsNegotiator() == null) {
+            return;
+        }
+        try {
+            final Settings settings = connection.getSettings();
+            final String headerDigest = settings.getHeaderDigest();
+            if (!headerDigest.equals(sendHeaderDigestName)) {
+                sendHeaderDigest = digestFactory.create(headerDigest);
+                sendHeaderDigestName = headerDigest;
+            }
+            final String dataDigest = settings.getDataDigest();
+            if (!dataDigest.equals(sendDataDigestName)) {
+                sendDataDigest = digestFactory.create(dataDigest);
+                sendDataDigestName = dataDigest;
+            }
+        } catch (SettingsException e) {
+            throw new InternetSCSIException(e);
+        }
+        pdu.setHeaderDigest(sendHeaderDigest);
+        pdu.setDataDigest(sendDataDigest);
+    }
+
+    /**
+     * Writes all bytes of the given buffer to the {@link #socketChannel}. If the channel is non-blocking, this method
+     * waits for the channel to become writable whenever the socket's send buffer is full.
+     *
+     * @param src the bytes to write
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeFully(final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            if (socketChannel.write(src) == 0) {
+                awaitWritable();
+            }
+        }
+    }
+
+    /**
+     * Writes all bytes of the given buffers to the {@link #socketChannel}. If the channel is non-blocking, this method
+     * waits for the channel to become writable whenever the socket's send buffer is full.
+     *
+     * @param srcs the bytes to write
+     * @throws IOException if an I/O error occurs
+     */
+    private void writeFully(final ByteBuffer... srcs) throws IOException {
+        long remaining = 0;
+        for (ByteBuffer src : srcs) {
+            remaining += src.remaining();
+        }
+        while (remaining > 0) {
+            final long written = socketChannel.write(srcs);
+            if (written == 0) {
+                awaitWritable();
+            }
+            remaining -= written;
+        }
+    }
+
+    /**
+     * Transfers the specified region of a file to the {@link #socketChannel}. If the channel is non-blocking, this
+     * method waits for the channel to become writable whenever the socket's send buffer is full.
+     *
+     * @param source   the file to read from
+     * @param position the position of the first byte to transfer
+     * @param length   the number of bytes to transfer
+     * @throws IOException if an I/O error occurs, or if the file ends before the end of the region
+     */
+    private void transferFully(final FileChannel source, final long position, final long length) throws IOException {
+        long transferred = 0;
+        while (transferred < length) {
+            final long count = source.transferTo(position + transferred, length - transferred, socketChannel);
+            if (count == 0) {
+                if (position + transferred >= source.size()) {
+                    throw new IOException("Data segment exceeds the end of the file.");
+                }
+                awaitWritable();
+            }
+            transferred += count;
+        }
+    }
+
+    /**
+     * Waits until the non-blocking {@link #socketChannel} can accept more bytes. Returns immediately if the channel is
+     * in blocking mode.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    private void awaitWritable() throws IOException {
+        if (socketChannel.isBlocking()) {
+            return;
+        }
+        if (writeSelector == null) {
+            writeSelector = Selector.open();
+            socketChannel.register(writeSelector, SelectionKey.OP_WRITE);
+        }
+        writeSelector.select();
+        writeSelector.selectedKeys().clear();
+    }
+
+    /**
+     * Lets {@link ProtocolDataUnit#read(ReadableByteChannel, IntFunction)} parse a frame received by the
+     * {@link TargetReactor} in place. A single instance is reused for all frames, so parsing a frame does not allocate
+     * a channel or a copy of the frame.
+     */
+    private static final class FrameChannel implements ReadableByteChannel {
+
+        /**
+         * The frame currently being parsed.
+         */
+        private ByteBuffer frame;
+
+        @Override
+        public int read(final ByteBuffer dst) {
+            if (!frame.hasRemaining()) {
+                return -1;
+            }
+            final int length = Math.min(dst.remaining(), frame.remaining());
+            final int limit = frame.limit();
+            frame.limit(frame.position() + length);
+            dst.put(frame);
+            frame.limit(limit);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
 }
@@ -2,16 +2,36 @@ package org.jscsi.target.connection;
 
 import org.jscsi.parser.ProtocolDataUnit;
 import org.jscsi.parser.login.ISID;
+import org.jscsi.parser.login.LoginStatus;
+import org.jscsi.target.context.LogicalUnit;
 import org.jscsi.target.context.Target;
 import org.jscsi.target.TargetServer;
 import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.IPositionalStorageModule;
 import org.jscsi.target.storage.IStorageModule;
-import org.jscsi.target.util.SerialArithmeticNumber;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A class for objects representing an iSCSI session with all necessary variables.
  * <p>
- * Currently, a {@link TargetSession} can only have <b>one</b> {@link Connection}, i.e. <code>MaxConnections=1</code>.
+ * A {@link TargetSession} may consist of several {@link Connection}s, up to the negotiated <code>MaxConnections</code>
+ * value. Additional connections join the session by specifying its <code>TSIH</code> in their leading Login Request
+ * PDU. Commands may be sent over any connection of the session and are numbered by a single, session-wide
+ * <code>CmdSN</code> counter, while each connection keeps its own <code>StatSN</code> counter.
+ * <p>
+ * The number of commands the initiator may have outstanding at the same time is determined by the
+ * <code>CommandWindow</code> element of the target configuration. All received commands are tracked by the session's
+ * {@link CommandDispatcher}.
  *
  * @author Andreas Ergenzinger, University of Konstanz
  */
@@ -42,20 +62,57 @@ public class TargetSession {
     private Target target;
 
     /**
-     * The {@link TargetConnection} used for exchanging messages and data with the session's initiator endpoint.
+     * The {@link Connection}s used for exchanging messages and data with the session's initiator endpoint, the leading
+     * connection first.
+     */
+    private final List<Connection> connections = new CopyOnWriteArrayList<>();
+
+    /**
+     * Released once the login of the leading connection has either succeeded or failed. Until then, no further
+     * connections may join the session.
      */
-    private Connection connection;
+    private final CountDownLatch leadingLoginFinished = new CountDownLatch(1);
+
+    /**
+     * The maximum time in seconds a connection trying to join the session waits for {@link #leadingLoginFinished}.
+     */
+    static final long LEADING_LOGIN_TIMEOUT = 30;
 
     /**
      * The {@link ISID} used by the initiator for identifying this session.
      */
     private ISID initiatorSessionID;
 
+    /**
+     * Guards {@link #expectedCommandSequenceNumber}, {@link #pendingCommands} and {@link #waitingConnections}. A
+     * {@link Lock} is used instead of <code>synchronized</code> methods, so that virtual threads waiting for a gap in
+     * the <code>CmdSN</code>s to be closed are not pinned.
+     */
+    private final Lock commandSequenceLock = new ReentrantLock();
+
+    /**
+     * Signalled whenever {@link #expectedCommandSequenceNumber} has been advanced or a connection has left the
+     * session.
+     */
+    private final Condition commandSequenceChanged = commandSequenceLock.newCondition();
+
+    /**
+     * The number of connections which hold a command received ahead of {@link #expectedCommandSequenceNumber}.
+     */
+    private int waitingConnections;
+
     /**
      * Keeps track of the value to expect in the <code>ExpCmdSN</code> field of the next received
-     * {@link ProtocolDataUnit}
+     * {@link ProtocolDataUnit}, which is compared in serial number arithmetics
      */
-    private SerialArithmeticNumber expectedCommandSequenceNumber;
+    private int expectedCommandSequenceNumber;
+
+    /**
+     * The commands which have been accepted ahead of {@link #expectedCommandSequenceNumber}, because no other
+     * connection of the session could have closed the gap before them, mapping their <code>CmdSN</code>s to the <code>Initiator Task Tag</code>s of SCSI commands, or to
+     * <code>null</code> for all other commands.
+     */
+    private final Map<Integer, Integer> pendingCommands = new HashMap<>();
 
     /**
      * Determines the number of iSCSI Command {@link ProtocolDataUnit}s the initiator may send without having the wait
@@ -67,7 +124,12 @@ public class TargetSession {
      * @see #getExpectedCommandSequenceNumber()
      * @see #getMaximumCommandSequenceNumber()
      */
-    private final int commandWindowSize = 1;
+    private final int commandWindowSize;
+
+    /**
+     * Keeps track of all commands which have been received but not yet completed, and executes their stages.
+     */
+    private final CommandDispatcher commandDispatcher;
 
     /**
      * The {@link SessionSettingsNegotiator} responsible managing connection parameters with session scope.
@@ -102,20 +164,16 @@ public class TargetSession {
      */
     public TargetSession(final TargetServer target, final Connection connection, final ISID initiatorSessionID, final int expectedCommandSequenceNumber, final int statusSequenceNumber) {
         this.targetServer = target;
+        this.commandWindowSize = target == null ? 1 : target.getConfig().getCommandWindowSize();
+        this.commandDispatcher = target == null ? new CommandDispatcher(commandWindowSize) : new CommandDispatcher(commandWindowSize, target.getWorkerThreadFactory());
+        sessionSettingsNegotiator = new SessionSettingsNegotiator(target == null ? 1 : target.getConfig().getMaxConnections());
         // set connection variables and parameters
-        connection.setSession(this);
-        this.connection = connection;
-        connection.setStatusSequenceNumber(statusSequenceNumber);
-
-        // initialize ConnectionSettingsNegotiator (makes sure that settings are
-        // initialized)
-        sessionSettingsNegotiator = new SessionSettingsNegotiator();
-        connection.initializeConnectionSettingsNegotiator(sessionSettingsNegotiator);
+        initializeConnection(connection, statusSequenceNumber);
 
         // set session variables
         this.initiatorSessionID = initiatorSessionID;
         targetSessionIdentifyingHandle = getNextTargetSessionIdentifyingHandle();
-        this.expectedCommandSequenceNumber = new SerialArithmeticNumber(expectedCommandSequenceNumber);
+        this.expectedCommandSequenceNumber = expectedCommandSequenceNumber;
     }
 
     /**
@@ -128,12 +186,82 @@ public class TargetSession {
     }
 
     /**
-     * Returns the session's {@link Connection}.
+     * Associates a {@link Connection} with this session and initializes its <code>StatSN</code> counter and its
+     * settings.
+     *
+     * @param connection           the connection
+     * @param statusSequenceNumber the value expected by the initiator in the <code>StatSN</code> field of the next
+     *                             {@link ProtocolDataUnit} sent over the connection
+     */
+    private void initializeConnection(final Connection connection, final int statusSequenceNumber) {
+        connection.setSession(this);
+        connection.setStatusSequenceNumber(statusSequenceNumber);
+        // initialize ConnectionSettingsNegotiator (makes sure that settings are
+        // initialized)
+        connection.initializeConnectionSettingsNegotiator(sessionSettingsNegotiator);
+        connections.add(connection);
+    }
+
+    /**
+     * Adds a further {@link Connection} to this session, provided the session belongs to the same initiator, it is a
+     * normal session and the negotiated <code>MaxConnections</code> value has not been reached.
+     * <p>
+     * If the login of the leading connection has not finished within {@link #LEADING_LOGIN_TIMEOUT} seconds, the
+     * connection is rejected as well.
      *
-     * @return the session's {@link Connection}
+     * @param connection           the connection joining the session
+     * @param initiatorName        the <code>InitiatorName</code> sent in the first Login Request PDU of the connection
+     * @param statusSequenceNumber the value expected by the initiator in the <code>StatSN</code> field of the next
+     *                             {@link ProtocolDataUnit} sent over the connection
+     * @return {@link LoginStatus#SUCCESS} if the connection has been added, otherwise the status the login request
+     * must be rejected with
+     * @throws SettingsException    if <code>MaxConnections</code> has not been negotiated
+     * @throws InterruptedException if the calling thread was interrupted while waiting for the login of the leading
+     *                              connection
+     */
+    LoginStatus addTargetConnection(final Connection connection, final String initiatorName, final int statusSequenceNumber) throws SettingsException, InterruptedException {
+        // the initiator may try to add a connection as soon as it has received the final Login Response PDU of the
+        // leading connection, i.e. before the session type has been set
+        if (!leadingLoginFinished.await(LEADING_LOGIN_TIMEOUT, TimeUnit.SECONDS)) {
+            return LoginStatus.SERVICE_UNAVAILABLE;
+        }
+        synchronized (this) {
+            if (connections.isEmpty()) {
+                return LoginStatus.SESSION_DOSE_NOT_EXIST;
+            }
+            // sessions are identified by the InitiatorName as well as by the ISID and the TSIH
+            if (!connections.get(0).getSettings().getInitiatorName().equals(initiatorName)) {
+                return LoginStatus.SESSION_DOSE_NOT_EXIST;
+            }
+            if (!isNormalSession()) {
+                return LoginStatus.CANNOT_INCLUDE_IN_SESSION;
+            }
+            if (connections.size() >= connections.get(0).getSettings().getMaxConnections()) {
+                return LoginStatus.TOO_MANY_CONNECTIONS;
+            }
+            initializeConnection(connection, statusSequenceNumber);
+            return LoginStatus.SUCCESS;
+        }
+    }
+
+    /**
+     * Returns the session's leading {@link Connection}, or the oldest remaining one if the leading connection has
+     * already been closed.
+     *
+     * @return the session's first {@link Connection}, or <code>null</code> if all connections have been closed
      */
     public Connection getConnection() {
-        return connection;
+        final List<Connection> snapshot = connections;
+        return snapshot.isEmpty() ? null : snapshot.get(0);
+    }
+
+    /**
+     * Returns all {@link Connection}s currently belonging to the session.
+     *
+     * @return the session's connections
+     */
+    public List<Connection> getConnections() {
+        return connections;
     }
 
     /**
@@ -146,25 +274,81 @@ public class TargetSession {
     }
 
     /**
-     * Returns the session's {@link IStorageModule}.
+     * Returns the storage module of the first logical unit of the session's target. Modules which only implement
+     * {@link IStorageModule} have been adapted by the {@link Target}. SCSI commands access the storage module of the
+     * {@link LogicalUnit} they are addressed to instead.
      *
-     * @return the session's {@link IStorageModule}
+     * @return the session's {@link IPositionalStorageModule}
      */
-    public IStorageModule getStorageModule() {
+    public IPositionalStorageModule getStorageModule() {
         return target.getStorageModule();
     }
 
     /**
-     * Returns the {@link SerialArithmeticNumber} representing the next expected command sequence number.
+     * Returns the next expected command sequence number.
      * <p>
      * This value will be used both during sending (<code>ExpCmdSN</code> field) and receiving ( <code>CmdSN</code>) of
      * {@link ProtocolDataUnit}s.
      *
-     * @return the {@link SerialArithmeticNumber} representing the next expected command sequence number
+     * @return the next expected command sequence number
      * @see #expectedCommandSequenceNumber
      */
-    SerialArithmeticNumber getExpectedCommandSequenceNumber() {
-        return expectedCommandSequenceNumber;
+    int getExpectedCommandSequenceNumber() {
+        commandSequenceLock.lock();
+        try {
+            return expectedCommandSequenceNumber;
+        } finally {
+            commandSequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Accounts for a non-immediate command received over any of the session's connections.
+     * <p>
+     * If the command carries the expected <code>CmdSN</code>, {@link #expectedCommandSequenceNumber} is advanced past
+     * it and past all commands which have been accepted ahead of it. Commands received ahead of the expected
+     * <code>CmdSN</code>, which can happen if the initiator distributes its commands over several connections, are
+     * held by blocking the calling thread until the gap has been closed over the other connections, so that they are
+     * handed to the phase of their connection in <code>CmdSN</code> order. Since the commands of a single connection
+     * arrive in order, a gap can only be closed by a connection which is not holding a command itself. Once all
+     * connections of the session hold one, the command is accepted ahead of the expected <code>CmdSN</code> and
+     * remembered until the gap has been closed. Commands with a <code>CmdSN</code> lower than expected (i.e.
+     * duplicates) do not change the counter.
+     *
+     * @param commandSequenceNumber the <code>CmdSN</code> of the command
+     * @param initiatorTaskTag      the <code>Initiator Task Tag</code> of the command
+     * @param connection            the connection the command has been received over
+     * @param scsiCommand           <code>true</code> if the command is a SCSI command, which occupies a slot in the
+     *                              command window until its status has been sent
+     * @throws InterruptedException if the calling thread was interrupted while holding the command
+     */
+    void acceptCommand(final int commandSequenceNumber, final int initiatorTaskTag, final Connection connection, final boolean scsiCommand) throws InterruptedException {
+        commandSequenceLock.lock();
+        try {
+            ++waitingConnections;
+            try {
+                while (expectedCommandSequenceNumber - commandSequenceNumber < 0 && waitingConnections < connections.size()) {
+                    commandSequenceChanged.await();
+                }
+            } finally {
+                --waitingConnections;
+            }
+            if (scsiCommand) {
+                commandDispatcher.register(initiatorTaskTag, connection);
+            }
+            if (expectedCommandSequenceNumber == commandSequenceNumber) {
+                ++expectedCommandSequenceNumber;
+                while (!pendingCommands.isEmpty() && pendingCommands.containsKey(expectedCommandSequenceNumber)) {
+                    pendingCommands.remove(expectedCommandSequenceNumber);
+                    ++expectedCommandSequenceNumber;
+                }
+                commandSequenceChanged.signalAll();
+            } else if (expectedCommandSequenceNumber - commandSequenceNumber < 0) {
+                pendingCommands.put(commandSequenceNumber, scsiCommand ? initiatorTaskTag : null);
+            }
+        } finally {
+            commandSequenceLock.unlock();
+        }
     }
 
     /**
@@ -177,16 +361,41 @@ public class TargetSession {
     }
 
     /**
-     * Returns a {@link SerialArithmeticNumber} representing the maximum command sequence number the target will accept.
+     * Returns the maximum command sequence number the target will accept.
      * <p>
      * This value will be used both during sending (<code>MaxCmdSN</code> field) and receiving (checking if PDU's
      * <code>CmdSN</code> lies in the command sequence number window resulting from
-     * {@link #expectedCommandSequenceNumber} and {@link #commandWindowSize}) of {@link ProtocolDataUnit}s.
+     * {@link #expectedCommandSequenceNumber} and {@link #commandWindowSize}) of {@link ProtocolDataUnit}s. Every
+     * outstanding command reduces the window by one, except for commands received ahead of the expected
+     * <code>CmdSN</code>, which already occupy a slot within the window.
      *
-     * @return the {@link SerialArithmeticNumber} representing the next expected command sequence number
+     * @return the maximum command sequence number
      */
-    SerialArithmeticNumber getMaximumCommandSequenceNumber() {
-        return new SerialArithmeticNumber(expectedCommandSequenceNumber.getValue() + commandWindowSize - 1);
+    int getMaximumCommandSequenceNumber() {
+        commandSequenceLock.lock();
+        try {
+            int outstandingPendingCommands = 0;
+            // called for every sent PDU, so no iterator is created unless commands have been accepted ahead
+            if (!pendingCommands.isEmpty()) {
+                for (Integer initiatorTaskTag : pendingCommands.values()) {
+                    if (initiatorTaskTag != null && commandDispatcher.isOutstanding(initiatorTaskTag)) {
+                        ++outstandingPendingCommands;
+                    }
+                }
+            }
+            return commandDispatcher.getMaximumCommandSequenceNumber(expectedCommandSequenceNumber) + outstandingPendingCommands;
+        } finally {
+            commandSequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the {@link CommandDispatcher} keeping track of this session's outstanding commands.
+     *
+     * @return the session's {@link CommandDispatcher}
+     */
+    public CommandDispatcher getCommandDispatcher() {
+        return commandDispatcher;
     }
 
     /**
@@ -211,11 +420,29 @@ public class TargetSession {
     /**
      * Removes a {@link TargetConnection} from the session's list of open connections. If this reduces the number of
      * connections to zero, the session will be removed from the {@link TargetServer}'s list of active sessions.
+     * <p>
+     * The commands received over the connection which have not been completed are dropped, so that they do not keep
+     * occupying the command window of the remaining connections. Connections holding commands received ahead of the
+     * expected <code>CmdSN</code> are woken up, since the connection can no longer close the gap.
      *
      * @param connection the connection to be removed
      */
     void removeTargetConnection(Connection connection) {
-        // do this only if connection count == 0, currently it always is
+        commandDispatcher.completeAll(connection);
+        synchronized (this) {
+            connections.remove(connection);
+            commandSequenceLock.lock();
+            try {
+                commandSequenceChanged.signalAll();
+            } finally {
+                commandSequenceLock.unlock();
+            }
+            if (!connections.isEmpty()) {
+                return;
+            }
+        }
+        leadingLoginFinished.countDown();
+        commandDispatcher.shutdown();
         targetServer.removeTargetSession(this);
     }
 
@@ -234,6 +461,7 @@ public class TargetSession {
             return false;
         }
         this.sessionType = sessionType;
+        leadingLoginFinished.countDown();
         return true;
     }
 
@@ -27,8 +27,8 @@ public class TargetSessionManager {
         ISID initiatorSessionID = parser.getInitiatorSessionID();
 
         /*
-         * TODO get (new or existing) session based on TSIH But since we don't do session reinstatement and
-         * MaxConnections=1, we can just create a new one.
+         * TODO session reinstatement, connections joining an existing session are handled by
+         * TargetConnection.login()
          */
         TargetSession session = new TargetSession(
                 (TargetServer) targetContext,
@@ -41,6 +41,25 @@ public class TargetSessionManager {
         return session;
     }
 
+    /**
+     * Returns the active session identified by the specified <code>ISID</code> and <code>TSIH</code>, i.e. the session
+     * an additional connection wants to join.
+     *
+     * @param initiatorSessionID             the {@link ISID} used by the initiator for identifying the session
+     * @param targetSessionIdentifyingHandle the <code>TSIH</code> assigned to the session by the target
+     * @return the matching session, or <code>null</code> if there is no such session
+     */
+    public TargetSession getTargetSession(final ISID initiatorSessionID, final short targetSessionIdentifyingHandle) {
+        synchronized (sessions) {
+            for (TargetSession session : sessions) {
+                if (session.getTargetSessionIdentifyingHandle() == targetSessionIdentifyingHandle && session.getInitiatorSessionID().equals(initiatorSessionID)) {
+                    return session;
+                }
+            }
+        }
+        return null;
+    }
+
     public void add(TargetSession session) {
         sessions.add(session);
     }
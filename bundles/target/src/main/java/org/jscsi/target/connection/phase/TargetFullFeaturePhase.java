@@ -4,8 +4,11 @@ import org.jscsi.exception.InternetSCSIException;
 import org.jscsi.parser.BasicHeaderSegment;
 import org.jscsi.parser.ProtocolDataUnit;
 import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.connection.CommandDispatcher;
 import org.jscsi.target.connection.Connection;
 import org.jscsi.target.connection.stage.TMStage;
+import org.jscsi.target.connection.stage.fullfeature.CompareAndWriteStage;
+import org.jscsi.target.connection.stage.fullfeature.ExtendedCopyStage;
 import org.jscsi.target.connection.stage.fullfeature.FormatUnitStage;
 import org.jscsi.target.connection.stage.fullfeature.InquiryStage;
 import org.jscsi.target.connection.stage.fullfeature.LogoutStage;
@@ -13,15 +16,22 @@ import org.jscsi.target.connection.stage.fullfeature.ModeSenseStage;
 import org.jscsi.target.connection.stage.fullfeature.PingStage;
 import org.jscsi.target.connection.stage.fullfeature.ReadCapacityStage;
 import org.jscsi.target.connection.stage.fullfeature.ReadStage;
+import org.jscsi.target.connection.stage.fullfeature.ReceiveCopyResultsStage;
 import org.jscsi.target.connection.stage.fullfeature.ReportLunsStage;
 import org.jscsi.target.connection.stage.fullfeature.RequestSenseStage;
 import org.jscsi.target.connection.stage.fullfeature.SendDiagnosticStage;
+import org.jscsi.target.connection.stage.fullfeature.SynchronizeCacheStage;
 import org.jscsi.target.connection.stage.fullfeature.TargetFullFeatureStage;
 import org.jscsi.target.connection.stage.fullfeature.TestUnitReadyStage;
 import org.jscsi.target.connection.stage.fullfeature.TextNegotiationStage;
+import org.jscsi.target.connection.stage.fullfeature.UnmapStage;
+import org.jscsi.target.connection.stage.fullfeature.UnsupportedLogicalUnitStage;
 import org.jscsi.target.connection.stage.fullfeature.UnsupportedOpCodeStage;
+import org.jscsi.target.connection.stage.fullfeature.WriteSameStage;
 import org.jscsi.target.connection.stage.fullfeature.WriteStage;
+import org.jscsi.target.context.LogicalUnit;
 import org.jscsi.target.scsi.cdb.ScsiOperationCode;
+import org.jscsi.target.scsi.lun.LogicalUnitNumber;
 import org.jscsi.target.settings.SettingsException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -29,6 +39,8 @@ import org.slf4j.LoggerFactory;
 import javax.naming.OperationNotSupportedException;
 import java.io.IOException;
 import java.security.DigestException;
+import java.util.ArrayDeque;
+import java.util.Queue;
 
 /**
  * Objects of this class represent the Target Full Feature Phase of a connection.
@@ -51,6 +63,13 @@ public final class TargetFullFeaturePhase extends TargetPhase {
      */
     private boolean running;
 
+    /**
+     * The PDUs which have been received by a stage waiting for Data-Out PDUs, e.g. further commands sent by the
+     * initiator while there is room in the command window. They are processed once the stage has finished. Since such
+     * stages are executed by the thread receiving the PDUs of the connection, the queue is not accessed concurrently.
+     */
+    private final Queue<ProtocolDataUnit> deferredPdus = new ArrayDeque<>();
+
     /**
      * The constructor.
      *
@@ -58,7 +77,7 @@ public final class TargetFullFeaturePhase extends TargetPhase {
      */
     public TargetFullFeaturePhase(Connection connection) {
         super(connection);
-
+        running = true;
     }
 
     /**
@@ -77,104 +96,205 @@ public final class TargetFullFeaturePhase extends TargetPhase {
 
         running = true;
         while (running) {
-            ProtocolDataUnit pdu = connection.receivePdu();
-            BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
-
-            LOGGER.info("op_event [" + bhs.getOpCode() + "]");
-
-            // identify desired stage
-            switch (bhs.getOpCode()) {
-
-                case SCSI_COMMAND:
-                    if (connection.getTargetSession().isNormalSession()) {
-                        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
-                        ScsiOperationCode scsiOpCode = ScsiOperationCode.valueOf(parser.getCDB().get(0));
-
-                        LOGGER.info("scsiOpCode = " + scsiOpCode);// log SCSI
-                        // Operation Code
-
-                        if (scsiOpCode != null) {
-                            switch (scsiOpCode) {
-                                case TEST_UNIT_READY:
-                                    stage = new TestUnitReadyStage(this);
-                                    break;
-                                case REQUEST_SENSE:
-                                    stage = new RequestSenseStage(this);
-                                    break;
-                                case FORMAT_UNIT:
-                                    stage = new FormatUnitStage(this);
-                                    break;
-                                case INQUIRY:
-                                    stage = new InquiryStage(this);
-                                    break;
-                                case MODE_SELECT_6:
+            process(connection.receivePdu());
+        }
+
+        // make sure that all commands have finished before leaving the phase
+        connection.getTargetSession().getCommandDispatcher().awaitCompletion(connection);
+
+        return false;
+    }
+
+    /**
+     * Processes a single {@link ProtocolDataUnit} received during this phase by selecting and executing the
+     * appropriate stage.
+     * <p>
+     * This method is used by {@link #execute()}, and directly by connections which are not served by a thread of their
+     * own, but which are handed their PDUs one at a time. The PDUs deferred by the stage are processed afterwards, in
+     * the order they have been received.
+     *
+     * @param pdu the PDU to process
+     * @return <code>true</code> if the phase is still running, <code>false</code> if the connection is to be closed
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the current thread was interrupted
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a required setting has not been negotiated
+     */
+    public boolean process(final ProtocolDataUnit pdu) throws DigestException, IOException, InterruptedException, InternetSCSIException, SettingsException {
+        ProtocolDataUnit next = pdu;
+        do {
+            dispatch(next);
+            next = deferredPdus.poll();
+        } while (next != null && running);
+        deferredPdus.clear();
+        return running;
+    }
+
+    /**
+     * Hands a PDU which has been received by a stage waiting for Data-Out PDUs back to this phase. The PDU will be
+     * processed once the stage has finished.
+     *
+     * @param pdu the received PDU, which is not part of the Data-Out sequence of the stage
+     */
+    public void defer(final ProtocolDataUnit pdu) {
+        deferredPdus.add(pdu);
+    }
+
+    /**
+     * Selects the stage appropriate for a single {@link ProtocolDataUnit} and executes it.
+     *
+     * @param pdu the PDU to process
+     * @throws IOException           if the connection was closed unexpectedly
+     * @throws InterruptedException  if the current thread was interrupted
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a digest error was detected
+     * @throws SettingsException     if a required setting has not been negotiated
+     */
+    private void dispatch(final ProtocolDataUnit pdu) throws DigestException, IOException, InterruptedException, InternetSCSIException, SettingsException {
+        final CommandDispatcher dispatcher = connection.getTargetSession().getCommandDispatcher();
+        BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+
+        // true if the stage does not receive any PDUs, so that it may run concurrently with other commands
+        boolean concurrent = false;
+
+        // the logical unit addressed by a SCSI command
+        LogicalUnit logicalUnit = null;
+
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("op_event [" + bhs.getOpCode() + "]");
+        }
+
+        // identify desired stage
+        switch (bhs.getOpCode()) {
+
+            case SCSI_COMMAND:
+                if (connection.getTargetSession().isNormalSession()) {
+                    final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+                    ScsiOperationCode scsiOpCode = ScsiOperationCode.valueOf(parser.getCDB().get(0));
+                    logicalUnit = connection.getTargetSession().getTarget().getLogicalUnit(LogicalUnitNumber.decode(parser.getLogicalUnitNumber()));
+
+                    if (LOGGER.isDebugEnabled()) {
+                        LOGGER.debug("scsiOpCode = " + scsiOpCode);// log SCSI Operation Code
+                    }
+
+                    if (scsiOpCode != null) {
+                        concurrent = true;
+                        switch (scsiOpCode) {
+                            case TEST_UNIT_READY:
+                                stage = new TestUnitReadyStage(this);
+                                break;
+                            case REQUEST_SENSE:
+                                stage = new RequestSenseStage(this);
+                                break;
+                            case FORMAT_UNIT:
+                                stage = new FormatUnitStage(this);
+                                break;
+                            case INQUIRY:
+                                stage = new InquiryStage(this);
+                                break;
+                            case MODE_SELECT_6:
+                                stage = null;
+                                scsiOpCode = null;
+                                break;
+                            case MODE_SENSE_6:
+                                stage = new ModeSenseStage(this);
+                                if (!((ModeSenseStage) stage).canHandle(pdu)) {
                                     stage = null;
                                     scsiOpCode = null;
-                                    break;
-                                case MODE_SENSE_6:
-                                    stage = new ModeSenseStage(this);
-                                    if (!((ModeSenseStage) stage).canHandle(pdu)) {
-                                        stage = null;
-                                        scsiOpCode = null;
-                                    }
-                                    break;
-                                case SEND_DIAGNOSTIC:
-                                    stage = new SendDiagnosticStage(this);
-                                    break;
-                                case READ_CAPACITY_10:// use common read capacity stage
-                                case READ_CAPACITY_16:
-                                    stage = new ReadCapacityStage(this);
-                                    break;
-                                case WRITE_6:// use common write stage
-                                case WRITE_10:
-                                    stage = new WriteStage(this);
-                                    break;
-                                case READ_6:// use common read stage
-                                case READ_10:
-                                    stage = new ReadStage(this);
-                                    break;
-                                case REPORT_LUNS:
-                                    stage = new ReportLunsStage(this);
-                                    break;
-                                default:
-                                    scsiOpCode = null;
+                                }
+                                break;
+                            case SEND_DIAGNOSTIC:
+                                stage = new SendDiagnosticStage(this);
+                                break;
+                            case READ_CAPACITY_10:// use common read capacity stage
+                            case READ_CAPACITY_16:
+                                stage = new ReadCapacityStage(this);
+                                break;
+                            case WRITE_6:// use common write stage
+                            case WRITE_10:
+                            case WRITE_12:
+                            case WRITE_16:
+                                stage = new WriteStage(this);
+                                concurrent = false;
+                                break;
+                            case READ_6:// use common read stage
+                            case READ_10:
+                            case READ_12:
+                            case READ_16:
+                                stage = new ReadStage(this);
+                                break;
+                            case REPORT_LUNS:
+                                stage = new ReportLunsStage(this);
+                                break;
+                            case SYNCHRONIZE_CACHE_10:// use common synchronize cache stage
+                            case SYNCHRONIZE_CACHE_16:
+                                stage = new SynchronizeCacheStage(this);
+                                break;
+                            case WRITE_SAME_10:// use common write same stage
+                            case WRITE_SAME_16:
+                                stage = new WriteSameStage(this);
+                                concurrent = false;
+                                break;
+                            case UNMAP:
+                                stage = new UnmapStage(this);
+                                concurrent = false;
+                                break;
+                            case COMPARE_AND_WRITE:
+                                stage = new CompareAndWriteStage(this);
+                                concurrent = false;
+                                break;
+                            case EXTENDED_COPY:
+                                stage = new ExtendedCopyStage(this);
+                                concurrent = false;
+                                break;
+                            case RECEIVE_COPY_RESULTS:
+                                stage = new ReceiveCopyResultsStage(this);
+                                break;
+                            default:
+                                scsiOpCode = null;
 
-                            }
-                        }// else, or if default block was entered (programmer error)
-                        if (scsiOpCode == null) {
-                            LOGGER.error("Unsupported SCSI OpCode 0x" + Integer.toHexString(parser.getCDB().get(0) & 255) + " in SCSI Command PDU.");
-                            stage = new UnsupportedOpCodeStage(this);
                         }
-
-                    } else {// session is discovery session
-                        throw new InternetSCSIException("received SCSI command in discovery session");
+                    }// else, or if default block was entered (programmer error)
+                    if (scsiOpCode == null) {
+                        concurrent = false;
+                        LOGGER.error("Unsupported SCSI OpCode 0x" + Integer.toHexString(parser.getCDB().get(0) & 255) + " in SCSI Command PDU.");
+                        stage = new UnsupportedOpCodeStage(this);
+                    } else if (logicalUnit == null && scsiOpCode != ScsiOperationCode.INQUIRY && scsiOpCode != ScsiOperationCode.REPORT_LUNS) {
+                        concurrent = false;
+                        LOGGER.error("Unsupported LUN 0x" + Long.toHexString(parser.getLogicalUnitNumber()) + " in SCSI Command PDU.");
+                        stage = new UnsupportedLogicalUnitStage(this);
                     }
-                    break; // SCSI_COMMAND
-
-                case SCSI_TM_REQUEST:
-                    stage = new TMStage(this);
-                    break;
-                case NOP_OUT:
-                    stage = new PingStage(this);
-                    break;
-                case TEXT_REQUEST:
-                    stage = new TextNegotiationStage(this);
-                    break;
-                case LOGOUT_REQUEST:
-                    stage = new LogoutStage(this);
-                    running = false;
-                    break;
-                default:
-                    LOGGER.error("Received unsupported opcode for " + pdu.getBasicHeaderSegment().getOpCode());
-                    stage = new UnsupportedOpCodeStage(this);
-            }
-
-            // process the PDU
-            LOGGER.info("begin process th pdu stage => " + stage.getClass().getSimpleName());
-            stage.execute(pdu);
+                    stage.setLogicalUnit(logicalUnit);
+
+                } else {// session is discovery session
+                    throw new InternetSCSIException("received SCSI command in discovery session");
+                }
+                break; // SCSI_COMMAND
+
+            case SCSI_TM_REQUEST:
+                stage = new TMStage(this);
+                break;
+            case NOP_OUT:
+                stage = new PingStage(this);
+                break;
+            case TEXT_REQUEST:
+                stage = new TextNegotiationStage(this);
+                break;
+            case LOGOUT_REQUEST:
+                stage = new LogoutStage(this);
+                running = false;
+                break;
+            default:
+                LOGGER.error("Received unsupported opcode for " + pdu.getBasicHeaderSegment().getOpCode());
+                stage = new UnsupportedOpCodeStage(this);
         }
 
-        return false;
+        // process the PDU
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("begin process th pdu stage => " + stage.getClass().getSimpleName());
+        }
+        dispatcher.dispatch(stage, pdu, logicalUnit, concurrent);
     }
 
     /**
@@ -0,0 +1,157 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.scsi.cdb.CompareAndWriteCdb;
+import org.jscsi.target.scsi.sense.AdditionalSenseBytes;
+import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
+import org.jscsi.target.scsi.sense.ErrorType;
+import org.jscsi.target.scsi.sense.FixedFormatSenseData;
+import org.jscsi.target.scsi.sense.SenseKey;
+import org.jscsi.target.scsi.sense.information.FourByteInformation;
+import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.util.RangeLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+
+/**
+ * A stage for processing <code>COMPARE AND WRITE</code> SCSI commands, which are used by clustered file systems as an
+ * atomic test-and-set on their on-disk locks instead of reserving the whole logical unit.
+ * <p>
+ * The logical blocks are read, compared with the verify data and, if they match, overwritten with the write data while
+ * their range is held in the session's {@link RangeLock}. Since every write holds the range it writes, no other
+ * command can modify the logical blocks in between, while commands accessing other logical blocks proceed in
+ * parallel.
+ */
+public final class CompareAndWriteStage extends TargetFullFeatureStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompareAndWriteStage.class);
+
+    public CompareAndWriteStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+        final CompareAndWriteCdb cdb = new CompareAndWriteCdb(parser.getCDB());
+
+        final FieldPointerSenseKeySpecificData[] illegalFieldPointers = cdb.getIllegalFieldPointers();
+        if (illegalFieldPointers != null) {
+            connection.sendPdu(createFixedFormatErrorPdu(illegalFieldPointers,// senseKeySpecificData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        final IPositionalStorageModule module = logicalUnit.getStorageModule();
+        final long logicalBlockAddress = cdb.getLogicalBlockAddress();
+        final int numberOfLogicalBlocks = cdb.getNumberOfLogicalBlocks();
+        if (logicalBlockAddress < 0 || logicalBlockAddress >= module.getSizeInBlocks() || numberOfLogicalBlocks > module.getSizeInBlocks() - logicalBlockAddress) {
+            LOGGER.error("encountered COMPARE AND WRITE with LOGICAL BLOCK ADDRESS = " + logicalBlockAddress + " and NUMBER OF LOGICAL BLOCKS = " + numberOfLogicalBlocks);
+
+            final FieldPointerSenseKeySpecificData fp = new FieldPointerSenseKeySpecificData(true,// senseKeySpecificDataValid
+                    true,// commandData (i.e. invalid field in CDB)
+                    false,// bitPointerValid
+                    0,// bitPointer, reserved since invalid
+                    2);// fieldPointer to the LOGICAL BLOCK ADDRESS field
+            connection.sendPdu(createFixedFormatErrorPdu(new FieldPointerSenseKeySpecificData[]{fp},// senseKeySpecificData
+                    AdditionalSenseCodeAndQualifier.LOGICAL_BLOCK_ADDRESS_OUT_OF_RANGE,// additionalSenseCodeAndQualifier
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        int miscompareOffset = -1;
+        // a NUMBER OF LOGICAL BLOCKS of zero is not an error, nothing is transferred
+        if (numberOfLogicalBlocks > 0) {
+            final int length = numberOfLogicalBlocks * module.getBlockSize();
+            final long storageIndex = logicalBlockAddress * module.getBlockSize();
+
+            // the verify data followed by the write data
+            final ByteBuffer data = receiveData(pdu, 2 * length);
+            final ByteBuffer verifyData = data.duplicate();
+            verifyData.limit(length);
+            final ByteBuffer writeData = data.duplicate();
+            writeData.position(length);
+
+            final ByteBuffer storedData = ByteBuffer.allocate(length);
+            try (RangeLock.Range range = logicalUnit.getRangeLock().lock(storageIndex, length)) {
+                module.read(storedData, storageIndex);
+                storedData.flip();
+                miscompareOffset = mismatch(storedData, verifyData);
+                if (miscompareOffset < 0) {
+                    module.write(writeData, storageIndex);
+                }
+            }
+            if (miscompareOffset < 0 && cdb.getForceUnitAccess() && module.getCapabilities().hasVolatileWriteCache()) {
+                module.flush();
+            }
+        }
+
+        if (miscompareOffset >= 0) {
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("COMPARE AND WRITE miscompare at offset " + miscompareOffset);
+            }
+            connection.sendPdu(createFixedFormatErrorPdu(createMiscompareSenseData(miscompareOffset),// senseData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        connection.sendPdu(createScsiResponsePdu(SCSIStatus.GOOD,// status
+                bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                0,// expectedDataTransferLength, no Data-In
+                0));// responseDataSize
+    }
+
+    /**
+     * Returns the offset of the first byte which differs between the remaining bytes of the passed buffers, or -1 if
+     * there is no such byte. Both buffers must have the same number of remaining bytes.
+     *
+     * @param a the first buffer
+     * @param b the second buffer
+     * @return the offset of the first mismatch relative to the buffers' positions, or -1
+     */
+    private static int mismatch(final ByteBuffer a, final ByteBuffer b) {
+        for (int i = 0; i < a.remaining(); ++i) {
+            if (a.get(a.position() + i) != b.get(b.position() + i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates the sense data reporting a miscompare, with the offset of the first miscompared byte in the INFORMATION
+     * field.
+     *
+     * @param miscompareOffset the offset of the first miscompared byte within the verify data
+     * @return the sense data
+     */
+    private static FixedFormatSenseData createMiscompareSenseData(final int miscompareOffset) {
+        return new FixedFormatSenseData(true,// valid
+                ErrorType.CURRENT,// error type
+                false,// file mark
+                false,// end of medium
+                false,// incorrect length indicator
+                SenseKey.MISCOMPARE,// sense key
+                new FourByteInformation(miscompareOffset),// information
+                new FourByteInformation(),// command specific information
+                AdditionalSenseCodeAndQualifier.MISCOMPARE_DURING_VERIFY_OPERATION,// additional sense code and qualifier
+                (byte) 0,// field replaceable unit code
+                null,// sense key specific data
+                new AdditionalSenseBytes());// additional sense bytes
+    }
+}
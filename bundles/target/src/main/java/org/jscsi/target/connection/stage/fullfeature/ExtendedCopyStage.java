@@ -0,0 +1,212 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.context.Target;
+import org.jscsi.target.scsi.cdb.ExtendedCopyCdb;
+import org.jscsi.target.scsi.inquiry.NaaIdentifier;
+import org.jscsi.target.scsi.sense.AdditionalSenseBytes;
+import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
+import org.jscsi.target.scsi.sense.ErrorType;
+import org.jscsi.target.scsi.sense.FixedFormatSenseData;
+import org.jscsi.target.scsi.sense.SenseKey;
+import org.jscsi.target.scsi.sense.information.FourByteInformation;
+import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.scsi.xcopy.ExtendedCopyParameterList;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.StorageCopier;
+import org.jscsi.target.util.RangeLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+
+/**
+ * A stage for processing <code>EXTENDED COPY (LID1)</code> SCSI commands.
+ * <p>
+ * The logical units taking part in the copy are looked up by the {@link NaaIdentifier} in their CSCD descriptors.
+ * Only the logical units of the session's target are copy targets, since the initiator has not logged in to any other
+ * target and must not be able to access its logical units. All descriptors are checked before anything is copied. The segments are then copied
+ * one after another by the target's {@link StorageCopier}, each holding its destination range in the destination
+ * logical unit's {@link RangeLock}. Status is returned once all segments have been copied.
+ */
+public final class ExtendedCopyStage extends TargetFullFeatureStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ExtendedCopyStage.class);
+
+    public ExtendedCopyStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+        final ExtendedCopyCdb cdb = new ExtendedCopyCdb(parser.getCDB());
+
+        final FieldPointerSenseKeySpecificData[] illegalFieldPointers = cdb.getIllegalFieldPointers();
+        if (illegalFieldPointers != null) {
+            connection.sendPdu(createFixedFormatErrorPdu(illegalFieldPointers,// senseKeySpecificData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        // a PARAMETER LIST LENGTH of zero is not an error, nothing is copied
+        final long parameterListLength = Math.min(cdb.getParameterListLength(), parser.getExpectedDataTransferLength());
+        if (parameterListLength > 0) {
+            if (parameterListLength > ExtendedCopyParameterList.HEADER_SIZE + ExtendedCopyParameterList.MAXIMUM_DESCRIPTOR_LIST_LENGTH) {
+                sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.PARAMETER_LIST_LENGTH_ERROR, 10);
+                return;
+            }
+            final ByteBuffer data = receiveData(pdu, (int) parameterListLength);
+            final ExtendedCopyParameterList parameterList = new ExtendedCopyParameterList(data, (int) parameterListLength);
+            if (parameterList.getError() != null) {
+                sendParameterListError(bhs, parameterList.getError(), parameterList.getErrorFieldPointer());
+                return;
+            }
+
+            // resolve the logical units
+            final LogicalUnit[] units = new LogicalUnit[parameterList.getCscdDescriptorCount()];
+            for (int i = 0; i < units.length; ++i) {
+                units[i] = findLogicalUnit(parameterList.getIdentifier(i));
+                if (units[i] == null) {
+                    LOGGER.error("EXTENDED COPY CSCD descriptor " + i + " names an unknown logical unit");
+                    connection.sendPdu(createFixedFormatErrorPdu(createCopyAbortedSenseData(),// senseData
+                            bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                            parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+                    return;
+                }
+                final int blockLength = parameterList.getBlockLength(i);
+                if (blockLength != 0 && blockLength != units[i].getStorageModule().getBlockSize()) {
+                    sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, ExtendedCopyParameterList.getCscdDescriptorIndex(i) + 29);
+                    return;
+                }
+            }
+
+            // check all segments before copying anything
+            for (int i = 0; i < parameterList.getSegmentDescriptorCount(); ++i) {
+                final IPositionalStorageModule src = units[parameterList.getSourceIndex(i)].getStorageModule();
+                final IPositionalStorageModule dst = units[parameterList.getDestinationIndex(i)].getStorageModule();
+                final long length = getSegmentLength(parameterList, i, src, dst);
+                if (length % src.getBlockSize() != 0 || length % dst.getBlockSize() != 0) {
+                    sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, parameterList.getSegmentDescriptorIndex(i) + 10);
+                    return;
+                }
+                if (!isInRange(src, parameterList.getSourceLogicalBlockAddress(i), length)) {
+                    sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.LOGICAL_BLOCK_ADDRESS_OUT_OF_RANGE, parameterList.getSegmentDescriptorIndex(i) + 12);
+                    return;
+                }
+                if (!isInRange(dst, parameterList.getDestinationLogicalBlockAddress(i), length)) {
+                    sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.LOGICAL_BLOCK_ADDRESS_OUT_OF_RANGE, parameterList.getSegmentDescriptorIndex(i) + 20);
+                    return;
+                }
+            }
+
+            final StorageCopier copier = session.getTargetServer().getStorageCopier();
+            for (int i = 0; i < parameterList.getSegmentDescriptorCount(); ++i) {
+                final LogicalUnit srcUnit = units[parameterList.getSourceIndex(i)];
+                final LogicalUnit dstUnit = units[parameterList.getDestinationIndex(i)];
+                final IPositionalStorageModule src = srcUnit.getStorageModule();
+                final IPositionalStorageModule dst = dstUnit.getStorageModule();
+                final long length = getSegmentLength(parameterList, i, src, dst);
+                final long srcIndex = parameterList.getSourceLogicalBlockAddress(i) * src.getBlockSize();
+                final long dstIndex = parameterList.getDestinationLogicalBlockAddress(i) * dst.getBlockSize();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("copying " + length + " bytes from " + srcUnit + " to " + dstUnit);
+                }
+                try (RangeLock.Range range = dstUnit.getRangeLock().lock(dstIndex, length)) {
+                    copier.copy(src, srcIndex, dst, dstIndex, length);
+                }
+            }
+        }
+
+        connection.sendPdu(createScsiResponsePdu(SCSIStatus.GOOD,// status
+                bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                0,// expectedDataTransferLength, no Data-In
+                0));// responseDataSize
+    }
+
+    /**
+     * Returns the logical unit of the session's target named by the given identifier.
+     *
+     * @param identifier the {@link NaaIdentifier#getValue()} of the logical unit
+     * @return the logical unit, or <code>null</code> if the session's target has none
+     */
+    private LogicalUnit findLogicalUnit(final long identifier) {
+        final Target target = session.getTarget();
+        if (identifier != 0 && target != null) {
+            for (final LogicalUnit unit : target.getLogicalUnits()) {
+                if (new NaaIdentifier(target.getTargetName(), unit.getNumber()).getValue() == identifier) {
+                    return unit;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the number of bytes copied by a segment descriptor, whose BLOCK DEVICE NUMBER OF BLOCKS field counts
+     * logical blocks of the destination if the DC bit is set, and of the source otherwise.
+     */
+    private static long getSegmentLength(final ExtendedCopyParameterList parameterList, final int i, final IPositionalStorageModule src, final IPositionalStorageModule dst) {
+        final int blockSize = parameterList.getDestinationCount(i) ? dst.getBlockSize() : src.getBlockSize();
+        return (long) parameterList.getNumberOfBlocks(i) * blockSize;
+    }
+
+    private static boolean isInRange(final IPositionalStorageModule module, final long logicalBlockAddress, final long length) {
+        final long numberOfLogicalBlocks = length / module.getBlockSize();
+        return logicalBlockAddress >= 0 && logicalBlockAddress <= module.getSizeInBlocks() && numberOfLogicalBlocks <= module.getSizeInBlocks() - logicalBlockAddress;
+    }
+
+    /**
+     * Creates the sense data reporting that a CSCD descriptor names a logical unit which does not exist.
+     *
+     * @return the sense data
+     */
+    private static FixedFormatSenseData createCopyAbortedSenseData() {
+        return new FixedFormatSenseData(false,// valid
+                ErrorType.CURRENT,// error type
+                false,// file mark
+                false,// end of medium
+                false,// incorrect length indicator
+                SenseKey.COPY_ABORTED,// sense key
+                new FourByteInformation(),// information
+                new FourByteInformation(),// command specific information
+                AdditionalSenseCodeAndQualifier.COPY_TARGET_DEVICE_NOT_REACHABLE,// additional sense code and qualifier
+                (byte) 0,// field replaceable unit code
+                null,// sense key specific data
+                new AdditionalSenseBytes());// additional sense bytes
+    }
+
+    /**
+     * Sends a response with CHECK CONDITION status, pointing to an illegal field in the parameter list.
+     *
+     * @param bhs                             the Basic Header Segment of the SCSI Command PDU
+     * @param additionalSenseCodeAndQualifier the cause of the check condition
+     * @param fieldPointer                    the position of the illegal field, which is a CDB field for
+     *                                        {@link AdditionalSenseCodeAndQualifier#PARAMETER_LIST_LENGTH_ERROR}
+     * @throws InterruptedException  if the thread is interrupted while sending the PDU
+     * @throws IOException           if an I/O error occurs
+     * @throws InternetSCSIException if the PDU could not be sent
+     */
+    private void sendParameterListError(final BasicHeaderSegment bhs, final AdditionalSenseCodeAndQualifier additionalSenseCodeAndQualifier, final int fieldPointer) throws InterruptedException, IOException, InternetSCSIException {
+        final FieldPointerSenseKeySpecificData fp = new FieldPointerSenseKeySpecificData(true,// senseKeySpecificDataValid
+                additionalSenseCodeAndQualifier == AdditionalSenseCodeAndQualifier.PARAMETER_LIST_LENGTH_ERROR,// commandData
+                false,// bitPointerValid
+                0,// bitPointer, reserved since invalid
+                fieldPointer);// fieldPointer
+        connection.sendPdu(createFixedFormatErrorPdu(new FieldPointerSenseKeySpecificData[]{fp},// senseKeySpecificData
+                additionalSenseCodeAndQualifier,// additionalSenseCodeAndQualifier
+                bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                ((SCSICommandParser) bhs.getParser()).getExpectedDataTransferLength()));// expectedDataTransferLength
+    }
+}
@@ -7,6 +7,10 @@ import org.jscsi.parser.scsi.SCSICommandParser;
 import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
 import org.jscsi.target.scsi.IResponseData;
 import org.jscsi.target.scsi.cdb.InquiryCDB;
+import org.jscsi.target.scsi.inquiry.BlockDeviceCharacteristicsVpdPage;
+import org.jscsi.target.scsi.inquiry.BlockLimitsVpdPage;
+import org.jscsi.target.scsi.inquiry.DeviceIdentificationVpdPage;
+import org.jscsi.target.scsi.inquiry.LogicalBlockProvisioningVpdPage;
 import org.jscsi.target.scsi.inquiry.PageCode.VitalProductDataPageName;
 import org.jscsi.target.scsi.inquiry.StandardInquiryData;
 import org.jscsi.target.scsi.inquiry.SupportedVpdPages;
@@ -64,20 +68,28 @@ public class InquiryStage extends TargetFullFeatureStage {
             // send response
             connection.sendPdu(responsePdu);
 
+        } else if (logicalUnit == null && cdb.getEnableVitalProductData()) {
+            // the LUN does not address a logical unit, which has no vital product data
+            connection.sendPdu(createLogicalUnitNotSupportedErrorPdu(bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+
         } else {
             // PDU is okay
             // carry out command
 
             IResponseData responseData;
 
-            // "If the EVPD bit is set to zero, ...
-            if (!cdb.getEnableVitalProductData()) {
+            if (logicalUnit == null) {
+                // tell the initiator that there is no logical unit at this LUN
+                responseData = StandardInquiryData.getUnsupportedLogicalUnitInstance();
+            } else if (!cdb.getEnableVitalProductData()) {
+                // "If the EVPD bit is set to zero, ...
                 // ... the device server shall return the standard INQUIRY
                 // data."
                 responseData = StandardInquiryData.getInstance();
             } else {
                 /*
-                 * SCSI initiator is requesting either "device identification" or "supported VPD pages" or this else
+                 * SCSI initiator is requesting one of the supported VPD pages or this else
                  * block would not have been entered. (see {@link InquiryCDB#checkIntegrity(ByteBuffer dataSegment)})
                  */
                 final VitalProductDataPageName pageName = cdb.getPageCode().getVitalProductDataPageName();
@@ -87,7 +99,16 @@ public class InquiryStage extends TargetFullFeatureStage {
                         responseData = SupportedVpdPages.getInstance();
                         break;
                     case DEVICE_IDENTIFICATION:
-                        responseData = session.getTargetServer().getDeviceIdentificationVpdPage();
+                        responseData = new DeviceIdentificationVpdPage(session.getTargetName(), logicalUnit.getNumber());
+                        break;
+                    case BLOCK_LIMITS:
+                        responseData = new BlockLimitsVpdPage(logicalUnit.getStorageModule(), settings.getMaxBurstLength());
+                        break;
+                    case BLOCK_DEVICE_CHARACTERISTICS:
+                        responseData = BlockDeviceCharacteristicsVpdPage.getInstance();
+                        break;
+                    case LOGICAL_BLOCK_PROVISIONING:
+                        responseData = new LogicalBlockProvisioningVpdPage(logicalUnit.getStorageModule().getCapabilities());
                         break;
                     default:
                         // The initiator must not request unsupported mode pages.
@@ -6,6 +6,7 @@ import org.jscsi.parser.ProtocolDataUnit;
 import org.jscsi.parser.logout.LogoutResponse;
 import org.jscsi.target.connection.TargetPduFactory;
 import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.context.LogicalUnit;
 import org.jscsi.target.settings.SettingsException;
 
 import java.io.IOException;
@@ -30,6 +31,13 @@ public final class LogoutStage extends TargetFullFeatureStage {
         final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
         final int initiatorTaskTag = bhs.getInitiatorTaskTag();
 
+        // data in a volatile write cache has to be durable once the initiator has logged out
+        if (session.isNormalSession()) {
+            for (final LogicalUnit unit : session.getTarget().getLogicalUnits()) {
+                unit.getStorageModule().flush();
+            }
+        }
+
         final ProtocolDataUnit responsePDU = TargetPduFactory.createLogoutResponsePdu(LogoutResponse.CONNECTION_CLOSED_SUCCESSFULLY, initiatorTaskTag, (short) settings.getDefaultTime2Wait(),// time2Wait
                 (short) settings.getDefaultTime2Retain());// time2Retain
 
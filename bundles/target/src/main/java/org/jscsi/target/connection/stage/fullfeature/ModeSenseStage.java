@@ -56,6 +56,7 @@ public final class ModeSenseStage extends TargetFullFeatureStage {
         // ModeParameterList and ModeParameterListBuilder common to
         // all supported ModePage requests
 
+        final boolean writeBack = logicalUnit.getStorageModule().getCapabilities().hasVolatileWriteCache();
         ModePage[] modePages = null;
         if (modePageCode == ModePageCode.INFORMATIONAL_EXCEPTIONS_CONTROL_MODE_PAGE) {
             // TODO this should to be made dynamic wrt. cdb.getPageControl();
@@ -64,11 +65,11 @@ public final class ModeSenseStage extends TargetFullFeatureStage {
 
         } else if (modePageCode == ModePageCode.CACHING_MODE_PAGE) {
 
-            modePages = new ModePage[]{getCachingModePage()};
+            modePages = new ModePage[]{getCachingModePage(writeBack)};
 
         } else if (modePageCode == ModePageCode.RETURN_ALL_MODE_PAGES_ONLY) {
 
-            modePages = new ModePage[]{getInformationExceptionsControlModePage(), getCachingModePage()};
+            modePages = new ModePage[]{getInformationExceptionsControlModePage(), getCachingModePage(writeBack)};
 
         }// else modeParameterList stays null
 
@@ -77,9 +78,11 @@ public final class ModeSenseStage extends TargetFullFeatureStage {
 
             // create ModeParameterList
             final ModeParameterListBuilder builder = new ModeParameterListBuilder(HeaderType.MODE_PARAMETER_HEADER_6);
-            builder.setLogicalBlockDescriptors(new ShortLogicalBlockDescriptor(session.getStorageModule().getSizeInBlocks(),// numberOfLogicalBlocks
-                    session.getStorageModule().getBlockSize()));// logicalBlockLength
+            builder.setLogicalBlockDescriptors(new ShortLogicalBlockDescriptor(logicalUnit.getStorageModule().getSizeInBlocks(),// numberOfLogicalBlocks
+                    logicalUnit.getStorageModule().getBlockSize()));// logicalBlockLength
             builder.setModePages(modePages);
+            // FUA is honored, and needed by initiators for bypassing the write cache
+            builder.setDpoFua(writeBack);
             ModeParameterList modeParameterList = ModeParameterList.build(builder);
 
             // send response
@@ -111,14 +114,14 @@ public final class ModeSenseStage extends TargetFullFeatureStage {
                 0);// reportCount
     }
 
-    private static final CachingModePage getCachingModePage() {
+    private static final CachingModePage getCachingModePage(final boolean writebackCacheEnable) {
         return new CachingModePage(false,// parametersSaveable
                 false,// initiatorControl
                 true,// abortPrefetch
                 false,// cachingAnalysisPermitted
                 false,// discontinuity
                 true,// sizeEnable
-                false,// writebackCacheEnable
+                writebackCacheEnable,// writebackCacheEnable
                 false,// multiplicationFactor
                 true,// readCacheDisable
                 0x0,// demandReadRetentionPriority
@@ -15,6 +15,7 @@ import org.jscsi.target.scsi.readCapacity.ReadCapacityParameterData;
 import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
 import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
 import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.IPositionalStorageModule;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -53,7 +54,7 @@ public final class ReadCapacityStage extends TargetFullFeatureStage {
 
         // make sure that the LOGICAL BLOCK ADDRESS field is valid and send
         // appropriate response
-        if (session.getStorageModule().checkBounds(cdb.getLogicalBlockAddress(), 0) != 0) {
+        if (logicalUnit.getStorageModule().checkBounds(cdb.getLogicalBlockAddress(), 0) != 0) {
             // invalid, log error, send error PDU, and return
             LOGGER.error("encountered " + cdb.getClass() + " in ReadCapacityStage with " + "LOGICAL BLOCK ADDRESS = " + cdb.getLogicalBlockAddress());
 
@@ -71,13 +72,17 @@ public final class ReadCapacityStage extends TargetFullFeatureStage {
             return;
         } else {
             // send PDU with requested READ CAPACITY parameter data
+            // (the RETURNED LOGICAL BLOCK ADDRESS is the address of the last logical block)
+            final IPositionalStorageModule module = logicalUnit.getStorageModule();
             ReadCapacityParameterData parameterData;
             if (cdb instanceof ReadCapacity10Cdb)
-                parameterData = new ReadCapacity10ParameterData(session.getStorageModule().getSizeInBlocks(),// returnedLogicalBlockAddress
-                        session.getStorageModule().getBlockSize());// logicalBlockLengthInBytes
+                parameterData = new ReadCapacity10ParameterData(module.getSizeInBlocks() - 1,// returnedLogicalBlockAddress
+                        module.getBlockSize());// logicalBlockLengthInBytes
             else
-                parameterData = new ReadCapacity16ParameterData(session.getStorageModule().getSizeInBlocks(),// returnedLogicalBlockAddress
-                        session.getStorageModule().getBlockSize());// logicalBlockLengthInBytes
+                parameterData = new ReadCapacity16ParameterData(module.getSizeInBlocks() - 1,// returnedLogicalBlockAddress
+                        module.getBlockSize(),// logicalBlockLengthInBytes
+                        Integer.numberOfTrailingZeros(module.getPhysicalBlockSize() / module.getBlockSize()),// logicalBlocksPerPhysicalBlockExponent
+                        module.getCapabilities().isUnmapSupported());// logicalBlockProvisioningManagementEnabled
 
             sendResponse(bhs.getInitiatorTaskTag(),// initiatorTaskTag,
                     parser.getExpectedDataTransferLength(),// expectedDataTransferLength,
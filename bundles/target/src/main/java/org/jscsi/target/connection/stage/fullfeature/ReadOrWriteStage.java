@@ -22,17 +22,20 @@ public abstract class ReadOrWriteStage extends TargetFullFeatureStage {
      * LENGTH</code> fields in the passed {@link ReadOrWriteCdb} are acceptable. If illegal values are detected, an
      * instance of {@link FieldPointerSenseKeySpecificData} describing the problem will be added to the
      * {@link ReadOrWriteCdb}'s queue-
+     * <p>
+     * Since the data of a command is buffered and counted in <code>int</code> byte offsets, transfer lengths
+     * corresponding to more than {@link Integer#MAX_VALUE} bytes are rejected as well.
      *
      * @param cdb a read or write command descriptor block to check
      * @see CommandDescriptorBlock#getIllegalFieldPointers()
      */
     protected void checkOverAndUnderflow(final ReadOrWriteCdb cdb) {
         // check if requested blocks are out of bounds
-        final int boundsCheck = session.getStorageModule().checkBounds(cdb.getLogicalBlockAddress(), cdb.getTransferLength());
+        final int boundsCheck = logicalUnit.getStorageModule().checkBounds(cdb.getLogicalBlockAddress(), cdb.getTransferLength());
         // add illegal field pointer, or not
         if (boundsCheck == 1) {
             cdb.addIllegalFieldPointerForLogicalBlockAddress();
-        } else if (boundsCheck == 2) {
+        } else if (boundsCheck == 2 || (long) cdb.getTransferLength() * logicalUnit.getStorageModule().getBlockSize() > Integer.MAX_VALUE) {
             cdb.addIllegalFieldPointerForTransferLength();
         }
     }
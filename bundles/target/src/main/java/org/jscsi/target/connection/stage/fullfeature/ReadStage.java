@@ -3,25 +3,43 @@ package org.jscsi.target.connection.stage.fullfeature;
 import org.jscsi.exception.InternetSCSIException;
 import org.jscsi.parser.BasicHeaderSegment;
 import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.data.DataInParser;
 import org.jscsi.parser.scsi.SCSICommandParser;
 import org.jscsi.parser.scsi.SCSIResponseParser.ServiceResponse;
 import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.TargetServer;
 import org.jscsi.target.connection.TargetPduFactory;
 import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.context.DataInMode;
 import org.jscsi.target.scsi.ScsiResponseDataSegment;
 import org.jscsi.target.scsi.cdb.Read10Cdb;
+import org.jscsi.target.scsi.cdb.Read12Cdb;
+import org.jscsi.target.scsi.cdb.Read16Cdb;
 import org.jscsi.target.scsi.cdb.Read6Cdb;
 import org.jscsi.target.scsi.cdb.ReadCdb;
 import org.jscsi.target.scsi.cdb.ScsiOperationCode;
 import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.storage.IFileBackedStorageModule;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.IStorageModule;
+import org.jscsi.target.util.BufferPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 /**
- * A stage for processing <code>READ (6)</code> and <code>READ (10)</code> SCSI commands.
+ * A stage for processing <code>READ (6)</code>, <code>READ (10)</code>, <code>READ (12)</code> and <code>READ (16)</code>
+ * SCSI commands.
  *
  * @author Andreas Ergenzinger
  */
@@ -29,6 +47,11 @@ public class ReadStage extends ReadOrWriteStage {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ReadStage.class);
 
+    /**
+     * Placeholder for data segments which are transferred directly from a file.
+     */
+    private static final ByteBuffer EMPTY_DATA_SEGMENT = ByteBuffer.allocate(0);
+
     public ReadStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
         super(targetFullFeaturePhase);
     }
@@ -49,11 +72,15 @@ public class ReadStage extends ReadOrWriteStage {
         SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
         final int initiatorTaskTag = bhs.getInitiatorTaskTag();
 
-        // get the Read(6) or Read(10) CDB
+        // get the Read(6), Read(10), Read(12) or Read(16) CDB
         ReadCdb cdb;
         final ScsiOperationCode scsiOpCode = ScsiOperationCode.valueOf(parser.getCDB().get(0));
         if (scsiOpCode == ScsiOperationCode.READ_10)// most likely option first
             cdb = new Read10Cdb(parser.getCDB());
+        else if (scsiOpCode == ScsiOperationCode.READ_16)
+            cdb = new Read16Cdb(parser.getCDB());
+        else if (scsiOpCode == ScsiOperationCode.READ_12)
+            cdb = new Read12Cdb(parser.getCDB());
         else if (scsiOpCode == ScsiOperationCode.READ_6)
             cdb = new Read6Cdb(parser.getCDB());
         else {
@@ -78,28 +105,79 @@ public class ReadStage extends ReadOrWriteStage {
             return;
         }
 
-        final int totalTransferLength = session.getStorageModule().getBlockSize() * cdb.getTransferLength();
-        final long storageOffset = session.getStorageModule().getBlockSize() * cdb.getLogicalBlockAddress();
+        // the bounds check has made sure that the transfer length in bytes fits into an int
+        final int totalTransferLength = (int) ((long) logicalUnit.getStorageModule().getBlockSize() * cdb.getTransferLength());
+        final long storageOffset = logicalUnit.getStorageModule().getBlockSize() * cdb.getLogicalBlockAddress();
 
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug("cdb.getLogicalBlockAddress() = " + cdb.getLogicalBlockAddress());
-            LOGGER.debug("blockSize = " + session.getStorageModule().getBlockSize());
+            LOGGER.debug("blockSize = " + logicalUnit.getStorageModule().getBlockSize());
             LOGGER.debug("totalTransferLength = " + totalTransferLength);
             LOGGER.debug("expectedDataSegmentLength = " + parser.getExpectedDataTransferLength());
         }
 
+        // transfer data segments directly from the file, if possible
+        final FileChannel fileChannel = getFileChannel();
+
+        // read ahead, unless the data is transferred directly from the file or fits into a single Data-In PDU
+        final Executor storageExecutor = fileChannel == null && totalTransferLength > settings.getMaxRecvDataSegmentLength() ? getStorageExecutor() : null;
+        if (storageExecutor != null) {
+            sendPrefetchedDataInPdus(initiatorTaskTag, immediateData, storageOffset, totalTransferLength, storageExecutor);
+        } else {
+            sendDataInPdus(initiatorTaskTag, immediateData, storageOffset, totalTransferLength, fileChannel);
+        }
+
+        // send SCSI Response PDU?
+        if (!immediateData) {
+
+            final ProtocolDataUnit responsePdu = TargetPduFactory.createSCSIResponsePdu(false,// bidirectionalReadResidualOverflow
+                    false,// bidirectionalReadResidualUnderflow
+                    false,// residualOverflow
+                    false,// residualUnderflow
+                    ServiceResponse.COMMAND_COMPLETED_AT_TARGET,// response
+                    SCSIStatus.GOOD,// status
+                    initiatorTaskTag,// initiatorTaskTag
+                    0,// snackTag, reserved
+                    0,// expectedDataSequenceNumber, reserved
+                    0,// bidirectionalReadResidualCount
+                    0,// residualCount
+                    ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// empty
+            // ScsiResponseDataSegment
+
+            LOGGER.debug("sending SCSI Response PDU");
+            connection.sendPdu(responsePdu);
+        }
+    }
+
+    /**
+     * Sends the Data-In PDUs of a <code>READ</code> command, reading each data segment from storage right before it is
+     * sent, or transferring it directly from the file backing the storage medium.
+     *
+     * @param initiatorTaskTag    the Initiator Task Tag of the command
+     * @param immediateData       whether the status is sent in the last Data-In PDU
+     * @param storageOffset       the position of the first byte within the storage medium
+     * @param totalTransferLength the number of bytes to send
+     * @param fileChannel         the file backing the storage medium, or <code>null</code> if the data segments have to
+     *                            be read into a byte array
+     * @throws IOException           if an I/O error occurs
+     * @throws InterruptedException  if the current thread was interrupted
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge
+     * @throws SettingsException     if the negotiated settings could not be retrieved
+     */
+    private void sendDataInPdus(final int initiatorTaskTag, final boolean immediateData, final long storageOffset, final int totalTransferLength, final FileChannel fileChannel) throws IOException, InterruptedException, InternetSCSIException, SettingsException {
+
         // *** start sending ***
         // initialize counters and data segment buffer
         int bytesSent = 0;
         int dataSequenceNumber = 0;
         byte[] dataSegmentArray = null;
-        ByteBuffer dataSegment = null;
-        ProtocolDataUnit responsePdu;
+        ByteBuffer dataSegment = EMPTY_DATA_SEGMENT;
+        ProtocolDataUnit responsePdu = null;
 
         // *** send up to last but one Data-In PDU ***
         // (with DataSegmentSize == MaxRecvDataSegmentLength)
 
-        if (bytesSent < totalTransferLength - settings.getMaxRecvDataSegmentLength()) {
+        if (fileChannel == null && bytesSent < totalTransferLength - settings.getMaxRecvDataSegmentLength()) {
             /*
              * Initialize dataSegmentArray and dataSegment with MaxRecvDataSegmentLength bytes.
              */
@@ -109,30 +187,37 @@ public class ReadStage extends ReadOrWriteStage {
 
         while (bytesSent < totalTransferLength - settings.getMaxRecvDataSegmentLength()) {
 
-            // get data and prepare data segment
-            session.getStorageModule().read(dataSegmentArray, storageOffset + bytesSent);
-
-            // create and send PDU
-            responsePdu = TargetPduFactory.createDataInPdu(false,// finalFlag,
-                    // not the last
-                    // PDU with
-                    // data payload
-                    // in the
-                    // sequence
-                    false,// acknowledgeFlag, ErrorRecoveryLevel == 0, so we
-                    // never do that
-                    false,// residualOverflowFlag
-                    false,// residualUnderflowFlag
-                    false,// statusFlag
-                    SCSIStatus.GOOD,// status, actually reserved i.e. 0x0
-                    0L,// logicalUnitNumber, reserved
-                    initiatorTaskTag, 0xffffffff,// targetTransferTag
-                    dataSequenceNumber,// dataSequenceNumber
-                    bytesSent,// bufferOffset
-                    0,// residualCount
-                    dataSegment);
-
-            connection.sendPdu(responsePdu);
+            // get data and prepare data segment, reading into the buffer wrapping the array saves wrapping it again
+            if (fileChannel == null) {
+                dataSegment.clear();
+                logicalUnit.getStorageModule().read(dataSegment, storageOffset + bytesSent);
+            }
+
+            // create and send PDU, or reuse the one which has been sent already
+            if (responsePdu != null) {
+                setDataInFields(responsePdu, dataSequenceNumber, bytesSent, dataSegment);
+            } else {
+                responsePdu = TargetPduFactory.createDataInPdu(false,// finalFlag,
+                        // not the last
+                        // PDU with
+                        // data payload
+                        // in the
+                        // sequence
+                        false,// acknowledgeFlag, ErrorRecoveryLevel == 0, so we
+                        // never do that
+                        false,// residualOverflowFlag
+                        false,// residualUnderflowFlag
+                        false,// statusFlag
+                        SCSIStatus.GOOD,// status, actually reserved i.e. 0x0
+                        0L,// logicalUnitNumber, reserved
+                        initiatorTaskTag, 0xffffffff,// targetTransferTag
+                        dataSequenceNumber,// dataSequenceNumber
+                        bytesSent,// bufferOffset
+                        0,// residualCount
+                        dataSegment);
+            }
+
+            sendDataInPdu(responsePdu, fileChannel, storageOffset + bytesSent, settings.getMaxRecvDataSegmentLength());
 
             // increment counters
             ++dataSequenceNumber;
@@ -148,9 +233,11 @@ public class ReadStage extends ReadOrWriteStage {
 
         // get data and prepare data segment
         final int bytesRemaining = totalTransferLength - bytesSent;
-        dataSegmentArray = connection.getDataInArray(bytesRemaining);
-        session.getStorageModule().read(dataSegmentArray, storageOffset + bytesSent);
-        dataSegment = ByteBuffer.wrap(dataSegmentArray);
+        if (fileChannel == null) {
+            dataSegmentArray = connection.getDataInArray(bytesRemaining);
+            logicalUnit.getStorageModule().read(dataSegmentArray, storageOffset + bytesSent);
+            dataSegment = ByteBuffer.wrap(dataSegmentArray);
+        }
 
         // create and send PDU (with or without status)
         responsePdu = TargetPduFactory.createDataInPdu(true,// finalFlag, last
@@ -171,27 +258,214 @@ public class ReadStage extends ReadOrWriteStage {
                 dataSegment);
 
         LOGGER.debug("sending last Data-In PDU");
-        connection.sendPdu(responsePdu);
+        sendDataInPdu(responsePdu, fileChannel, storageOffset + bytesSent, bytesRemaining);
+    }
 
-        // send SCSI Response PDU?
-        if (!immediateData) {
+    /**
+     * Sends the Data-In PDUs of a <code>READ</code> command, while the following data segments are read from storage by
+     * the <i>storageExecutor</i>.
+     * <p>
+     * The data segments are read into a ring of pooled buffers. While the data segment of one buffer is being sent,
+     * the other buffers are filled with the next {@link org.jscsi.target.context.Configuration#getReadPrefetchDepth()}
+     * data segments, so that the latency of the storage medium overlaps with the transfer over the network. A buffer is
+     * refilled as soon as its data segment has been sent.
+     *
+     * @param initiatorTaskTag    the Initiator Task Tag of the command
+     * @param immediateData       whether the status is sent in the last Data-In PDU
+     * @param storageOffset       the position of the first byte within the storage medium
+     * @param totalTransferLength the number of bytes to send, more than fit into a single Data-In PDU
+     * @param storageExecutor     performs the reads
+     * @throws IOException           if an I/O error occurs
+     * @throws InterruptedException  if the current thread was interrupted
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge
+     * @throws SettingsException     if the negotiated settings could not be retrieved
+     */
+    private void sendPrefetchedDataInPdus(final int initiatorTaskTag, final boolean immediateData, final long storageOffset, final int totalTransferLength, final Executor storageExecutor) throws IOException, InterruptedException, InternetSCSIException, SettingsException {
+        final IPositionalStorageModule storageModule = logicalUnit.getStorageModule();
+        final BufferPool bufferPool = connection.getBufferPool();
+        final int segmentLength = settings.getMaxRecvDataSegmentLength();
+        final int segmentCount = (int) (((long) totalTransferLength + segmentLength - 1) / segmentLength);
+
+        // one buffer is being sent, while the others are being filled
+        final int bufferCount = Math.min(session.getTargetServer().getConfig().getReadPrefetchDepth() + 1, segmentCount);
+        final ByteBuffer[] buffers = new ByteBuffer[bufferCount];
+        // the full-length data segments of the buffers, which are independent of the buffers' positions and limits
+        final ByteBuffer[] dataSegments = new ByteBuffer[bufferCount];
+        ProtocolDataUnit responsePdu = null;
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<Void>[] reads = new CompletableFuture[bufferCount];
+        try {
+            for (int i = 0; i < bufferCount; ++i) {
+                buffers[i] = bufferPool.lease(segmentLength);
+                dataSegments[i] = buffers[i].duplicate();
+                dataSegments[i].clear();
+                dataSegments[i].limit(segmentLength);
+                dataSegments[i] = dataSegments[i].slice();
+                reads[i] = startRead(storageModule, buffers[i], storageOffset + (long) i * segmentLength, Math.min(segmentLength, totalTransferLength - i * segmentLength), storageExecutor);
+            }
+
+            for (int dataSequenceNumber = 0; dataSequenceNumber < segmentCount; ++dataSequenceNumber) {
+                final int slot = dataSequenceNumber % bufferCount;
+                final int bufferOffset = dataSequenceNumber * segmentLength;
+                final int length = Math.min(segmentLength, totalTransferLength - bufferOffset);
+                final boolean last = dataSequenceNumber == segmentCount - 1;
+
+                await(reads[slot]);
+                reads[slot] = null;
+                ByteBuffer dataSegment = dataSegments[slot];
+                if (length < segmentLength) {
+                    dataSegment = dataSegment.duplicate();
+                    dataSegment.limit(length);
+                    dataSegment = dataSegment.slice();
+                }
+
+                // all but the last Data-In PDU only differ in these fields, so the sent PDU is reused
+                if (responsePdu != null && !last) {
+                    setDataInFields(responsePdu, dataSequenceNumber, bufferOffset, dataSegment);
+                } else {
+                    responsePdu = TargetPduFactory.createDataInPdu(last,// finalFlag
+                            false,// acknowledgeFlag, ErrorRecoveryLevel == 0, so we never do that
+                            false,// residualOverflowFlag
+                            false,// residualUnderflowFlag
+                            last && immediateData,// statusFlag
+                            SCSIStatus.GOOD,// status, or not (reserved if no status)
+                            0L,// logicalUnitNumber, reserved
+                            initiatorTaskTag, 0xffffffff,// targetTransferTag
+                            dataSequenceNumber,// dataSequenceNumber
+                            bufferOffset,// bufferOffset
+                            0,// residualCount
+                            dataSegment);
+                }
+                connection.sendPdu(responsePdu);
+
+                // refill the buffer with the data segment following the prefetched ones
+                final int nextSegment = dataSequenceNumber + bufferCount;
+                if (nextSegment < segmentCount) {
+                    reads[slot] = startRead(storageModule, buffers[slot], storageOffset + (long) nextSegment * segmentLength, Math.min(segmentLength, totalTransferLength - nextSegment * segmentLength), storageExecutor);
+                }
+            }
+        } finally {
+            // never return a buffer to the pool while it is still being filled
+            for (int i = 0; i < bufferCount; ++i) {
+                if (reads[i] != null) {
+                    try {
+                        reads[i].join();
+                    } catch (CompletionException | CancellationException e) {
+                        // the command has already failed
+                    }
+                }
+                bufferPool.release(buffers[i]);
+            }
+        }
+    }
 
-            responsePdu = TargetPduFactory.createSCSIResponsePdu(false,// bidirectionalReadResidualOverflow
-                    false,// bidirectionalReadResidualUnderflow
-                    false,// residualOverflow
-                    false,// residualUnderflow
-                    ServiceResponse.COMMAND_COMPLETED_AT_TARGET,// response
-                    SCSIStatus.GOOD,// status
-                    initiatorTaskTag,// initiatorTaskTag
-                    0,// snackTag, reserved
-                    0,// expectedDataSequenceNumber, reserved
-                    0,// bidirectionalReadResidualCount
-                    0,// residualCount
-                    ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// empty
-            // ScsiResponseDataSegment
+    /**
+     * Prepares a Data-In PDU which has been sent already for carrying the next data segment of the same sequence.
+     * Since {@link org.jscsi.target.connection.Connection#sendPdu(ProtocolDataUnit)} returns once the PDU has been
+     * written, this saves creating a new PDU and parser for each data segment.
+     *
+     * @param pdu                the sent Data-In PDU, which is neither final nor carries the status
+     * @param dataSequenceNumber the <code>DataSN</code> of the next PDU
+     * @param bufferOffset       the <code>Buffer Offset</code> of the next PDU
+     * @param dataSegment        the next data segment
+     */
+    private static void setDataInFields(final ProtocolDataUnit pdu, final int dataSequenceNumber, final int bufferOffset, final ByteBuffer dataSegment) {
+        final DataInParser parser = (DataInParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setDataSequenceNumber(dataSequenceNumber);
+        parser.setBufferOffset(bufferOffset);
+        pdu.setDataSegment(dataSegment);
+    }
 
-            LOGGER.debug("sending SCSI Response PDU");
-            connection.sendPdu(responsePdu);
+    /**
+     * Returns the executor reading data segments in advance, if read-ahead has been configured.
+     *
+     * @return the executor, or <code>null</code> if each data segment is read right before it is sent
+     */
+    private Executor getStorageExecutor() {
+        final TargetServer targetServer = session == null ? null : session.getTargetServer();
+        if (targetServer == null || targetServer.getConfig().getReadPrefetchDepth() <= 0) {
+            return null;
+        }
+        return targetServer.getStorageExecutor();
+    }
+
+    /**
+     * Starts reading a data segment into the given buffer.
+     *
+     * @param storageModule   the storage module to read from
+     * @param buffer          the buffer to read into, from its beginning
+     * @param storageIndex    the position of the data segment within the storage medium
+     * @param length          the length of the data segment
+     * @param storageExecutor performs the read
+     * @return a future completing once the buffer has been filled
+     */
+    private static CompletableFuture<Void> startRead(final IPositionalStorageModule storageModule, final ByteBuffer buffer, final long storageIndex, final int length, final Executor storageExecutor) {
+        buffer.clear();
+        buffer.limit(length);
+        return CompletableFuture.runAsync(() -> {
+            try {
+                storageModule.read(buffer, storageIndex);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, storageExecutor);
+    }
+
+    /**
+     * Waits for a data segment to be read, rethrowing the {@link IOException} which made it fail.
+     */
+    private static void await(final CompletableFuture<Void> read) throws IOException, InterruptedException {
+        try {
+            read.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the channel data segments can be transferred from, if {@link DataInMode#TRANSFER_TO} has been configured
+     * and the storage medium is backed by a file. A data digest cannot be calculated over bytes which are transferred
+     * from the file by the kernel, so the data segments are read into a byte array if a data digest has been
+     * negotiated.
+     *
+     * @return the channel of the file backing the storage medium, or <code>null</code> if data segments have to be read
+     *         into a byte array
+     * @throws SettingsException if the data digest has not been negotiated
+     */
+    private FileChannel getFileChannel() throws SettingsException {
+        final IStorageModule storageModule = logicalUnit.getStorageModule();
+        if (connection.getDataInMode() == DataInMode.TRANSFER_TO && storageModule instanceof IFileBackedStorageModule && TextKeyword.NONE.equals(settings.getDataDigest())) {
+            return ((IFileBackedStorageModule) storageModule).getFileChannel();
+        }
+        return null;
+    }
+
+    /**
+     * Sends a Data-In PDU. If <i>fileChannel</i> is not <code>null</code>, the data segment is transferred directly
+     * from the file.
+     *
+     * @param pdu          the Data-In PDU
+     * @param fileChannel  the file backing the storage medium, or <code>null</code> if the PDU contains its data segment
+     * @param storageIndex the position of the data segment within the storage medium
+     * @param length       the length of the data segment
+     * @throws IOException           if an I/O error occurs
+     * @throws InterruptedException  if the current thread was interrupted
+     * @throws InternetSCSIException if any violation of the iSCSI-Standard emerge
+     */
+    private void sendDataInPdu(final ProtocolDataUnit pdu, final FileChannel fileChannel, final long storageIndex, final int length) throws IOException, InterruptedException, InternetSCSIException {
+        if (fileChannel == null) {
+            connection.sendPdu(pdu);
+        } else {
+            pdu.setDataSegmentLength(length);
+            connection.sendPdu(pdu, fileChannel, storageIndex);
         }
     }
 
@@ -0,0 +1,44 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.scsi.cdb.ReceiveCopyResultsCdb;
+import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.scsi.xcopy.CopyOperatingParameters;
+import org.jscsi.target.settings.SettingsException;
+
+import java.io.IOException;
+import java.security.DigestException;
+
+/**
+ * A stage for processing <code>RECEIVE COPY RESULTS</code> SCSI commands requesting the operating parameters of the
+ * copy manager, which initiators query before issuing <code>EXTENDED COPY</code> commands.
+ */
+public final class ReceiveCopyResultsStage extends TargetFullFeatureStage {
+
+    public ReceiveCopyResultsStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+        final ReceiveCopyResultsCdb cdb = new ReceiveCopyResultsCdb(parser.getCDB());
+
+        final FieldPointerSenseKeySpecificData[] illegalFieldPointers = cdb.getIllegalFieldPointers();
+        if (illegalFieldPointers != null) {
+            connection.sendPdu(createFixedFormatErrorPdu(illegalFieldPointers,// senseKeySpecificData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        sendResponse(bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                (int) Math.min(cdb.getAllocationLength(), parser.getExpectedDataTransferLength()),// expectedDataTransferLength
+                new CopyOperatingParameters(logicalUnit.getStorageModule().getBlockSize()));// responseData
+    }
+}
@@ -5,8 +5,10 @@ import org.jscsi.parser.BasicHeaderSegment;
 import org.jscsi.parser.ProtocolDataUnit;
 import org.jscsi.parser.scsi.SCSICommandParser;
 import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.context.LogicalUnit;
 import org.jscsi.target.scsi.cdb.ReportLunsCDB;
 import org.jscsi.target.scsi.cdb.SelectReport;
+import org.jscsi.target.scsi.lun.LogicalUnitNumber;
 import org.jscsi.target.scsi.lun.ReportLunsParameterData;
 import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
 import org.jscsi.target.settings.SettingsException;
@@ -15,6 +17,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.security.DigestException;
+import java.util.List;
 
 /**
  * A stage for processing <code>REPORT LUNS</code> SCSI commands.
@@ -55,16 +58,22 @@ public class ReportLunsStage extends TargetFullFeatureStage {
             final SelectReport selectReport = cdb.getSelectReport();
             LOGGER.debug("selectReport = " + selectReport);
 
-            // there are only well known LUNs
             ReportLunsParameterData reportLunsParameterData;
 
-            // TODO the switch isn't really needed right now, but maybe in
-            // future implementations
             switch (selectReport) {
-                case SELECTED_ADDRESSING_METHODS:
                 case WELL_KNOWN_LUNS_ONLY:
+                    // there are no well known logical units
+                    reportLunsParameterData = new ReportLunsParameterData();
+                    break;
+                case SELECTED_ADDRESSING_METHODS:
                 case ALL:
-                    reportLunsParameterData = new ReportLunsParameterData(session.getTargetServer().getConfig().getLogicalUnitNumber());
+                    // all logical units of the target
+                    final List<LogicalUnit> logicalUnits = session.getTarget().getLogicalUnits();
+                    final LogicalUnitNumber[] luns = new LogicalUnitNumber[logicalUnits.size()];
+                    for (int i = 0; i < luns.length; ++i) {
+                        luns[i] = logicalUnits.get(i).getLogicalUnitNumber();
+                    }
+                    reportLunsParameterData = new ReportLunsParameterData(luns);
                     break;
                 default:
                     throw new InternetSCSIException();
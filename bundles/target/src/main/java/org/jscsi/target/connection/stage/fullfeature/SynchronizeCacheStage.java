@@ -0,0 +1,93 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIResponseParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.TargetPduFactory;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.scsi.ScsiResponseDataSegment;
+import org.jscsi.target.scsi.cdb.ScsiOperationCode;
+import org.jscsi.target.scsi.cdb.SynchronizeCache10Cdb;
+import org.jscsi.target.scsi.cdb.SynchronizeCache16Cdb;
+import org.jscsi.target.scsi.cdb.SynchronizeCacheCdb;
+import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
+import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.settings.SettingsException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.security.DigestException;
+
+/**
+ * A stage for processing <code>SYNCHRONIZE CACHE (10)</code> and <code>SYNCHRONIZE CACHE (16)</code> SCSI commands.
+ * <p>
+ * The storage module is flushed as a whole, regardless of the requested range of logical blocks, and status is only
+ * returned once the flush has completed, even if the IMMED bit is set.
+ */
+public final class SynchronizeCacheStage extends TargetFullFeatureStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SynchronizeCacheStage.class);
+
+    public SynchronizeCacheStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+        final ScsiOperationCode opCode = ScsiOperationCode.valueOf(parser.getCDB().get(0));
+        SynchronizeCacheCdb cdb;
+        if (opCode == ScsiOperationCode.SYNCHRONIZE_CACHE_10)
+            cdb = new SynchronizeCache10Cdb(parser.getCDB());
+        else if (opCode == ScsiOperationCode.SYNCHRONIZE_CACHE_16)
+            cdb = new SynchronizeCache16Cdb(parser.getCDB());
+        else {
+            // programmer error, we should not be here, close the connection
+            throw new InternetSCSIException("wrong SCSI Operation Code " + opCode + " in SynchronizeCacheStage");
+        }
+
+        ProtocolDataUnit responsePdu;
+        final FieldPointerSenseKeySpecificData[] illegalFieldPointers = cdb.getIllegalFieldPointers();
+        if (illegalFieldPointers != null) {
+            responsePdu = createFixedFormatErrorPdu(illegalFieldPointers,// senseKeySpecificData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength());// expectedDataTransferLength
+        } else if (logicalUnit.getStorageModule().checkBounds(cdb.getLogicalBlockAddress(), (int) Math.min(cdb.getNumberOfLogicalBlocks(), Integer.MAX_VALUE)) != 0) {
+            LOGGER.error("encountered " + cdb.getClass() + " with LOGICAL BLOCK ADDRESS = " + cdb.getLogicalBlockAddress() + " and NUMBER OF LOGICAL BLOCKS = " + cdb.getNumberOfLogicalBlocks());
+
+            final FieldPointerSenseKeySpecificData fp = new FieldPointerSenseKeySpecificData(true,// senseKeySpecificDataValid
+                    true,// commandData (i.e. invalid field in CDB)
+                    false,// bitPointerValid
+                    0,// bitPointer, reserved since invalid
+                    2);// fieldPointer to the LOGICAL BLOCK ADDRESS field
+            responsePdu = createFixedFormatErrorPdu(new FieldPointerSenseKeySpecificData[]{fp},// senseKeySpecificData
+                    AdditionalSenseCodeAndQualifier.LOGICAL_BLOCK_ADDRESS_OUT_OF_RANGE,// additionalSenseCodeAndQualifier
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength());// expectedDataTransferLength
+        } else {
+            // make all data written so far durable
+            logicalUnit.getStorageModule().flush();
+
+            responsePdu = TargetPduFactory.createSCSIResponsePdu(false,// bidirectionalReadResidualOverflow
+                    false,// bidirectionalReadResidualUnderflow
+                    false,// residualOverflow
+                    false,// residualUnderflow,
+                    SCSIResponseParser.ServiceResponse.COMMAND_COMPLETED_AT_TARGET,// response,
+                    SCSIStatus.GOOD,// status,
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag,
+                    0,// snackTag
+                    0,// expectedDataSequenceNumber
+                    0,// bidirectionalReadResidualCount
+                    0,// residualCount
+                    ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// data segment
+        }
+
+        connection.sendPdu(responsePdu);
+    }
+
+}
@@ -1,12 +1,18 @@
 package org.jscsi.target.connection.stage.fullfeature;
 
 import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.OperationCode;
 import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.data.DataOutParser;
 import org.jscsi.parser.scsi.SCSIResponseParser;
 import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.TargetServer;
+import org.jscsi.target.connection.PduPool;
 import org.jscsi.target.connection.TargetPduFactory;
 import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
 import org.jscsi.target.connection.stage.TargetStage;
+import org.jscsi.target.context.LogicalUnit;
 import org.jscsi.target.scsi.IResponseData;
 import org.jscsi.target.scsi.ScsiResponseDataSegment;
 import org.jscsi.target.scsi.sense.AdditionalSenseBytes;
@@ -16,9 +22,11 @@ import org.jscsi.target.scsi.sense.FixedFormatSenseData;
 import org.jscsi.target.scsi.sense.SenseKey;
 import org.jscsi.target.scsi.sense.information.FourByteInformation;
 import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.settings.SettingsException;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.security.DigestException;
 
 /**
  * This class is an abstract super-class for stages of the {@link TargetFullFeaturePhase}.
@@ -28,6 +36,12 @@ import java.nio.ByteBuffer;
  */
 public abstract class TargetFullFeatureStage extends TargetStage {
 
+    /**
+     * The logical unit addressed by the SCSI command processed by this stage, or <code>null</code> if the stage does
+     * not process a SCSI command, or if the addressed logical unit does not exist.
+     */
+    protected LogicalUnit logicalUnit;
+
     /**
      * The abstract constructor.
      *
@@ -37,6 +51,15 @@ public abstract class TargetFullFeatureStage extends TargetStage {
         super(targetFullFeaturePhase);
     }
 
+    /**
+     * Sets the logical unit addressed by the SCSI command. Must be called before the stage is executed.
+     *
+     * @param logicalUnit the addressed logical unit, or <code>null</code> if it does not exist
+     */
+    public void setLogicalUnit(final LogicalUnit logicalUnit) {
+        this.logicalUnit = logicalUnit;
+    }
+
     /**
      * Creates a PDU with {@link FixedFormatSenseData} that must be sent to the initiator after receiving a
      * Command
@@ -70,6 +93,49 @@ public abstract class TargetFullFeatureStage extends TargetStage {
                 // first problem
                 new AdditionalSenseBytes());// additional sense bytes
 
+        return createFixedFormatErrorPdu(senseData, initiatorTaskTag, expectedDataTransferLength);
+    }
+
+    /**
+     * Creates a PDU with {@link FixedFormatSenseData} that must be sent to the initiator after receiving a command
+     * whose LUN does not address any logical unit of the target.
+     *
+     * @param initiatorTaskTag           used by the initiator to identify the task
+     * @param expectedDataTransferLength the amount of payload data expected by the initiator (i.e. allocated buffer
+     *                                   space)
+     * @return the error PDU
+     */
+    protected static final ProtocolDataUnit createLogicalUnitNotSupportedErrorPdu(final int initiatorTaskTag,
+            final int expectedDataTransferLength) {
+        final FixedFormatSenseData senseData = new FixedFormatSenseData(false,// valid
+                ErrorType.CURRENT,// error type
+                false,// file mark
+                false,// end of medium
+                false,// incorrect length indicator
+                SenseKey.ILLEGAL_REQUEST,// sense key
+                new FourByteInformation(),// information
+                new FourByteInformation(),// command specific information
+                AdditionalSenseCodeAndQualifier.LOGICAL_UNIT_NOT_SUPPORTED,// additional sense code and qualifier
+                (byte) 0,// field replaceable unit code
+                null,// sense key specific data
+                new AdditionalSenseBytes());// additional sense bytes
+
+        return createFixedFormatErrorPdu(senseData, initiatorTaskTag, expectedDataTransferLength);
+    }
+
+    /**
+     * Creates a SCSI Response PDU with {@link SCSIStatus#CHECK_CONDITION} status carrying the passed
+     * {@link FixedFormatSenseData}.
+     *
+     * @param senseData                  describes the cause of the check condition
+     * @param initiatorTaskTag           used by the initiator to identify the task
+     * @param expectedDataTransferLength the amount of payload data expected by the initiator (i.e. allocated buffer
+     *                                   space)
+     * @return the error PDU
+     */
+    protected static final ProtocolDataUnit createFixedFormatErrorPdu(final FixedFormatSenseData senseData,
+            final int initiatorTaskTag, final int expectedDataTransferLength) {
+
         // keep only the part of the sense data that will be sent
         final ScsiResponseDataSegment dataSegment =
                 new ScsiResponseDataSegment(senseData, expectedDataTransferLength);
@@ -151,6 +217,120 @@ public abstract class TargetFullFeatureStage extends TargetStage {
                 ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// data segment
     }
 
+    /**
+     * Receives the data which the initiator transfers along with a command, i.e. immediate data, unsolicited Data-Out
+     * PDUs, and Data-Out PDUs solicited by R2T PDUs, one burst at a time.
+     * <p>
+     * Unlike the data of <code>WRITE</code> commands, which is passed on to the storage module PDU by PDU, parameter
+     * lists and the single logical block of <code>WRITE SAME</code> commands have to be available as a whole before the
+     * command can be processed. This method must therefore only be used for small amounts of data.
+     *
+     * @param pdu    the SCSI Command PDU
+     * @param length the number of bytes to receive
+     * @return a buffer containing the received data
+     * @throws InternetSCSIException if an unexpected PDU has been received
+     * @throws DigestException       if a PDU digest error occurs
+     * @throws IOException           if an I/O error occurs
+     * @throws InterruptedException  if the thread is interrupted while sending a PDU
+     * @throws SettingsException     if the negotiated settings cannot be accessed
+     */
+    protected final ByteBuffer receiveData(final ProtocolDataUnit pdu, final int length) throws InternetSCSIException, DigestException, IOException, InterruptedException, SettingsException {
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final int initiatorTaskTag = bhs.getInitiatorTaskTag();
+        final long logicalUnitNumber = bhs.getParser().getLogicalUnitNumber();
+        int bytesReceived = 0;
+
+        // immediate data
+        if (bhs.getDataSegmentLength() > 0) {
+            bytesReceived += copyDataSegment(pdu, data, 0);
+        }
+
+        // unsolicited data
+        boolean finalFlag = bhs.isFinalFlag();
+        while (!finalFlag) {
+            final ProtocolDataUnit dataOutPdu = receiveDataOutPdu();
+            bytesReceived += copyDataSegment(dataOutPdu, data, ((DataOutParser) dataOutPdu.getBasicHeaderSegment().getParser()).getBufferOffset());
+            finalFlag = dataOutPdu.getBasicHeaderSegment().isFinalFlag();
+            release(dataOutPdu);
+        }
+
+        // solicited data
+        int readyToTransferSequenceNumber = 0;
+        while (bytesReceived < length) {
+            final int burstLength = Math.min(settings.getMaxBurstLength(), length - bytesReceived);
+            connection.sendPdu(TargetPduFactory.createReadyToTransferPdu(logicalUnitNumber,
+                    initiatorTaskTag, TargetServer.getNextTargetTransferTag(),// targetTransferTag
+                    readyToTransferSequenceNumber++, bytesReceived,// bufferOffset
+                    burstLength));
+            final int burstEnd = bytesReceived + burstLength;
+            do {
+                final ProtocolDataUnit dataOutPdu = receiveDataOutPdu();
+                bytesReceived += copyDataSegment(dataOutPdu, data, ((DataOutParser) dataOutPdu.getBasicHeaderSegment().getParser()).getBufferOffset());
+                finalFlag = dataOutPdu.getBasicHeaderSegment().isFinalFlag();
+                release(dataOutPdu);
+            } while (!finalFlag && bytesReceived < burstEnd);
+        }
+
+        data.rewind();
+        return data;
+    }
+
+    /**
+     * Receives the next Data-Out PDU. All other PDUs received in the meantime, e.g. further commands sent by the
+     * initiator while there is room in the command window, are handed back to the {@link TargetFullFeaturePhase},
+     * which processes them once this stage has finished.
+     *
+     * @return the received Data-Out PDU
+     * @throws InternetSCSIException if a PDU has violated the iSCSI standard
+     * @throws DigestException       if a PDU digest error occurs
+     * @throws IOException           if an I/O error occurs
+     * @throws SettingsException     if the negotiated settings cannot be accessed
+     */
+    protected final ProtocolDataUnit receiveDataOutPdu() throws InternetSCSIException, DigestException, IOException, SettingsException {
+        ProtocolDataUnit pdu = connection.receivePdu();
+        while (pdu.getBasicHeaderSegment().getOpCode() != OperationCode.SCSI_DATA_OUT) {
+            ((TargetFullFeaturePhase) targetPhase).defer(pdu);
+            pdu = connection.receivePdu();
+        }
+        return pdu;
+    }
+
+    /**
+     * Copies the data segment of a SCSI Command PDU with immediate data or of a Data-Out PDU, excluding the padding,
+     * and releases the buffer the data segment has been received into.
+     *
+     * @param pdu          the received PDU
+     * @param data         the buffer collecting the data of the command
+     * @param bufferOffset the offset of the data segment within the data of the command
+     * @return the number of copied bytes
+     * @throws InternetSCSIException if the data segment exceeds the expected data
+     */
+    private int copyDataSegment(final ProtocolDataUnit pdu, final ByteBuffer data, final int bufferOffset) throws InternetSCSIException {
+        final ByteBuffer dataSegment = pdu.getDataSegment();
+        final int length = pdu.getBasicHeaderSegment().getDataSegmentLength();
+        if (bufferOffset < 0 || bufferOffset + length > data.capacity()) {
+            throw new InternetSCSIException("received " + length + " bytes at offset " + bufferOffset + ", but expected only " + data.capacity() + " bytes");
+        }
+        dataSegment.position(0).limit(length);
+        data.position(bufferOffset);
+        data.put(dataSegment);
+        connection.getBufferPool().release(dataSegment);
+        return length;
+    }
+
+    /**
+     * Returns a processed Data-Out PDU to the connection's {@link PduPool}, so that the next PDU can be read into it.
+     *
+     * @param pdu the Data-Out PDU, whose data segment has been stored or copied
+     */
+    protected final void release(final ProtocolDataUnit pdu) {
+        final PduPool pduPool = connection.getPduPool();
+        if (pduPool != null) {
+            pduPool.release(pdu);
+        }
+    }
+
     /**
      * Sends a two byte sequence of a Data-In and a SCSI Response PDU with the specified <i>responseData</i>
      * payload to
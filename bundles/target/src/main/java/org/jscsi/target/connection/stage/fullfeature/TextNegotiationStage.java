@@ -136,7 +136,7 @@ public final class TextNegotiationStage extends TargetFullFeatureStage {
                 initiatorTaskTag, 0xffffffff,// targetTransferTag
                 replyDataSegment);// dataSegment
 
-        LOGGER.info("send pud");
+        LOGGER.debug("send pdu");
         connection.sendPdu(responsePdu);
     }
 
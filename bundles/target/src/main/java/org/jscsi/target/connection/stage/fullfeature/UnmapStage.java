@@ -0,0 +1,115 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.scsi.cdb.UnmapCdb;
+import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
+import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.scsi.unmap.UnmapParameterList;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.util.RangeLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+
+/**
+ * A stage for processing <code>UNMAP</code> SCSI commands.
+ * <p>
+ * All block descriptors are checked before any range is passed to {@link IPositionalStorageModule#unmap(long, long)},
+ * so that an illegal parameter list does not leave the command partially executed.
+ */
+public final class UnmapStage extends TargetFullFeatureStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UnmapStage.class);
+
+    public UnmapStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+        final UnmapCdb cdb = new UnmapCdb(parser.getCDB());
+
+        final FieldPointerSenseKeySpecificData[] illegalFieldPointers = cdb.getIllegalFieldPointers();
+        if (illegalFieldPointers != null) {
+            connection.sendPdu(createFixedFormatErrorPdu(illegalFieldPointers,// senseKeySpecificData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        // a PARAMETER LIST LENGTH of zero is not an error, nothing is unmapped
+        final int parameterListLength = Math.min(cdb.getParameterListLength(), parser.getExpectedDataTransferLength());
+        if (parameterListLength > 0) {
+            final ByteBuffer data = receiveData(pdu, parameterListLength);
+            if (parameterListLength < UnmapParameterList.HEADER_SIZE) {
+                sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.PARAMETER_LIST_LENGTH_ERROR, 7);
+                return;
+            }
+            final UnmapParameterList parameterList = new UnmapParameterList(data, parameterListLength);
+            if (parameterList.getBlockDescriptorCount() > UnmapParameterList.MAXIMUM_BLOCK_DESCRIPTOR_COUNT) {
+                sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, 2);
+                return;
+            }
+            final IPositionalStorageModule module = logicalUnit.getStorageModule();
+            for (int i = 0; i < parameterList.getBlockDescriptorCount(); ++i) {
+                final long logicalBlockAddress = parameterList.getLogicalBlockAddress(i);
+                final long numberOfLogicalBlocks = parameterList.getNumberOfLogicalBlocks(i);
+                if (numberOfLogicalBlocks > 0 && (logicalBlockAddress < 0 || logicalBlockAddress >= module.getSizeInBlocks() || numberOfLogicalBlocks > module.getSizeInBlocks() - logicalBlockAddress)) {
+                    LOGGER.error("encountered UNMAP block descriptor with UNMAP LOGICAL BLOCK ADDRESS = " + logicalBlockAddress + " and NUMBER OF LOGICAL BLOCKS = " + numberOfLogicalBlocks);
+                    sendParameterListError(bhs, AdditionalSenseCodeAndQualifier.LOGICAL_BLOCK_ADDRESS_OUT_OF_RANGE, UnmapParameterList.getBlockDescriptorIndex(i));
+                    return;
+                }
+            }
+
+            final int blockSize = module.getBlockSize();
+            for (int i = 0; i < parameterList.getBlockDescriptorCount(); ++i) {
+                if (parameterList.getNumberOfLogicalBlocks(i) > 0) {
+                    final long storageIndex = parameterList.getLogicalBlockAddress(i) * blockSize;
+                    final long length = parameterList.getNumberOfLogicalBlocks(i) * blockSize;
+                    try (RangeLock.Range range = logicalUnit.getRangeLock().lock(storageIndex, length)) {
+                        module.unmap(storageIndex, length);
+                    }
+                }
+            }
+        }
+
+        connection.sendPdu(createScsiResponsePdu(SCSIStatus.GOOD,// status
+                bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                0,// expectedDataTransferLength, no Data-In
+                0));// responseDataSize
+    }
+
+    /**
+     * Sends a response with CHECK CONDITION status, pointing to an illegal field in the parameter list.
+     *
+     * @param bhs                             the Basic Header Segment of the SCSI Command PDU
+     * @param additionalSenseCodeAndQualifier the cause of the check condition
+     * @param fieldPointer                    the position of the illegal field, which is a CDB field for
+     *                                        {@link AdditionalSenseCodeAndQualifier#PARAMETER_LIST_LENGTH_ERROR}
+     * @throws InterruptedException  if the thread is interrupted while sending the PDU
+     * @throws IOException           if an I/O error occurs
+     * @throws InternetSCSIException if the PDU could not be sent
+     */
+    private void sendParameterListError(final BasicHeaderSegment bhs, final AdditionalSenseCodeAndQualifier additionalSenseCodeAndQualifier, final int fieldPointer) throws InterruptedException, IOException, InternetSCSIException {
+        final FieldPointerSenseKeySpecificData fp = new FieldPointerSenseKeySpecificData(true,// senseKeySpecificDataValid
+                additionalSenseCodeAndQualifier == AdditionalSenseCodeAndQualifier.PARAMETER_LIST_LENGTH_ERROR,// commandData
+                false,// bitPointerValid
+                0,// bitPointer, reserved since invalid
+                fieldPointer);// fieldPointer
+        connection.sendPdu(createFixedFormatErrorPdu(new FieldPointerSenseKeySpecificData[]{fp},// senseKeySpecificData
+                additionalSenseCodeAndQualifier,// additionalSenseCodeAndQualifier
+                bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                ((SCSICommandParser) bhs.getParser()).getExpectedDataTransferLength()));// expectedDataTransferLength
+    }
+}
@@ -0,0 +1,36 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.scsi.cdb.ScsiOperationCode;
+import org.jscsi.target.settings.SettingsException;
+
+import java.io.IOException;
+import java.security.DigestException;
+
+/**
+ * Like the {@link UnsupportedOpCodeStage}, this class is not associated with a single {@link ScsiOperationCode}. All
+ * SCSI Command PDUs whose LUN does not address a logical unit of the target shall be passed to the
+ * {@link #execute(ProtocolDataUnit)} method of this class, which will dispatch a SCSI Response PDU with CHECK
+ * CONDITION status, except for <code>INQUIRY</code> and <code>REPORT LUNS</code> commands, which must be answered for
+ * any LUN.
+ */
+public class UnsupportedLogicalUnitStage extends TargetFullFeatureStage {
+
+    public UnsupportedLogicalUnitStage(TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+
+        connection.sendPdu(createLogicalUnitNotSupportedErrorPdu(bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+    }
+
+}
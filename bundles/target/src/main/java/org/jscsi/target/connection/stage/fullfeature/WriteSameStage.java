@@ -0,0 +1,118 @@
+package org.jscsi.target.connection.stage.fullfeature;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.scsi.cdb.ScsiOperationCode;
+import org.jscsi.target.scsi.cdb.WriteSame10Cdb;
+import org.jscsi.target.scsi.cdb.WriteSame16Cdb;
+import org.jscsi.target.scsi.cdb.WriteSameCdb;
+import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
+import org.jscsi.target.scsi.sense.senseDataDescriptor.senseKeySpecific.FieldPointerSenseKeySpecificData;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.util.RangeLock;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+
+/**
+ * A stage for processing <code>WRITE SAME (10)</code> and <code>WRITE SAME (16)</code> SCSI commands.
+ * <p>
+ * Only a single logical block is transferred, which is expanded by the storage module, so zeroing a whole medium
+ * requires just one command and one block of network traffic. If the UNMAP bit is set and the transferred block
+ * consists of zeros, the storage module is asked to deallocate the range instead, and the range is only written if it
+ * could not be deallocated completely.
+ */
+public final class WriteSameStage extends TargetFullFeatureStage {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriteSameStage.class);
+
+    public WriteSameStage(final TargetFullFeaturePhase targetFullFeaturePhase) {
+        super(targetFullFeaturePhase);
+    }
+
+    @Override
+    public void execute(ProtocolDataUnit pdu) throws IOException, InterruptedException, InternetSCSIException, DigestException, SettingsException {
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
+        final ScsiOperationCode opCode = ScsiOperationCode.valueOf(parser.getCDB().get(0));
+        WriteSameCdb cdb;
+        if (opCode == ScsiOperationCode.WRITE_SAME_10)
+            cdb = new WriteSame10Cdb(parser.getCDB());
+        else if (opCode == ScsiOperationCode.WRITE_SAME_16)
+            cdb = new WriteSame16Cdb(parser.getCDB());
+        else {
+            // programmer error, we should not be here, close the connection
+            throw new InternetSCSIException("wrong SCSI Operation Code " + opCode + " in WriteSameStage");
+        }
+
+        final IPositionalStorageModule module = logicalUnit.getStorageModule();
+        final long logicalBlockAddress = cdb.getLogicalBlockAddress();
+        // a NUMBER OF LOGICAL BLOCKS of zero requests writing up to the end of the medium
+        final long numberOfLogicalBlocks = cdb.getNumberOfLogicalBlocks() == 0 ? module.getSizeInBlocks() - logicalBlockAddress : cdb.getNumberOfLogicalBlocks();
+
+        final FieldPointerSenseKeySpecificData[] illegalFieldPointers = cdb.getIllegalFieldPointers();
+        if (illegalFieldPointers != null) {
+            connection.sendPdu(createFixedFormatErrorPdu(illegalFieldPointers,// senseKeySpecificData
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+        if (logicalBlockAddress < 0 || logicalBlockAddress >= module.getSizeInBlocks() || numberOfLogicalBlocks > module.getSizeInBlocks() - logicalBlockAddress) {
+            LOGGER.error("encountered " + cdb.getClass() + " with LOGICAL BLOCK ADDRESS = " + logicalBlockAddress + " and NUMBER OF LOGICAL BLOCKS = " + cdb.getNumberOfLogicalBlocks());
+
+            final FieldPointerSenseKeySpecificData fp = new FieldPointerSenseKeySpecificData(true,// senseKeySpecificDataValid
+                    true,// commandData (i.e. invalid field in CDB)
+                    false,// bitPointerValid
+                    0,// bitPointer, reserved since invalid
+                    2);// fieldPointer to the LOGICAL BLOCK ADDRESS field
+            connection.sendPdu(createFixedFormatErrorPdu(new FieldPointerSenseKeySpecificData[]{fp},// senseKeySpecificData
+                    AdditionalSenseCodeAndQualifier.LOGICAL_BLOCK_ADDRESS_OUT_OF_RANGE,// additionalSenseCodeAndQualifier
+                    bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                    parser.getExpectedDataTransferLength()));// expectedDataTransferLength
+            return;
+        }
+
+        // receive the logical block, unless the initiator has requested zeros
+        final int blockSize = module.getBlockSize();
+        final ByteBuffer block = cdb.getNoDataOutBuffer() ? ByteBuffer.allocate(blockSize) : receiveData(pdu, blockSize);
+
+        final long storageIndex = logicalBlockAddress * blockSize;
+        final long length = numberOfLogicalBlocks * blockSize;
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("writing " + numberOfLogicalBlocks + " copies of a logical block, unmap = " + cdb.getUnmap());
+        }
+        try (RangeLock.Range range = logicalUnit.getRangeLock().lock(storageIndex, length)) {
+            if (!(cdb.getUnmap() && isZero(block) && module.unmap(storageIndex, length))) {
+                module.writeSame(block, storageIndex, length);
+            }
+        }
+
+        connection.sendPdu(createScsiResponsePdu(SCSIStatus.GOOD,// status
+                bhs.getInitiatorTaskTag(),// initiatorTaskTag
+                0,// expectedDataTransferLength, no Data-In
+                0));// responseDataSize
+    }
+
+    /**
+     * Returns <code>true</code> if all remaining bytes of the passed buffer are zero.
+     *
+     * @param buffer the buffer to check
+     * @return <code>true</code> if the buffer contains only zeros
+     */
+    private static boolean isZero(final ByteBuffer buffer) {
+        for (int i = buffer.position(); i < buffer.limit(); ++i) {
+            if (buffer.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,11 +1,9 @@
 package org.jscsi.target.connection.stage.fullfeature;
 
 import org.jscsi.exception.InternetSCSIException;
-import org.jscsi.parser.AbstractMessageParser;
 import org.jscsi.parser.BasicHeaderSegment;
 import org.jscsi.parser.ProtocolDataUnit;
 import org.jscsi.parser.data.DataOutParser;
-import org.jscsi.parser.nop.NOPOutParser;
 import org.jscsi.parser.scsi.SCSICommandParser;
 import org.jscsi.parser.scsi.SCSIResponseParser;
 import org.jscsi.parser.scsi.SCSIStatus;
@@ -15,18 +13,29 @@ import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
 import org.jscsi.target.scsi.ScsiResponseDataSegment;
 import org.jscsi.target.scsi.cdb.ScsiOperationCode;
 import org.jscsi.target.scsi.cdb.Write10Cdb;
+import org.jscsi.target.scsi.cdb.Write12Cdb;
+import org.jscsi.target.scsi.cdb.Write16Cdb;
 import org.jscsi.target.scsi.cdb.Write6Cdb;
 import org.jscsi.target.scsi.cdb.WriteCdb;
 import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.CoalescingWriter;
+import org.jscsi.target.util.BufferPool;
 import org.jscsi.target.util.Debug;
+import org.jscsi.target.util.RangeLock;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.DigestException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 /**
- * A stage for processing <code>WRITE (6)</code> and <code>WRITE (10)</code> SCSI commands.
+ * A stage for processing <code>WRITE (6)</code>, <code>WRITE (10)</code>, <code>WRITE (12)</code> and
+ * <code>WRITE (16)</code> SCSI commands.
  *
  * @author Andreas Ergenzinger
  */
@@ -35,38 +44,152 @@ public final class WriteStage extends ReadOrWriteStage {
     private static final Logger LOGGER = LoggerFactory.getLogger(WriteStage.class);
 
     /**
-     * The <code>DataSN</code> value the next Data-Out PDU must carry.
+     * The <code>DataSN</code> value the next unsolicited Data-Out PDU must carry.
      */
     private int expectedDataSequenceNumber = 0;
 
+    /**
+     * A range of the transferred data which has been requested by an R2T, or which may be sent as unsolicited data.
+     */
+    private static final class Burst {
+
+        /**
+         * The offset of the first requested byte within the transferred data.
+         */
+        final int bufferOffset;
+
+        /**
+         * The number of requested bytes.
+         */
+        final int desiredDataTransferLength;
+
+        /**
+         * The number of bytes received so far. Since <code>DataPDUInOrder</code> is always <code>Yes</code>, these are
+         * the first bytes of the burst.
+         */
+        int bytesReceived;
+
+        /**
+         * The <code>DataSN</code> value the next Data-Out PDU of the burst must carry.
+         */
+        int expectedDataSequenceNumber;
+
+        /**
+         * The Target Transfer Tag of the R2T requesting the burst.
+         */
+        int targetTransferTag;
+
+        Burst(final int bufferOffset, final int desiredDataTransferLength) {
+            this.bufferOffset = bufferOffset;
+            this.desiredDataTransferLength = desiredDataTransferLength;
+        }
+    }
+
     public WriteStage(TargetFullFeaturePhase targetFullFeaturePhase) {
         super(targetFullFeaturePhase);
     }
 
     /**
-     * Is used for checking if the PDUs received in a Data-Out sequence actually are Data-Out PDU and if the PDUs have
-     * been received in order.
+     * Stores the data segment of a SCSI Command PDU with immediate data or of a Data-Out PDU, excluding the padding.
+     * The data segment has been received into a buffer leased from the connection's {@link BufferPool}, which is
+     * released as soon as the storage module has completed the write, or as soon as the <i>writer</i> has copied it.
+     * The written range is held in the session's {@link RangeLock} during the write, so that it cannot interleave with
+     * a <code>COMPARE AND WRITE</code> command.
      *
-     * @param parser the {@link AbstractMessageParser} subclass instance retrieved from the {@link ProtocolDataUnit}'s
-     *               {@link BasicHeaderSegment}
-     * @throws InternetSCSIException if an unexpected PDU has been received
+     * @param pdu          the received PDU
+     * @param storageIndex the byte offset in the storage area
+     * @param writer       writes the data segment in the background, or <code>null</code> if it is written right away
+     * @return the number of stored bytes
+     * @throws IOException          if the data could not be stored
+     * @throws InterruptedException if the thread was interrupted while waiting for the range
      */
-    private void checkDataOutParser(final AbstractMessageParser parser) throws InternetSCSIException {
-        if (parser instanceof DataOutParser) {
-            final DataOutParser p = (DataOutParser) parser;
-            if (p.getDataSequenceNumber() != expectedDataSequenceNumber++) {
-                throw new InternetSCSIException("received erroneous PDU in data-out sequence, expected " + (expectedDataSequenceNumber - 1));
+    private int writeDataSegment(final ProtocolDataUnit pdu, final long storageIndex, final CoalescingWriter writer) throws IOException, InterruptedException {
+        final ByteBuffer dataSegment = pdu.getDataSegment();
+        final int length = pdu.getBasicHeaderSegment().getDataSegmentLength();
+        // the buffer is released below, so its position and limit may be changed instead of duplicating it
+        dataSegment.position(0).limit(length);
+        if (writer != null) {
+            writer.write(dataSegment, storageIndex);
+        } else {
+            try (RangeLock.Range range = logicalUnit.getRangeLock().lock(storageIndex, length)) {
+                logicalUnit.getStorageModule().write(dataSegment, storageIndex);
             }
-        } else if (parser instanceof NOPOutParser || parser instanceof SCSICommandParser) {
+        }
+        connection.getBufferPool().release(dataSegment);
+        return length;
+    }
 
-        } else {
-            if (parser != null) {
-                throw new InternetSCSIException("received erroneous PDU in data-out sequence, " + parser.getClass().getName());
-            } else {
-                throw new InternetSCSIException("received erroneous PDU in data-out sequence, parser is null");
+    /**
+     * Stores the data segment of a Data-Out PDU belonging to the specified burst and counts its bytes, unless they
+     * have already been received. The data segment must lie within the burst and must not leave a gap behind the data
+     * received so far.
+     *
+     * @param pdu          the Data-Out PDU
+     * @param burst        the burst the PDU belongs to
+     * @param storageIndex the byte offset of the transferred data in the storage area
+     * @param writer       writes the data segment in the background, or <code>null</code> if it is written right away
+     * @return the number of bytes received for the first time
+     * @throws InternetSCSIException if the data segment does not lie within the burst, or if it leaves a gap
+     * @throws IOException           if the data could not be stored
+     * @throws InterruptedException  if the thread was interrupted while waiting for the range
+     */
+    private int receiveDataSegment(final ProtocolDataUnit pdu, final Burst burst, final long storageIndex, final CoalescingWriter writer) throws InternetSCSIException, IOException, InterruptedException {
+        final int bufferOffset = ((DataOutParser) pdu.getBasicHeaderSegment().getParser()).getBufferOffset();
+        final long end = (long) bufferOffset + pdu.getBasicHeaderSegment().getDataSegmentLength();
+        if (bufferOffset < burst.bufferOffset || end > (long) burst.bufferOffset + burst.desiredDataTransferLength) {
+            throw new InternetSCSIException("received Data-Out PDU for bytes " + bufferOffset + " to " + end + " outside of the burst of " + burst.desiredDataTransferLength + " bytes at " + burst.bufferOffset);
+        }
+        final int receivedEnd = burst.bufferOffset + burst.bytesReceived;
+        if (bufferOffset > receivedEnd) {
+            throw new InternetSCSIException("received Data-Out PDU at buffer offset " + bufferOffset + ", expected " + receivedEnd);
+        }
+        writeDataSegment(pdu, storageIndex + bufferOffset, writer);
+        // repeated data is stored again, but must not complete the burst early
+        final int received = (int) Math.max(0, end - receivedEnd);
+        burst.bytesReceived += received;
+        return received;
+    }
+
+    /**
+     * Returns the outstanding burst requested by the R2T with the specified Target Transfer Tag.
+     *
+     * @param outstandingBursts the bursts which have been requested, but not completed yet
+     * @param targetTransferTag the Target Transfer Tag of a Data-Out PDU
+     * @return the burst, or <code>null</code> if no outstanding burst has the tag
+     */
+    private static Burst findBurst(final List<Burst> outstandingBursts, final int targetTransferTag) {
+        for (int i = 0; i < outstandingBursts.size(); ++i) {
+            final Burst burst = outstandingBursts.get(i);
+            if (burst.targetTransferTag == targetTransferTag) {
+                return burst;
             }
         }
+        return null;
+    }
 
+    /**
+     * Returns a writer collecting the data segments of a command, if write coalescing has been configured.
+     *
+     * @return the writer, or <code>null</code> if each data segment is written before the next PDU is received
+     */
+    private CoalescingWriter createWriter() {
+        final TargetServer targetServer = session == null ? null : session.getTargetServer();
+        if (targetServer == null || targetServer.getConfig().getWriteCoalescingLength() <= 0) {
+            return null;
+        }
+        return new CoalescingWriter(logicalUnit.getStorageModule(), logicalUnit.getRangeLock(), connection.getBufferPool(), targetServer.getStorageExecutor(), targetServer.getConfig().getWriteCoalescingLength());
+    }
+
+    /**
+     * Is used for checking if the unsolicited Data-Out PDUs have been received in order.
+     *
+     * @param parser the {@link DataOutParser} retrieved from the {@link ProtocolDataUnit}'s {@link BasicHeaderSegment}
+     * @throws InternetSCSIException if a Data-Out PDU has been received out of order
+     */
+    private void checkDataOutParser(final DataOutParser parser) throws InternetSCSIException {
+        if (parser.getDataSequenceNumber() != expectedDataSequenceNumber++) {
+            throw new InternetSCSIException("received erroneous PDU in data-out sequence, expected " + (expectedDataSequenceNumber - 1));
+        }
     }
 
     @Override
@@ -90,10 +213,15 @@ public final class WriteStage extends ReadOrWriteStage {
         BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
         SCSICommandParser parser = (SCSICommandParser) bhs.getParser();
         final int initiatorTaskTag = bhs.getInitiatorTaskTag();
+        final long logicalUnitNumber = parser.getLogicalUnitNumber();
         WriteCdb cdb;
         final ScsiOperationCode scsiOpCode = ScsiOperationCode.valueOf(parser.getCDB().get(0));
         if (scsiOpCode == ScsiOperationCode.WRITE_10) {
             cdb = new Write10Cdb(parser.getCDB());
+        } else if (scsiOpCode == ScsiOperationCode.WRITE_16) {
+            cdb = new Write16Cdb(parser.getCDB());
+        } else if (scsiOpCode == ScsiOperationCode.WRITE_12) {
+            cdb = new Write12Cdb(parser.getCDB());
         } else if (scsiOpCode == ScsiOperationCode.WRITE_6) {
             cdb = new Write6Cdb(parser.getCDB());
         } else {
@@ -104,10 +232,6 @@ public final class WriteStage extends ReadOrWriteStage {
         final int transferLength = cdb.getTransferLength();
         final long logicalBlockAddress = cdb.getLogicalBlockAddress();
 
-        // transform to from block units to byte units
-        final int transferLengthInBytes = transferLength * session.getStorageModule().getBlockSize();
-        long storageIndex = logicalBlockAddress * session.getStorageModule().getBlockSize();
-
         // check if requested blocks are out of bounds
         // (might add FPSKSD to the CDB's list to be detected in the next step)
         checkOverAndUnderflow(cdb);
@@ -131,129 +255,148 @@ public final class WriteStage extends ReadOrWriteStage {
             return;
         }
 
-        // *** start receiving data (or process what has already been sent) ***
-        int bytesReceived = 0;
-
-        // *** receive immediate data ***
-        if (immediateData && bhs.getDataSegmentLength() > 0) {
-            final byte[] immediateDataArray = pdu.getDataSegment().array();
-
-            session.getStorageModule().write(immediateDataArray, storageIndex);
-            bytesReceived = immediateDataArray.length;
-
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("wrote " + immediateDataArray.length + "bytes as immediate data");
+        // transform to from block units to byte units
+        // (the bounds check has made sure that the transfer length in bytes fits into an int)
+        final int transferLengthInBytes = (int) ((long) transferLength * logicalUnit.getStorageModule().getBlockSize());
+        long storageIndex = logicalBlockAddress * logicalUnit.getStorageModule().getBlockSize();
+
+        /*
+         * Unless all data arrives as immediate data, the data segments are collected and written in the background, so
+         * that receiving the next Data-Out PDU does not wait for the storage medium.
+         */
+        final CoalescingWriter writer = transferLengthInBytes > bhs.getDataSegmentLength() ? createWriter() : null;
+        try {
+            // *** start receiving data (or process what has already been sent) ***
+            int bytesReceived = 0;
+
+            // *** receive immediate data ***
+            if (immediateData && bhs.getDataSegmentLength() > 0) {
+                bytesReceived = writeDataSegment(pdu, storageIndex, writer);
+
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("wrote " + bytesReceived + "bytes as immediate data");
+                }
             }
-        }
 
-        // *** receive unsolicited data ***
-        if (!initialR2T && !bhs.isFinalFlag()) {
+            // *** receive unsolicited data ***
+            if (!initialR2T && !bhs.isFinalFlag()) {
 
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug("receiving unsolicited data");
-            }
-
-            boolean firstBurstOver = false;
-            while (!firstBurstOver && bytesReceived <= firstBurstLength) {
-                // receive and check PDU
-                pdu = connection.receivePdu();
-                bhs = pdu.getBasicHeaderSegment();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("receiving unsolicited data");
+                }
 
-                checkDataOutParser(bhs.getParser());
+                // the immediate data is the beginning of the first burst
+                final Burst firstBurst = new Burst(0, Math.min(firstBurstLength, transferLengthInBytes));
+                firstBurst.bytesReceived = bytesReceived;
+                boolean firstBurstOver = false;
+                while (!firstBurstOver && bytesReceived <= firstBurstLength) {
+                    // receive and check PDU, all other PDUs are processed once the data has been received
+                    pdu = receiveDataOutPdu();
+                    bhs = pdu.getBasicHeaderSegment();
 
-                final DataOutParser dataOutParser = (DataOutParser) bhs.getParser();
+                    checkDataOutParser((DataOutParser) bhs.getParser());
 
-                session.getStorageModule().write(pdu.getDataSegment().array(), storageIndex + dataOutParser.getBufferOffset());
-                ;
-                bytesReceived += bhs.getDataSegmentLength();
+                    bytesReceived += receiveDataSegment(pdu, firstBurst, storageIndex, writer);
 
-                if (bhs.isFinalFlag()) {
-                    firstBurstOver = true;
+                    if (bhs.isFinalFlag()) {
+                        firstBurstOver = true;
+                    }
+                    release(pdu);
                 }
             }
-        }
-
-        // *** receive solicited data ***
-        if (bytesReceived < transferLengthInBytes) {
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(bytesReceived + "<" + transferLengthInBytes);
-            }
 
-            int readyToTransferSequenceNumber = 0;
-            int desiredDataTransferLength;
+            // *** receive solicited data ***
+            if (bytesReceived < transferLengthInBytes) {
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug(bytesReceived + "<" + transferLengthInBytes);
+                }
 
-            while (bytesReceived < transferLengthInBytes) {
-                desiredDataTransferLength = Math.min(maxBurstLength, transferLengthInBytes - bytesReceived);
+                /*
+                 * Up to MaxOutstandingR2T bursts are requested at the same time, so that the initiator does not have to
+                 * wait for the next R2T after each burst. The Data-Out PDUs are assigned to their bursts by their Target
+                 * Transfer Tag, each burst numbers its Data-Out PDUs starting at 0. There are only few outstanding bursts,
+                 * which are searched by their tag, so that the tag of each Data-Out PDU does not have to be boxed.
+                 */
+                final int maxOutstandingR2T = settings.getMaxOutstandingR2T();
+                final List<Burst> outstandingBursts = new ArrayList<>(maxOutstandingR2T);
+                final Deque<Burst> incompleteBursts = new ArrayDeque<>();
+                int readyToTransferSequenceNumber = 0;
+                int bytesRequested = bytesReceived;
+
+                while (bytesReceived < transferLengthInBytes) {
+                    // send R2Ts, re-requesting the rest of incomplete bursts first
+                    while (outstandingBursts.size() < maxOutstandingR2T && (!incompleteBursts.isEmpty() || bytesRequested < transferLengthInBytes)) {
+                        Burst burst = incompleteBursts.poll();
+                        if (burst == null) {
+                            burst = new Burst(bytesRequested, Math.min(maxBurstLength, transferLengthInBytes - bytesRequested));
+                            bytesRequested += burst.desiredDataTransferLength;
+                        }
+                        final int targetTransferTag = TargetServer.getNextTargetTransferTag();
+                        pdu = TargetPduFactory.createReadyToTransferPdu(logicalUnitNumber,
+                                initiatorTaskTag, targetTransferTag,// targetTransferTag
+                                readyToTransferSequenceNumber++, burst.bufferOffset,// bufferOffset
+                                burst.desiredDataTransferLength);
+                        connection.sendPdu(pdu);
+                        burst.targetTransferTag = targetTransferTag;
+                        outstandingBursts.add(burst);
+                    }
 
-                // send R2T
-                pdu = TargetPduFactory.createReadyToTransferPdu(0,// logicalUnitNumber
-                        initiatorTaskTag, TargetServer.getNextTargetTransferTag(),// targetTransferTag
-                        readyToTransferSequenceNumber++, bytesReceived,// bufferOffset
-                        desiredDataTransferLength);
+                    // receive and check PDU, all other PDUs are processed once the data has been received
+                    pdu = receiveDataOutPdu();
+                    bhs = pdu.getBasicHeaderSegment();
 
-                connection.sendPdu(pdu);
+                    final DataOutParser dataOutParser = (DataOutParser) bhs.getParser();
+                    final Burst burst = findBurst(outstandingBursts, dataOutParser.getTargetTransferTag());
+                    if (burst == null) {
+                        throw new InternetSCSIException("received Data-Out PDU with unknown target transfer tag " + dataOutParser.getTargetTransferTag());
+                    }
+                    if (dataOutParser.getDataSequenceNumber() != burst.expectedDataSequenceNumber++) {
+                        throw new InternetSCSIException("received erroneous PDU in data-out sequence, expected " + (burst.expectedDataSequenceNumber - 1));
+                    }
 
-                // receive DataOut PDUs
-                expectedDataSequenceNumber = 0;// reset sequence counter//FIXME
-                // fix in jSCSI Initiator
-                boolean solicitedDataCycleOver = false;
-                int bytesReceivedThisCycle = 0;
-                while (!solicitedDataCycleOver) {
-                    // receive and check PDU
-                    pdu = connection.receivePdu();
-                    bhs = pdu.getBasicHeaderSegment();
-                    checkDataOutParser(bhs.getParser());
-
-                    if (bhs.getParser() instanceof NOPOutParser) {
-                        /* send SCSI Response PDU */
-                        pdu = TargetPduFactory.createSCSIResponsePdu(false,// bidirectionalReadResidualOverflow
-                                false,// bidirectionalReadResidualUnderflow
-                                false,// residualOverflow
-                                false,// residualUnderflow
-                                SCSIResponseParser.ServiceResponse.COMMAND_COMPLETED_AT_TARGET,// response
-                                SCSIStatus.GOOD,// status
-                                initiatorTaskTag, 0,// snackTag
-                                0,// (ExpDataSN or) Reserved
-                                0,// bidirectionalReadResidualCount
-                                0,// residualCount
-                                ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// dataSegment
+                    bytesReceived += receiveDataSegment(pdu, burst, storageIndex, writer);
 
-                        connection.sendPdu(pdu);
-                        return;
-                    } else if (bhs.getParser() instanceof DataOutParser) {
-                        final DataOutParser dataOutParser = (DataOutParser) bhs.getParser();
-
-                        session.getStorageModule().write(pdu.getDataSegment().array(), storageIndex + dataOutParser.getBufferOffset());
-
-                        bytesReceivedThisCycle += bhs.getDataSegmentLength();
-
-                        /*
-                         * Checking the final flag should be enough, but is not, when dealing with the jSCSI Initiator.
-                         * This is also one of the reasons, why the contents of this while loop, though very similar to
-                         * what is happening during the receiving of the unsolicited data PDU sequence, has not been put
-                         * into a dedicated method.
-                         */
-                        if (bhs.isFinalFlag() || bytesReceivedThisCycle >= desiredDataTransferLength)
-                            solicitedDataCycleOver = true;
+                    /*
+                     * Checking the final flag should be enough, but is not, when dealing with the jSCSI Initiator.
+                     */
+                    if (bhs.isFinalFlag() || burst.bytesReceived >= burst.desiredDataTransferLength) {
+                        outstandingBursts.remove(burst);
+                        if (burst.bytesReceived < burst.desiredDataTransferLength) {
+                            incompleteBursts.add(new Burst(burst.bufferOffset + burst.bytesReceived, burst.desiredDataTransferLength - burst.bytesReceived));
+                        }
                     }
+                    release(pdu);
                 }
-                bytesReceived += bytesReceivedThisCycle;
             }
-        }
 
-        /* send SCSI Response PDU */
-        pdu = TargetPduFactory.createSCSIResponsePdu(false,// bidirectionalReadResidualOverflow
-                false,// bidirectionalReadResidualUnderflow
-                false,// residualOverflow
-                false,// residualUnderflow
-                SCSIResponseParser.ServiceResponse.COMMAND_COMPLETED_AT_TARGET,// response
-                SCSIStatus.GOOD,// status
-                initiatorTaskTag, 0,// snackTag
-                0,// (ExpDataSN or) Reserved
-                0,// bidirectionalReadResidualCount
-                0,// residualCount
-                ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// dataSegment
-
-        connection.sendPdu(pdu);
+            // the status must not be sent before all data has been written
+            if (writer != null) {
+                writer.flush();
+            }
+
+            // with a volatile write cache, FUA writes have to be made durable before returning status
+            if (cdb.getForceUnitAccess() && logicalUnit.getStorageModule().getCapabilities().hasVolatileWriteCache()) {
+                logicalUnit.getStorageModule().flush();
+            }
+
+            /* send SCSI Response PDU */
+            pdu = TargetPduFactory.createSCSIResponsePdu(false,// bidirectionalReadResidualOverflow
+                    false,// bidirectionalReadResidualUnderflow
+                    false,// residualOverflow
+                    false,// residualUnderflow
+                    SCSIResponseParser.ServiceResponse.COMMAND_COMPLETED_AT_TARGET,// response
+                    SCSIStatus.GOOD,// status
+                    initiatorTaskTag, 0,// snackTag
+                    0,// (ExpDataSN or) Reserved
+                    0,// bidirectionalReadResidualCount
+                    0,// residualCount
+                    ScsiResponseDataSegment.EMPTY_DATA_SEGMENT);// dataSegment
+
+            connection.sendPdu(pdu);
+        } finally {
+            if (writer != null) {
+                writer.close();
+            }
+        }
     }
 }
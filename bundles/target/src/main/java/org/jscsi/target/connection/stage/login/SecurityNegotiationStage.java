@@ -129,7 +129,7 @@ public final class SecurityNegotiationStage extends TargetLoginStage {
                     }
 
                     // send reply (sequence), set transit bit of last PDU
-                    LOGGER.info("send pdu with SECURITY_NEGOTIATION stage");
+                    LOGGER.debug("send pdu with SECURITY_NEGOTIATION stage");
                     sendPduSequence(responseString, requestedNextStageNumber);
 
                     // leave this (and proceed to next) stage
@@ -0,0 +1,402 @@
+package org.jscsi.target.connection.trace;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records the Basic Header Segments of the PDUs sent and received by the connections of a target, so that the recent
+ * traffic can be inspected when something went wrong, without logging every PDU.
+ * <p>
+ * All memory is allocated when the recorder is created. Recording a PDU serializes its BHS into the next slot of a
+ * ring buffer without taking a lock, so that connections do not contend with each other. Once the ring buffer is full,
+ * the oldest records are overwritten. A record which is overwritten while the records are being read is skipped.
+ * <p>
+ * The records can be listed with {@link #dump()} or written to a pcap file with {@link #exportPcap(String)}. Since
+ * only the headers are recorded, each PDU is exported as a TCP segment which has been truncated after the BHS, so that
+ * Wireshark shows the iSCSI header fields, but no data segments. The IP addresses are made up, the connections are
+ * told apart by the port of the initiator.
+ */
+public final class PduFlightRecorder implements PduFlightRecorderMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PduFlightRecorder.class);
+
+    /**
+     * The domain and type of the names under which recorders are registered.
+     */
+    private static final String OBJECT_NAME_PREFIX = "org.jscsi.target:type=PduFlightRecorder,port=";
+
+    /**
+     * The maximum number of records.
+     */
+    private static final int MAXIMUM_CAPACITY = 1 << 24;
+
+    private static final int BHS_SIZE = BasicHeaderSegment.BHS_FIXED_SIZE;
+
+    /**
+     * The number of longs of a slot in {@link #slots}: the timestamp, the connection and the words of the BHS.
+     */
+    private static final int SLOT_SIZE = 2 + BHS_SIZE / 8;
+
+    /**
+     * The link type of pcap files containing raw IPv4 packets without a link layer header.
+     */
+    private static final int LINKTYPE_RAW = 101;
+
+    /**
+     * The magic number of pcap files with timestamps in nanoseconds.
+     */
+    private static final int PCAP_MAGIC_NANOSECONDS = 0xa1b23c4d;
+
+    /**
+     * The length of the IPv4 and TCP headers preceding each exported BHS.
+     */
+    private static final int IP_AND_TCP_HEADER_SIZE = 40;
+
+    private static final int INITIATOR_ADDRESS = 0x0a000001;// 10.0.0.1
+
+    private static final int TARGET_ADDRESS = 0x0a000002;// 10.0.0.2
+
+    private static final int TARGET_PORT = 3260;
+
+    /**
+     * Selects the slot of a record from its sequence number.
+     */
+    private final int mask;
+
+    /**
+     * The records, {@link #SLOT_SIZE} longs each: the value of {@link System#nanoTime()} when the PDU was recorded, the
+     * number of its connection shifted left by one, with the lowest bit set for received PDUs, and its serialized BHS.
+     * <p>
+     * The slots are written and read like a sequence lock. Their words are accessed atomically, so that the writes of
+     * a record are ordered after the invalidation of its stamp, and its reads before the stamp is checked again.
+     */
+    private final AtomicLongArray slots;
+
+    /**
+     * The sequence number of each record plus one, or zero while the slot is being written.
+     */
+    private final AtomicLongArray stamps;
+
+    private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+    private final AtomicInteger nextConnectionNumber = new AtomicInteger();
+
+    /**
+     * Each thread serializes the BHS into a buffer of its own, before it is copied into {@link #slots}.
+     */
+    private final ThreadLocal<ByteBuffer> headerBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(BHS_SIZE));
+
+    /**
+     * The wall-clock time in milliseconds at {@link #originNanos}, used for converting the timestamps.
+     */
+    private final long originMillis = System.currentTimeMillis();
+
+    private final long originNanos = System.nanoTime();
+
+    private volatile boolean enabled = true;
+
+    /**
+     * Creates a recorder keeping the given number of PDUs, rounded up to the next power of two.
+     *
+     * @param capacity the minimum number of PDUs to keep
+     */
+    public PduFlightRecorder(final int capacity) {
+        if (capacity < 1 || capacity > MAXIMUM_CAPACITY) {
+            throw new IllegalArgumentException("capacity out of range: " + capacity);
+        }
+        final int size = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        mask = size - 1;
+        slots = new AtomicLongArray(size * SLOT_SIZE);
+        stamps = new AtomicLongArray(size);
+    }
+
+    /**
+     * Returns the number identifying the next connection in the records.
+     *
+     * @return a new connection number
+     */
+    public int nextConnectionNumber() {
+        return nextConnectionNumber.getAndIncrement() & 0x3fff;
+    }
+
+    /**
+     * Records a PDU. Must be called after the sequence numbers of a PDU to be sent have been set.
+     *
+     * @param connectionNumber the number of the connection, see {@link #nextConnectionNumber()}
+     * @param received         <code>true</code> if the PDU has been received from the initiator, <code>false</code> if
+     *                         it has been sent to the initiator
+     * @param pdu              the PDU
+     */
+    public void record(final int connectionNumber, final boolean received, final ProtocolDataUnit pdu) {
+        if (!enabled) {
+            return;
+        }
+        final long sequenceNumber = nextSequenceNumber.getAndIncrement();
+        final int slot = (int) sequenceNumber & mask;
+        final ByteBuffer header = headerBuffers.get();
+        // the slot must be invalid before any of its content is overwritten
+        stamps.set(slot, 0);
+        try {
+            pdu.getBasicHeaderSegment().serialize(header, 0);
+        } catch (InternetSCSIException | RuntimeException e) {
+            // leave the slot invalid, recording must not disturb the connection
+            return;
+        }
+        final int index = slot * SLOT_SIZE;
+        slots.lazySet(index, System.nanoTime());
+        slots.lazySet(index + 1, connectionNumber << 1 | (received ? 1 : 0));
+        for (int i = 2; i < SLOT_SIZE; ++i) {
+            slots.lazySet(index + i, header.getLong((i - 2) * 8));
+        }
+        stamps.lazySet(slot, sequenceNumber + 1);
+    }
+
+    @Override
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    @Override
+    public long getRecordedCount() {
+        return nextSequenceNumber.get();
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(final boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public String[] dump() {
+        final List<Record> records = snapshot();
+        final String[] lines = new String[records.size()];
+        for (int i = 0; i < lines.length; ++i) {
+            lines[i] = records.get(i).toString();
+        }
+        return lines;
+    }
+
+    @Override
+    public void exportPcap(final String fileName) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(fileName))) {
+            writePcap(out);
+        }
+    }
+
+    /**
+     * Writes the recorded PDUs in the pcap format, each as a raw IPv4 packet with a TCP segment truncated after the
+     * BHS. The TCP sequence numbers advance by the length of the whole PDU, excluding digests.
+     *
+     * @param out the stream to write to
+     * @throws IOException if the stream could not be written
+     */
+    public void writePcap(final OutputStream out) throws IOException {
+        final DataOutputStream pcap = new DataOutputStream(out);
+        pcap.writeInt(PCAP_MAGIC_NANOSECONDS);
+        pcap.writeShort(2);// major version
+        pcap.writeShort(4);// minor version
+        pcap.writeInt(0);// time zone
+        pcap.writeInt(0);// accuracy of timestamps
+        pcap.writeInt(65535);// snapshot length
+        pcap.writeInt(LINKTYPE_RAW);
+
+        // the next TCP sequence number of each connection, initiator to target and target to initiator
+        final Map<Integer, int[]> tcpSequenceNumbers = new HashMap<>();
+        for (final Record record : snapshot()) {
+            final int[] sequenceNumbers = tcpSequenceNumbers.computeIfAbsent(record.connectionNumber, key -> new int[2]);
+            final int direction = record.received ? 0 : 1;
+            final int pduLength = record.getPduLength();
+            final int packetLength = IP_AND_TCP_HEADER_SIZE + Math.min(pduLength, 65535 - IP_AND_TCP_HEADER_SIZE);
+            final int initiatorPort = 49152 + record.connectionNumber;
+
+            // record header
+            final long wallNanos = record.getWallClockNanos();
+            pcap.writeInt((int) (wallNanos / 1000000000L));
+            pcap.writeInt((int) (wallNanos % 1000000000L));
+            pcap.writeInt(IP_AND_TCP_HEADER_SIZE + BHS_SIZE);// captured length
+            pcap.writeInt(packetLength);// original length
+
+            // IPv4 header
+            final int sourceAddress = record.received ? INITIATOR_ADDRESS : TARGET_ADDRESS;
+            final int destinationAddress = record.received ? TARGET_ADDRESS : INITIATOR_ADDRESS;
+            final int[] ipHeader = { 0x4500 /* version, IHL */, packetLength, 0 /* identification */, 0x4000 /* DF */, 0x4006 /* TTL, TCP */, 0 /* checksum */, sourceAddress >>> 16, sourceAddress & 0xffff, destinationAddress >>> 16, destinationAddress & 0xffff };
+            ipHeader[5] = checksum(ipHeader);
+            for (final int word : ipHeader) {
+                pcap.writeShort(word);
+            }
+
+            // TCP header
+            pcap.writeShort(record.received ? initiatorPort : TARGET_PORT);
+            pcap.writeShort(record.received ? TARGET_PORT : initiatorPort);
+            pcap.writeInt(sequenceNumbers[direction]);
+            pcap.writeInt(sequenceNumbers[1 - direction]);// acknowledgment number
+            pcap.writeShort(0x5018);// data offset, ACK and PSH
+            pcap.writeShort(65535);// window
+            pcap.writeShort(0);// checksum, not verified by default
+            pcap.writeShort(0);// urgent pointer
+
+            pcap.write(record.header);
+            sequenceNumbers[direction] += pduLength;
+        }
+        pcap.flush();
+    }
+
+    /**
+     * Registers this recorder with the platform MBean server. Failures are logged, since the target works without
+     * being monitored.
+     *
+     * @param port the port of the target, which distinguishes the recorders of several targets in the same JVM
+     */
+    public void register(final int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME_PREFIX + port));
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register the PDU flight recorder: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Unregisters this recorder from the platform MBean server.
+     *
+     * @param port the port the recorder has been registered with
+     */
+    public void unregister(final int port) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(OBJECT_NAME_PREFIX + port));
+        } catch (JMException e) {
+            LOGGER.debug("Unable to unregister the PDU flight recorder: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Copies the valid records, the oldest first.
+     *
+     * @return the records
+     */
+    private List<Record> snapshot() {
+        final long end = nextSequenceNumber.get();
+        final long start = Math.max(0, end - getCapacity());
+        final List<Record> records = new ArrayList<>((int) (end - start));
+        for (long sequenceNumber = start; sequenceNumber < end; ++sequenceNumber) {
+            final int slot = (int) sequenceNumber & mask;
+            if (stamps.get(slot) != sequenceNumber + 1) {
+                continue;// being written, or already overwritten
+            }
+            final int index = slot * SLOT_SIZE;
+            final byte[] header = new byte[BHS_SIZE];
+            final ByteBuffer words = ByteBuffer.wrap(header);
+            for (int i = 2; i < SLOT_SIZE; ++i) {
+                words.putLong(slots.get(index + i));
+            }
+            final Record record = new Record(slots.get(index), (int) slots.get(index + 1), header);
+            // the content has been read before the stamp is checked again, since all reads are volatile
+            if (stamps.get(slot) == sequenceNumber + 1) {
+                records.add(record);
+            }
+        }
+        return records;
+    }
+
+    private static int checksum(final int[] words) {
+        int sum = 0;
+        for (final int word : words) {
+            sum += word & 0xffff;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return ~sum & 0xffff;
+    }
+
+    /**
+     * A copy of a recorded PDU.
+     */
+    private final class Record {
+
+        private final long timestamp;
+
+        private final int connectionNumber;
+
+        private final boolean received;
+
+        private final ByteBuffer bhs;
+
+        private final byte[] header;
+
+        Record(final long timestamp, final int connection, final byte[] header) {
+            this.timestamp = timestamp;
+            this.connectionNumber = connection >>> 1;
+            this.received = (connection & 1) != 0;
+            this.header = header;
+            this.bhs = ByteBuffer.wrap(header);
+        }
+
+        long getWallClockNanos() {
+            return originMillis * 1000000L + (timestamp - originNanos);
+        }
+
+        int getDataSegmentLength() {
+            return bhs.getInt(4) & 0xffffff;
+        }
+
+        /**
+         * Returns the length of the PDU on the wire, without digests.
+         */
+        int getPduLength() {
+            return BHS_SIZE + (bhs.get(4) & 255) * 4 + (getDataSegmentLength() + 3 & ~3);
+        }
+
+        @Override
+        public String toString() {
+            final OperationCode opCode = OperationCode.valueOf((byte) (bhs.get(0) & 0x3f));
+            final StringBuilder builder = new StringBuilder(128);
+            builder.append(Instant.ofEpochSecond(0, getWallClockNanos()));
+            builder.append(" connection ").append(connectionNumber);
+            builder.append(received ? " received " : " sent ");
+            builder.append(opCode == null ? String.format("0x%02x", bhs.get(0) & 0x3f) : opCode.name());
+            builder.append(String.format(" ITT 0x%08x", bhs.getInt(16)));
+            if (received) {
+                builder.append(" CmdSN ").append(Integer.toUnsignedString(bhs.getInt(24)));
+                builder.append(" ExpStatSN ").append(Integer.toUnsignedString(bhs.getInt(28)));
+            } else {
+                builder.append(" StatSN ").append(Integer.toUnsignedString(bhs.getInt(24)));
+                builder.append(" ExpCmdSN ").append(Integer.toUnsignedString(bhs.getInt(28)));
+                builder.append(" MaxCmdSN ").append(Integer.toUnsignedString(bhs.getInt(32)));
+            }
+            if (opCode == OperationCode.SCSI_COMMAND) {
+                builder.append(String.format(" CDB 0x%02x", bhs.get(32) & 255));
+                builder.append(" EDTL ").append(Integer.toUnsignedString(bhs.getInt(20)));
+            }
+            builder.append(" DSL ").append(getDataSegmentLength());
+            return builder.toString();
+        }
+    }
+}
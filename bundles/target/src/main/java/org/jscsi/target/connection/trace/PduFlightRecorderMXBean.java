@@ -0,0 +1,55 @@
+package org.jscsi.target.connection.trace;
+
+import java.io.IOException;
+
+/**
+ * The management interface of {@link PduFlightRecorder}, which allows the recently sent and received PDUs to be
+ * inspected via JMX.
+ */
+public interface PduFlightRecorderMXBean {
+
+    /**
+     * Returns the number of PDUs kept by the recorder.
+     *
+     * @return the capacity of the ring buffer
+     */
+    int getCapacity();
+
+    /**
+     * Returns the number of PDUs recorded since the recorder was created, including the ones which have already been
+     * overwritten.
+     *
+     * @return the number of recorded PDUs
+     */
+    long getRecordedCount();
+
+    /**
+     * Returns whether PDUs are being recorded.
+     *
+     * @return <code>true</code> if PDUs are recorded
+     */
+    boolean isEnabled();
+
+    /**
+     * Starts or stops recording PDUs.
+     *
+     * @param enabled <code>true</code> to record PDUs
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * Returns one line per recorded PDU, the oldest first, with its timestamp, connection, direction, opcode,
+     * Initiator Task Tag, sequence numbers and lengths.
+     *
+     * @return the recorded PDUs
+     */
+    String[] dump();
+
+    /**
+     * Writes the recorded PDUs to a pcap file, which can be opened with Wireshark.
+     *
+     * @param fileName the name of the file to write
+     * @throws IOException if the file could not be written
+     */
+    void exportPcap(String fileName) throws IOException;
+}
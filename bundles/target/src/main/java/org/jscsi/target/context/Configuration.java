@@ -3,10 +3,15 @@ package org.jscsi.target.context;
 
 import org.jscsi.target.scsi.lun.LogicalUnitNumber;
 import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.storage.FileChannelStorageModule;
 import org.jscsi.target.storage.IStorageModule;
 import org.jscsi.target.storage.JCloudsStorageModule;
+import org.jscsi.target.storage.MappedStorageModule;
 import org.jscsi.target.storage.RandomAccessStorageModule;
 import org.jscsi.target.storage.SynchronizedRandomAccessStorageModule;
+import org.jscsi.target.storage.cache.CachingStorageModule;
+import org.jscsi.target.storage.cache.EvictionPolicy;
+import org.jscsi.target.util.BufferPool;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.w3c.dom.Node;
@@ -57,15 +62,45 @@ public class Configuration {
     public static final String ELEMENT_SYNCFILESTORAGE = "SyncFileStorage";
     public static final String ELEMENT_ASYNCFILESTORAGE = "AsyncFileStorage";
     public static final String ELEMENT_JCLOUDSSTORAGE = "JCloudsStorage";
+    public static final String ELEMENT_FILECHANNELSTORAGE = "FileChannelStorage";
+    public static final String ELEMENT_MAPPEDSTORAGE = "MappedStorage";
     public static final String ELEMENT_FILESTORAGE = "FileStorage";
     public static final String ELEMENT_CREATE = "Create";
+    public static final String ELEMENT_BLOCK_SIZE = "BlockSize";
+    public static final String ATTRIBUTE_PHYSICAL = "physical";
+    public static final String ELEMENT_WRITE_BACK = "WriteBack";
     public static final String ATTRIBUTE_SIZE = "size";
+    public static final String ELEMENT_PAGE_CACHE = "PageCache";
+    public static final String ATTRIBUTE_CAPACITY = "capacity";
+    public static final String ATTRIBUTE_PAGE_SIZE = "pageSize";
+    public static final String ATTRIBUTE_SHARDS = "shards";
+    public static final String ATTRIBUTE_POLICY = "policy";
+    public static final String ATTRIBUTE_READ_AHEAD = "readAhead";
+    public static final String ELEMENT_LOGICAL_UNIT = "LogicalUnit";
+    public static final String ATTRIBUTE_NUMBER = "number";
+    public static final String ATTRIBUTE_WORKERS = "workers";
+
+    // Page cache defaults, the capacity in MiB
+    private static final long DEFAULT_PAGE_CACHE_CAPACITY = 256;
+    private static final long DEFAULT_PAGE_SIZE = 65536;
+    private static final long DEFAULT_PAGE_CACHE_SHARDS = 16;
+    private static final long DEFAULT_READ_AHEAD_PAGES = 8;
 
     // Global configuration elements
     public static final String ELEMENT_ALLOWSLOPPYNEGOTIATION = "AllowSloppyNegotiation";
     public static final String ELEMENT_PORT = "Port";
     public static final String ELEMENT_EXTERNAL_PORT = "ExternalPort";
     public static final String ELEMENT_EXTERNAL_ADDRESS = "ExternalAddress";
+    public static final String ELEMENT_COMMAND_WINDOW = "CommandWindow";
+    public static final String ELEMENT_MAX_CONNECTIONS = "MaxConnections";
+    public static final String ELEMENT_CONNECTION_MODE = "ConnectionMode";
+    public static final String ELEMENT_SELECTOR_THREADS = "SelectorThreads";
+    public static final String ELEMENT_DATA_IN_MODE = "DataInMode";
+    public static final String ELEMENT_FLIGHT_RECORDER_CAPACITY = "FlightRecorderCapacity";
+    public static final String ELEMENT_READ_PREFETCH_DEPTH = "ReadPrefetchDepth";
+    public static final String ELEMENT_WRITE_COALESCING_LENGTH = "WriteCoalescingLength";
+    public static final String ELEMENT_BUFFER_POOL_CAPACITY = "BufferPoolCapacity";
+    public static final String ELEMENT_PARALLEL_DIGEST_THRESHOLD = "ParallelDigestThreshold";
 
     // --------------------------------------------------------------------------
     // --------------------------------------------------------------------------
@@ -128,6 +163,88 @@ public class Configuration {
     protected boolean allowSloppyNegotiation;// TODO fix in jSCSI Initiator and
     // remove
 
+    /**
+     * The number of commands an initiator may send in a session without having to wait for previous commands to
+     * finish, i.e. the difference between <code>MaxCmdSN</code> and <code>ExpCmdSN</code> plus one while no commands
+     * are outstanding.
+     * <p>
+     * The default value is 1, which means that each command has to finish before the next one may be issued. This
+     * value may be overridden by specifying a different value in the configuration file.
+     */
+    protected int commandWindowSize = 1;
+
+    /**
+     * The highest number of connections the target offers to accept within a single session, i.e. the upper bound of
+     * the negotiated <code>MaxConnections</code> parameter.
+     * <p>
+     * The default value is 1, which means that sessions cannot be extended by additional connections. This value may
+     * be overridden by specifying a different value in the configuration file.
+     */
+    protected int maxConnections = 1;
+
+    /**
+     * Determines how connections are served, either by a dedicated thread each or by a reactor.
+     * <p>
+     * The default is {@link ConnectionMode#THREAD_PER_CONNECTION}. This value may be overridden by specifying a
+     * different value in the configuration file.
+     */
+    protected ConnectionMode connectionMode = ConnectionMode.THREAD_PER_CONNECTION;
+
+    /**
+     * The number of selector threads used by the reactor if {@link #connectionMode} is {@link ConnectionMode#REACTOR}.
+     * <p>
+     * Defaults to the number of available processors.
+     */
+    protected int selectorThreads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Determines how the data segments of Data-In PDUs are written to the connections.
+     * <p>
+     * The default is {@link DataInMode#COPY}. This value may be overridden by specifying a different value in the
+     * configuration file.
+     */
+    protected DataInMode dataInMode = DataInMode.COPY;
+
+    /**
+     * The number of recently sent and received PDUs kept by the
+     * {@link org.jscsi.target.connection.trace.PduFlightRecorder}, or <code>0</code> if PDUs are not recorded.
+     * <p>
+     * Defaults to 4096.
+     */
+    protected int flightRecorderCapacity = 4096;
+
+    /**
+     * The number of data segments a <code>READ</code> command reads from storage in advance, while the previous data
+     * segment is sent to the initiator, or <code>0</code> if reading and sending alternate.
+     * <p>
+     * Defaults to 1.
+     */
+    protected int readPrefetchDepth = 1;
+
+    /**
+     * The maximum number of contiguous bytes a <code>WRITE</code> command collects from successive Data-Out PDUs
+     * before they are written to storage, while the next PDUs are received, or <code>0</code> if each data segment is
+     * written before the next PDU is received.
+     * <p>
+     * Defaults to 262144.
+     */
+    protected int writeCoalescingLength = 256 * 1024;
+
+    /**
+     * The maximum number of bytes of direct buffers kept for receiving write data, shared by all connections.
+     * <p>
+     * Defaults to 67108864.
+     */
+    protected long bufferPoolCapacity = BufferPool.DEFAULT_CAPACITY;
+
+    /**
+     * The minimum length of a data segment whose <code>CRC32C</code> digest is calculated by several threads, or
+     * <code>0</code> if digests are always calculated by the thread sending or receiving the PDU.
+     * <p>
+     * Defaults to 0.
+     */
+    protected int parallelDigestThreshold = 0;
+
     /**
      * The <code>TargetPortalGroupTag</code> parameter.
      */
@@ -197,6 +314,46 @@ public class Configuration {
         return port;
     }
 
+    public int getCommandWindowSize() {
+        return commandWindowSize;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public ConnectionMode getConnectionMode() {
+        return connectionMode;
+    }
+
+    public int getSelectorThreads() {
+        return selectorThreads;
+    }
+
+    public DataInMode getDataInMode() {
+        return dataInMode;
+    }
+
+    public int getFlightRecorderCapacity() {
+        return flightRecorderCapacity;
+    }
+
+    public int getReadPrefetchDepth() {
+        return readPrefetchDepth;
+    }
+
+    public int getWriteCoalescingLength() {
+        return writeCoalescingLength;
+    }
+
+    public long getBufferPoolCapacity() {
+        return bufferPoolCapacity;
+    }
+
+    public int getParallelDigestThreshold() {
+        return parallelDigestThreshold;
+    }
+
     public boolean getAllowSloppyNegotiation() {
         return allowSloppyNegotiation;
     }
@@ -294,6 +451,74 @@ public class Configuration {
         }
 
 
+        // command window
+        NodeList commandWindowTags = root.getElementsByTagName(ELEMENT_COMMAND_WINDOW);
+        if (commandWindowTags.getLength() > 0) {
+            returnConfiguration.commandWindowSize = Integer.parseInt(commandWindowTags.item(0).getTextContent().trim());
+        } else {
+            returnConfiguration.commandWindowSize = 1;
+        }
+
+        // maximum number of connections per session
+        NodeList maxConnectionsTags = root.getElementsByTagName(ELEMENT_MAX_CONNECTIONS);
+        if (maxConnectionsTags.getLength() > 0) {
+            returnConfiguration.maxConnections = Integer.parseInt(maxConnectionsTags.item(0).getTextContent().trim());
+        } else {
+            returnConfiguration.maxConnections = 1;
+        }
+
+        // connection mode
+        NodeList connectionModeTags = root.getElementsByTagName(ELEMENT_CONNECTION_MODE);
+        if (connectionModeTags.getLength() > 0) {
+            returnConfiguration.connectionMode = ConnectionMode.getConnectionMode(connectionModeTags.item(0).getTextContent().trim());
+        } else {
+            returnConfiguration.connectionMode = ConnectionMode.THREAD_PER_CONNECTION;
+        }
+
+        // selector threads
+        NodeList selectorThreadsTags = root.getElementsByTagName(ELEMENT_SELECTOR_THREADS);
+        if (selectorThreadsTags.getLength() > 0) {
+            returnConfiguration.selectorThreads = Integer.parseInt(selectorThreadsTags.item(0).getTextContent().trim());
+        }
+
+        // Data-In mode
+        NodeList dataInModeTags = root.getElementsByTagName(ELEMENT_DATA_IN_MODE);
+        if (dataInModeTags.getLength() > 0) {
+            returnConfiguration.dataInMode = DataInMode.getDataInMode(dataInModeTags.item(0).getTextContent().trim());
+        } else {
+            returnConfiguration.dataInMode = DataInMode.COPY;
+        }
+
+        // PDU flight recorder
+        NodeList flightRecorderCapacityTags = root.getElementsByTagName(ELEMENT_FLIGHT_RECORDER_CAPACITY);
+        if (flightRecorderCapacityTags.getLength() > 0) {
+            returnConfiguration.flightRecorderCapacity = Integer.parseInt(flightRecorderCapacityTags.item(0).getTextContent().trim());
+        }
+
+        // Data-In read-ahead
+        NodeList readPrefetchDepthTags = root.getElementsByTagName(ELEMENT_READ_PREFETCH_DEPTH);
+        if (readPrefetchDepthTags.getLength() > 0) {
+            returnConfiguration.readPrefetchDepth = Integer.parseInt(readPrefetchDepthTags.item(0).getTextContent().trim());
+        }
+
+        // Data-Out write-behind
+        NodeList writeCoalescingLengthTags = root.getElementsByTagName(ELEMENT_WRITE_COALESCING_LENGTH);
+        if (writeCoalescingLengthTags.getLength() > 0) {
+            returnConfiguration.writeCoalescingLength = Integer.parseInt(writeCoalescingLengthTags.item(0).getTextContent().trim());
+        }
+
+        // buffers for write data
+        NodeList bufferPoolCapacityTags = root.getElementsByTagName(ELEMENT_BUFFER_POOL_CAPACITY);
+        if (bufferPoolCapacityTags.getLength() > 0) {
+            returnConfiguration.bufferPoolCapacity = Long.parseLong(bufferPoolCapacityTags.item(0).getTextContent().trim());
+        }
+
+        // digests of large data segments
+        NodeList parallelDigestThresholdTags = root.getElementsByTagName(ELEMENT_PARALLEL_DIGEST_THRESHOLD);
+        if (parallelDigestThresholdTags.getLength() > 0) {
+            returnConfiguration.parallelDigestThreshold = Integer.parseInt(parallelDigestThresholdTags.item(0).getTextContent().trim());
+        }
+
         // support sloppy text parameter negotiation (i.e. the jSCSI Initiator)?
         final Node allowSloppyNegotiationNode = root.getElementsByTagName(ELEMENT_ALLOWSLOPPYNEGOTIATION).item(0);
         if (allowSloppyNegotiationNode == null) {
@@ -322,6 +547,43 @@ public class Configuration {
             nextNode = chopWhiteSpaces(nextNode.getNextSibling());
         }
 
+        // Either a single storage, which becomes logical unit 0, or a list of LogicalUnit elements
+        if (!ELEMENT_LOGICAL_UNIT.equals(nextNode.getLocalName())) {
+            return new Target(targetName, targetAlias, parseStorageElement(nextNode, targetName));
+        }
+        final List<LogicalUnit> logicalUnits = new ArrayList<>();
+        try {
+            while (nextNode != null && ELEMENT_LOGICAL_UNIT.equals(nextNode.getLocalName())) {
+                final int number = (int) getAttribute(nextNode, ATTRIBUTE_NUMBER, 0);
+                final int workers = (int) getAttribute(nextNode, ATTRIBUTE_WORKERS, 0);
+                final IStorageModule module = parseStorageElement(chopWhiteSpaces(nextNode.getFirstChild()), targetName + "/" + number);
+                logicalUnits.add(new LogicalUnit(number, module, workers));
+                nextNode = chopWhiteSpaces(nextNode.getNextSibling());
+            }
+            return new Target(targetName, targetAlias, logicalUnits);
+        } catch (IOException | RuntimeException e) {
+            for (final LogicalUnit unit : logicalUnits) {
+                try {
+                    unit.getStorageModule().close();
+                } catch (IOException closeException) {
+                    e.addSuppressed(closeException);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the storage module described by a storage element of the configuration.
+     *
+     * @param storageElement the storage element, e.g. <code>AsyncFileStorage</code>
+     * @param statisticsName the name under which the statistics of a page cache are registered
+     * @return the storage module
+     * @throws IOException if the storage module could not be opened
+     */
+    private static IStorageModule parseStorageElement(final Node storageElement, final String statisticsName) throws IOException {
+        Node nextNode = storageElement;
+
         // Finding out the concrete storage
         Class<? extends IStorageModule> kind = null;
         switch (nextNode.getLocalName()) {
@@ -334,6 +596,12 @@ public class Configuration {
             case ELEMENT_JCLOUDSSTORAGE:
                 kind = JCloudsStorageModule.class;
                 break;
+            case ELEMENT_FILECHANNELSTORAGE:
+                kind = FileChannelStorageModule.class;
+                break;
+            case ELEMENT_MAPPEDSTORAGE:
+                kind = MappedStorageModule.class;
+                break;
         }
 
         // Getting storagepath
@@ -354,9 +622,48 @@ public class Configuration {
             create = false;
             // assert nextNode.getLocalName().equals(ELEMENT_DONTCREATE);
         }
-        final IStorageModule module = RandomAccessStorageModule.open(new File(storageFilePath), storageLength, create, kind);
 
-        return new Target(targetName, targetAlias, module);
+        // BlockSize with optional physical block size (optional)
+        nextNode = chopWhiteSpaces(nextNode.getNextSibling());
+        int blockSize = 512;
+        int physicalBlockSize = 512;
+        if (nextNode != null && ELEMENT_BLOCK_SIZE.equals(nextNode.getLocalName())) {
+            blockSize = Integer.parseInt(nextNode.getTextContent().trim());
+            physicalBlockSize = (int) getAttribute(nextNode, ATTRIBUTE_PHYSICAL, blockSize);
+            nextNode = chopWhiteSpaces(nextNode.getNextSibling());
+        }
+
+        // WriteBack (optional)
+        boolean writeBack = false;
+        if (nextNode != null && ELEMENT_WRITE_BACK.equals(nextNode.getLocalName())) {
+            writeBack = Boolean.parseBoolean(nextNode.getTextContent().trim());
+            nextNode = chopWhiteSpaces(nextNode.getNextSibling());
+        }
+        IStorageModule module = RandomAccessStorageModule.open(new File(storageFilePath), storageLength, create, kind, writeBack, blockSize, physicalBlockSize);
+
+        // PageCache (optional)
+        if (nextNode != null && ELEMENT_PAGE_CACHE.equals(nextNode.getLocalName())) {
+            final CachingStorageModule cache = new CachingStorageModule(module,// module
+                    getAttribute(nextNode, ATTRIBUTE_CAPACITY, DEFAULT_PAGE_CACHE_CAPACITY) << 20,// capacity
+                    (int) getAttribute(nextNode, ATTRIBUTE_PAGE_SIZE, DEFAULT_PAGE_SIZE),// pageSize
+                    (int) getAttribute(nextNode, ATTRIBUTE_SHARDS, DEFAULT_PAGE_CACHE_SHARDS),// shards
+                    getEvictionPolicy(nextNode),// policy
+                    (int) getAttribute(nextNode, ATTRIBUTE_READ_AHEAD, DEFAULT_READ_AHEAD_PAGES));// readAheadPages
+            cache.getStatistics().register(statisticsName);
+            module = cache;
+        }
+
+        return module;
+    }
+
+    private static long getAttribute(final Node node, final String name, final long defaultValue) {
+        final Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? defaultValue : Long.parseLong(attribute.getTextContent().trim());
+    }
+
+    private static EvictionPolicy getEvictionPolicy(final Node node) {
+        final Node attribute = node.getAttributes().getNamedItem(ATTRIBUTE_POLICY);
+        return attribute == null ? EvictionPolicy.LRU : EvictionPolicy.valueOf(attribute.getTextContent().trim());
     }
 
     private static Node chopWhiteSpaces(final Node node) {
@@ -0,0 +1,59 @@
+package org.jscsi.target.context;
+
+/**
+ * The {@link ConnectionMode} determines how the jSCSI Target reads from and writes to the connections of its
+ * initiators.
+ */
+public enum ConnectionMode {
+
+    /**
+     * Every connection is served by its own thread, which blocks while waiting for the next PDU. This is the default.
+     */
+    THREAD_PER_CONNECTION("ThreadPerConnection"),
+    /**
+     * A small, fixed number of selector threads reads PDUs from all connections without blocking and hands complete
+     * PDUs over to a pool of worker threads. Idle connections do not occupy a thread.
+     */
+    REACTOR("Reactor"),
+    /**
+     * Every connection is served by its own virtual thread, so that idle connections only occupy a small amount of
+     * heap memory instead of a platform thread. Requires a Java runtime supporting virtual threads, otherwise
+     * connections will be served by platform threads just like with {@link #THREAD_PER_CONNECTION}.
+     */
+    VIRTUAL_THREAD("VirtualThread");
+
+    /**
+     * The connection mode as specified in the configuration file.
+     */
+    private final String value;
+
+    /**
+     * The constructor.
+     *
+     * @param value the connection mode as specified in the configuration file
+     */
+    private ConnectionMode(final String value) {
+        this.value = value;
+    }
+
+    public final String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns a {@link ConnectionMode} based on the <i>value</i> used in the configuration file. If there is no such
+     * mode, the method will return <code>null</code>.
+     *
+     * @param value the connection mode as specified in the configuration file
+     * @return the specified {@link ConnectionMode} or <code>null</code>
+     */
+    public static ConnectionMode getConnectionMode(final String value) {
+        final ConnectionMode[] values = values();
+        for (ConnectionMode m : values) {
+            if (m.value.equals(value)) {
+                return m;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,60 @@
+package org.jscsi.target.context;
+
+/**
+ * The {@link DataInMode} determines how the data segments of Data-In PDUs are transferred from the storage medium to
+ * the initiator's connection.
+ */
+public enum DataInMode {
+
+    /**
+     * The data segment is read into a byte array, which is copied into a buffer containing the whole serialized PDU.
+     * This is the default.
+     */
+    COPY("Copy"),
+    /**
+     * The data segment is read into a byte array, which is written to the connection together with the separately
+     * serialized header segments and digests by a single gathering write, i.e. without being copied again.
+     */
+    GATHERING("Gathering"),
+    /**
+     * If the storage medium is backed by a file, data segments are transferred from the file to the connection by
+     * <code>FileChannel.transferTo</code>, allowing the operating system to avoid copying the data into user space.
+     * Otherwise this mode is equivalent to {@link #GATHERING}.
+     */
+    TRANSFER_TO("TransferTo");
+
+    /**
+     * The Data-In mode as specified in the configuration file.
+     */
+    private final String value;
+
+    /**
+     * The constructor.
+     *
+     * @param value the Data-In mode as specified in the configuration file
+     */
+    private DataInMode(final String value) {
+        this.value = value;
+    }
+
+    public final String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns a {@link DataInMode} based on the <i>value</i> used in the configuration file. If there is no such mode,
+     * the method will return <code>null</code>.
+     *
+     * @param value the Data-In mode as specified in the configuration file
+     * @return the specified {@link DataInMode} or <code>null</code>
+     */
+    public static DataInMode getDataInMode(final String value) {
+        final DataInMode[] values = values();
+        for (DataInMode m : values) {
+            if (m.value.equals(value)) {
+                return m;
+            }
+        }
+        return null;
+    }
+}
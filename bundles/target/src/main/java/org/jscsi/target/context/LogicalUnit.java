@@ -0,0 +1,82 @@
+package org.jscsi.target.context;
+
+
+import org.jscsi.target.scsi.lun.LogicalUnitNumber;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.IStorageModule;
+import org.jscsi.target.storage.StorageModuleAdapter;
+import org.jscsi.target.util.RangeLock;
+
+
+/**
+ * A logical unit of a {@link Target}, which is backed by its own {@link IStorageModule}.
+ * <p>
+ * Each session executes the commands addressed to a logical unit in a queue of its own, served by at most
+ * {@link #getWorkers()} threads, so that commands to a slow logical unit do not delay the commands to the other ones.
+ */
+public class LogicalUnit {
+
+    /**
+     * The number of the logical unit, which is encoded in the LUN field of the commands addressed to it.
+     */
+    private final int number;
+
+    private final IPositionalStorageModule storageModule;
+
+    /**
+     * Serializes writes to overlapping ranges of the storage module, across all sessions.
+     */
+    private final RangeLock rangeLock = new RangeLock();
+
+    /**
+     * The maximum number of commands to this logical unit which are executed concurrently within a session, or zero
+     * if only the command window limits their number.
+     */
+    private final int workers;
+
+    public LogicalUnit(final int number, final IStorageModule storageModule) {
+        this(number, storageModule, 0);
+    }
+
+    public LogicalUnit(final int number, final IStorageModule storageModule, final int workers) {
+        if (number < 0 || number > LogicalUnitNumber.MAXIMUM_NUMBER) {
+            throw new IllegalArgumentException("logical unit number out of range: " + number);
+        }
+        if (workers < 0) {
+            throw new IllegalArgumentException("number of workers must not be negative: " + workers);
+        }
+        this.number = number;
+        this.storageModule = StorageModuleAdapter.adapt(storageModule);
+        this.workers = workers;
+    }
+
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * Returns the LUN addressing this logical unit, as reported by the <code>REPORT LUNS</code> command.
+     *
+     * @return the LUN addressing this logical unit
+     */
+    public LogicalUnitNumber getLogicalUnitNumber() {
+        return new LogicalUnitNumber(LogicalUnitNumber.encode(number));
+    }
+
+    public IPositionalStorageModule getStorageModule() {
+        return storageModule;
+    }
+
+    public RangeLock getRangeLock() {
+        return rangeLock;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public String toString() {
+        return "LogicalUnit[" + number + "]";
+    }
+}
@@ -1,11 +1,19 @@
 package org.jscsi.target.context;
 
 
+import org.jscsi.target.storage.IPositionalStorageModule;
 import org.jscsi.target.storage.IStorageModule;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 
 /**
- * One Target exists per iSCSI named target. Holds onto the name and the {@link IStorageModule}
+ * One Target exists per iSCSI named target. Holds onto the name and the {@link LogicalUnit}s, each of which has an
+ * {@link IStorageModule} of its own
  *
  * @author David L. Smith-Uchida
  * <p>
@@ -16,12 +24,44 @@ import org.jscsi.target.storage.IStorageModule;
 public class Target {
     private final String targetName;
     private final String targetAlias;
-    private final IStorageModule storageModule;
 
+    /**
+     * The logical units of the target, ordered by their numbers.
+     */
+    private final List<LogicalUnit> logicalUnits;
+
+    /**
+     * Creates a target with a single logical unit, number zero.
+     *
+     * @param targetName    the name of the target
+     * @param targetAlias   the alias of the target
+     * @param storageModule the storage module of the logical unit
+     */
     public Target(String targetName, String targetAlias, IStorageModule storageModule) {
+        this(targetName, targetAlias, Collections.singletonList(new LogicalUnit(0, storageModule)));
+    }
+
+    /**
+     * Creates a target with several logical units.
+     *
+     * @param targetName   the name of the target
+     * @param targetAlias  the alias of the target
+     * @param logicalUnits the logical units, which must have distinct numbers
+     */
+    public Target(String targetName, String targetAlias, List<LogicalUnit> logicalUnits) {
+        if (logicalUnits.isEmpty()) {
+            throw new IllegalArgumentException("target " + targetName + " has no logical units");
+        }
+        final List<LogicalUnit> sorted = new ArrayList<>(logicalUnits);
+        sorted.sort(Comparator.comparingInt(LogicalUnit::getNumber));
+        for (int i = 1; i < sorted.size(); ++i) {
+            if (sorted.get(i).getNumber() == sorted.get(i - 1).getNumber()) {
+                throw new IllegalArgumentException("target " + targetName + " has two logical units " + sorted.get(i).getNumber());
+            }
+        }
         this.targetName = targetName;
         this.targetAlias = targetAlias;
-        this.storageModule = storageModule;
+        this.logicalUnits = Collections.unmodifiableList(sorted);
     }
 
     public String getTargetName() {
@@ -32,8 +72,61 @@ public class Target {
         return targetAlias;
     }
 
-    public IStorageModule getStorageModule() {
-        return storageModule;
+    /**
+     * Returns the storage module of the logical unit with the lowest number, which is the only one of targets created
+     * with a single storage module.
+     *
+     * @return the storage module of the first logical unit
+     */
+    public IPositionalStorageModule getStorageModule() {
+        return logicalUnits.get(0).getStorageModule();
+    }
+
+    /**
+     * Returns the logical units of the target, ordered by their numbers.
+     *
+     * @return the logical units of the target
+     */
+    public List<LogicalUnit> getLogicalUnits() {
+        return logicalUnits;
+    }
+
+    /**
+     * Returns the logical unit with the given number.
+     *
+     * @param number the number of the logical unit
+     * @return the logical unit, or <code>null</code> if the target has no logical unit with that number
+     */
+    public LogicalUnit getLogicalUnit(final int number) {
+        for (final LogicalUnit logicalUnit : logicalUnits) {
+            if (logicalUnit.getNumber() == number) {
+                return logicalUnit;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Closes the storage modules of all logical units. All modules are closed even if closing one of them fails.
+     *
+     * @throws IOException if any of the modules could not be closed
+     */
+    public void close() throws IOException {
+        IOException failure = null;
+        for (final LogicalUnit logicalUnit : logicalUnits) {
+            try {
+                logicalUnit.getStorageModule().close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     @Override
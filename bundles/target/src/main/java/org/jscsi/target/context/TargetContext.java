@@ -3,9 +3,11 @@ package org.jscsi.target.context;
 import org.jscsi.target.connection.TargetConnection;
 import org.jscsi.target.connection.TargetSession;
 import org.jscsi.target.connection.TargetSessionManager;
+import org.jscsi.target.connection.trace.PduFlightRecorder;
 import org.jscsi.target.context.Configuration;
 import org.jscsi.target.context.Target;
 import org.jscsi.target.scsi.inquiry.DeviceIdentificationVpdPage;
+import org.jscsi.target.util.BufferPool;
 
 /**
  * @author wangyue1
@@ -17,6 +19,20 @@ public interface TargetContext {
 
     DeviceIdentificationVpdPage getDeviceIdentificationVpdPage();
 
+    /**
+     * Returns the recorder of the PDUs sent and received by the connections.
+     *
+     * @return the flight recorder, or <code>null</code> if PDUs are not recorded
+     */
+    PduFlightRecorder getFlightRecorder();
+
+    /**
+     * Returns the pool of direct buffers shared by the connections.
+     *
+     * @return the buffer pool
+     */
+    BufferPool getBufferPool();
+
     TargetSessionManager getSessionManager();
 
     boolean isValidTargetName(String checkTargetName);
@@ -0,0 +1,75 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>COMPARE AND WRITE</code> SCSI command, which requests
+ * that the logical blocks are only written if they contain the verify data sent along with the write data.
+ * <p>
+ * The jSCSI Target does not support protection information, so a non-zero WRPROTECT field results in an illegal field
+ * pointer, as does a NUMBER OF LOGICAL BLOCKS field exceeding {@link #MAXIMUM_NUMBER_OF_LOGICAL_BLOCKS}.
+ */
+public class CompareAndWriteCdb extends CommandDescriptorBlock {
+
+    /**
+     * The MAXIMUM COMPARE AND WRITE LENGTH reported in the Block Limits VPD page. The verify and the write data are
+     * kept in memory as a whole, so the limit is low, but sufficient for the single logical block which is compared and
+     * written by clustered file systems.
+     */
+    public static final int MAXIMUM_NUMBER_OF_LOGICAL_BLOCKS = 16;
+
+    /**
+     * The FUA bit.
+     */
+    private final boolean forceUnitAccess;
+
+    /**
+     * The LOGICAL BLOCK ADDRESS field specifies the LBA of the first logical block to be compared and written.
+     */
+    private final long logicalBlockAddress;
+
+    /**
+     * The NUMBER OF LOGICAL BLOCKS field specifies the number of logical blocks to be compared and written. The
+     * Data-Out buffer contains twice as many logical blocks, the verify data followed by the write data. A value of zero
+     * is not an error, no logical blocks are compared or written.
+     */
+    private final int numberOfLogicalBlocks;
+
+    /**
+     * The GROUP NUMBER field.
+     */
+    private final int groupNumber;
+
+    public CompareAndWriteCdb(final ByteBuffer buffer) {
+        super(buffer);
+        final byte b = buffer.get(1);
+        forceUnitAccess = BitManip.getBit(b, 3);
+        logicalBlockAddress = buffer.getLong(2);
+        numberOfLogicalBlocks = buffer.get(13) & 255;
+        groupNumber = buffer.get(14) & 31;
+
+        // WRPROTECT
+        if ((b & 0xe0) != 0) addIllegalFieldPointer(1, 7);
+        if (numberOfLogicalBlocks > MAXIMUM_NUMBER_OF_LOGICAL_BLOCKS) addIllegalFieldPointer(13);
+    }
+
+    public final boolean getForceUnitAccess() {
+        return forceUnitAccess;
+    }
+
+    public final long getLogicalBlockAddress() {
+        return logicalBlockAddress;
+    }
+
+    public final int getNumberOfLogicalBlocks() {
+        return numberOfLogicalBlocks;
+    }
+
+    public final int getGroupNumber() {
+        return groupNumber;
+    }
+}
@@ -0,0 +1,35 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>EXTENDED COPY (LID1)</code> SCSI command, which
+ * requests that the target copies logical blocks between its logical units as described in the transferred parameter
+ * list, without passing the data through the initiator.
+ * <p>
+ * Only the LID1 form is supported, a SERVICE ACTION other than zero results in an illegal field pointer.
+ */
+public class ExtendedCopyCdb extends CommandDescriptorBlock {
+
+    /**
+     * The PARAMETER LIST LENGTH field specifies the length in bytes of the parameter list that is transferred from the
+     * initiator. A value of zero specifies that no data shall be transferred and nothing shall be copied.
+     */
+    private final long parameterListLength;
+
+    public ExtendedCopyCdb(ByteBuffer buffer) {
+        super(buffer);
+        parameterListLength = ReadWrite.readUnsignedInt(buffer, 10);
+
+        // SERVICE ACTION
+        if ((buffer.get(1) & 31) != 0) addIllegalFieldPointer(1, 4);
+    }
+
+    public long getParameterListLength() {
+        return parameterListLength;
+    }
+}
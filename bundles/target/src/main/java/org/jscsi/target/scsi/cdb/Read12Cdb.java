@@ -0,0 +1,118 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>READ (12)</code> SCSI command.
+ * <p>
+ * Apart from its four-byte TRANSFER LENGTH field, which allows a single command to read up to 4,294,967,295 logical
+ * blocks, the <code>READ (12)</code> command is identical to the <code>READ (10)</code> command.
+ * <p>
+ * Transfer lengths which exceed {@link Integer#MAX_VALUE} are returned as negative values, so that they will be
+ * rejected by the bounds check.
+ *
+ * @see Read10Cdb
+ */
+public final class Read12Cdb extends ReadCdb {
+
+    /**
+     * The value of the RDPROTECT field.
+     *
+     * @see Read10Cdb#getReadProtect()
+     */
+    private final int readProtect;
+
+    /**
+     * The value of the DPO bit.
+     *
+     * @see Read10Cdb#disablePageOut()
+     */
+    private final boolean disablePageOut;
+
+    /**
+     * The value of the FUA bit.
+     *
+     * @see Read10Cdb#getForceUnitAccess()
+     */
+    private final boolean forceUnitAccess;
+
+    /**
+     * The value of the FUA_NV bit.
+     *
+     * @see Read10Cdb#getForceUnitAccessNonVolatile()
+     */
+    private final boolean forceUnitAccessNonVolatileCache;
+
+    /**
+     * The value of the GROUP NUMBER field.
+     *
+     * @see Read10Cdb#getGroupNumber()
+     */
+    private final int groupNumber;
+
+    public Read12Cdb(final ByteBuffer buffer) {
+        super(buffer);// OPERATION CODE + CONTROL
+
+        // RDPROTECT
+        byte b = buffer.get(1);
+        readProtect = (b >> 5) & 7;
+
+        // DPO
+        disablePageOut = BitManip.getBit(b, 4);
+
+        // FUA
+        forceUnitAccess = BitManip.getBit(b, 3);
+
+        // FUA_NV
+        forceUnitAccessNonVolatileCache = BitManip.getBit(b, 1);
+
+        // GROUP NUMBER
+        b = buffer.get(10);
+        groupNumber = b & 31;
+    }
+
+    @Override
+    protected long deserializeLogicalBlockAddress(ByteBuffer buffer) {
+        return ReadWrite.readUnsignedInt(buffer, 2);
+    }
+
+    @Override
+    protected int deserializeTransferLength(ByteBuffer buffer) {
+        return buffer.getInt(6);
+    }
+
+    public int getReadProtect() {
+        return readProtect;
+    }
+
+    public boolean disablePageOut() {
+        return disablePageOut;
+    }
+
+    public boolean getForceUnitAccess() {
+        return forceUnitAccess;
+    }
+
+    public boolean getForceUnitAccessNonVolatile() {
+        return forceUnitAccessNonVolatileCache;
+    }
+
+    public int getGroupNumber() {
+        return groupNumber;
+    }
+
+    @Override
+    protected int getLogicalBlockAddressFieldIndex() {
+        return 2;
+    }
+
+    @Override
+    protected int getTransferLengthFieldIndex() {
+        return 6;
+    }
+}
@@ -10,6 +10,8 @@ import java.nio.ByteBuffer;
  * @author Andreas Ergenzinger
  * @see Read6Cdb
  * @see Read10Cdb
+ * @see Read12Cdb
+ * @see Read16Cdb
  */
 public abstract class ReadCdb extends ReadOrWriteCdb {
 
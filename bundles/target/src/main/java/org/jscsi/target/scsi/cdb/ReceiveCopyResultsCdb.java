@@ -0,0 +1,39 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>RECEIVE COPY RESULTS</code> SCSI command.
+ * <p>
+ * Since <code>EXTENDED COPY</code> commands are completed before status is returned, there are no results of copies
+ * in progress to report. Only the OPERATING PARAMETERS service action is supported, any other one results in an illegal
+ * field pointer.
+ */
+public class ReceiveCopyResultsCdb extends CommandDescriptorBlock {
+
+    /**
+     * The SERVICE ACTION requesting the copy manager's operating parameters.
+     */
+    private static final int OPERATING_PARAMETERS = 0x03;
+
+    /**
+     * The ALLOCATION LENGTH field specifies the maximum number of bytes the initiator has allocated for returned data.
+     */
+    private final long allocationLength;
+
+    public ReceiveCopyResultsCdb(ByteBuffer buffer) {
+        super(buffer);
+        allocationLength = ReadWrite.readUnsignedInt(buffer, 10);
+
+        // SERVICE ACTION
+        if ((buffer.get(1) & 31) != OPERATING_PARAMETERS) addIllegalFieldPointer(1, 4);
+    }
+
+    public long getAllocationLength() {
+        return allocationLength;
+    }
+}
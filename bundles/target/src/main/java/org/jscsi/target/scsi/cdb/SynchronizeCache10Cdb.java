@@ -0,0 +1,27 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>SYNCHRONIZE CACHE (10)</code> SCSI command.
+ */
+public class SynchronizeCache10Cdb extends SynchronizeCacheCdb {
+
+    public SynchronizeCache10Cdb(ByteBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    protected long deserializeLogicalBlockAddress(ByteBuffer buffer) {
+        return ReadWrite.readUnsignedInt(buffer, 2);
+    }
+
+    @Override
+    protected long deserializeNumberOfLogicalBlocks(ByteBuffer buffer) {
+        return ReadWrite.readTwoByteInt(buffer, 7);
+    }
+}
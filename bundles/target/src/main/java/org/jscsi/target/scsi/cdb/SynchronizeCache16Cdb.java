@@ -0,0 +1,27 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>SYNCHRONIZE CACHE (16)</code> SCSI command.
+ */
+public class SynchronizeCache16Cdb extends SynchronizeCacheCdb {
+
+    public SynchronizeCache16Cdb(ByteBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    protected long deserializeLogicalBlockAddress(ByteBuffer buffer) {
+        return buffer.getLong(2);
+    }
+
+    @Override
+    protected long deserializeNumberOfLogicalBlocks(ByteBuffer buffer) {
+        return ReadWrite.readUnsignedInt(buffer, 10);
+    }
+}
@@ -0,0 +1,55 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This is an abstract super-class for command descriptor blocks of the <code>SYNCHRONIZE CACHE</code> SCSI commands,
+ * which request that data in the write cache of the logical unit is made durable.
+ */
+public abstract class SynchronizeCacheCdb extends CommandDescriptorBlock {
+
+    /**
+     * An immediate (IMMED) bit set to zero specifies that the device server shall return status after the operation
+     * has been completed. An IMMED bit set to one specifies that the device server shall return status as soon as the
+     * CDB has been validated. The jSCSI Target always completes the operation before returning status.
+     */
+    private final boolean immediate;
+
+    /**
+     * The LOGICAL BLOCK ADDRESS field specifies the LBA of the first logical block to be synchronized.
+     */
+    private final long logicalBlockAddress;
+
+    /**
+     * The NUMBER OF LOGICAL BLOCKS field specifies the number of logical blocks to be synchronized. A value of zero
+     * specifies that all logical blocks starting with {@link #logicalBlockAddress} shall be synchronized.
+     */
+    private final long numberOfLogicalBlocks;
+
+    public SynchronizeCacheCdb(final ByteBuffer buffer) {
+        super(buffer);
+        immediate = BitManip.getBit(buffer.get(1), 1);
+        logicalBlockAddress = deserializeLogicalBlockAddress(buffer);
+        numberOfLogicalBlocks = deserializeNumberOfLogicalBlocks(buffer);
+    }
+
+    protected abstract long deserializeLogicalBlockAddress(ByteBuffer buffer);
+
+    protected abstract long deserializeNumberOfLogicalBlocks(ByteBuffer buffer);
+
+    public final boolean getImmediate() {
+        return immediate;
+    }
+
+    public final long getLogicalBlockAddress() {
+        return logicalBlockAddress;
+    }
+
+    public final long getNumberOfLogicalBlocks() {
+        return numberOfLogicalBlocks;
+    }
+}
@@ -0,0 +1,37 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>UNMAP</code> SCSI command, which requests that the
+ * ranges of logical blocks listed in the transferred parameter list are unmapped.
+ * <p>
+ * The jSCSI Target does not support anchored logical blocks, setting the ANCHOR bit results in an illegal field
+ * pointer.
+ */
+public class UnmapCdb extends CommandDescriptorBlock {
+
+    /**
+     * The PARAMETER LIST LENGTH field specifies the length in bytes of the parameter list that is transferred from the
+     * initiator. A value of zero specifies that no data shall be transferred and that no logical blocks shall be
+     * unmapped.
+     */
+    private final int parameterListLength;
+
+    public UnmapCdb(ByteBuffer buffer) {
+        super(buffer);
+        parameterListLength = ReadWrite.readTwoByteInt(buffer, 7);
+
+        // ANCHOR
+        if (BitManip.getBit(buffer.get(1), 0)) addIllegalFieldPointer(1, 0);
+    }
+
+    public int getParameterListLength() {
+        return parameterListLength;
+    }
+}
@@ -143,6 +143,7 @@ public class Write10Cdb extends WriteCdb {
         return disablePageOut;
     }
 
+    @Override
     public boolean getForceUnitAccess() {
         return forceUnitAccess;
     }
@@ -0,0 +1,119 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>WRITE (16)</code> SCSI command.
+ * <p>
+ * The <code>WRITE (16)</code> command differs from the <code>WRITE (10)</code> command by its eight-byte LOGICAL BLOCK
+ * ADDRESS field, which is required for addressing media with more than 4,294,967,295 logical blocks, and its four-byte
+ * TRANSFER LENGTH field.
+ * <p>
+ * Logical block addresses which exceed {@link Long#MAX_VALUE} and transfer lengths which exceed
+ * {@link Integer#MAX_VALUE} are returned as negative values, so that they will be rejected by the bounds check.
+ *
+ * @see Write10Cdb
+ */
+public final class Write16Cdb extends WriteCdb {
+
+    /**
+     * The value of the WRPROTECT field.
+     *
+     * @see Write10Cdb#getWriteProtect()
+     */
+    private final int writeProtect;
+
+    /**
+     * The value of the DPO bit.
+     *
+     * @see Write10Cdb#disablePageOut()
+     */
+    private final boolean disablePageOut;
+
+    /**
+     * The value of the FUA bit.
+     *
+     * @see Write10Cdb#getForceUnitAccess()
+     */
+    private final boolean forceUnitAccess;
+
+    /**
+     * The value of the FUA_NV bit.
+     *
+     * @see Write10Cdb#getForceUnitAccessNonVolatile()
+     */
+    private final boolean forceUnitAccessNonVolatileCache;
+
+    /**
+     * The value of the GROUP NUMBER field.
+     *
+     * @see Write10Cdb#getGroupNumber()
+     */
+    private final int groupNumber;
+
+    public Write16Cdb(final ByteBuffer buffer) {
+        super(buffer);// OPERATION CODE + CONTROL
+
+        // WRPROTECT
+        byte b = buffer.get(1);
+        writeProtect = (b >> 5) & 7;
+
+        // DPO
+        disablePageOut = BitManip.getBit(b, 4);
+
+        // FUA
+        forceUnitAccess = BitManip.getBit(b, 3);
+
+        // FUA_NV
+        forceUnitAccessNonVolatileCache = BitManip.getBit(b, 1);
+
+        // GROUP NUMBER
+        b = buffer.get(14);
+        groupNumber = b & 31;
+    }
+
+    @Override
+    protected long deserializeLogicalBlockAddress(ByteBuffer buffer) {
+        return buffer.getLong(2);
+    }
+
+    @Override
+    protected int deserializeTransferLength(ByteBuffer buffer) {
+        return buffer.getInt(10);
+    }
+
+    public int getWriteProtect() {
+        return writeProtect;
+    }
+
+    public boolean disablePageOut() {
+        return disablePageOut;
+    }
+
+    @Override
+    public boolean getForceUnitAccess() {
+        return forceUnitAccess;
+    }
+
+    public boolean getForceUnitAccessNonVolatile() {
+        return forceUnitAccessNonVolatileCache;
+    }
+
+    public int getGroupNumber() {
+        return groupNumber;
+    }
+
+    @Override
+    protected int getLogicalBlockAddressFieldIndex() {
+        return 2;
+    }
+
+    @Override
+    protected int getTransferLengthFieldIndex() {
+        return 10;
+    }
+}
@@ -10,6 +10,8 @@ import java.nio.ByteBuffer;
  * @author Andreas Ergenzinger
  * @see Write6Cdb
  * @see Write10Cdb
+ * @see Write12Cdb
+ * @see Write16Cdb
  */
 public abstract class WriteCdb extends ReadOrWriteCdb {
 
@@ -17,4 +19,14 @@ public abstract class WriteCdb extends ReadOrWriteCdb {
         super(buffer);
     }
 
+    /**
+     * Returns the value of the FUA (force unit access) bit. If it is set, the written data has to be durable before
+     * status is returned. Command descriptor blocks without a FUA bit return <code>false</code>.
+     *
+     * @return the value of the FUA bit
+     */
+    public boolean getForceUnitAccess() {
+        return false;
+    }
+
 }
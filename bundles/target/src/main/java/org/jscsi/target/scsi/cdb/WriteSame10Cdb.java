@@ -0,0 +1,27 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>WRITE SAME (10)</code> SCSI command.
+ */
+public class WriteSame10Cdb extends WriteSameCdb {
+
+    public WriteSame10Cdb(ByteBuffer buffer) {
+        super(buffer);
+    }
+
+    @Override
+    protected long deserializeLogicalBlockAddress(ByteBuffer buffer) {
+        return ReadWrite.readUnsignedInt(buffer, 2);
+    }
+
+    @Override
+    protected long deserializeNumberOfLogicalBlocks(ByteBuffer buffer) {
+        return ReadWrite.readTwoByteInt(buffer, 7);
+    }
+}
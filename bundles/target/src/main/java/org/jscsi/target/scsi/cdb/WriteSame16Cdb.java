@@ -0,0 +1,41 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This class represents Command Descriptor Blocks for the <code>WRITE SAME (16)</code> SCSI command.
+ */
+public class WriteSame16Cdb extends WriteSameCdb {
+
+    /**
+     * The value of the NDOB bit.
+     *
+     * @see WriteSameCdb#getNoDataOutBuffer()
+     */
+    private final boolean noDataOutBuffer;
+
+    public WriteSame16Cdb(ByteBuffer buffer) {
+        super(buffer);
+        noDataOutBuffer = BitManip.getBit(buffer.get(1), 0);
+    }
+
+    @Override
+    protected long deserializeLogicalBlockAddress(ByteBuffer buffer) {
+        return buffer.getLong(2);
+    }
+
+    @Override
+    protected long deserializeNumberOfLogicalBlocks(ByteBuffer buffer) {
+        return ReadWrite.readUnsignedInt(buffer, 10);
+    }
+
+    @Override
+    public boolean getNoDataOutBuffer() {
+        return noDataOutBuffer;
+    }
+}
@@ -0,0 +1,77 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import org.jscsi.target.util.BitManip;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * This is an abstract super-class for command descriptor blocks of the <code>WRITE SAME</code> SCSI commands, which
+ * request that a single logical block of data is written to a range of logical blocks, or that the range is unmapped.
+ * <p>
+ * The jSCSI Target does not support anchored logical blocks and the obsolete PBDATA and LBDATA bits, setting any of
+ * them results in an illegal field pointer.
+ *
+ * @see WriteSame10Cdb
+ * @see WriteSame16Cdb
+ */
+public abstract class WriteSameCdb extends CommandDescriptorBlock {
+
+    /**
+     * The value of the UNMAP bit. If it is set, the logical blocks may be unmapped instead of being written, provided
+     * that they are read as the transferred logical block afterwards.
+     */
+    private final boolean unmap;
+
+    /**
+     * The LOGICAL BLOCK ADDRESS field specifies the LBA of the first logical block to be written.
+     */
+    private final long logicalBlockAddress;
+
+    /**
+     * The NUMBER OF LOGICAL BLOCKS field specifies the number of logical blocks to be written. A value of zero specifies
+     * that all logical blocks starting with {@link #logicalBlockAddress} shall be written.
+     */
+    private final long numberOfLogicalBlocks;
+
+    public WriteSameCdb(final ByteBuffer buffer) {
+        super(buffer);
+        final byte b = buffer.get(1);
+        unmap = BitManip.getBit(b, 3);
+        logicalBlockAddress = deserializeLogicalBlockAddress(buffer);
+        numberOfLogicalBlocks = deserializeNumberOfLogicalBlocks(buffer);
+
+        // ANCHOR
+        if (BitManip.getBit(b, 4)) addIllegalFieldPointer(1, 4);
+        // PBDATA and LBDATA
+        if (BitManip.getBit(b, 2)) addIllegalFieldPointer(1, 2);
+        if (BitManip.getBit(b, 1)) addIllegalFieldPointer(1, 1);
+    }
+
+    protected abstract long deserializeLogicalBlockAddress(ByteBuffer buffer);
+
+    protected abstract long deserializeNumberOfLogicalBlocks(ByteBuffer buffer);
+
+    public final boolean getUnmap() {
+        return unmap;
+    }
+
+    public final long getLogicalBlockAddress() {
+        return logicalBlockAddress;
+    }
+
+    public final long getNumberOfLogicalBlocks() {
+        return numberOfLogicalBlocks;
+    }
+
+    /**
+     * Returns the value of the NDOB (no Data-Out buffer) bit. If it is set, no data is transferred and the logical
+     * blocks are written with zeros. Command descriptor blocks without a NDOB bit return <code>false</code>.
+     *
+     * @return the value of the NDOB bit
+     */
+    public boolean getNoDataOutBuffer() {
+        return false;
+    }
+}
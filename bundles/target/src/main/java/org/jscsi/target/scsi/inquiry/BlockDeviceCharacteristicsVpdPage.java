@@ -0,0 +1,67 @@
+package org.jscsi.target.scsi.inquiry;
+
+
+import org.jscsi.target.scsi.IResponseData;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The Block Device Characteristics VPD page describes the medium of the logical unit.
+ * <p>
+ * Since the jSCSI Target does not know which kind of medium its storage modules are kept on, the MEDIUM ROTATION RATE,
+ * PRODUCT TYPE and NOMINAL FORM FACTOR fields are set to "not reported". The FUAB bit is set, since the FUA bit of
+ * write commands and the SYNCHRONIZE CACHE command make the written data durable on the medium.
+ * <p>
+ * This class uses the singleton pattern since the content of this page will never change.
+ */
+public final class BlockDeviceCharacteristicsVpdPage implements IResponseData {
+
+    /**
+     * The length of the page in bytes.
+     */
+    private static final int SIZE = 64;
+
+    /**
+     * Identifies this page as a BLOCK DEVICE CHARACTERISTICS VPD page.
+     */
+    private static final byte PAGE_CODE = (byte) 0xb1;
+
+    /**
+     * The position of the byte containing the FUAB and VBULS bits.
+     */
+    private static final int FUAB_FIELD_INDEX = 8;
+
+    /**
+     * The singleton.
+     */
+    private static final BlockDeviceCharacteristicsVpdPage INSTANCE = new BlockDeviceCharacteristicsVpdPage();
+
+    /**
+     * Returns the singleton.
+     *
+     * @return the singleton
+     */
+    public static BlockDeviceCharacteristicsVpdPage getInstance() {
+        return INSTANCE;
+    }
+
+    private BlockDeviceCharacteristicsVpdPage() {
+        // private due to singleton pattern
+    }
+
+    public void serialize(ByteBuffer byteBuffer, int index) {
+        // PERIPHERAL QUALIFIER and PERIPHERAL DEVICE TYPE, direct access block device
+        byteBuffer.put(index, (byte) 0);
+        byteBuffer.put(index + 1, PAGE_CODE);
+        ReadWrite.writeTwoByteInt(byteBuffer, SIZE - 4, index + 2);// PAGE LENGTH
+
+        // MEDIUM ROTATION RATE, PRODUCT TYPE and NOMINAL FORM FACTOR (bytes 4 to 7) are not reported
+        byteBuffer.put(index + FUAB_FIELD_INDEX, (byte) 0x02);// FUAB
+    }
+
+    public int size() {
+        return SIZE;
+    }
+}
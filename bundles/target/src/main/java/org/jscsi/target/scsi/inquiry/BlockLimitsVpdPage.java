@@ -0,0 +1,123 @@
+package org.jscsi.target.scsi.inquiry;
+
+
+import org.jscsi.target.scsi.IResponseData;
+import org.jscsi.target.scsi.cdb.CompareAndWriteCdb;
+import org.jscsi.target.scsi.unmap.UnmapParameterList;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.StorageCapabilities;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The Block Limits VPD page tells the initiator how to size its read and write commands, i.e. how many logical blocks
+ * a single command may transfer, and how many it should transfer for the best performance.
+ * <p>
+ * All lengths are given in logical blocks. A value of zero means that the respective limit is not reported.
+ */
+public final class BlockLimitsVpdPage implements IResponseData {
+
+    /**
+     * The length of the page in bytes.
+     */
+    private static final int SIZE = 64;
+
+    /**
+     * Identifies this page as a BLOCK LIMITS VPD page.
+     */
+    private static final byte PAGE_CODE = (byte) 0xb0;
+
+    /**
+     * The maximum number of logical blocks written by a single <code>WRITE SAME</code> command, which is limited by the
+     * four-byte NUMBER OF LOGICAL BLOCKS field of <code>WRITE SAME (16)</code>.
+     */
+    private static final long MAXIMUM_WRITE_SAME_LENGTH = 0xffffffffL;
+
+    /**
+     * The granularity of the optimal transfer length, so that no physical block is written only partially.
+     */
+    private final int optimalTransferLengthGranularity;
+
+    /**
+     * The maximum transfer length of a single command.
+     */
+    private final int maximumTransferLength;
+
+    /**
+     * The transfer length which is best handled by the storage module and the connection.
+     */
+    private final int optimalTransferLength;
+
+    /**
+     * The maximum number of logical blocks which may be unmapped by a single command.
+     */
+    private final int maximumUnmapLbaCount;
+
+    /**
+     * The maximum number of UNMAP block descriptors in a single command.
+     */
+    private final int maximumUnmapBlockDescriptorCount;
+
+    /**
+     * The granularity of unmapped ranges.
+     */
+    private final int optimalUnmapGranularity;
+
+    /**
+     * Creates the Block Limits VPD page describing the given storage module.
+     * <p>
+     * Transfers should cover whole physical blocks. The optimal transfer length is the module's preferred transfer
+     * size or, if it has none, the negotiated MaxBurstLength, so that a write can be solicited with a single R2T. The
+     * maximum transfer length is limited by the length in bytes of a single command's data, which must fit into an
+     * <code>int</code>.
+     *
+     * @param storageModule  the storage module accessed by the initiator
+     * @param maxBurstLength the negotiated value of MaxBurstLength
+     */
+    public BlockLimitsVpdPage(final IPositionalStorageModule storageModule, final int maxBurstLength) {
+        final StorageCapabilities capabilities = storageModule.getCapabilities();
+        final int blockSize = storageModule.getBlockSize();
+
+        optimalTransferLengthGranularity = storageModule.getPhysicalBlockSize() / blockSize;
+        maximumTransferLength = Integer.MAX_VALUE / blockSize;
+
+        final int optimalTransferSize = capabilities.getOptimalTransferSize() > 0 ? capabilities.getOptimalTransferSize() : maxBurstLength;
+        // round down to the granularity, but never below it
+        optimalTransferLength = Math.max(optimalTransferLengthGranularity, optimalTransferSize / blockSize / optimalTransferLengthGranularity * optimalTransferLengthGranularity);
+
+        if (capabilities.isUnmapSupported()) {
+            maximumUnmapLbaCount = -1;// unlimited
+            maximumUnmapBlockDescriptorCount = UnmapParameterList.MAXIMUM_BLOCK_DESCRIPTOR_COUNT;
+            optimalUnmapGranularity = optimalTransferLengthGranularity;
+        } else {
+            maximumUnmapLbaCount = 0;
+            maximumUnmapBlockDescriptorCount = 0;
+            optimalUnmapGranularity = 0;
+        }
+    }
+
+    public void serialize(ByteBuffer byteBuffer, int index) {
+        // PERIPHERAL QUALIFIER and PERIPHERAL DEVICE TYPE, direct access block device
+        byteBuffer.put(index, (byte) 0);
+        byteBuffer.put(index + 1, PAGE_CODE);
+        ReadWrite.writeTwoByteInt(byteBuffer, SIZE - 4, index + 2);// PAGE LENGTH
+
+        // WSNZ (byte 4) is zero
+        byteBuffer.put(index + 5, (byte) CompareAndWriteCdb.MAXIMUM_NUMBER_OF_LOGICAL_BLOCKS);
+        ReadWrite.writeTwoByteInt(byteBuffer, optimalTransferLengthGranularity, index + 6);
+        ReadWrite.writeInt(maximumTransferLength, byteBuffer, index + 8);
+        ReadWrite.writeInt(optimalTransferLength, byteBuffer, index + 12);
+        // MAXIMUM PREFETCH LENGTH (bytes 16 to 19) is zero
+        ReadWrite.writeInt(maximumUnmapLbaCount, byteBuffer, index + 20);
+        ReadWrite.writeInt(maximumUnmapBlockDescriptorCount, byteBuffer, index + 24);
+        ReadWrite.writeInt(optimalUnmapGranularity, byteBuffer, index + 28);
+        // UGAVALID and UNMAP GRANULARITY ALIGNMENT (bytes 32 to 35) are zero
+        ReadWrite.writeLong(byteBuffer, MAXIMUM_WRITE_SAME_LENGTH, index + 36);
+    }
+
+    public int size() {
+        return SIZE;
+    }
+}
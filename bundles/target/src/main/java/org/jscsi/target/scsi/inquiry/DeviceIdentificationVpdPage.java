@@ -91,6 +91,29 @@ public class DeviceIdentificationVpdPage implements IResponseData {
 
     }
 
+    /**
+     * Creates the Device Identification VPD page of a logical unit of a single target. The logical unit is named by a
+     * binary {@link NaaIdentifier}, which is followed by the SCSI name string of the target device.
+     *
+     * @param targetName        the name of the target
+     * @param logicalUnitNumber the number of the logical unit
+     */
+    public DeviceIdentificationVpdPage(final String targetName, final int logicalUnitNumber) {
+        identificationDescriptors = new IdentificationDescriptor[]{
+                new IdentificationDescriptor(ProtocolIdentifier.INTERNET_SCSI,// protocolIdentifier
+                        CodeSet.BINARY_VALUES,// codeSet
+                        false,// protocolIdentifierValid
+                        Association.LOGICAL_UNIT,// association
+                        IdentifierType.NAA,// identifierType
+                        new NaaIdentifier(targetName, logicalUnitNumber)),// identifier
+                new IdentificationDescriptor(ProtocolIdentifier.INTERNET_SCSI,// protocolIdentifier
+                        CodeSet.UTF8_CODES,// codeSet
+                        true,// protocolIdentifierValid
+                        Association.SCSI_TARGET_DEVICE,// association
+                        IdentifierType.SCSI_NAME_STRING,// identifierType
+                        new ScsiNameStringIdentifier(targetName))};// identifier
+    }
+
     /**
      * Returns the combined length of all contained IDENTIFICATION DESCRIPTORs.
      *
@@ -114,6 +137,13 @@ public class DeviceIdentificationVpdPage implements IResponseData {
                 byteBuffer,// buffer
                 getPageLength(),
                 index + PAGE_LENGTH_FIELD_INDEX);// index
+
+        // serialize identification descriptors
+        int descriptorIndex = index + HEADER_LENGTH;
+        for (int i = 0; i < identificationDescriptors.length; ++i) {
+            identificationDescriptors[i].serialize(byteBuffer, descriptorIndex);
+            descriptorIndex += identificationDescriptors[i].size();
+        }
     }
 
     public int size() {
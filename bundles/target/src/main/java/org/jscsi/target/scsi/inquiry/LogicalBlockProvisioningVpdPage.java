@@ -0,0 +1,76 @@
+package org.jscsi.target.scsi.inquiry;
+
+
+import org.jscsi.target.scsi.IResponseData;
+import org.jscsi.target.storage.StorageCapabilities;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The Logical Block Provisioning VPD page tells the initiator whether the logical unit is thin provisioned, and which
+ * commands it may use for unmapping logical blocks.
+ * <p>
+ * If the storage module is able to deallocate storage space, the <code>UNMAP</code> command as well as the
+ * <code>WRITE SAME (10)</code> and <code>WRITE SAME (16)</code> commands with the UNMAP bit set are reported as
+ * supported. Since unmapping is only a hint to the storage module, unmapped logical blocks are not guaranteed to be
+ * read as zeros, so the LBPRZ bit is not set.
+ */
+public final class LogicalBlockProvisioningVpdPage implements IResponseData {
+
+    /**
+     * The length of the page in bytes.
+     */
+    private static final int SIZE = 8;
+
+    /**
+     * Identifies this page as a LOGICAL BLOCK PROVISIONING VPD page.
+     */
+    private static final byte PAGE_CODE = (byte) 0xb2;
+
+    /**
+     * The LBPU, LBPWS and LBPWS10 bits in byte 5.
+     */
+    private static final byte UNMAP_SUPPORTED = (byte) 0xe0;
+
+    /**
+     * The value of the PROVISIONING TYPE field of thin provisioned logical units.
+     */
+    private static final byte THIN_PROVISIONED = 2;
+
+    /**
+     * <code>true</code> if the unmapping commands are supported.
+     */
+    private final boolean unmapSupported;
+
+    /**
+     * <code>true</code> if the logical unit is thin provisioned.
+     */
+    private final boolean thinProvisioned;
+
+    /**
+     * Creates the Logical Block Provisioning VPD page describing a storage module with the given capabilities.
+     *
+     * @param capabilities the capabilities of the storage module accessed by the initiator
+     */
+    public LogicalBlockProvisioningVpdPage(final StorageCapabilities capabilities) {
+        unmapSupported = capabilities.isUnmapSupported();
+        thinProvisioned = capabilities.isThinProvisioned();
+    }
+
+    public void serialize(ByteBuffer byteBuffer, int index) {
+        // PERIPHERAL QUALIFIER and PERIPHERAL DEVICE TYPE, direct access block device
+        byteBuffer.put(index, (byte) 0);
+        byteBuffer.put(index + 1, PAGE_CODE);
+        ReadWrite.writeTwoByteInt(byteBuffer, SIZE - 4, index + 2);// PAGE LENGTH
+
+        // THRESHOLD EXPONENT (byte 4) is zero, since thresholds are not supported
+        if (unmapSupported) byteBuffer.put(index + 5, UNMAP_SUPPORTED);
+        if (thinProvisioned) byteBuffer.put(index + 6, THIN_PROVISIONED);
+    }
+
+    public int size() {
+        return SIZE;
+    }
+}
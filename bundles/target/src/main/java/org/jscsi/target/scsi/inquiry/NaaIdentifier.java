@@ -0,0 +1,62 @@
+package org.jscsi.target.scsi.inquiry;
+
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+
+/**
+ * An eight-byte NAA identifier in the Locally Assigned format (NAA = 3h), naming a logical unit.
+ * <p>
+ * The identifier is derived from the target name and the number of the logical unit, so it does not change when the
+ * jSCSI Target is restarted. Unlike the
+ * SCSI name string, it fits into the identification descriptors of <code>EXTENDED COPY</code> parameter lists, which
+ * is how initiators tell the target which of its logical units to copy between.
+ */
+public final class NaaIdentifier extends Identifier {
+
+    /**
+     * The length of the identifier in bytes.
+     */
+    public static final int SIZE = 8;
+
+    /**
+     * The value of the NAA field in the four most significant bits.
+     */
+    private static final long LOCALLY_ASSIGNED = 0x3000000000000000L;
+
+    /**
+     * The serialized identifier.
+     */
+    private final long value;
+
+    /**
+     * Creates the identifier of a logical unit of the target with the given name.
+     *
+     * @param targetName        the name of the target
+     * @param logicalUnitNumber the number of the logical unit
+     */
+    public NaaIdentifier(final String targetName, final int logicalUnitNumber) {
+        final String name = targetName + "/" + logicalUnitNumber;
+        final long bits = UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+        value = LOCALLY_ASSIGNED | (bits & 0x0fffffffffffffffL);
+    }
+
+    /**
+     * Returns the serialized identifier.
+     *
+     * @return the serialized identifier
+     */
+    public long getValue() {
+        return value;
+    }
+
+    public void serialize(ByteBuffer byteBuffer, int index) {
+        byteBuffer.putLong(index, value);
+    }
+
+    public int size() {
+        return SIZE;
+    }
+}
@@ -56,7 +56,10 @@ public class PageCode {
         if (value == 0x87) return VitalProductDataPageName.MODE_PAGE_POLICY;
         if (value == 0x88) return VitalProductDataPageName.SCSI_PORTS;
         if (0x89 <= value && value <= 0xaf) return VitalProductDataPageName.RESERVED;
-        if (0xb0 <= value && value <= 0xbf)
+        if (value == 0xb0) return VitalProductDataPageName.BLOCK_LIMITS;
+        if (value == 0xb1) return VitalProductDataPageName.BLOCK_DEVICE_CHARACTERISTICS;
+        if (value == 0xb2) return VitalProductDataPageName.LOGICAL_BLOCK_PROVISIONING;
+        if (0xb3 <= value && value <= 0xbf)
             return VitalProductDataPageName.DEVICE_TYPE_SPECIFIC;
         else
             return VitalProductDataPageName.VENDOR_SPECIFIC;
@@ -113,7 +116,19 @@ public class PageCode {
          */
         RESERVED,
         /**
-         * {@link PageCode} values 0xb0-0xbf
+         * {@link PageCode} value 0xb0
+         */
+        BLOCK_LIMITS,
+        /**
+         * {@link PageCode} value 0xb1
+         */
+        BLOCK_DEVICE_CHARACTERISTICS,
+        /**
+         * {@link PageCode} value 0xb2
+         */
+        LOGICAL_BLOCK_PROVISIONING,
+        /**
+         * {@link PageCode} values 0xb3-0xbf
          */
         DEVICE_TYPE_SPECIFIC,
         /**
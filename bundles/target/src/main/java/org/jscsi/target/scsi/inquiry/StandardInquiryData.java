@@ -10,7 +10,8 @@ import java.nio.ByteBuffer;
 /**
  * The standard inquiry data, sent as a response to an {@link ScsiOperationCode#INQUIRY} command.
  * <p>
- * This class uses the singleton pattern since the returned standard inquiry data will always be the same.
+ * There are only two instances, since the returned standard inquiry data will always be the same, except for the
+ * PERIPHERAL QUALIFIER reporting whether the addressed logical unit exists.
  * <p>
  * Not all fields in the serialized form of the singleton have a corresponding member variable, only those fields
  * containing ASCII information.
@@ -37,22 +38,41 @@ public final class StandardInquiryData implements IResponseData {
     private static final int PRODUCT_REVISION_LEVEL_FIELD_LENGTH = 4;
 
     /**
-     * The singleton.
+     * The standard inquiry data of existing logical units.
      */
-    private static StandardInquiryData instance;
+    private static final StandardInquiryData INSTANCE = new StandardInquiryData((byte) 0);
 
-    private StandardInquiryData() {
-        // singleton pattern
+    /**
+     * The standard inquiry data returned for LUNs not addressing a logical unit. The PERIPHERAL QUALIFIER is 011b
+     * (not capable of supporting a peripheral device) and the PERIPHERAL DEVICE TYPE is 1Fh (unknown).
+     */
+    private static final StandardInquiryData UNSUPPORTED_LOGICAL_UNIT_INSTANCE = new StandardInquiryData((byte) 0x7f);
+
+    /**
+     * The PERIPHERAL QUALIFIER and PERIPHERAL DEVICE TYPE fields.
+     */
+    private final byte peripheralQualifierAndDeviceType;
+
+    private StandardInquiryData(final byte peripheralQualifierAndDeviceType) {
+        this.peripheralQualifierAndDeviceType = peripheralQualifierAndDeviceType;
     }
 
     /**
-     * Returns the one and only {@link StandardInquiryData} object.
+     * Returns the {@link StandardInquiryData} object of existing logical units.
      *
-     * @return the one and only {@link StandardInquiryData} object
+     * @return the {@link StandardInquiryData} object of existing logical units
      */
     public static StandardInquiryData getInstance() {
-        if (instance == null) instance = new StandardInquiryData();
-        return instance;
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the {@link StandardInquiryData} object for LUNs not addressing any logical unit.
+     *
+     * @return the {@link StandardInquiryData} object for unsupported logical units
+     */
+    public static StandardInquiryData getUnsupportedLogicalUnitInstance() {
+        return UNSUPPORTED_LOGICAL_UNIT_INSTANCE;
     }
 
     public void serialize(ByteBuffer byteBuffer, int index) {
@@ -63,11 +83,11 @@ public final class StandardInquiryData implements IResponseData {
          * peripheral device type is connected to this logical unit. If the device server is unable to determine whether
          * or not a peripheral device is connected, it also shall use this peripheral qualifier. This peripheral
          * qualifier does not mean that the peripheral device connected to the logical unit is ready for access.
-         * Peripheral Device Type (5 least significant bits of byte 0): 00000b direct access block device Therefore no
-         * need to change anything.
+         * Peripheral Device Type (5 least significant bits of byte 0): 00000b direct access block device. For LUNs not
+         * addressing a logical unit, see UNSUPPORTED_LOGICAL_UNIT_INSTANCE.
          */
         byteBuffer.position(index);
-        byteBuffer.put((byte) 0);
+        byteBuffer.put(peripheralQualifierAndDeviceType);
 
         // *** byte 1 ***
         /*
@@ -107,11 +127,11 @@ public final class StandardInquiryData implements IResponseData {
          * of the target port group support (TPGS) indicate the support for asymmetric logical unit access. The SCSI
          * target device does not support asymmetric logical unit access or supports a form of asymmetric access that is
          * vendor specific. Neither the REPORT TARGET GROUPS nor the SET TARGET GROUPS commands is supported. 3PC (bit
-         * 3): 0 A Third-Party Copy (3PC) bit set to zero indicates that the SCSI target device does not support
-         * third-party copy commands such as the EXTENDED COPY command. (bits 2 and 1 are RESERVED) PROTECT (bit 0): 0 A
+         * 3): 1 A Third-Party Copy (3PC) bit set to one indicates that the SCSI target device supports third-party copy
+         * commands such as the EXTENDED COPY command. (bits 2 and 1 are RESERVED) PROTECT (bit 0): 0 A
          * PROTECT bit set to zero indicates that the logical unit does not support protection information.
          */
-        byteBuffer.put((byte) 0);
+        byteBuffer.put((byte) 0x08);// 0000 1000b
 
         // *** byte 6 ***
         /*
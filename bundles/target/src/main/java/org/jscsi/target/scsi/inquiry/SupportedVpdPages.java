@@ -32,6 +32,9 @@ public final class SupportedVpdPages implements IResponseData {
     public static final byte[] SUPPORTED_VPD_PAGES = new byte[]{(byte) 0x00,// SUPPORTED_VPD_PAGES,
             // mandatory
             (byte) 0x83,// DECIVE_IDENTIFICATION, mandatory
+            (byte) 0xb0,// BLOCK_LIMITS
+            (byte) 0xb1,// BLOCK_DEVICE_CHARACTERISTICS
+            (byte) 0xb2,// LOGICAL_BLOCK_PROVISIONING
     };
 
     /**
@@ -73,11 +76,11 @@ public final class SupportedVpdPages implements IResponseData {
 
         // *** byte 3 ***
         /*
-         * Page Length: n - 3 = 5 - 3 = 2 (for now)
+         * Page Length: n - 3, i.e. the number of supported VPD pages
          */
         byteBuffer.put((byte) SUPPORTED_VPD_PAGES.length);
 
-        // *** bytes 4 and 5 - Supported VPD Pages ***
+        // *** bytes 4 to n - Supported VPD Pages ***
         for (int i = 0; i < SUPPORTED_VPD_PAGES.length; ++i)
             byteBuffer.put(SUPPORTED_VPD_PAGES[i]);
     }
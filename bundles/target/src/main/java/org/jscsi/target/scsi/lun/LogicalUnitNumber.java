@@ -7,6 +7,10 @@ import java.nio.ByteBuffer;
 
 /**
  * A 64-bit identifier for a logical unit.
+ * <p>
+ * The jSCSI Target addresses its logical units with single level LUNs. LUNs below 256 use the peripheral device
+ * addressing method, all others up to {@link #MAXIMUM_NUMBER} the flat space addressing method, as recommended by
+ * SAM-5.
  *
  * @author Andreas Ergenzinger
  */
@@ -17,6 +21,16 @@ public class LogicalUnitNumber implements ISerializable {
      */
     public static final int SIZE = 8;
 
+    /**
+     * The highest number of a logical unit which can be addressed with a single level LUN.
+     */
+    public static final int MAXIMUM_NUMBER = 0x3fff;
+
+    /**
+     * The ADDRESS METHOD of the flat space addressing method in the two most significant bits.
+     */
+    private static final long FLAT_SPACE_ADDRESSING = 0x4000000000000000L;
+
     /**
      * Byte representation of the object.
      */
@@ -26,6 +40,44 @@ public class LogicalUnitNumber implements ISerializable {
         bytes = ReadWrite.longToBytes(logicalUnitNumber);
     }
 
+    /**
+     * Returns the single level LUN addressing the logical unit with the given number.
+     *
+     * @param number the number of the logical unit, between zero and {@link #MAXIMUM_NUMBER}
+     * @return the 64-bit LUN
+     */
+    public static long encode(final int number) {
+        if (number < 0 || number > MAXIMUM_NUMBER) {
+            throw new IllegalArgumentException("logical unit number out of range: " + number);
+        }
+        if (number < 256) {
+            return (long) number << 48;// peripheral device addressing, bus identifier zero
+        }
+        return FLAT_SPACE_ADDRESSING | (long) number << 48;
+    }
+
+    /**
+     * Returns the number of the logical unit addressed by a LUN.
+     *
+     * @param logicalUnitNumber the 64-bit LUN, e.g. from the LUN field of a SCSI Command PDU
+     * @return the number of the logical unit, or <code>-1</code> if the LUN is not a single level LUN which has been
+     *         created by {@link #encode(int)}
+     */
+    public static int decode(final long logicalUnitNumber) {
+        // all levels but the first one must be zero
+        if ((logicalUnitNumber & 0x0000ffffffffffffL) != 0) {
+            return -1;
+        }
+        final int firstLevel = (int) (logicalUnitNumber >>> 48);
+        if ((firstLevel & 0xff00) == 0) {
+            return firstLevel;// peripheral device addressing, bus identifier zero
+        }
+        if ((firstLevel & 0xc000) == FLAT_SPACE_ADDRESSING >>> 48) {
+            return firstLevel & MAXIMUM_NUMBER;
+        }
+        return -1;
+    }
+
     public void serialize(ByteBuffer byteBuffer, int index) {
         byteBuffer.position(index);
         for (int i = 0; i < bytes.length; ++i) {
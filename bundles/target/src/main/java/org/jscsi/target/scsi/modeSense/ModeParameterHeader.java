@@ -2,6 +2,7 @@ package org.jscsi.target.scsi.modeSense;
 
 
 import org.jscsi.target.scsi.ISerializable;
+import org.jscsi.target.util.BitManip;
 
 
 /**
@@ -56,9 +57,10 @@ public abstract class ModeParameterHeader implements ISerializable {
      * DPOFUA bit set to zero indicates that the device server does not support the DPO and FUA bits. When used with the
      * MODE SENSE command, a DPOFUA bit set to one indicates that the device server supports the DPO and FUA bits.
      * <p>
-     * So, the simulated logical unit of the jSCSI Target must always use a value of 0x00.
+     * The medium of the jSCSI Target is never write-protected. The DPOFUA bit is set if the logical unit has a volatile
+     * write cache, so that initiators may use the FUA bit to force individual writes to the medium.
      */
-    protected final byte deviceSpecificParameter = (byte) 0x00;
+    protected final byte deviceSpecificParameter;
 
     /**
      * The BLOCK DESCRIPTOR LENGTH field contains the length in bytes of all the block descriptors. It is equal to the
@@ -74,9 +76,11 @@ public abstract class ModeParameterHeader implements ISerializable {
      *
      * @param modeDataLength        the length in bytes of all MODE DATA list elements
      * @param blockDescriptorLength the length in bytes of all BLOCK DESCRIPTOR list elements
+     * @param dpoFua                the value of the DPOFUA bit
      */
-    public ModeParameterHeader(final int modeDataLength, final int blockDescriptorLength) {
+    public ModeParameterHeader(final int modeDataLength, final int blockDescriptorLength, final boolean dpoFua) {
         this.modeDataLength = modeDataLength;
         this.blockDescriptorLength = blockDescriptorLength;
+        this.deviceSpecificParameter = BitManip.getByteWithBitSet((byte) 0, 4, dpoFua);
     }
 }
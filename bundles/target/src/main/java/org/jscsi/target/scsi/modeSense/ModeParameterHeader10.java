@@ -39,11 +39,12 @@ public final class ModeParameterHeader10 extends ModeParameterHeader {
      * @param modeDataLength        the total length in bytes of all MODE DATA list elements
      * @param blockDescriptorLength the total length in bytes of all BLOCK DESCRIPTOR list elements
      * @param longLba               if <code>true</code> then the LONG LBA MODE PAREMETER LOGICAL BLOCK DESCRIPTOR format will be used
+     * @param dpoFua                the value of the DPOFUA bit
      * @see LongLogicalBlockDescriptor
      * @see ShortLogicalBlockDescriptor
      */
-    public ModeParameterHeader10(final int modeDataLength, final int blockDescriptorLength, final boolean longLba) {
-        super(modeDataLength, blockDescriptorLength);
+    public ModeParameterHeader10(final int modeDataLength, final int blockDescriptorLength, final boolean longLba, final boolean dpoFua) {
+        super(modeDataLength, blockDescriptorLength, dpoFua);
         this.longLba = longLba;
     }
 
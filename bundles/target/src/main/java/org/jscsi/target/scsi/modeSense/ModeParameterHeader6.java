@@ -27,9 +27,10 @@ public final class ModeParameterHeader6 extends ModeParameterHeader {
      *
      * @param modeDataLength        the total length in bytes of all MODE DATA list elements
      * @param blockDescriptorLength the total length in bytes of all BLOCK DESCRIPTOR list elements
+     * @param dpoFua                the value of the DPOFUA bit
      */
-    public ModeParameterHeader6(final int modeDataLength, final int blockDescriptorLength) {
-        super(modeDataLength, blockDescriptorLength);
+    public ModeParameterHeader6(final int modeDataLength, final int blockDescriptorLength, final boolean dpoFua) {
+        super(modeDataLength, blockDescriptorLength, dpoFua);
     }
 
     public void serialize(ByteBuffer byteBuffer, int index) {
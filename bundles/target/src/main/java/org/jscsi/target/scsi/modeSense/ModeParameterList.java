@@ -75,9 +75,9 @@ public final class ModeParameterList implements IResponseData {
 
         ModeParameterHeader modeParameterHeader;
         if (builder.headerType == HeaderType.MODE_PARAMETER_HEADER_6)
-            modeParameterHeader = new ModeParameterHeader6(modeDataLength, blockDescriptorLength);
+            modeParameterHeader = new ModeParameterHeader6(modeDataLength, blockDescriptorLength, builder.dpoFua);
         else
-            modeParameterHeader = new ModeParameterHeader10(modeDataLength, blockDescriptorLength, builder.longLba);
+            modeParameterHeader = new ModeParameterHeader10(modeDataLength, blockDescriptorLength, builder.longLba, builder.dpoFua);
 
         // create and return the ModeParameterList
         return new ModeParameterList(modeParameterHeader, builder.logicalBlockDescriptors, builder.modePages);
@@ -32,6 +32,11 @@ public final class ModeParameterListBuilder {
      */
     ModePage[] modePages;
 
+    /**
+     * The value of the DPOFUA bit of the MODE PARAMETER HEADER, indicating support for the DPO and FUA bits.
+     */
+    boolean dpoFua = false;
+
     public ModeParameterListBuilder(final HeaderType headerType) {
         this.headerType = headerType;
     }
@@ -62,6 +67,10 @@ public final class ModeParameterListBuilder {
         this.modePages = modePages;
     }
 
+    public void setDpoFua(final boolean dpoFua) {
+        this.dpoFua = dpoFua;
+    }
+
     /**
      * This method is used for checking that all required members are initialized and their respective values compatible
      * with each other.
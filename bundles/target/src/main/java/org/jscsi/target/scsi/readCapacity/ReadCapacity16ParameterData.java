@@ -10,10 +10,10 @@ import java.nio.ByteBuffer;
  * <code>READ CAPACITY (16)</code> parameter data is sent in response to a successful <code> READ CAPACITY (16)</code>
  * SCSI command.
  * <p>
- * Only the fields common to all {@link ReadCapacityParameterData} can be set in the constructor. All other fields and
- * flags are <code>zero</code>. This means that the initiator is told that the device does not support protection
- * information (protection type 0), maps each logical block directly to one physical block, beginning with the first
- * one.
+ * Apart from the fields common to all {@link ReadCapacityParameterData}, only the LOGICAL BLOCKS PER PHYSICAL BLOCK
+ * EXPONENT field and the LBPME bit can be set in the constructor. All other fields and flags are <code>zero</code>. This means that the
+ * initiator is told that the device does not support protection information (protection type 0) and that the first
+ * logical block is aligned with the beginning of a physical block.
  *
  * @author Andreas Ergenzinger
  */
@@ -24,8 +24,30 @@ public final class ReadCapacity16ParameterData extends ReadCapacityParameterData
      */
     private static final int SIZE = 32;
 
+    /**
+     * The number of logical blocks per physical block is two to the power of this value, which is specified in the
+     * lower four bits of byte 13.
+     */
+    private final int logicalBlocksPerPhysicalBlockExponent;
+
+    /**
+     * The LBPME (logical block provisioning management enabled) bit, which is the highest bit of byte 14. If it is set,
+     * the initiator may unmap logical blocks, see the Logical Block Provisioning VPD page.
+     */
+    private final boolean logicalBlockProvisioningManagementEnabled;
+
     public ReadCapacity16ParameterData(final long returnedLogicalBlockAddress, int logicalBlockLengthInBytes) {
+        this(returnedLogicalBlockAddress, logicalBlockLengthInBytes, 0);
+    }
+
+    public ReadCapacity16ParameterData(final long returnedLogicalBlockAddress, final int logicalBlockLengthInBytes, final int logicalBlocksPerPhysicalBlockExponent) {
+        this(returnedLogicalBlockAddress, logicalBlockLengthInBytes, logicalBlocksPerPhysicalBlockExponent, false);
+    }
+
+    public ReadCapacity16ParameterData(final long returnedLogicalBlockAddress, final int logicalBlockLengthInBytes, final int logicalBlocksPerPhysicalBlockExponent, final boolean logicalBlockProvisioningManagementEnabled) {
         super(returnedLogicalBlockAddress, logicalBlockLengthInBytes);
+        this.logicalBlocksPerPhysicalBlockExponent = logicalBlocksPerPhysicalBlockExponent;
+        this.logicalBlockProvisioningManagementEnabled = logicalBlockProvisioningManagementEnabled;
     }
 
     public void serialize(ByteBuffer byteBuffer, int index) {
@@ -34,6 +56,12 @@ public final class ReadCapacity16ParameterData extends ReadCapacityParameterData
 
         // logical block length in bytes
         ReadWrite.writeInt(logicalBlockLengthInBytes, byteBuffer, index + 8);
+
+        // logical blocks per physical block exponent
+        byteBuffer.put(index + 13, (byte) (logicalBlocksPerPhysicalBlockExponent & 15));
+
+        // LBPME
+        if (logicalBlockProvisioningManagementEnabled) byteBuffer.put(index + 14, (byte) 0x80);
     }
 
     public int size() {
@@ -183,7 +183,7 @@ public class FixedFormatSenseData extends SenseData {
         b = BitManip.getByteWithBitSet(b, 5, incorrectLengthIndicator);
 
         // sense key
-        b = (byte) (15 & senseKey.getValue());
+        b |= (byte) (15 & senseKey.getValue());
         byteBuffer.put(b);
 
         // *** bytes 3 - 6 ***
@@ -201,7 +201,7 @@ public class FixedFormatSenseData extends SenseData {
         ReadWrite.writeTwoByteInt(byteBuffer, additionalSenseCodeAndQualifier.getValue(), index + ADDITIONAL_SENSE_CODE_INDEX);
 
         // field replaceable unit code
-        byteBuffer.put(FIELD_REPLACEABLE_UNIT_CODE_INDEX, fieldReplaceableUnitCode);
+        byteBuffer.put(index + FIELD_REPLACEABLE_UNIT_CODE_INDEX, fieldReplaceableUnitCode);
 
         // sense key specific data
         if (senseKeySpecificData != null)
@@ -13,8 +13,24 @@ public class FourByteInformation extends Information {
 
     private static final int SIZE = 4;
 
+    /**
+     * The content of the field.
+     */
+    private final int information;
+
+    /**
+     * Creates an INFORMATION field without any information.
+     */
+    public FourByteInformation() {
+        this(0);
+    }
+
+    public FourByteInformation(final int information) {
+        this.information = information;
+    }
+
     public void serialize(ByteBuffer byteBuffer, int index) {
-        // do nothing
+        byteBuffer.putInt(index, information);
     }
 
     public int size() {
@@ -7,7 +7,8 @@ import org.jscsi.target.scsi.ISerializable;
 /**
  * The contents of the INFORMATION field are device-type or command specific and are defined in a command standard.
  * <p>
- * All INFORMATION fields used by the jSCSI Target do not contain any information.
+ * Except for the offset of the first miscompared byte of a <code>COMPARE AND WRITE</code> command, all INFORMATION
+ * fields used by the jSCSI Target do not contain any information.
  *
  * @author Andreas Ergenzinger
  */
@@ -0,0 +1,101 @@
+package org.jscsi.target.scsi.unmap;
+
+
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The parameter list transferred with an <code>UNMAP</code> SCSI command. It consists of an eight-byte header followed
+ * by UNMAP block descriptors, each of which specifies a range of logical blocks to be unmapped.
+ * <p>
+ * Block descriptors which have not been transferred completely, as well as bytes beyond the length given in the
+ * UNMAP BLOCK DESCRIPTOR DATA LENGTH field, are ignored.
+ */
+public final class UnmapParameterList {
+
+    /**
+     * The maximum number of UNMAP block descriptors accepted in a single parameter list, as reported in the Block
+     * Limits VPD page.
+     */
+    public static final int MAXIMUM_BLOCK_DESCRIPTOR_COUNT = 256;
+
+    /**
+     * The length in bytes of the parameter list header.
+     */
+    public static final int HEADER_SIZE = 8;
+
+    /**
+     * The length in bytes of each UNMAP block descriptor.
+     */
+    private static final int BLOCK_DESCRIPTOR_SIZE = 16;
+
+    /**
+     * The UNMAP LOGICAL BLOCK ADDRESS field of each block descriptor.
+     */
+    private final long[] logicalBlockAddresses;
+
+    /**
+     * The NUMBER OF LOGICAL BLOCKS field of each block descriptor.
+     */
+    private final long[] numbersOfLogicalBlocks;
+
+    /**
+     * Deserializes a parameter list.
+     *
+     * @param buffer contains the serialized parameter list starting at index position zero
+     * @param length the number of bytes transferred, at least {@link #HEADER_SIZE}
+     */
+    public UnmapParameterList(final ByteBuffer buffer, final int length) {
+        final int blockDescriptorDataLength = Math.min(ReadWrite.readTwoByteInt(buffer, 2), length - HEADER_SIZE);
+        final int count = blockDescriptorDataLength / BLOCK_DESCRIPTOR_SIZE;
+        logicalBlockAddresses = new long[count];
+        numbersOfLogicalBlocks = new long[count];
+        for (int i = 0; i < count; ++i) {
+            final int index = getBlockDescriptorIndex(i);
+            logicalBlockAddresses[i] = buffer.getLong(index);
+            numbersOfLogicalBlocks[i] = ReadWrite.readUnsignedInt(buffer, index + 8);
+        }
+    }
+
+    /**
+     * Returns the number of UNMAP block descriptors in the parameter list.
+     *
+     * @return the number of UNMAP block descriptors
+     */
+    public int getBlockDescriptorCount() {
+        return logicalBlockAddresses.length;
+    }
+
+    /**
+     * Returns the LBA of the first logical block to be unmapped by the specified block descriptor.
+     *
+     * @param descriptor the index of the block descriptor
+     * @return the value of the UNMAP LOGICAL BLOCK ADDRESS field
+     */
+    public long getLogicalBlockAddress(final int descriptor) {
+        return logicalBlockAddresses[descriptor];
+    }
+
+    /**
+     * Returns the number of logical blocks to be unmapped by the specified block descriptor.
+     *
+     * @param descriptor the index of the block descriptor
+     * @return the value of the NUMBER OF LOGICAL BLOCKS field
+     */
+    public long getNumberOfLogicalBlocks(final int descriptor) {
+        return numbersOfLogicalBlocks[descriptor];
+    }
+
+    /**
+     * Returns the position of the specified block descriptor within the parameter list, which is also the position of
+     * its UNMAP LOGICAL BLOCK ADDRESS field.
+     *
+     * @param descriptor the index of the block descriptor
+     * @return the byte offset of the block descriptor
+     */
+    public static int getBlockDescriptorIndex(final int descriptor) {
+        return HEADER_SIZE + descriptor * BLOCK_DESCRIPTOR_SIZE;
+    }
+}
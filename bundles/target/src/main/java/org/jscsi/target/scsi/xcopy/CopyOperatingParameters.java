@@ -0,0 +1,60 @@
+package org.jscsi.target.scsi.xcopy;
+
+
+import org.jscsi.target.scsi.IResponseData;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The parameter data returned by a <code>RECEIVE COPY RESULTS</code> command with the OPERATING PARAMETERS service
+ * action, describing the limits of the copy manager executing <code>EXTENDED COPY</code> commands.
+ */
+public final class CopyOperatingParameters implements IResponseData {
+
+    /**
+     * The descriptor type codes of all supported CSCD and segment descriptors.
+     */
+    private static final byte[] IMPLEMENTED_DESCRIPTOR_TYPE_CODES = {(byte) ExtendedCopyParameterList.BLOCK_TO_BLOCK_DESCRIPTOR, (byte) ExtendedCopyParameterList.IDENTIFICATION_DESCRIPTOR};
+
+    /**
+     * The length of the parameter data without the list of implemented descriptor type codes.
+     */
+    private static final int HEADER_SIZE = 44;
+
+    /**
+     * The maximum number of bytes copied by a single segment descriptor.
+     */
+    private final int maximumSegmentLength;
+
+    /**
+     * Creates the operating parameters of a copy manager whose logical units have the given logical block size.
+     *
+     * @param blockSize the logical block size in bytes
+     */
+    public CopyOperatingParameters(final int blockSize) {
+        // the BLOCK DEVICE NUMBER OF BLOCKS field of a segment descriptor has two bytes
+        maximumSegmentLength = (int) Math.min(Integer.MAX_VALUE, 0xffffL * blockSize);
+    }
+
+    public void serialize(ByteBuffer byteBuffer, int index) {
+        ReadWrite.writeInt(size() - 4, byteBuffer, index);// AVAILABLE DATA
+        byteBuffer.put(index + 4, (byte) 0x01);// SNLID, a LIST IDENTIFIER does not have to be unique
+        ReadWrite.writeTwoByteInt(byteBuffer, ExtendedCopyParameterList.MAXIMUM_CSCD_DESCRIPTOR_COUNT, index + 8);
+        ReadWrite.writeTwoByteInt(byteBuffer, ExtendedCopyParameterList.MAXIMUM_SEGMENT_DESCRIPTOR_COUNT, index + 10);
+        ReadWrite.writeInt(ExtendedCopyParameterList.MAXIMUM_DESCRIPTOR_LIST_LENGTH, byteBuffer, index + 12);
+        ReadWrite.writeInt(maximumSegmentLength, byteBuffer, index + 16);
+        // MAXIMUM INLINE DATA LENGTH, HELD DATA LIMIT and MAXIMUM STREAM DEVICE TRANSFER SIZE (bytes 20 to 31) are zero
+        byteBuffer.put(index + 34, (byte) 1);// MAXIMUM CONCURRENT COPIES
+        // DATA SEGMENT GRANULARITY, INLINE DATA GRANULARITY and HELD DATA GRANULARITY (bytes 35 to 37) are zero
+        byteBuffer.put(index + 43, (byte) IMPLEMENTED_DESCRIPTOR_TYPE_CODES.length);
+        for (int i = 0; i < IMPLEMENTED_DESCRIPTOR_TYPE_CODES.length; ++i) {
+            byteBuffer.put(index + HEADER_SIZE + i, IMPLEMENTED_DESCRIPTOR_TYPE_CODES[i]);
+        }
+    }
+
+    public int size() {
+        return HEADER_SIZE + IMPLEMENTED_DESCRIPTOR_TYPE_CODES.length;
+    }
+}
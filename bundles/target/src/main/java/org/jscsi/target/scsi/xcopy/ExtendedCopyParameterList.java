@@ -0,0 +1,305 @@
+package org.jscsi.target.scsi.xcopy;
+
+
+import org.jscsi.target.scsi.inquiry.IdentifierType;
+import org.jscsi.target.scsi.inquiry.NaaIdentifier;
+import org.jscsi.target.scsi.sense.AdditionalSenseCodeAndQualifier;
+import org.jscsi.target.util.ReadWrite;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * The parameter list transferred with an <code>EXTENDED COPY (LID1)</code> SCSI command. It consists of a 16-byte
+ * header, followed by a list of copy target descriptors (CSCD descriptors), which name the logical units taking part
+ * in the copy, and a list of segment descriptors, each of which requests copying a range of logical blocks from one of
+ * these logical units to another one.
+ * <p>
+ * The only supported CSCD descriptor is the identification descriptor, whose designator must be the
+ * {@link NaaIdentifier} reported in the Device Identification VPD page. The only supported segment descriptor is the
+ * block device to block device descriptor. Inline data is not supported.
+ * <p>
+ * Structural errors are detected during deserialization. Only the first one is kept and can be retrieved with
+ * {@link #getError()} and {@link #getErrorFieldPointer()}, in which case the descriptors must not be used.
+ */
+public final class ExtendedCopyParameterList {
+
+    /**
+     * The length in bytes of the parameter list header.
+     */
+    public static final int HEADER_SIZE = 16;
+
+    /**
+     * The maximum number of CSCD descriptors accepted in a single parameter list.
+     */
+    public static final int MAXIMUM_CSCD_DESCRIPTOR_COUNT = 16;
+
+    /**
+     * The maximum number of segment descriptors accepted in a single parameter list.
+     */
+    public static final int MAXIMUM_SEGMENT_DESCRIPTOR_COUNT = 64;
+
+    /**
+     * The length in bytes of each CSCD descriptor.
+     */
+    static final int CSCD_DESCRIPTOR_SIZE = 32;
+
+    /**
+     * The length in bytes of each block device to block device segment descriptor.
+     */
+    static final int SEGMENT_DESCRIPTOR_SIZE = 28;
+
+    /**
+     * The maximum combined length of the descriptor lists, as reported in the copy manager's operating parameters.
+     */
+    public static final int MAXIMUM_DESCRIPTOR_LIST_LENGTH = MAXIMUM_CSCD_DESCRIPTOR_COUNT * CSCD_DESCRIPTOR_SIZE + MAXIMUM_SEGMENT_DESCRIPTOR_COUNT * SEGMENT_DESCRIPTOR_SIZE;
+
+    /**
+     * The DESCRIPTOR TYPE CODE of the identification CSCD descriptor.
+     */
+    public static final int IDENTIFICATION_DESCRIPTOR = 0xe4;
+
+    /**
+     * The DESCRIPTOR TYPE CODE of the block device to block device segment descriptor.
+     */
+    public static final int BLOCK_TO_BLOCK_DESCRIPTOR = 0x02;
+
+    /**
+     * The identifier named by each CSCD descriptor, or zero if the descriptor names its logical unit in any other way.
+     */
+    private long[] identifiers;
+
+    /**
+     * The DISK BLOCK LENGTH field of each CSCD descriptor. A value of zero means that it has not been specified.
+     */
+    private int[] blockLengths;
+
+    /**
+     * The SOURCE CSCD DESCRIPTOR INDEX field of each segment descriptor.
+     */
+    private int[] sourceIndices;
+
+    /**
+     * The DESTINATION CSCD DESCRIPTOR INDEX field of each segment descriptor.
+     */
+    private int[] destinationIndices;
+
+    /**
+     * The DC bit of each segment descriptor, which specifies whether {@link #numbersOfBlocks} counts logical blocks of
+     * the destination instead of the source.
+     */
+    private boolean[] destinationCounts;
+
+    /**
+     * The BLOCK DEVICE NUMBER OF BLOCKS field of each segment descriptor.
+     */
+    private int[] numbersOfBlocks;
+
+    /**
+     * The SOURCE BLOCK DEVICE LOGICAL BLOCK ADDRESS field of each segment descriptor.
+     */
+    private long[] sourceLogicalBlockAddresses;
+
+    /**
+     * The DESTINATION BLOCK DEVICE LOGICAL BLOCK ADDRESS field of each segment descriptor.
+     */
+    private long[] destinationLogicalBlockAddresses;
+
+    /**
+     * The first error detected during deserialization, or <code>null</code>.
+     */
+    private AdditionalSenseCodeAndQualifier error;
+
+    /**
+     * The position of the field causing {@link #error}.
+     */
+    private int errorFieldPointer;
+
+    /**
+     * Deserializes a parameter list.
+     *
+     * @param buffer contains the serialized parameter list starting at index position zero
+     * @param length the number of bytes transferred
+     */
+    public ExtendedCopyParameterList(final ByteBuffer buffer, final int length) {
+        if (length < HEADER_SIZE) {
+            setError(AdditionalSenseCodeAndQualifier.PARAMETER_LIST_LENGTH_ERROR, 10);
+            return;
+        }
+        final int cscdDescriptorListLength = ReadWrite.readTwoByteInt(buffer, 2);
+        final long segmentDescriptorListLength = ReadWrite.readUnsignedInt(buffer, 8);
+        if (ReadWrite.readUnsignedInt(buffer, 12) != 0) {
+            setError(AdditionalSenseCodeAndQualifier.INLINE_DATA_LENGTH_EXCEEDED, 12);
+            return;
+        }
+        if (HEADER_SIZE + cscdDescriptorListLength + segmentDescriptorListLength > length) {
+            setError(AdditionalSenseCodeAndQualifier.PARAMETER_LIST_LENGTH_ERROR, 10);
+            return;
+        }
+        if (deserializeCscdDescriptors(buffer, cscdDescriptorListLength)) {
+            deserializeSegmentDescriptors(buffer, HEADER_SIZE + cscdDescriptorListLength, (int) segmentDescriptorListLength);
+        }
+    }
+
+    private boolean deserializeCscdDescriptors(final ByteBuffer buffer, final int listLength) {
+        final int count = listLength / CSCD_DESCRIPTOR_SIZE;
+        if (count > MAXIMUM_CSCD_DESCRIPTOR_COUNT) {
+            setError(AdditionalSenseCodeAndQualifier.TOO_MANY_TARGET_DESCRIPTORS, 2);
+            return false;
+        }
+        if (listLength % CSCD_DESCRIPTOR_SIZE != 0) {
+            setError(AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, 2);
+            return false;
+        }
+        identifiers = new long[count];
+        blockLengths = new int[count];
+        for (int i = 0; i < count; ++i) {
+            final int index = HEADER_SIZE + i * CSCD_DESCRIPTOR_SIZE;
+            if ((buffer.get(index) & 255) != IDENTIFICATION_DESCRIPTOR) {
+                setError(AdditionalSenseCodeAndQualifier.UNSUPPORTED_TARGET_DESCRIPTOR_TYPE_CODE, index);
+                return false;
+            }
+            // PERIPHERAL DEVICE TYPE, only direct access block devices are supported
+            if ((buffer.get(index + 1) & 31) != 0) {
+                setError(AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, index + 1);
+                return false;
+            }
+            // DESIGNATOR TYPE and DESIGNATOR LENGTH
+            if ((buffer.get(index + 5) & 15) == IdentifierType.NAA.getValue() && (buffer.get(index + 7) & 255) == NaaIdentifier.SIZE) {
+                identifiers[i] = buffer.getLong(index + 8);
+            }
+            blockLengths[i] = ReadWrite.readThreeByteInt(buffer, index + 29);
+        }
+        return true;
+    }
+
+    private void deserializeSegmentDescriptors(final ByteBuffer buffer, final int start, final int listLength) {
+        // count the descriptors first, since their length may vary
+        int count = 0;
+        for (int index = start; index + 4 <= start + listLength; index += 4 + ReadWrite.readTwoByteInt(buffer, index + 2)) {
+            ++count;
+        }
+        if (count > MAXIMUM_SEGMENT_DESCRIPTOR_COUNT) {
+            setError(AdditionalSenseCodeAndQualifier.TOO_MANY_SEGMENT_DESCRIPTORS, 8);
+            return;
+        }
+        sourceIndices = new int[count];
+        destinationIndices = new int[count];
+        destinationCounts = new boolean[count];
+        numbersOfBlocks = new int[count];
+        sourceLogicalBlockAddresses = new long[count];
+        destinationLogicalBlockAddresses = new long[count];
+        int index = start;
+        for (int i = 0; i < count; ++i) {
+            if ((buffer.get(index) & 255) != BLOCK_TO_BLOCK_DESCRIPTOR) {
+                setError(AdditionalSenseCodeAndQualifier.UNSUPPORTED_SEGMENT_DESCRIPTOR_TYPE_CODE, index);
+                return;
+            }
+            if (ReadWrite.readTwoByteInt(buffer, index + 2) != SEGMENT_DESCRIPTOR_SIZE - 4 || index + SEGMENT_DESCRIPTOR_SIZE > start + listLength) {
+                setError(AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, index + 2);
+                return;
+            }
+            sourceIndices[i] = ReadWrite.readTwoByteInt(buffer, index + 4);
+            destinationIndices[i] = ReadWrite.readTwoByteInt(buffer, index + 6);
+            if (sourceIndices[i] >= identifiers.length) {
+                setError(AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, index + 4);
+                return;
+            }
+            if (destinationIndices[i] >= identifiers.length) {
+                setError(AdditionalSenseCodeAndQualifier.INVALID_FIELD_IN_PARAMETER_LIST, index + 6);
+                return;
+            }
+            destinationCounts[i] = (buffer.get(index + 1) & 0x02) != 0;
+            numbersOfBlocks[i] = ReadWrite.readTwoByteInt(buffer, index + 10);
+            sourceLogicalBlockAddresses[i] = buffer.getLong(index + 12);
+            destinationLogicalBlockAddresses[i] = buffer.getLong(index + 20);
+            index += SEGMENT_DESCRIPTOR_SIZE;
+        }
+    }
+
+    private void setError(final AdditionalSenseCodeAndQualifier error, final int fieldPointer) {
+        this.error = error;
+        errorFieldPointer = fieldPointer;
+    }
+
+    /**
+     * Returns the first error detected during deserialization. {@link AdditionalSenseCodeAndQualifier#PARAMETER_LIST_LENGTH_ERROR}
+     * refers to a field of the CDB, all other errors to fields of the parameter list.
+     *
+     * @return the first error, or <code>null</code> if the parameter list is valid
+     */
+    public AdditionalSenseCodeAndQualifier getError() {
+        return error;
+    }
+
+    public int getErrorFieldPointer() {
+        return errorFieldPointer;
+    }
+
+    public int getCscdDescriptorCount() {
+        return identifiers.length;
+    }
+
+    /**
+     * Returns the identifier of the logical unit named by a CSCD descriptor.
+     *
+     * @param i the index of the CSCD descriptor
+     * @return the {@link NaaIdentifier#getValue()} of the logical unit, or zero if it has been named in an unsupported
+     *         way
+     */
+    public long getIdentifier(final int i) {
+        return identifiers[i];
+    }
+
+    public int getBlockLength(final int i) {
+        return blockLengths[i];
+    }
+
+    /**
+     * Returns the position of a CSCD descriptor within the parameter list.
+     *
+     * @param i the index of the CSCD descriptor
+     * @return the position of the CSCD descriptor
+     */
+    public static int getCscdDescriptorIndex(final int i) {
+        return HEADER_SIZE + i * CSCD_DESCRIPTOR_SIZE;
+    }
+
+    public int getSegmentDescriptorCount() {
+        return sourceIndices.length;
+    }
+
+    public int getSourceIndex(final int i) {
+        return sourceIndices[i];
+    }
+
+    public int getDestinationIndex(final int i) {
+        return destinationIndices[i];
+    }
+
+    public boolean getDestinationCount(final int i) {
+        return destinationCounts[i];
+    }
+
+    public int getNumberOfBlocks(final int i) {
+        return numbersOfBlocks[i];
+    }
+
+    public long getSourceLogicalBlockAddress(final int i) {
+        return sourceLogicalBlockAddresses[i];
+    }
+
+    public long getDestinationLogicalBlockAddress(final int i) {
+        return destinationLogicalBlockAddresses[i];
+    }
+
+    /**
+     * Returns the position of a segment descriptor within the parameter list.
+     *
+     * @param i the index of the segment descriptor
+     * @return the position of the segment descriptor
+     */
+    public int getSegmentDescriptorIndex(final int i) {
+        return HEADER_SIZE + identifiers.length * CSCD_DESCRIPTOR_SIZE + i * SEGMENT_DESCRIPTOR_SIZE;
+    }
+}
@@ -270,7 +270,7 @@ public final class ConnectionSettingsNegotiator extends SettingsNegotiator {
                 NegotiationType.NEGOTIATED,// negotiationType
                 Use.LOPNS,// use
                 NegotiationStatus.DEFAULT,// negotiationStatus
-                new String[]{TextKeyword.NONE},// supportedValues,
+                new String[]{TextKeyword.CRC_32C, TextKeyword.NONE},// supportedValues,
                 TextKeyword.NONE));// defaultValue
 
         /*
@@ -281,7 +281,7 @@ public final class ConnectionSettingsNegotiator extends SettingsNegotiator {
                 NegotiationType.NEGOTIATED,// negotiationType
                 Use.LOPNS,// use
                 NegotiationStatus.DEFAULT,// negotiationStatus
-                new String[]{TextKeyword.NONE},// supportedValues,
+                new String[]{TextKeyword.CRC_32C, TextKeyword.NONE},// supportedValues,
                 TextKeyword.NONE));// defaultValue
 
         /*
@@ -50,6 +50,36 @@ public final class SessionSettingsNegotiator extends SettingsNegotiator {
         updateSettingsBuilderComponent();
     }
 
+    /**
+     * Creates a {@link SessionSettingsNegotiator} which accepts up to the specified number of connections per session.
+     *
+     * @param maxConnections the highest <code>MaxConnections</code> value the jSCSI Target will agree to
+     */
+    public SessionSettingsNegotiator(final int maxConnections) {
+        this();
+        final Entry entry = getEntry(TextKeyword.MAX_CONNECTIONS);
+        entries.set(entries.indexOf(entry), createMaxConnectionsEntry(maxConnections));
+        updateSettingsBuilderComponent();
+    }
+
+    /**
+     * Creates the {@link Entry} negotiating the <code>MaxConnections</code> parameter.
+     *
+     * @param maxConnections the highest value the jSCSI Target will agree to
+     * @return the new {@link Entry}
+     */
+    private static Entry createMaxConnectionsEntry(final int maxConnections) {
+        return new NumericalEntry(new KeySet(TextKeyword.MAX_CONNECTIONS),// keySet
+                NegotiationType.NEGOTIATED,// negotiationType
+                Use.LEADING_LOPNS,// use
+                NegotiationStatus.DEFAULT,// negotiationStatus
+                maxConnections,// negotiationValue
+                NumericalValueRange.create(1, 65535),// protocolValueRange
+                NumericalResultFunction.MIN,// resultFunction
+                1,// defaultValue
+                false);// zeroMeansDontCare
+    }
+
     /**
      * Blocks until the {@link #lock()} has been acquired and returns <code>true</code> or returns <code>false</code> if
      * the method returned prematurely due to an interrupt.
@@ -227,24 +257,17 @@ public final class SessionSettingsNegotiator extends SettingsNegotiator {
         /*
          * The initiator and target negotiate the maximum number of connections that can be requested or are acceptable.
          */
-        entries.add(new NumericalEntry(new KeySet(TextKeyword.MAX_CONNECTIONS),// keySet
-                NegotiationType.NEGOTIATED,// negotiationType
-                Use.LEADING_LOPNS,// use
-                NegotiationStatus.DEFAULT,// negotiationStatus
-                1,// negotiationValue (default value)
-                NumericalValueRange.create(1, 65535),// protocolValueRange
-                NumericalResultFunction.MIN,// resultFunction
-                1,// defaultValue
-                false));// zeroMeansDontCare
+        entries.add(createMaxConnectionsEntry(1));
 
         /*
-         * The maximum number of outstanding R2Ts.
+         * The maximum number of outstanding R2Ts. Offering more than one allows the WriteStage to request several
+         * bursts at once, instead of paying a round trip for each burst.
          */
         entries.add(new NumericalEntry(new KeySet(TextKeyword.MAX_OUTSTANDING_R_2_T),// keySet
                 NegotiationType.NEGOTIATED,// negotiationType
                 Use.LEADING_LOPNS,// use
                 NegotiationStatus.DEFAULT,// negotiationStatus
-                1,// negotiationValue (default value)
+                8,// negotiationValue
                 NumericalValueRange.create(1, 65535),// protocolValueRange
                 NumericalResultFunction.MIN,// resultFunction
                 1,// defaultValue
@@ -75,7 +75,8 @@ public final class StringEntry extends Entry {
     protected String processNegotiation(Object values) {
         // receives a String array
         final String[] requestedValues = (String[]) values;
-        final String[] commonValues = TextParameter.intersect(supportedValues, requestedValues);
+        // the first value offered by the initiator which is supported is selected
+        final String[] commonValues = TextParameter.intersect(requestedValues, supportedValues);
         // reject if no commonly supported values
         if (commonValues.length == 0) {
             return null;
@@ -0,0 +1,202 @@
+package org.jscsi.target.storage;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+import org.jscsi.target.util.BufferPool;
+import org.jscsi.target.util.RangeLock;
+
+
+/**
+ * Writes the data segments received by a <code>WRITE</code> command to storage in the background, so that receiving
+ * the next Data-Out PDUs does not wait for the storage medium.
+ * <p>
+ * Contiguous data segments are collected in a pooled buffer of up to <i>coalescingLength</i> bytes, which is written by
+ * a task of the passed {@link Executor} once it is full or once the next data segment does not continue it. Up to
+ * {@link #getDepth()} buffers are written at the same time; collecting more data waits for the oldest write. The
+ * written range is held in the {@link RangeLock} of the logical unit during each write, so that it cannot interleave
+ * with a <code>COMPARE AND WRITE</code> command.
+ * <p>
+ * The status of the command must not be sent before {@link #flush()} has returned, and {@link #close()} must be called
+ * in any case, so that no write is still in progress when the command ends.
+ */
+public final class CoalescingWriter implements AutoCloseable {
+
+    /**
+     * The default number of writes in flight.
+     */
+    public static final int DEFAULT_DEPTH = 2;
+
+    private final IPositionalStorageModule storageModule;
+
+    private final RangeLock rangeLock;
+
+    /**
+     * Provides the buffers the data segments are collected in.
+     */
+    private final BufferPool bufferPool;
+
+    /**
+     * Executes the writes.
+     */
+    private final Executor executor;
+
+    /**
+     * The maximum number of bytes written at once, unless a single data segment is longer.
+     */
+    private final int coalescingLength;
+
+    /**
+     * The maximum number of writes in flight.
+     */
+    private final int depth;
+
+    /**
+     * The writes in flight, the oldest one first.
+     */
+    private final Deque<CompletableFuture<Void>> inFlight = new ArrayDeque<>();
+
+    /**
+     * The buffer collecting contiguous data segments, or <code>null</code> if no data is pending.
+     */
+    private ByteBuffer pending;
+
+    /**
+     * The position of the first byte of {@link #pending} within the storage medium.
+     */
+    private long pendingIndex;
+
+    public CoalescingWriter(final IPositionalStorageModule storageModule, final RangeLock rangeLock, final BufferPool bufferPool, final Executor executor, final int coalescingLength) {
+        this(storageModule, rangeLock, bufferPool, executor, coalescingLength, DEFAULT_DEPTH);
+    }
+
+    public CoalescingWriter(final IPositionalStorageModule storageModule, final RangeLock rangeLock, final BufferPool bufferPool, final Executor executor, final int coalescingLength, final int depth) {
+        if (coalescingLength <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("coalescing length and depth must be positive");
+        }
+        this.storageModule = storageModule;
+        this.rangeLock = rangeLock;
+        this.bufferPool = bufferPool;
+        this.executor = executor;
+        this.coalescingLength = Math.min(coalescingLength, BufferPool.MAX_BUFFER_SIZE);
+        this.depth = depth;
+    }
+
+    public int getCoalescingLength() {
+        return coalescingLength;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Schedules the remaining bytes of <i>src</i> to be written at <i>storageIndex</i>. The bytes are copied, so
+     * <i>src</i> may be reused as soon as this method returns.
+     *
+     * @param src          the data to write, from its position to its limit
+     * @param storageIndex the position of the data within the storage medium
+     * @throws IOException          if a previous write has failed
+     * @throws InterruptedException if the thread was interrupted while waiting for a previous write
+     */
+    public void write(final ByteBuffer src, final long storageIndex) throws IOException, InterruptedException {
+        final int length = src.remaining();
+        if (pending != null && (pendingIndex + pending.position() != storageIndex || length > pending.remaining())) {
+            submit();
+        }
+        if (pending == null) {
+            pending = bufferPool.lease(Math.max(coalescingLength, length));
+            pendingIndex = storageIndex;
+        }
+        pending.put(src);
+        if (!pending.hasRemaining()) {
+            submit();
+        }
+    }
+
+    /**
+     * Writes the pending data and waits until all writes have completed.
+     *
+     * @throws IOException          if any write has failed
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public void flush() throws IOException, InterruptedException {
+        if (pending != null) {
+            submit();
+        }
+        while (!inFlight.isEmpty()) {
+            await(inFlight.poll());
+        }
+    }
+
+    /**
+     * Discards the pending data and waits for the writes in flight, ignoring their failures.
+     */
+    @Override
+    public void close() {
+        bufferPool.release(pending);
+        pending = null;
+        for (final CompletableFuture<Void> write : inFlight) {
+            try {
+                write.join();
+            } catch (CompletionException | CancellationException e) {
+                // the command has already failed
+            }
+        }
+        inFlight.clear();
+    }
+
+    /**
+     * Starts writing the {@link #pending} buffer, after waiting for the oldest write if {@link #depth} writes are in
+     * flight already. The buffer is returned to the pool once it has been written.
+     */
+    private void submit() throws IOException, InterruptedException {
+        while (inFlight.size() >= depth) {
+            await(inFlight.poll());
+        }
+        final ByteBuffer buffer = pending;
+        final long storageIndex = pendingIndex;
+        pending = null;
+        buffer.flip();
+        inFlight.add(CompletableFuture.runAsync(() -> {
+            try (RangeLock.Range range = rangeLock.lock(storageIndex, buffer.remaining())) {
+                storageModule.write(buffer, storageIndex);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CompletionException(e);
+            }
+        }, executor).whenComplete((result, failure) -> bufferPool.release(buffer)));
+    }
+
+    /**
+     * Waits for a write to complete, rethrowing the {@link IOException} which made it fail.
+     */
+    private static void await(final CompletableFuture<Void> write) throws IOException, InterruptedException {
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof InterruptedException) {
+                throw (InterruptedException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.jscsi.target.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A storage module backed by a single file, which is accessed exclusively with the positional read and write methods
+ * of a {@link FileChannel}.
+ * <p>
+ * Positional operations neither use nor change the channel's position, so no lock is needed and any number of threads
+ * may read and write concurrently. Unlike with {@link SynchronizedRandomAccessStorageModule}, parallel I/O from several
+ * connections or sessions is therefore passed on to the operating system and the device at the same time. Overlapping
+ * writes issued concurrently are not ordered with respect to each other, which is fine for SCSI, where the initiator is
+ * responsible for ordering dependent commands.
+ * <p>
+ * By default, the file is opened with {@link StandardOpenOption#DSYNC}, so written data has reached the storage device
+ * when a write method returns. In write-back mode, written data may remain in the operating system's page cache until
+ * {@link #flush()} is called, which the target does for <code>SYNCHRONIZE CACHE</code> commands, writes with the FUA
+ * bit set, and logouts.
+ */
+public class FileChannelStorageModule implements IFileBackedStorageModule {
+
+    /**
+     * The size of the medium in blocks.
+     *
+     * @see #blockSize
+     */
+    private final long sizeInBlocks;
+
+    /**
+     * The logical block size in bytes.
+     */
+    private final int blockSize;
+
+    /**
+     * The physical block size in bytes.
+     */
+    private final int physicalBlockSize;
+
+    /**
+     * The channel used for accessing the storage medium.
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * <code>true</code> if written data is only made durable by {@link #flush()}.
+     */
+    private final boolean writeBack;
+
+    /**
+     * Creates a new write-through {@link FileChannelStorageModule} backed by the specified file, which must exist.
+     * Instances should be created with {@link RandomAccessStorageModule#open(File, long, boolean, Class)}.
+     *
+     * @param sizeInBlocks the size of the medium in blocks
+     * @param file         the path to the file serving as storage medium
+     * @throws IOException if the file does not exist or cannot be opened
+     */
+    public FileChannelStorageModule(final long sizeInBlocks, final File file) throws IOException {
+        this(sizeInBlocks, file, false);
+    }
+
+    /**
+     * Creates a new {@link FileChannelStorageModule} backed by the specified file, which must exist. Instances should
+     * be created with {@link RandomAccessStorageModule#open(File, long, boolean, Class, boolean)}.
+     *
+     * @param sizeInBlocks the size of the medium in blocks
+     * @param file         the path to the file serving as storage medium
+     * @param writeBack    <code>true</code> if written data is to be made durable only by {@link #flush()}
+     * @throws IOException if the file does not exist or cannot be opened
+     */
+    public FileChannelStorageModule(final long sizeInBlocks, final File file, final boolean writeBack) throws IOException {
+        this(sizeInBlocks, file, writeBack, RandomAccessStorageModule.VIRTUAL_BLOCK_SIZE, RandomAccessStorageModule.VIRTUAL_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new {@link FileChannelStorageModule} with the specified block sizes. Instances should be created with
+     * {@link RandomAccessStorageModule#open(File, long, boolean, Class, boolean, int, int)}.
+     *
+     * @param sizeInBlocks      the size of the medium in logical blocks
+     * @param file              the path to the file serving as storage medium
+     * @param writeBack         <code>true</code> if written data is to be made durable only by {@link #flush()}
+     * @param blockSize         the logical block size in bytes
+     * @param physicalBlockSize the physical block size in bytes, a power-of-two multiple of <i>blockSize</i>
+     * @throws IOException if the file does not exist or cannot be opened
+     */
+    public FileChannelStorageModule(final long sizeInBlocks, final File file, final boolean writeBack, final int blockSize, final int physicalBlockSize) throws IOException {
+        RandomAccessStorageModule.checkBlockSizes(blockSize, physicalBlockSize);
+        this.sizeInBlocks = sizeInBlocks;
+        this.blockSize = blockSize;
+        this.physicalBlockSize = physicalBlockSize;
+        this.writeBack = writeBack;
+        if (writeBack) {
+            this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else {
+            this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DSYNC);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Bytes beyond the end of the file are read as zeros.
+     */
+    @Override
+    public void read(final ByteBuffer dst, final long storageIndex) throws IOException {
+        long position = storageIndex;
+        while (dst.hasRemaining()) {
+            final int read = fileChannel.read(dst, position);
+            if (read == -1) {
+                // the buffer may hold stale data of a previous use
+                while (dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+                return;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final ByteBuffer src, final long storageIndex) throws IOException {
+        long position = storageIndex;
+        while (src.hasRemaining()) {
+            position += fileChannel.write(src, position);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        fileChannel.force(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StorageCapabilities getCapabilities() {
+        return writeBack ? StorageCapabilities.THIN_PROVISIONED_WRITE_BACK : StorageCapabilities.THIN_PROVISIONED;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only ranges extending to the end of the file are deallocated, see
+     * {@link RandomAccessStorageModule#deallocateTail(FileChannel, long, long, long)}.
+     */
+    @Override
+    public boolean unmap(final long storageIndex, final long length) throws IOException {
+        return RandomAccessStorageModule.deallocateTail(fileChannel, storageIndex, length, sizeInBlocks * blockSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSizeInBlocks() {
+        return sizeInBlocks;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int checkBounds(final long logicalBlockAddress, final int transferLengthInBlocks) {
+        if (logicalBlockAddress < 0 || logicalBlockAddress >= sizeInBlocks) return 1;
+        if (transferLengthInBlocks < 0 || logicalBlockAddress + transferLengthInBlocks > sizeInBlocks) return 2;
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPhysicalBlockSize() {
+        return physicalBlockSize;
+    }
+
+    /**
+     * Closes the backing {@link FileChannel}, making all written data durable first.
+     *
+     * @throws IOException if an I/O Error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        if (writeBack) {
+            flush();
+        }
+        fileChannel.close();
+    }
+}
@@ -0,0 +1,23 @@
+package org.jscsi.target.storage;
+
+
+import java.nio.channels.FileChannel;
+
+
+/**
+ * An {@link IPositionalStorageModule} whose data is stored in a single file, with each byte of the storage area residing at the
+ * same position within the file.
+ * <p>
+ * The {@link FileChannel} of the file allows transferring data from the storage medium to a connection without copying
+ * it into user space, see <code>FileChannel.transferTo</code>. Only position-independent operations may be performed on
+ * the returned channel, since implementations may use the channel's position internally.
+ */
+public interface IFileBackedStorageModule extends IPositionalStorageModule {
+
+    /**
+     * Returns the channel of the file containing the storage area.
+     *
+     * @return the channel of the file containing the storage area
+     */
+    FileChannel getFileChannel();
+}
@@ -0,0 +1,118 @@
+package org.jscsi.target.storage;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * The second version of the storage API, transferring data with {@link ByteBuffer}s instead of byte arrays.
+ * <p>
+ * All operations are positional, i.e. they do not depend on or change any shared position, so implementations must
+ * allow reads and writes to be issued concurrently by several threads. Data written by
+ * {@link #write(ByteBuffer, long)} is only guaranteed to be durable after {@link #flush()} has returned.
+ * <p>
+ * The byte array methods of {@link IStorageModule} are implemented on top of the buffer methods, so that new modules
+ * only have to implement the latter. Existing modules can be used via {@link StorageModuleAdapter#adapt(IStorageModule)}.
+ */
+public interface IPositionalStorageModule extends IStorageModule {
+
+    /**
+     * Copies bytes from storage to the passed buffer, filling all of its remaining bytes. The buffer's position is
+     * advanced to its limit.
+     *
+     * @param dst the buffer into which the data will be copied
+     * @param storageIndex the position of the first byte to be copied
+     * @throws IOException if the data could not be read
+     */
+    void read(ByteBuffer dst, long storageIndex) throws IOException;
+
+    /**
+     * Saves the remaining bytes of the passed buffer. The buffer's position is advanced to its limit.
+     *
+     * @param src the source of the data to be stored
+     * @param storageIndex byte offset in the storage area
+     * @throws IOException if the data could not be stored
+     */
+    @Override
+    void write(ByteBuffer src, long storageIndex) throws IOException;
+
+    /**
+     * Makes all data written so far durable.
+     *
+     * @throws IOException if the data could not be made durable
+     */
+    void flush() throws IOException;
+
+    /**
+     * Deallocates a range of the storage area whose data is no longer needed by the initiator. Deallocation is only a
+     * hint: the module may keep any part of the range allocated, in which case the data of that part remains
+     * unchanged.
+     * <p>
+     * This default implementation deallocates nothing.
+     *
+     * @param storageIndex byte offset of the range in the storage area
+     * @param length the length of the range in bytes
+     * @return <code>true</code> if the whole range has been deallocated and will be read as zeros, <code>false</code> if
+     *         any part of it has been left unchanged
+     * @throws IOException if the range could not be deallocated
+     */
+    default boolean unmap(final long storageIndex, final long length) throws IOException {
+        return false;
+    }
+
+    /**
+     * Fills a range of the storage area with copies of the remaining bytes of the passed buffer, which are usually one
+     * logical block. The buffer's position is advanced to its limit.
+     * <p>
+     * This default implementation repeats the pattern in a buffer of up to 1 MiB, which is then written as often as
+     * necessary.
+     *
+     * @param pattern the data to be stored repeatedly
+     * @param storageIndex byte offset of the range in the storage area
+     * @param length the length of the range in bytes, a multiple of the pattern's length
+     * @throws IOException if the data could not be stored
+     */
+    default void writeSame(final ByteBuffer pattern, final long storageIndex, final long length) throws IOException {
+        final int patternLength = pattern.remaining();
+        final int patternsPerChunk = Math.max(1, (1 << 20) / patternLength);
+        final ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(length, (long) patternsPerChunk * patternLength));
+        while (chunk.hasRemaining()) {
+            chunk.put(pattern.duplicate());
+        }
+        pattern.position(pattern.limit());
+        chunk.flip();
+
+        long position = storageIndex;
+        final long end = storageIndex + length;
+        while (position < end) {
+            final ByteBuffer src = chunk.duplicate();
+            src.limit((int) Math.min(src.limit(), end - position));
+            write(src, position);
+            position += src.limit();
+        }
+    }
+
+    /**
+     * Returns the optional features and the preferred transfer size of this module.
+     *
+     * @return the {@link StorageCapabilities} of this module
+     */
+    StorageCapabilities getCapabilities();
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    default void read(final byte[] bytes, final long storageIndex) throws IOException {
+        read(ByteBuffer.wrap(bytes), storageIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    default void write(final byte[] bytes, final long storageIndex) throws IOException {
+        write(ByteBuffer.wrap(bytes), storageIndex);
+    }
+}
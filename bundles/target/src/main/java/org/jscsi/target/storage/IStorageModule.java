@@ -7,6 +7,7 @@ package org.jscsi.target.storage;
 import org.jscsi.target.scsi.cdb.CommandDescriptorBlock;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 
 /**
@@ -50,7 +51,9 @@ public interface IStorageModule {
      * </tr>
      * </table>
      * <p>
-     * Note that the parameters of this method are referring to blocks, not to byte indices.
+     * Note that the parameters of this method are referring to blocks, not to byte indices. Since the logical block
+     * addresses of 16-byte command descriptor blocks are 64 bits wide, implementations must not narrow
+     * <i>logicalBlockAddress</i> to an <code>int</code>, and must treat negative values as out of bounds.
      *
      * @param logicalBlockAddress the index of the first block of data to be read or written
      * @param transferLengthInBlocks the total number of consecutive blocks about to be read or written
@@ -83,6 +86,23 @@ public interface IStorageModule {
      */
     void write(byte[] bytes, long storageIndex) throws IOException;
 
+    /**
+     * Saves the remaining bytes of the passed buffer, which will have no bytes remaining afterwards. Once this method
+     * has returned, the buffer may be reused by the caller.
+     * <p>
+     * This default implementation copies the bytes to an array and calls {@link #write(byte[], long)}. Modules which
+     * are able to write from (direct) buffers without copying should override it.
+     *
+     * @param src the source of the data to be stored
+     * @param storageIndex byte offset in the storage area
+     * @throws IOException
+     */
+    default void write(final ByteBuffer src, final long storageIndex) throws IOException {
+        final byte[] bytes = new byte[src.remaining()];
+        src.get(bytes);
+        write(bytes, storageIndex);
+    }
+
     /**
      * Closing the storage.
      *
@@ -96,4 +116,17 @@ public interface IStorageModule {
      * @return block size.
      */
     int getBlockSize();
+
+    /**
+     * Returns the size of the physical blocks of the storage medium, a power-of-two multiple of the logical block size
+     * returned by {@link #getBlockSize()}. Initiators align their accesses to physical blocks, so that the medium does
+     * not have to read, modify and write partially written physical blocks.
+     * <p>
+     * This default implementation maps each logical block to one physical block.
+     *
+     * @return the physical block size in bytes
+     */
+    default int getPhysicalBlockSize() {
+        return getBlockSize();
+    }
 }
@@ -36,6 +36,8 @@ import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Preconditions.checkState;
 
@@ -101,6 +103,13 @@ public class JCloudsStorageModule implements IStorageModule {
 
     private final Cache<Integer, byte[]> mByteCache;
 
+    /**
+     * Serializes all accesses to the cache and to {@link #lastIndexWritten} and {@link #lastBlobWritten}. A
+     * {@link Lock} is used instead of <code>synchronized</code> methods since the latter pin virtual threads while
+     * waiting for buckets to be downloaded.
+     */
+    private final Lock mLock = new ReentrantLock();
+
     private int lastIndexWritten;
     private byte[] lastBlobWritten;
 
@@ -196,10 +205,11 @@ public class JCloudsStorageModule implements IStorageModule {
      * {@inheritDoc}
      */
     @Override
-    public synchronized void read(byte[] bytes, long storageIndex) throws IOException {
+    public void read(byte[] bytes, long storageIndex) throws IOException {
 
         final int bucketIndex = (int) (storageIndex / SIZE_PER_BUCKET);
         final int bucketOffset = (int) (storageIndex % SIZE_PER_BUCKET);
+        mLock.lock();
         try {
             storeBucket(-1, null);
 
@@ -236,6 +246,8 @@ public class JCloudsStorageModule implements IStorageModule {
             System.arraycopy(output.toByteArray(), 0, bytes, 0, bytes.length);
         } catch (ExecutionException | InterruptedException exc) {
             throw new IOException(exc);
+        } finally {
+            mLock.unlock();
         }
     }
 
@@ -275,9 +287,10 @@ public class JCloudsStorageModule implements IStorageModule {
      * @throws Exception
      */
     @Override
-    public synchronized void write(byte[] bytes, long storageIndex) throws IOException {
+    public void write(byte[] bytes, long storageIndex) throws IOException {
         final int bucketIndex = (int) (storageIndex / SIZE_PER_BUCKET);
         final int bucketOffset = (int) (storageIndex % SIZE_PER_BUCKET);
+        mLock.lock();
         try {
 
             // // DEBUG CODE
@@ -308,6 +321,8 @@ public class JCloudsStorageModule implements IStorageModule {
             }
         } catch (ExecutionException | InterruptedException exc) {
             throw new IOException(exc);
+        } finally {
+            mLock.unlock();
         }
     }
 
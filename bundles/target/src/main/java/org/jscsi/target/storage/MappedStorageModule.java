@@ -0,0 +1,362 @@
+package org.jscsi.target.storage;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ * A storage module backed by a single file, which is mapped into memory as a sequence of {@link MappedByteBuffer}
+ * segments.
+ * <p>
+ * Since a single mapping is limited to {@link Integer#MAX_VALUE} bytes, the file is split into segments of
+ * {@link #SEGMENT_SIZE} bytes each, with the last one covering the remainder. Reads copy directly from the mapping into
+ * the destination, writes copy directly into the mapping, so no system calls are needed as long as the accessed pages
+ * are resident. Any number of threads may read and write concurrently, since every operation works on its own view of
+ * the segments.
+ * <p>
+ * Written data resides in the operating system's page cache until {@link #flush()} forces the segments to the storage
+ * device, so this module always has a volatile write cache. The target flushes it for <code>SYNCHRONIZE CACHE</code>
+ * commands, writes with the FUA bit set, and logouts.
+ * <p>
+ * Since written data is always cached, the <code>writeBack</code> parameter of the constructors has no effect, and
+ * this module reports a volatile write cache even if write-through mode has been configured.
+ * <p>
+ * This module is meant for media which fit into the main memory or page cache of the host. The mappings are released
+ * when the module is closed, so it must neither be accessed concurrently with nor after {@link #close()}.
+ */
+public class MappedStorageModule implements IFileBackedStorageModule {
+
+    /**
+     * The size of each mapped segment, 1 GiB.
+     */
+    static final int SEGMENT_SIZE = 1 << 30;
+
+    /**
+     * The <code>sun.misc.Unsafe</code> instance and its <code>invokeCleaner(ByteBuffer)</code> method, or
+     * <code>null</code> if they are not available.
+     */
+    private static final Object UNSAFE;
+
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            final Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    /**
+     * The size of the medium in blocks.
+     *
+     * @see #blockSize
+     */
+    private final long sizeInBlocks;
+
+    /**
+     * The logical block size in bytes.
+     */
+    private final int blockSize;
+
+    /**
+     * The physical block size in bytes.
+     */
+    private final int physicalBlockSize;
+
+    /**
+     * The channel of the mapped file.
+     */
+    private final FileChannel fileChannel;
+
+    /**
+     * The size of each mapped segment but the last.
+     */
+    private final int segmentSize;
+
+    /**
+     * The mapped segments, with segment <i>i</i> starting at file position <i>i</i> * {@link #segmentSize}.
+     */
+    private final MappedByteBuffer[] segments;
+
+    /**
+     * <code>true</code> once the segments have been unmapped.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Creates a new {@link MappedStorageModule} backed by the specified file, which must exist and which is extended if
+     * it is shorter than the medium. Instances should be created with
+     * {@link RandomAccessStorageModule#open(File, long, boolean, Class)}.
+     * <p>
+     * Note that the module is always in write-back mode, written data is only durable after {@link #flush()}.
+     *
+     * @param sizeInBlocks the size of the medium in blocks
+     * @param file         the path to the file serving as storage medium
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    public MappedStorageModule(final long sizeInBlocks, final File file) throws IOException {
+        this(sizeInBlocks, file, SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates a new {@link MappedStorageModule} with segments of the specified size.
+     *
+     * @param sizeInBlocks the size of the medium in blocks
+     * @param file         the path to the file serving as storage medium
+     * @param segmentSize  the size of each mapped segment, a positive multiple of the block size
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    MappedStorageModule(final long sizeInBlocks, final File file, final int segmentSize) throws IOException {
+        this(sizeInBlocks, file, segmentSize, RandomAccessStorageModule.VIRTUAL_BLOCK_SIZE, RandomAccessStorageModule.VIRTUAL_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new {@link MappedStorageModule} with segments and blocks of the specified sizes.
+     *
+     * @param sizeInBlocks      the size of the medium in logical blocks
+     * @param file              the path to the file serving as storage medium
+     * @param segmentSize       the size of each mapped segment, a positive multiple of the block size
+     * @param blockSize         the logical block size in bytes
+     * @param physicalBlockSize the physical block size in bytes, a power-of-two multiple of <i>blockSize</i>
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    MappedStorageModule(final long sizeInBlocks, final File file, final int segmentSize, final int blockSize, final int physicalBlockSize) throws IOException {
+        RandomAccessStorageModule.checkBlockSizes(blockSize, physicalBlockSize);
+        if (segmentSize <= 0 || segmentSize % blockSize != 0) {
+            throw new IllegalArgumentException("illegal segment size: " + segmentSize);
+        }
+        this.sizeInBlocks = sizeInBlocks;
+        this.blockSize = blockSize;
+        this.physicalBlockSize = physicalBlockSize;
+        this.segmentSize = segmentSize;
+        this.fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final long size = sizeInBlocks * blockSize;
+        segments = new MappedByteBuffer[(int) ((size + segmentSize - 1) / segmentSize)];
+        try {
+            for (int i = 0; i < segments.length; ++i) {
+                final long position = (long) i * segmentSize;
+                segments[i] = fileChannel.map(FileChannel.MapMode.READ_WRITE, position, Math.min(segmentSize, size - position));
+            }
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a new {@link MappedStorageModule} backed by the specified file. Since mapped storage always has a
+     * volatile write cache, <i>writeBack</i> has no effect, it is accepted so that the module can be configured like
+     * the other file-backed modules. If it is <code>false</code>, the module is in write-back mode nevertheless.
+     *
+     * @param sizeInBlocks the size of the medium in blocks
+     * @param file         the path to the file serving as storage medium
+     * @param writeBack    ignored, the module is always in write-back mode
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    public MappedStorageModule(final long sizeInBlocks, final File file, final boolean writeBack) throws IOException {
+        this(sizeInBlocks, file);
+    }
+
+    /**
+     * Creates a new {@link MappedStorageModule} with the specified block sizes. Instances should be created with
+     * {@link RandomAccessStorageModule#open(File, long, boolean, Class, boolean, int, int)}.
+     * <p>
+     * Like {@link #MappedStorageModule(long, File, boolean)}, the module is always in write-back mode.
+     *
+     * @param sizeInBlocks      the size of the medium in logical blocks
+     * @param file              the path to the file serving as storage medium
+     * @param writeBack         ignored, the module is always in write-back mode
+     * @param blockSize         the logical block size in bytes
+     * @param physicalBlockSize the physical block size in bytes, a power-of-two multiple of <i>blockSize</i>
+     * @throws IOException if the file does not exist or cannot be mapped
+     */
+    public MappedStorageModule(final long sizeInBlocks, final File file, final boolean writeBack, final int blockSize, final int physicalBlockSize) throws IOException {
+        this(sizeInBlocks, file, SEGMENT_SIZE, blockSize, physicalBlockSize);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void read(final ByteBuffer dst, final long storageIndex) throws IOException {
+        long position = storageIndex;
+        while (dst.hasRemaining()) {
+            final ByteBuffer segment = view(position, dst.remaining());
+            position += segment.remaining();
+            dst.put(segment);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final ByteBuffer src, final long storageIndex) throws IOException {
+        long position = storageIndex;
+        while (src.hasRemaining()) {
+            final ByteBuffer segment = view(position, src.remaining());
+            final int length = segment.remaining();
+            if (length == src.remaining()) {
+                segment.put(src);
+            } else {
+                final int limit = src.limit();
+                src.limit(src.position() + length);
+                segment.put(src);
+                src.limit(limit);
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Returns a view of the segment containing the specified position, limited to at most <i>length</i> bytes and to
+     * the end of the segment.
+     *
+     * @param position the position within the medium
+     * @param length   the maximum number of bytes to access
+     * @return a view of the mapping starting at <i>position</i>
+     * @throws IOException if <i>position</i> lies outside of the medium
+     */
+    private ByteBuffer view(final long position, final int length) throws IOException {
+        final int index = (int) (position / segmentSize);
+        if (position < 0 || index >= segments.length) {
+            throw new IOException("storage index " + position + " is out of bounds");
+        }
+        if (closed) {
+            throw new IOException("the storage module has been closed");
+        }
+        final ByteBuffer segment = segments[index].duplicate();
+        final int offset = (int) (position % segmentSize);
+        if (offset + (long) length > segment.capacity() && index == segments.length - 1) {
+            throw new IOException("storage index " + (position + length) + " is out of bounds");
+        }
+        segment.position(offset);
+        segment.limit((int) Math.min(segment.capacity(), (long) offset + length));
+        return segment;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Forces all mapped segments to the storage device.
+     */
+    @Override
+    public void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StorageCapabilities getCapabilities() {
+        return StorageCapabilities.WRITE_BACK;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public FileChannel getFileChannel() {
+        return fileChannel;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSizeInBlocks() {
+        return sizeInBlocks;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int checkBounds(final long logicalBlockAddress, final int transferLengthInBlocks) {
+        if (logicalBlockAddress < 0 || logicalBlockAddress >= sizeInBlocks) return 1;
+        if (transferLengthInBlocks < 0 || logicalBlockAddress + transferLengthInBlocks > sizeInBlocks) return 2;
+        return 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPhysicalBlockSize() {
+        return physicalBlockSize;
+    }
+
+    /**
+     * Makes all written data durable, unmaps the segments and closes the file.
+     *
+     * @throws IOException if an I/O Error occurs
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            flush();
+        } finally {
+            closed = true;
+            for (int i = 0; i < segments.length; ++i) {
+                unmap(segments[i]);
+                segments[i] = null;
+            }
+            fileChannel.close();
+        }
+    }
+
+    /**
+     * Releases the mapping of the specified segment immediately, instead of waiting for the garbage collector. The
+     * mapping is left to the garbage collector if the runtime does not support this.
+     *
+     * @param segment a mapped segment, which must not be accessed afterwards
+     */
+    private static void unmap(final MappedByteBuffer segment) {
+        try {
+            if (INVOKE_CLEANER != null) {
+                // Java 9 and later
+                INVOKE_CLEANER.invoke(UNSAFE, segment);
+            } else {
+                final Method cleaner = segment.getClass().getMethod("cleaner");
+                cleaner.setAccessible(true);
+                final Object segmentCleaner = cleaner.invoke(segment);
+                segmentCleaner.getClass().getMethod("clean").invoke(segmentCleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // the mapping is released by the garbage collector
+        }
+    }
+}
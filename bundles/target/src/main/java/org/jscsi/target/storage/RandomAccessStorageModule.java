@@ -9,8 +9,8 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
 
@@ -23,11 +23,14 @@ import java.nio.channels.FileChannel;
  * @author Andreas Ergenzinger
  * @see java.io.RandomAccessFile
  */
-public class RandomAccessStorageModule implements IStorageModule {
+public class RandomAccessStorageModule implements IFileBackedStorageModule {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(RandomAccessStorageModule.class);
 
-    private static final int VIRTUAL_BLOCK_SIZE = 512;
+    /**
+     * The block size used unless a different one is specified.
+     */
+    static final int VIRTUAL_BLOCK_SIZE = 512;
 
     /**
      * The mode {@link String} parameter used during the instantiation of {@link #randomAccessFile}.
@@ -37,13 +40,30 @@ public class RandomAccessStorageModule implements IStorageModule {
      */
     private static final String MODE = "rwd";
 
+    /**
+     * The mode {@link String} parameter used during the instantiation of {@link #randomAccessFile} in write-back mode.
+     * <p>
+     * Written data may remain in the operating system's page cache until {@link #flush()} is called.
+     */
+    private static final String WRITE_BACK_MODE = "rw";
+
     /**
      * The size of the medium in blocks.
      *
-     * @see #VIRTUAL_BLOCK_SIZE
+     * @see #blockSize
      */
     protected final long sizeInBlocks;
 
+    /**
+     * The logical block size in bytes.
+     */
+    private final int blockSize;
+
+    /**
+     * The physical block size in bytes.
+     */
+    private final int physicalBlockSize;
+
     /**
      * The {@link RandomAccessFile} used for accessing the storage medium.
      *
@@ -51,17 +71,57 @@ public class RandomAccessStorageModule implements IStorageModule {
      */
     private final RandomAccessFile randomAccessFile;
 
+    /**
+     * <code>true</code> if written data is only made durable by {@link #flush()}.
+     *
+     * @see #WRITE_BACK_MODE
+     */
+    private final boolean writeBack;
+
+    /**
+     * Creates a new write-through {@link RandomAccessStorageModule} backed by the specified file. If no such file
+     * exists, a {@link FileNotFoundException} will be thrown.
+     *
+     * @param sizeInBlocks blocksize for this module
+     * @param file         the path to the file serving as storage medium
+     * @throws FileNotFoundException if the specified file does not exist
+     */
+    public RandomAccessStorageModule(final long sizeInBlocks, final File file) throws FileNotFoundException {
+        this(sizeInBlocks, file, false);
+    }
+
     /**
      * Creates a new {@link RandomAccessStorageModule} backed by the specified file. If no such file exists, a
      * {@link FileNotFoundException} will be thrown.
      *
      * @param sizeInBlocks blocksize for this module
      * @param file         the path to the file serving as storage medium
+     * @param writeBack    <code>true</code> if written data is to be made durable only by {@link #flush()}
      * @throws FileNotFoundException if the specified file does not exist
      */
-    public RandomAccessStorageModule(final long sizeInBlocks, final File file) throws FileNotFoundException {
+    public RandomAccessStorageModule(final long sizeInBlocks, final File file, final boolean writeBack) throws FileNotFoundException {
+        this(sizeInBlocks, file, writeBack, VIRTUAL_BLOCK_SIZE, VIRTUAL_BLOCK_SIZE);
+    }
+
+    /**
+     * Creates a new {@link RandomAccessStorageModule} with the specified block sizes. If no such file exists, a
+     * {@link FileNotFoundException} will be thrown.
+     *
+     * @param sizeInBlocks      the size of the medium in logical blocks
+     * @param file              the path to the file serving as storage medium
+     * @param writeBack         <code>true</code> if written data is to be made durable only by {@link #flush()}
+     * @param blockSize         the logical block size in bytes
+     * @param physicalBlockSize the physical block size in bytes, a power-of-two multiple of <i>blockSize</i>
+     * @throws FileNotFoundException if the specified file does not exist
+     * @see #checkBlockSizes(int, int)
+     */
+    public RandomAccessStorageModule(final long sizeInBlocks, final File file, final boolean writeBack, final int blockSize, final int physicalBlockSize) throws FileNotFoundException {
+        checkBlockSizes(blockSize, physicalBlockSize);
         this.sizeInBlocks = sizeInBlocks;
-        this.randomAccessFile = new RandomAccessFile(file, MODE);
+        this.blockSize = blockSize;
+        this.physicalBlockSize = physicalBlockSize;
+        this.writeBack = writeBack;
+        this.randomAccessFile = new RandomAccessFile(file, writeBack ? WRITE_BACK_MODE : MODE);
     }
 
     /**
@@ -69,8 +129,7 @@ public class RandomAccessStorageModule implements IStorageModule {
      */
     @Override
     public void read(byte[] bytes, long storageIndex) throws IOException {
-        randomAccessFile.seek(storageIndex);
-        randomAccessFile.read(bytes, 0, bytes.length);
+        read(ByteBuffer.wrap(bytes), storageIndex);
     }
 
     /**
@@ -78,8 +137,72 @@ public class RandomAccessStorageModule implements IStorageModule {
      */
     @Override
     public void write(byte[] bytes, long storageIndex) throws IOException {
-        randomAccessFile.seek(storageIndex);
-        randomAccessFile.write(bytes, 0, bytes.length);
+        write(ByteBuffer.wrap(bytes), storageIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The bytes are read with positional reads of the file's channel, which do not depend on a shared file pointer.
+     * Bytes beyond the end of the file are read as zeros.
+     */
+    @Override
+    public void read(final ByteBuffer dst, final long storageIndex) throws IOException {
+        final FileChannel channel = randomAccessFile.getChannel();
+        long position = storageIndex;
+        while (dst.hasRemaining()) {
+            final int read = channel.read(dst, position);
+            if (read == -1) {
+                // the buffer may hold stale data of a previous use
+                while (dst.hasRemaining()) {
+                    dst.put((byte) 0);
+                }
+                return;
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The bytes are written with positional writes of the file's channel, which do not copy direct buffers and do not
+     * depend on a shared file pointer. Unless the module is in write-back mode, the file has been opened in
+     * {@link #MODE} and the data has reached the storage device when this method returns.
+     */
+    @Override
+    public void write(final ByteBuffer src, final long storageIndex) throws IOException {
+        final FileChannel channel = randomAccessFile.getChannel();
+        long position = storageIndex;
+        while (src.hasRemaining()) {
+            position += channel.write(src, position);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void flush() throws IOException {
+        randomAccessFile.getChannel().force(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StorageCapabilities getCapabilities() {
+        return writeBack ? StorageCapabilities.THIN_PROVISIONED_WRITE_BACK : StorageCapabilities.THIN_PROVISIONED;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @see #deallocateTail(FileChannel, long, long, long)
+     */
+    @Override
+    public boolean unmap(final long storageIndex, final long length) throws IOException {
+        return deallocateTail(randomAccessFile.getChannel(), storageIndex, length, sizeInBlocks * blockSize);
     }
 
     /**
@@ -105,13 +228,72 @@ public class RandomAccessStorageModule implements IStorageModule {
      *
      * @throws IOException if an I/O Error occurs
      */
+    @Override
+    public final FileChannel getFileChannel() {
+        return randomAccessFile.getChannel();
+    }
+
     public final void close() throws IOException {
+        if (writeBack) {
+            flush();
+        }
         randomAccessFile.close();
     }
 
     @Override
     public int getBlockSize() {
-        return VIRTUAL_BLOCK_SIZE;
+        return blockSize;
+    }
+
+    @Override
+    public int getPhysicalBlockSize() {
+        return physicalBlockSize;
+    }
+
+    /**
+     * Deallocates a range of a file if it extends to the end of the file or of the medium, by truncating the file to the
+     * start of the range and then restoring its length. The file system keeps the restored part of the file sparse, so it is read as
+     * zeros without occupying any space.
+     * <p>
+     * Since Java offers no portable way to punch holes into a file, ranges followed by data are left unchanged. Files
+     * created by {@link #open(File, long, boolean, Class)} are sparse, so their unwritten parts do not occupy any space
+     * either.
+     *
+     * @param channel      the channel of the file
+     * @param storageIndex byte offset of the range in the file
+     * @param length       the length of the range in bytes
+     * @param mediumSize   the size of the medium in bytes, bytes beyond it are not considered to be data
+     * @return <code>true</code> if the range has been deallocated, <code>false</code> if it has been left unchanged
+     * @throws IOException if the file could not be truncated or extended
+     */
+    static boolean deallocateTail(final FileChannel channel, final long storageIndex, final long length, final long mediumSize) throws IOException {
+        final long fileSize = channel.size();
+        if (storageIndex + length < Math.min(fileSize, mediumSize)) {
+            return false;
+        }
+        if (storageIndex < fileSize) {
+            channel.truncate(storageIndex);
+            // writing the last byte restores the length of the file without allocating the range
+            channel.write(ByteBuffer.allocate(1), fileSize - 1);
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure that the given block sizes can be reported to initiators: the logical block size must be a power of
+     * two of at least 512 bytes, the physical block size a power-of-two multiple of it.
+     *
+     * @param blockSize         the logical block size in bytes
+     * @param physicalBlockSize the physical block size in bytes
+     * @throws IllegalArgumentException if one of the block sizes is illegal
+     */
+    static void checkBlockSizes(final int blockSize, final int physicalBlockSize) {
+        if (blockSize < VIRTUAL_BLOCK_SIZE || Integer.bitCount(blockSize) != 1) {
+            throw new IllegalArgumentException("illegal block size: " + blockSize);
+        }
+        if (physicalBlockSize < blockSize || Integer.bitCount(physicalBlockSize) != 1) {
+            throw new IllegalArgumentException("illegal physical block size: " + physicalBlockSize);
+        }
     }
 
     /**
@@ -125,17 +307,64 @@ public class RandomAccessStorageModule implements IStorageModule {
      * @throws IOException
      */
     public static synchronized final IStorageModule open(final File file, final long storageLength, final boolean create, Class<? extends IStorageModule> kind) throws IOException {
+        return open(file, storageLength, create, kind, false);
+    }
+
+    /**
+     * This is the build method for creating instances of storage modules, optionally in write-back mode. Write-back
+     * mode requires a constructor with the parameters <code>(long sizeInBlocks, File file, boolean writeBack)</code>,
+     * all other modules must provide a constructor with the parameters <code>(long sizeInBlocks, File file)</code>.
+     *
+     * @param file          a path leading to the file serving as storage medium
+     * @param storageLength length of storage (if not already existing)
+     * @param create        should the storage be created
+     * @param kind          the class of the module
+     * @param writeBack     <code>true</code> if written data is to be made durable only on request
+     * @return a new instance of <i>kind</i>
+     * @throws IOException if the module could not be created, or if it does not support write-back mode
+     */
+    public static synchronized final IStorageModule open(final File file, final long storageLength, final boolean create, Class<? extends IStorageModule> kind, final boolean writeBack) throws IOException {
+        return open(file, storageLength, create, kind, writeBack, VIRTUAL_BLOCK_SIZE, VIRTUAL_BLOCK_SIZE);
+    }
+
+    /**
+     * This is the build method for creating instances of storage modules with block sizes other than
+     * {@value #VIRTUAL_BLOCK_SIZE} bytes. Such modules require a constructor with the parameters
+     * <code>(long sizeInBlocks, File file, boolean writeBack, int blockSize, int physicalBlockSize)</code>.
+     *
+     * @param file              a path leading to the file serving as storage medium
+     * @param storageLength     length of storage (if not already existing)
+     * @param create            should the storage be created
+     * @param kind              the class of the module
+     * @param writeBack         <code>true</code> if written data is to be made durable only on request
+     * @param blockSize         the logical block size in bytes
+     * @param physicalBlockSize the physical block size in bytes, a power-of-two multiple of <i>blockSize</i>
+     * @return a new instance of <i>kind</i>
+     * @throws IOException if the module could not be created, or if it does not support the requested mode or block
+     *                     sizes
+     */
+    public static synchronized final IStorageModule open(final File file, final long storageLength, final boolean create, Class<? extends IStorageModule> kind, final boolean writeBack, final int blockSize, final int physicalBlockSize) throws IOException {
+        checkBlockSizes(blockSize, physicalBlockSize);
         long sizeInBlocks;
-        sizeInBlocks = storageLength / VIRTUAL_BLOCK_SIZE;
+        sizeInBlocks = storageLength / blockSize;
         if (create && !kind.equals(JCloudsStorageModule.class)) {
             createStorageVolume(file, storageLength);
         }
         // throws exc. if !file.exists()
-        @SuppressWarnings("unchecked")
-        Constructor<? extends IStorageModule> cons = (Constructor<? extends IStorageModule>) kind.getConstructors()[0];
         try {
-            IStorageModule mod = cons.newInstance(sizeInBlocks, file);
-            return mod;
+            if (blockSize != VIRTUAL_BLOCK_SIZE || physicalBlockSize != VIRTUAL_BLOCK_SIZE) {
+                try {
+                    return kind.getConstructor(long.class, File.class, boolean.class, int.class, int.class).newInstance(sizeInBlocks, file, writeBack, blockSize, physicalBlockSize);
+                } catch (NoSuchMethodException exc) {
+                    throw new IOException(kind.getSimpleName() + " does not support a block size of " + blockSize + " bytes", exc);
+                }
+            }
+            if (writeBack) {
+                return kind.getConstructor(long.class, File.class, boolean.class).newInstance(sizeInBlocks, file, true);
+            }
+            return kind.getConstructor(long.class, File.class).newInstance(sizeInBlocks, file);
+        } catch (NoSuchMethodException exc) {
+            throw new IOException(kind.getSimpleName() + " does not support " + (writeBack ? "write-back mode" : "the required constructor"), exc);
         } catch (InvocationTargetException | IllegalAccessException | InstantiationException exc) {
             throw new IOException(exc);
         }
@@ -0,0 +1,117 @@
+package org.jscsi.target.storage;
+
+
+/**
+ * Describes the optional features and the preferred access pattern of an {@link IPositionalStorageModule}, so that
+ * the target is able to report them to initiators and to adapt its own transfers.
+ * <p>
+ * Instances of this class are immutable.
+ */
+public final class StorageCapabilities {
+
+    /**
+     * The capabilities of a fully provisioned, write-through module without any optional features and without a
+     * preferred transfer size.
+     */
+    public static final StorageCapabilities DEFAULT = new StorageCapabilities(false, false, 0, false);
+
+    /**
+     * The capabilities of a fully provisioned module with a volatile write cache, without any optional features and
+     * without a preferred transfer size.
+     */
+    public static final StorageCapabilities WRITE_BACK = new StorageCapabilities(false, false, 0, true);
+
+    /**
+     * The capabilities of a thin provisioned, write-through module which is able to deallocate storage space, without a
+     * preferred transfer size.
+     */
+    public static final StorageCapabilities THIN_PROVISIONED = new StorageCapabilities(true, true, 0, false);
+
+    /**
+     * The capabilities of a thin provisioned module with a volatile write cache, which is able to deallocate storage
+     * space, without a preferred transfer size.
+     */
+    public static final StorageCapabilities THIN_PROVISIONED_WRITE_BACK = new StorageCapabilities(true, true, 0, true);
+
+    /**
+     * <code>true</code> if storage space is only allocated when written to.
+     */
+    private final boolean thinProvisioned;
+
+    /**
+     * <code>true</code> if the module is able to deallocate storage space which is no longer used.
+     */
+    private final boolean unmapSupported;
+
+    /**
+     * The preferred number of bytes per read or write operation, or <code>0</code> if there is no such preference.
+     */
+    private final int optimalTransferSize;
+
+    /**
+     * <code>true</code> if written data is only durable after {@link IPositionalStorageModule#flush()}.
+     */
+    private final boolean volatileWriteCache;
+
+    /**
+     * The constructor.
+     *
+     * @param thinProvisioned     <code>true</code> if storage space is only allocated when written to
+     * @param unmapSupported      <code>true</code> if the module is able to deallocate storage space
+     * @param optimalTransferSize the preferred number of bytes per read or write operation, or <code>0</code> if there
+     *                            is no such preference
+     * @param volatileWriteCache  <code>true</code> if written data is only durable after
+     *                            {@link IPositionalStorageModule#flush()}
+     */
+    public StorageCapabilities(final boolean thinProvisioned, final boolean unmapSupported, final int optimalTransferSize, final boolean volatileWriteCache) {
+        if (optimalTransferSize < 0) {
+            throw new IllegalArgumentException("negative optimal transfer size: " + optimalTransferSize);
+        }
+        this.thinProvisioned = thinProvisioned;
+        this.unmapSupported = unmapSupported;
+        this.optimalTransferSize = optimalTransferSize;
+        this.volatileWriteCache = volatileWriteCache;
+    }
+
+    /**
+     * Returns <code>true</code> if storage space is only allocated when written to.
+     *
+     * @return <code>true</code> if the module is thin provisioned
+     */
+    public boolean isThinProvisioned() {
+        return thinProvisioned;
+    }
+
+    /**
+     * Returns <code>true</code> if the module is able to deallocate storage space which is no longer used.
+     *
+     * @return <code>true</code> if unmapping is supported
+     */
+    public boolean isUnmapSupported() {
+        return unmapSupported;
+    }
+
+    /**
+     * Returns the preferred number of bytes per read or write operation.
+     *
+     * @return the optimal transfer size in bytes, or <code>0</code> if there is no preference
+     */
+    public int getOptimalTransferSize() {
+        return optimalTransferSize;
+    }
+
+    /**
+     * Returns <code>true</code> if written data is only durable after {@link IPositionalStorageModule#flush()}, i.e. if
+     * the module has a volatile write cache.
+     *
+     * @return <code>true</code> if the module caches written data
+     */
+    public boolean hasVolatileWriteCache() {
+        return volatileWriteCache;
+    }
+
+    @Override
+    public String toString() {
+        return "StorageCapabilities [thinProvisioned=" + thinProvisioned + ", unmapSupported=" + unmapSupported + ", optimalTransferSize=" + optimalTransferSize + ", volatileWriteCache=" + volatileWriteCache + "]";
+    }
+}
@@ -0,0 +1,169 @@
+package org.jscsi.target.storage;
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+
+/**
+ * Copies ranges of logical blocks between storage modules of the jSCSI Target, so that the data of an
+ * <code>EXTENDED COPY</code> command does not have to pass through the initiator.
+ * <p>
+ * The range is copied in chunks, each of which is read and then written by a task of the passed {@link Executor}.
+ * Up to {@link #getDepth()} chunks are in flight at the same time, so reading the next chunks overlaps with writing the
+ * previous ones, while the memory used by a copy is limited to <code>depth * chunkSize</code> bytes. Each buffer is
+ * reused once the chunk it held has been written.
+ */
+public final class StorageCopier {
+
+    /**
+     * The default number of bytes read and written at once.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    /**
+     * The default number of chunks in flight.
+     */
+    public static final int DEFAULT_DEPTH = 4;
+
+    /**
+     * Executes the reads and writes.
+     */
+    private final Executor executor;
+
+    /**
+     * The number of bytes read and written at once.
+     */
+    private final int chunkSize;
+
+    /**
+     * The maximum number of chunks in flight.
+     */
+    private final int depth;
+
+    public StorageCopier(final Executor executor) {
+        this(executor, DEFAULT_CHUNK_SIZE, DEFAULT_DEPTH);
+    }
+
+    public StorageCopier(final Executor executor, final int chunkSize, final int depth) {
+        if (chunkSize <= 0 || depth <= 0) {
+            throw new IllegalArgumentException("chunk size and depth must be positive");
+        }
+        this.executor = executor;
+        this.chunkSize = chunkSize;
+        this.depth = depth;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Copies <i>length</i> bytes from one storage module to another one, or within the same module. Overlapping
+     * ranges of the same module are copied one chunk at a time, in the direction which does not overwrite data before
+     * it has been read.
+     *
+     * @param src      the module to copy from
+     * @param srcIndex the byte offset of the range in <i>src</i>
+     * @param dst      the module to copy to
+     * @param dstIndex the byte offset of the range in <i>dst</i>
+     * @param length   the number of bytes to copy
+     * @throws IOException          if the data could not be read or written
+     * @throws InterruptedException if the thread was interrupted while waiting for the copy to complete
+     */
+    public void copy(final IPositionalStorageModule src, final long srcIndex, final IPositionalStorageModule dst, final long dstIndex, final long length) throws IOException, InterruptedException {
+        if (src == dst && srcIndex < dstIndex + length && dstIndex < srcIndex + length) {
+            copyOverlapping(src, srcIndex, dstIndex, length);
+            return;
+        }
+
+        @SuppressWarnings("unchecked")
+        final CompletableFuture<Void>[] inFlight = new CompletableFuture[depth];
+        final ByteBuffer[] buffers = new ByteBuffer[depth];
+        int slot = 0;
+        try {
+            for (long offset = 0; offset < length; offset += chunkSize) {
+                // wait until the chunk which has last used the buffer has been written
+                if (inFlight[slot] != null) {
+                    await(inFlight[slot]);
+                }
+                if (buffers[slot] == null) {
+                    buffers[slot] = ByteBuffer.allocate((int) Math.min(chunkSize, length));
+                }
+                final ByteBuffer buffer = buffers[slot];
+                buffer.clear().limit((int) Math.min(chunkSize, length - offset));
+                final long chunkOffset = offset;
+                inFlight[slot] = CompletableFuture.runAsync(() -> {
+                    try {
+                        src.read(buffer, srcIndex + chunkOffset);
+                        buffer.flip();
+                        dst.write(buffer, dstIndex + chunkOffset);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }, executor);
+                slot = (slot + 1) % depth;
+            }
+        } finally {
+            // never return while a chunk is still in flight, even after a failure
+            for (final CompletableFuture<Void> future : inFlight) {
+                if (future != null) {
+                    try {
+                        future.join();
+                    } catch (CompletionException e) {
+                        // the first failure is reported by await
+                    }
+                }
+            }
+        }
+        for (final CompletableFuture<Void> future : inFlight) {
+            if (future != null) {
+                await(future);
+            }
+        }
+    }
+
+    /**
+     * Copies an overlapping range within the same module, backwards if the destination starts after the source.
+     */
+    private void copyOverlapping(final IPositionalStorageModule module, final long srcIndex, final long dstIndex, final long length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(chunkSize, length));
+        final boolean backwards = dstIndex > srcIndex;
+        for (long done = 0; done < length; done += buffer.limit()) {
+            final int n = (int) Math.min(chunkSize, length - done);
+            final long offset = backwards ? length - done - n : done;
+            buffer.clear().limit(n);
+            module.read(buffer, srcIndex + offset);
+            buffer.flip();
+            module.write(buffer, dstIndex + offset);
+        }
+    }
+
+    /**
+     * Waits for a chunk to be written, rethrowing the {@link IOException} which made it fail.
+     */
+    private static void await(final CompletableFuture<Void> future) throws IOException, InterruptedException {
+        try {
+            future.get();
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.jscsi.target.storage;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Makes an {@link IStorageModule} which only supports byte arrays usable as an {@link IPositionalStorageModule}.
+ * <p>
+ * Buffers which are not backed by an accessible array of exactly the transferred length are copied. The adapted module
+ * is expected to write through, so {@link #flush()} does nothing, and no optional features are reported. Note that the
+ * adapter does not make the adapted module thread-safe.
+ */
+public final class StorageModuleAdapter implements IPositionalStorageModule {
+
+    /**
+     * The adapted module.
+     */
+    private final IStorageModule module;
+
+    private StorageModuleAdapter(final IStorageModule module) {
+        this.module = module;
+    }
+
+    /**
+     * Returns the given module as an {@link IPositionalStorageModule}, wrapping it only if necessary.
+     *
+     * @param module the module to adapt
+     * @return <i>module</i> if it already implements {@link IPositionalStorageModule}, an adapter otherwise
+     */
+    public static IPositionalStorageModule adapt(final IStorageModule module) {
+        if (module instanceof IPositionalStorageModule) {
+            return (IPositionalStorageModule) module;
+        }
+        return new StorageModuleAdapter(module);
+    }
+
+    /**
+     * Returns the adapted module.
+     *
+     * @return the adapted module
+     */
+    public IStorageModule getModule() {
+        return module;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void read(final ByteBuffer dst, final long storageIndex) throws IOException {
+        final int length = dst.remaining();
+        if (isWholeArray(dst)) {
+            module.read(dst.array(), storageIndex);
+        } else {
+            final byte[] bytes = new byte[length];
+            module.read(bytes, storageIndex);
+            dst.duplicate().put(bytes);
+        }
+        dst.position(dst.position() + length);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final ByteBuffer src, final long storageIndex) throws IOException {
+        if (isWholeArray(src)) {
+            module.write(src.array(), storageIndex);
+            src.position(src.limit());
+        } else {
+            final byte[] bytes = new byte[src.remaining()];
+            src.get(bytes);
+            module.write(bytes, storageIndex);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void read(final byte[] bytes, final long storageIndex) throws IOException {
+        module.read(bytes, storageIndex);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void write(final byte[] bytes, final long storageIndex) throws IOException {
+        module.write(bytes, storageIndex);
+    }
+
+    /**
+     * Does nothing, since the adapted modules are expected to write through.
+     */
+    @Override
+    public void flush() throws IOException {
+        // nothing to do
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StorageCapabilities getCapabilities() {
+        return StorageCapabilities.DEFAULT;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int checkBounds(final long logicalBlockAddress, final int transferLengthInBlocks) {
+        return module.checkBounds(logicalBlockAddress, transferLengthInBlocks);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSizeInBlocks() {
+        return module.getSizeInBlocks();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBlockSize() {
+        return module.getBlockSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPhysicalBlockSize() {
+        return module.getPhysicalBlockSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void close() throws IOException {
+        module.close();
+    }
+
+    /**
+     * Returns <code>true</code> if the remaining bytes of the buffer are exactly the bytes of its backing array, which
+     * can therefore be passed to the adapted module without copying.
+     *
+     * @param buffer a buffer
+     * @return <code>true</code> if the buffer's array can be used directly
+     */
+    private static boolean isWholeArray(final ByteBuffer buffer) {
+        return buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && buffer.limit() == buffer.array().length;
+    }
+}
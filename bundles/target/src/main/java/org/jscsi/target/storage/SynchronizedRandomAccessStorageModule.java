@@ -4,29 +4,82 @@ package org.jscsi.target.storage;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 
+/**
+ * A thread-safe {@link RandomAccessStorageModule}. All accesses are serialized by a {@link Lock}, which, unlike
+ * <code>synchronized</code> methods, does not pin virtual threads while they are blocked in file I/O.
+ */
 public class SynchronizedRandomAccessStorageModule extends RandomAccessStorageModule implements IStorageModule {
 
-    private static final int VIRTUAL_BLOCK_SIZE = 512;
+    /**
+     * Serializes all reads and writes.
+     */
+    private final Lock lock = new ReentrantLock();
 
     public SynchronizedRandomAccessStorageModule(long sizeInBlocks, File file) throws FileNotFoundException {
         super(sizeInBlocks, file);
     }
 
+    public SynchronizedRandomAccessStorageModule(long sizeInBlocks, File file, boolean writeBack) throws FileNotFoundException {
+        super(sizeInBlocks, file, writeBack);
+    }
+
+    public SynchronizedRandomAccessStorageModule(long sizeInBlocks, File file, boolean writeBack, int blockSize, int physicalBlockSize) throws FileNotFoundException {
+        super(sizeInBlocks, file, writeBack, blockSize, physicalBlockSize);
+    }
+
+    @Override
+    public void read(byte[] bytes, long storageIndex) throws IOException {
+        lock.lock();
+        try {
+            super.read(bytes, storageIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] bytes, long storageIndex) throws IOException {
+        lock.lock();
+        try {
+            super.write(bytes, storageIndex);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
-    public synchronized void read(byte[] bytes, long storageIndex) throws IOException {
-        super.read(bytes, storageIndex);
+    public void read(ByteBuffer dst, long storageIndex) throws IOException {
+        lock.lock();
+        try {
+            super.read(dst, storageIndex);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public synchronized void write(byte[] bytes, long storageIndex) throws IOException {
-        super.write(bytes, storageIndex);
+    public void write(ByteBuffer src, long storageIndex) throws IOException {
+        lock.lock();
+        try {
+            super.write(src, storageIndex);
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
-    public int getBlockSize() {
-        return VIRTUAL_BLOCK_SIZE;
+    public boolean unmap(long storageIndex, long length) throws IOException {
+        lock.lock();
+        try {
+            return super.unmap(storageIndex, length);
+        } finally {
+            lock.unlock();
+        }
     }
 
 }
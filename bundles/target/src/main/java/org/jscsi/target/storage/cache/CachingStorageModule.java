@@ -0,0 +1,627 @@
+package org.jscsi.target.storage.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.IStorageModule;
+import org.jscsi.target.storage.StorageCapabilities;
+import org.jscsi.target.storage.StorageModuleAdapter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A decorator caching the data of any {@link IStorageModule} in fixed-size pages outside of the Java heap.
+ * <p>
+ * The cache is divided into shards, each one with its own lock, its own direct buffer holding the page frames and its
+ * own {@link PageReplacer}. Consecutive pages belong to different shards, so concurrent transfers rarely contend for
+ * the same lock, while all frames of a shard are managed by the configured {@link EvictionPolicy}.
+ * <p>
+ * Writes only modify the cached pages, which are written to the decorated module when they are evicted or when
+ * {@link #flush()} is called. The cache therefore acts as a volatile write cache, see
+ * {@link StorageCapabilities#hasVolatileWriteCache()}. Reads which continue where the previous read ended are
+ * considered sequential, and cause the following pages to be loaded ahead of time by the executor set with
+ * {@link #setReadAheadExecutor(Executor)}.
+ * <p>
+ * The lock of a shard is not held while pages are loaded from or written back to the decorated module. The frame is
+ * marked busy meanwhile, and threads accessing the page wait until it is available.
+ * <p>
+ * Hit rate, evictions and dirty bytes are counted by the module's {@link PageCacheStatistics}.
+ */
+public final class CachingStorageModule implements IPositionalStorageModule {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CachingStorageModule.class);
+
+    /**
+     * Runs readahead on the thread of the sequential read.
+     */
+    private static final Executor DIRECT_EXECUTOR = new Executor() {
+
+        @Override
+        public void execute(final Runnable command) {
+            command.run();
+        }
+    };
+
+    /**
+     * The decorated module.
+     */
+    private final IPositionalStorageModule module;
+
+    /**
+     * The size of each page in bytes, a power of two.
+     */
+    private final int pageSize;
+
+    /**
+     * The binary logarithm of {@link #pageSize}.
+     */
+    private final int pageShift;
+
+    /**
+     * The size of the medium in bytes.
+     */
+    private final long size;
+
+    private final Shard[] shards;
+
+    /**
+     * The number of pages to load ahead of sequential reads.
+     */
+    private final int readAheadPages;
+
+    /**
+     * The storage index following the last byte of the previous read. A read starting at this index is considered
+     * sequential. Updated without synchronization, since it is only a hint.
+     */
+    private volatile long nextSequentialIndex = -1;
+
+    /**
+     * Loads the pages ahead of sequential reads.
+     */
+    private volatile Executor readAheadExecutor = DIRECT_EXECUTOR;
+
+    private final PageCacheStatistics statistics;
+
+    /**
+     * Creates a new cache in front of the specified module.
+     *
+     * @param module         the module whose data is cached
+     * @param capacity       the size of the cache in bytes, which is rounded down to a multiple of
+     *                       <i>pageSize</i> * <i>shards</i>
+     * @param pageSize       the size of each page in bytes, a power of two and a multiple of the module's block size
+     * @param shards         the number of independently locked shards, a power of two
+     * @param policy         the algorithm choosing the pages to evict
+     * @param readAheadPages the number of pages to load ahead of sequential reads, <code>0</code> to disable readahead
+     */
+    public CachingStorageModule(final IStorageModule module, final long capacity, final int pageSize, final int shards, final EvictionPolicy policy, final int readAheadPages) {
+        if (pageSize <= 0 || Integer.bitCount(pageSize) != 1 || pageSize % module.getBlockSize() != 0) {
+            throw new IllegalArgumentException("illegal page size: " + pageSize);
+        }
+        if (shards <= 0 || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("illegal number of shards: " + shards);
+        }
+        final long framesPerShard = capacity / pageSize / shards;
+        if (framesPerShard < 1 || framesPerShard * pageSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("illegal capacity: " + capacity);
+        }
+        if (readAheadPages < 0) {
+            throw new IllegalArgumentException("negative readahead: " + readAheadPages);
+        }
+        this.module = StorageModuleAdapter.adapt(module);
+        this.pageSize = pageSize;
+        this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+        this.size = module.getSizeInBlocks() * module.getBlockSize();
+        this.readAheadPages = readAheadPages;
+        this.statistics = new PageCacheStatistics(framesPerShard * pageSize * shards);
+        this.shards = new Shard[shards];
+        for (int i = 0; i < shards; ++i) {
+            this.shards[i] = new Shard((int) framesPerShard, policy.createReplacer((int) framesPerShard));
+        }
+    }
+
+    /**
+     * Returns the metrics of this cache.
+     *
+     * @return the {@link PageCacheStatistics} of this cache
+     */
+    public PageCacheStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Sets the executor loading pages ahead of sequential reads, so that readahead does not delay the reads. Until this
+     * method has been called, pages are loaded by the thread of the sequential read.
+     *
+     * @param readAheadExecutor the executor for readahead
+     */
+    public void setReadAheadExecutor(final Executor readAheadExecutor) {
+        this.readAheadExecutor = readAheadExecutor;
+    }
+
+    /**
+     * Returns the decorated module.
+     *
+     * @return the module whose data is cached
+     */
+    public IPositionalStorageModule getModule() {
+        return module;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void read(final ByteBuffer dst, final long storageIndex) throws IOException {
+        long position = storageIndex;
+        while (dst.hasRemaining()) {
+            final long page = position >>> pageShift;
+            final int offset = (int) (position & (pageSize - 1));
+            final int length = Math.min(dst.remaining(), pageLength(page) - offset);
+            final Shard shard = shardOf(page);
+            shard.lock.lock();
+            try {
+                final int frame = shard.lookup(page, true, true);
+                dst.put(shard.view(frame, offset, length));
+            } finally {
+                shard.lock.unlock();
+            }
+            position += length;
+        }
+
+        if (readAheadPages > 0 && position > storageIndex) {
+            final boolean sequential = storageIndex == nextSequentialIndex;
+            nextSequentialIndex = position;
+            if (sequential) {
+                final long firstPage = ((position - 1) >>> pageShift) + 1;
+                try {
+                    readAheadExecutor.execute(new Runnable() {
+
+                        @Override
+                        public void run() {
+                            readAhead(firstPage);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // the executor has been shut down, readahead is only speculative
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads up to {@link #readAheadPages} pages starting at the specified page, unless they are already cached. Since
+     * readahead is only speculative, it silently stops if a page cannot be loaded.
+     *
+     * @param firstPage the index of the first page to load
+     */
+    private void readAhead(final long firstPage) {
+        for (long page = firstPage; page < firstPage + readAheadPages && page << pageShift < size; ++page) {
+            final Shard shard = shardOf(page);
+            shard.lock.lock();
+            try {
+                if (!shard.frames.containsKey(page)) {
+                    shard.lookup(page, true, false);
+                    statistics.readAhead();
+                }
+            } catch (IOException e) {
+                LOGGER.debug("Readahead of page " + page + " failed: " + e.getMessage());
+                return;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The data is only written to the cached pages, pages which are overwritten completely are not loaded first.
+     */
+    @Override
+    public void write(final ByteBuffer src, final long storageIndex) throws IOException {
+        long position = storageIndex;
+        while (src.hasRemaining()) {
+            final long page = position >>> pageShift;
+            final int offset = (int) (position & (pageSize - 1));
+            final int pageLength = pageLength(page);
+            final int length = Math.min(src.remaining(), pageLength - offset);
+            final Shard shard = shardOf(page);
+            shard.lock.lock();
+            try {
+                final int frame = shard.lookup(page, length < pageLength, true);
+                final int limit = src.limit();
+                src.limit(src.position() + length);
+                shard.view(frame, offset, length).put(src);
+                src.limit(limit);
+                if (!shard.dirty[frame]) {
+                    shard.dirty[frame] = true;
+                    statistics.dirtied(pageLength);
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Writes all dirty pages to the decorated module and flushes it.
+     *
+     * @throws IOException if the data could not be made durable
+     */
+    @Override
+    public void flush() throws IOException {
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.awaitIdle();
+                for (int frame = 0; frame < shard.pages.length; ++frame) {
+                    if (shard.dirty[frame]) {
+                        shard.writeBack(frame);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        module.flush();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Dirty cached pages overlapping the range are written to the decorated module first, so that their data cannot
+     * overwrite the range after it has been deallocated. If the decorated module has deallocated the range, the cached
+     * parts of it are zeroed as well.
+     */
+    @Override
+    public boolean unmap(final long storageIndex, final long length) throws IOException {
+        final long end = storageIndex + length;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.awaitIdle();
+                for (int frame : shard.frames.values()) {
+                    if (shard.dirty[frame] && overlaps(shard.pages[frame], storageIndex, end)) {
+                        shard.writeBack(frame);
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+
+        if (!module.unmap(storageIndex, length)) {
+            return false;
+        }
+
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                shard.awaitIdle();
+                for (int frame : shard.frames.values()) {
+                    final long page = shard.pages[frame];
+                    if (overlaps(page, storageIndex, end)) {
+                        final long start = page << pageShift;
+                        final int offset = (int) Math.max(0, storageIndex - start);
+                        final ByteBuffer view = shard.view(frame, offset, (int) (Math.min(end, start + pageLength(page)) - start) - offset);
+                        while (view.hasRemaining()) {
+                            view.put((byte) 0);
+                        }
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StorageCapabilities getCapabilities() {
+        final StorageCapabilities capabilities = module.getCapabilities();
+        return new StorageCapabilities(capabilities.isThinProvisioned(), capabilities.isUnmapSupported(), capabilities.getOptimalTransferSize(), true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int checkBounds(final long logicalBlockAddress, final int transferLengthInBlocks) {
+        return module.checkBounds(logicalBlockAddress, transferLengthInBlocks);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getSizeInBlocks() {
+        return module.getSizeInBlocks();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getBlockSize() {
+        return module.getBlockSize();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getPhysicalBlockSize() {
+        return module.getPhysicalBlockSize();
+    }
+
+    /**
+     * Writes all dirty pages to the decorated module and closes it.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+        module.close();
+    }
+
+    private Shard shardOf(final long page) {
+        return shards[(int) page & (shards.length - 1)];
+    }
+
+    /**
+     * Returns <code>true</code> if the specified page overlaps the range [<i>start</i>, <i>end</i>).
+     *
+     * @param page  the index of the page
+     * @param start the storage index of the first byte of the range
+     * @param end   the storage index following the last byte of the range
+     * @return <code>true</code> if any byte of the page lies within the range
+     * @throws IOException if the page lies outside of the medium
+     */
+    private boolean overlaps(final long page, final long start, final long end) throws IOException {
+        final long pageStart = page << pageShift;
+        return pageStart < end && pageStart + pageLength(page) > start;
+    }
+
+    /**
+     * Returns the number of bytes of the specified page which lie within the medium. Only the last page may be shorter
+     * than {@link #pageSize}.
+     *
+     * @param page the index of the page
+     * @return the length of the page
+     * @throws IOException if the page lies outside of the medium
+     */
+    private int pageLength(final long page) throws IOException {
+        final long start = page << pageShift;
+        if (page < 0 || start >= size) {
+            throw new IOException("storage index " + start + " is out of bounds");
+        }
+        return (int) Math.min(pageSize, size - start);
+    }
+
+    /**
+     * A part of the cache with its own lock, frames and replacement state. All methods must be called while holding
+     * {@link #lock}.
+     */
+    private final class Shard {
+
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /**
+         * Signalled whenever a frame is no longer busy.
+         */
+        private final Condition frameReady = lock.newCondition();
+
+        /**
+         * The page frames, frame <i>i</i> starting at byte <i>i</i> * {@link #pageSize}.
+         */
+        private final ByteBuffer buffer;
+
+        /**
+         * The page held by each frame.
+         */
+        private final long[] pages;
+
+        /**
+         * <code>true</code> for each frame holding modified data.
+         */
+        private final boolean[] dirty;
+
+        /**
+         * <code>true</code> for each frame whose page is being loaded or whose evicted page is being written back,
+         * {@link #busyFrameCount} of them. A busy frame is mapped to both pages and is not tracked by the
+         * {@link #replacer}.
+         */
+        private final boolean[] busy;
+
+        private int busyFrameCount;
+
+        /**
+         * The frame holding each cached page.
+         */
+        private final Map<Long, Integer> frames = new HashMap<>();
+
+        /**
+         * The frames holding no page, {@link #freeFrameCount} of them.
+         */
+        private final int[] freeFrames;
+
+        private int freeFrameCount;
+
+        private final PageReplacer replacer;
+
+        private Shard(final int frameCount, final PageReplacer replacer) {
+            this.buffer = ByteBuffer.allocateDirect(frameCount * pageSize);
+            this.pages = new long[frameCount];
+            this.dirty = new boolean[frameCount];
+            this.busy = new boolean[frameCount];
+            this.freeFrames = new int[frameCount];
+            for (int frame = 0; frame < frameCount; ++frame) {
+                freeFrames[frame] = frameCount - 1 - frame;
+            }
+            this.freeFrameCount = frameCount;
+            this.replacer = replacer;
+        }
+
+        /**
+         * Returns the frame holding the specified page, loading or allocating it if necessary.
+         * <p>
+         * If the page has to be loaded, or if the evicted page is dirty, the lock is released while the decorated
+         * module is accessed. Meanwhile the frame is busy, so that other threads accessing either page wait for it.
+         *
+         * @param page   the index of the page
+         * @param load   <code>true</code> if the page has to be loaded from the decorated module when missing,
+         *               <code>false</code> if it is going to be overwritten completely
+         * @param demand <code>true</code> if the page is accessed on behalf of a request and has to be counted
+         * @return the index of the frame
+         * @throws IOException if the page could not be loaded, or if another page could not be evicted
+         */
+        private int lookup(final long page, final boolean load, final boolean demand) throws IOException {
+            // wait for a busy page, or for a frame if all of them are busy
+            Integer cached = frames.get(page);
+            while (cached != null ? busy[cached] : freeFrameCount == 0 && busyFrameCount == pages.length) {
+                frameReady.awaitUninterruptibly();
+                cached = frames.get(page);
+            }
+            if (cached != null) {
+                if (demand) {
+                    statistics.hit();
+                }
+                replacer.accessed(cached);
+                return cached;
+            }
+            if (demand) {
+                statistics.miss();
+            }
+
+            final int frame;
+            final long evictedPage;
+            if (freeFrameCount > 0) {
+                frame = freeFrames[--freeFrameCount];
+                evictedPage = -1;
+            } else {
+                frame = replacer.victim();
+                evictedPage = pages[frame];
+            }
+            final boolean writeBack = dirty[frame];
+            if (!load && !writeBack) {
+                evicted(evictedPage);
+                admit(frame, page);
+                return frame;
+            }
+
+            busy[frame] = true;
+            ++busyFrameCount;
+            frames.put(page, frame);
+            boolean writtenBack = !writeBack;
+            boolean loaded = false;
+            lock.unlock();
+            try {
+                if (writeBack) {
+                    module.write(view(frame, 0, pageLength(evictedPage)), evictedPage << pageShift);
+                    writtenBack = true;
+                }
+                if (load) {
+                    module.read(view(frame, 0, pageLength(page)), page << pageShift);
+                }
+                loaded = true;
+            } finally {
+                lock.lock();
+                busy[frame] = false;
+                --busyFrameCount;
+                frames.remove(page);
+                if (!writtenBack) {
+                    // keep the evicted page, so that its data is not lost
+                    replacer.admitted(frame, evictedPage);
+                } else {
+                    if (writeBack) {
+                        dirty[frame] = false;
+                        statistics.writtenBack(pageLength(evictedPage));
+                    }
+                    evicted(evictedPage);
+                    if (loaded) {
+                        admit(frame, page);
+                    } else {
+                        freeFrames[freeFrameCount++] = frame;
+                    }
+                }
+                frameReady.signalAll();
+            }
+            return frame;
+        }
+
+        /**
+         * Removes an evicted page from the cache.
+         *
+         * @param page the index of the evicted page, or <code>-1</code> if a free frame has been used
+         */
+        private void evicted(final long page) {
+            if (page >= 0) {
+                frames.remove(page);
+                statistics.evicted();
+            }
+        }
+
+        /**
+         * Makes a frame hold the specified page.
+         *
+         * @param frame the index of the frame
+         * @param page  the index of the page
+         */
+        private void admit(final int frame, final long page) {
+            pages[frame] = page;
+            frames.put(page, frame);
+            replacer.admitted(frame, page);
+        }
+
+        /**
+         * Waits until no frame is busy, releasing the lock meanwhile.
+         */
+        private void awaitIdle() {
+            while (busyFrameCount > 0) {
+                frameReady.awaitUninterruptibly();
+            }
+        }
+
+        /**
+         * Writes a dirty page to the decorated module.
+         *
+         * @param frame the frame holding the page
+         * @throws IOException if the page could not be written
+         */
+        private void writeBack(final int frame) throws IOException {
+            final long page = pages[frame];
+            final int length = pageLength(page);
+            module.write(view(frame, 0, length), page << pageShift);
+            dirty[frame] = false;
+            statistics.writtenBack(length);
+        }
+
+        /**
+         * Returns a view of a part of a frame.
+         *
+         * @param frame  the index of the frame
+         * @param offset the offset within the frame
+         * @param length the number of bytes
+         * @return a buffer whose remaining bytes are the specified part of the frame
+         */
+        private ByteBuffer view(final int frame, final int offset, final int length) {
+            final ByteBuffer view = buffer.duplicate();
+            final int position = frame * pageSize + offset;
+            view.limit(position + length);
+            view.position(position);
+            return view;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.jscsi.target.storage.cache;
+
+/**
+ * Approximates LRU with a single reference bit per frame. A clock hand sweeps over the frames, clearing set bits, and
+ * evicts the first page whose bit is already clear. Unlike {@link LruReplacer}, hits only set a bit and never reorder a
+ * list.
+ */
+final class ClockReplacer extends PageReplacer {
+
+    /**
+     * <code>true</code> for each frame whose page has been accessed since the hand last passed it.
+     */
+    private final boolean[] referenced;
+
+    /**
+     * <code>true</code> for each frame holding a page.
+     */
+    private final boolean[] occupied;
+
+    /**
+     * The next frame to be inspected.
+     */
+    private int hand;
+
+    ClockReplacer(final int frames) {
+        referenced = new boolean[frames];
+        occupied = new boolean[frames];
+    }
+
+    @Override
+    void admitted(final int frame, final long page) {
+        occupied[frame] = true;
+        referenced[frame] = true;
+    }
+
+    @Override
+    void accessed(final int frame) {
+        referenced[frame] = true;
+    }
+
+    @Override
+    int victim() {
+        while (true) {
+            final int frame = hand;
+            hand = (hand + 1) % occupied.length;
+            if (occupied[frame]) {
+                if (referenced[frame]) {
+                    referenced[frame] = false;
+                } else {
+                    occupied[frame] = false;
+                    return frame;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.jscsi.target.storage.cache;
+
+/**
+ * The algorithms a {@link CachingStorageModule} can use to choose the pages to evict.
+ */
+public enum EvictionPolicy {
+
+    /**
+     * Evicts the least recently used page.
+     */
+    LRU {
+
+        @Override
+        PageReplacer createReplacer(final int frames) {
+            return new LruReplacer(frames);
+        }
+    },
+
+    /**
+     * Approximates LRU with reference bits, so that hits do not have to reorder a list.
+     */
+    CLOCK {
+
+        @Override
+        PageReplacer createReplacer(final int frames) {
+            return new ClockReplacer(frames);
+        }
+    },
+
+    /**
+     * Keeps pages which have been accessed only once separate from frequently accessed ones, so that sequential scans
+     * do not flush the cache.
+     */
+    TWO_Q {
+
+        @Override
+        PageReplacer createReplacer(final int frames) {
+            return new TwoQueueReplacer(frames);
+        }
+    };
+
+    /**
+     * Creates a replacer implementing this policy for a shard with the specified number of frames.
+     *
+     * @param frames the number of frames of the shard
+     * @return a new {@link PageReplacer}
+     */
+    abstract PageReplacer createReplacer(int frames);
+}
@@ -0,0 +1,118 @@
+package org.jscsi.target.storage.cache;
+
+import java.util.Arrays;
+
+/**
+ * A doubly linked list of frame indices, stored in arrays so that no objects are allocated when frames are added,
+ * moved or removed. Each frame can be contained at most once.
+ */
+final class FrameList {
+
+    private static final int NONE = -1;
+
+    /**
+     * The predecessor of each frame, i.e. the frame closer to the head.
+     */
+    private final int[] previous;
+
+    /**
+     * The successor of each frame, i.e. the frame closer to the tail.
+     */
+    private final int[] next;
+
+    /**
+     * <code>true</code> for each frame contained in the list.
+     */
+    private final boolean[] contained;
+
+    private int head = NONE;
+
+    private int tail = NONE;
+
+    private int size;
+
+    FrameList(final int frames) {
+        previous = new int[frames];
+        next = new int[frames];
+        contained = new boolean[frames];
+        Arrays.fill(previous, NONE);
+        Arrays.fill(next, NONE);
+    }
+
+    /**
+     * Inserts a frame, which must not be contained yet, at the head of the list.
+     *
+     * @param frame the frame to insert
+     */
+    void addFirst(final int frame) {
+        previous[frame] = NONE;
+        next[frame] = head;
+        if (head != NONE) {
+            previous[head] = frame;
+        } else {
+            tail = frame;
+        }
+        head = frame;
+        contained[frame] = true;
+        ++size;
+    }
+
+    /**
+     * Removes a frame from the list.
+     *
+     * @param frame the frame to remove
+     * @return <code>true</code> if the frame was contained in the list
+     */
+    boolean remove(final int frame) {
+        if (!contained[frame]) {
+            return false;
+        }
+        if (previous[frame] != NONE) {
+            next[previous[frame]] = next[frame];
+        } else {
+            head = next[frame];
+        }
+        if (next[frame] != NONE) {
+            previous[next[frame]] = previous[frame];
+        } else {
+            tail = previous[frame];
+        }
+        previous[frame] = NONE;
+        next[frame] = NONE;
+        contained[frame] = false;
+        --size;
+        return true;
+    }
+
+    /**
+     * Removes the frame at the tail of the list.
+     *
+     * @return the removed frame, or <code>-1</code> if the list is empty
+     */
+    int removeLast() {
+        final int frame = tail;
+        if (frame != NONE) {
+            remove(frame);
+        }
+        return frame;
+    }
+
+    /**
+     * Moves a contained frame to the head of the list.
+     *
+     * @param frame the frame to move
+     */
+    void moveToFront(final int frame) {
+        if (head != frame && remove(frame)) {
+            addFirst(frame);
+        }
+    }
+
+    boolean contains(final int frame) {
+        return contained[frame];
+    }
+
+    int size() {
+        return size;
+    }
+}
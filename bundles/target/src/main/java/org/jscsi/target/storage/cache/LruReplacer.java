@@ -0,0 +1,31 @@
+package org.jscsi.target.storage.cache;
+
+/**
+ * Evicts the least recently used page.
+ */
+final class LruReplacer extends PageReplacer {
+
+    /**
+     * All frames holding a page, the most recently used one at the head.
+     */
+    private final FrameList recency;
+
+    LruReplacer(final int frames) {
+        recency = new FrameList(frames);
+    }
+
+    @Override
+    void admitted(final int frame, final long page) {
+        recency.addFirst(frame);
+    }
+
+    @Override
+    void accessed(final int frame) {
+        recency.moveToFront(frame);
+    }
+
+    @Override
+    int victim() {
+        return recency.removeLast();
+    }
+}
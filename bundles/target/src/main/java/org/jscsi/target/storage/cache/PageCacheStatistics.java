@@ -0,0 +1,129 @@
+package org.jscsi.target.storage.cache;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The metrics of a {@link CachingStorageModule}. All counters are updated without locking and may be read at any time,
+ * so the values of different counters are not necessarily consistent with each other.
+ */
+public final class PageCacheStatistics implements PageCacheStatisticsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageCacheStatistics.class);
+
+    /**
+     * The domain and type of the names under which statistics are registered.
+     */
+    private static final String OBJECT_NAME_PREFIX = "org.jscsi.target:type=PageCache,name=";
+
+    private final long capacity;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder readAheadPages = new LongAdder();
+
+    private final LongAdder writtenBackPages = new LongAdder();
+
+    private final AtomicLong dirtyBytes = new AtomicLong();
+
+    PageCacheStatistics(final long capacity) {
+        this.capacity = capacity;
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    void evicted() {
+        evictions.increment();
+    }
+
+    void readAhead() {
+        readAheadPages.increment();
+    }
+
+    void dirtied(final int bytes) {
+        dirtyBytes.addAndGet(bytes);
+    }
+
+    void writtenBack(final int bytes) {
+        writtenBackPages.increment();
+        dirtyBytes.addAndGet(-bytes);
+    }
+
+    @Override
+    public long getCapacity() {
+        return capacity;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRate() {
+        final long hits = getHits();
+        final long accesses = hits + getMisses();
+        return accesses == 0 ? 0 : (double) hits / accesses;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getReadAheadPages() {
+        return readAheadPages.sum();
+    }
+
+    @Override
+    public long getWrittenBackPages() {
+        return writtenBackPages.sum();
+    }
+
+    @Override
+    public long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server, so that they can be monitored with any JMX client.
+     * Failures are logged, since the cache works without being monitored.
+     *
+     * @param name the name identifying the cache, e.g. the name of the target using it
+     */
+    public void register(final String name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(name)));
+        } catch (JMException e) {
+            LOGGER.warn("Unable to register page cache statistics of " + name + ": " + e.getMessage());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PageCacheStatistics [capacity=" + capacity + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + ", readAheadPages=" + getReadAheadPages() + ", writtenBackPages=" + getWrittenBackPages() + ", dirtyBytes=" + getDirtyBytes() + "]";
+    }
+}
@@ -0,0 +1,66 @@
+package org.jscsi.target.storage.cache;
+
+/**
+ * The management interface of {@link PageCacheStatistics}, which exposes the metrics of a {@link CachingStorageModule}
+ * via JMX.
+ */
+public interface PageCacheStatisticsMXBean {
+
+    /**
+     * Returns the size of the cache.
+     *
+     * @return the number of bytes which can be cached
+     */
+    long getCapacity();
+
+    /**
+     * Returns the number of page accesses by reads and writes which were served from the cache.
+     *
+     * @return the number of hits
+     */
+    long getHits();
+
+    /**
+     * Returns the number of page accesses by reads and writes which required a page to be loaded or allocated.
+     *
+     * @return the number of misses
+     */
+    long getMisses();
+
+    /**
+     * Returns the fraction of page accesses which were served from the cache.
+     *
+     * @return the hit rate between <code>0</code> and <code>1</code>, or <code>0</code> if there was no access yet
+     */
+    double getHitRate();
+
+    /**
+     * Returns the number of pages evicted to make room for other pages.
+     *
+     * @return the number of evictions
+     */
+    long getEvictions();
+
+    /**
+     * Returns the number of pages loaded ahead of sequential reads.
+     *
+     * @return the number of pages read ahead
+     */
+    long getReadAheadPages();
+
+    /**
+     * Returns the number of dirty pages written to the underlying storage module, either when evicted or when
+     * flushed.
+     *
+     * @return the number of written pages
+     */
+    long getWrittenBackPages();
+
+    /**
+     * Returns the number of cached bytes which have been modified but not yet written to the underlying storage
+     * module.
+     *
+     * @return the number of dirty bytes
+     */
+    long getDirtyBytes();
+}
@@ -0,0 +1,33 @@
+package org.jscsi.target.storage.cache;
+
+/**
+ * Decides which frame of a cache shard is reused when a page has to be loaded and no frame is free.
+ * <p>
+ * Frames are identified by their index within the shard. Replacers are not thread-safe, they are only used while the
+ * lock of their shard is held.
+ */
+abstract class PageReplacer {
+
+    /**
+     * Called after a page has been loaded into a frame.
+     *
+     * @param frame the frame now holding the page
+     * @param page  the index of the page
+     */
+    abstract void admitted(int frame, long page);
+
+    /**
+     * Called whenever a cached page is accessed.
+     *
+     * @param frame the frame holding the page
+     */
+    abstract void accessed(int frame);
+
+    /**
+     * Chooses a frame whose page is to be evicted and stops tracking it. Only called if all frames of the shard hold
+     * a page.
+     *
+     * @return the index of the chosen frame
+     */
+    abstract int victim();
+}
@@ -0,0 +1,84 @@
+package org.jscsi.target.storage.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * The full version of the 2Q algorithm by Johnson and Shasha, which keeps pages accessed only once from displacing
+ * frequently accessed ones. This protects the cache against large sequential scans.
+ * <p>
+ * Newly loaded pages enter the FIFO queue <i>A1in</i>. Pages evicted from <i>A1in</i> are remembered, without their
+ * data, in the ghost queue <i>A1out</i>. A page which is loaded again while still remembered enters the LRU queue
+ * <i>Am</i>, from which it is only evicted when <i>A1in</i> holds no more than its share of the frames.
+ */
+final class TwoQueueReplacer extends PageReplacer {
+
+    /**
+     * The frames holding pages accessed only once, the most recently loaded one at the head.
+     */
+    private final FrameList a1in;
+
+    /**
+     * The frames holding frequently accessed pages, the most recently used one at the head.
+     */
+    private final FrameList am;
+
+    /**
+     * The pages recently evicted from {@link #a1in}, in the order of their eviction.
+     */
+    private final LinkedHashSet<Long> a1out = new LinkedHashSet<>();
+
+    /**
+     * The page held by each frame.
+     */
+    private final long[] pages;
+
+    /**
+     * The number of frames {@link #a1in} may hold before its pages are evicted first, a quarter of all frames.
+     */
+    private final int maxA1inSize;
+
+    /**
+     * The number of pages remembered in {@link #a1out}, half the number of frames.
+     */
+    private final int maxA1outSize;
+
+    TwoQueueReplacer(final int frames) {
+        a1in = new FrameList(frames);
+        am = new FrameList(frames);
+        pages = new long[frames];
+        maxA1inSize = Math.max(1, frames / 4);
+        maxA1outSize = Math.max(1, frames / 2);
+    }
+
+    @Override
+    void admitted(final int frame, final long page) {
+        pages[frame] = page;
+        if (a1out.remove(page)) {
+            am.addFirst(frame);
+        } else {
+            a1in.addFirst(frame);
+        }
+    }
+
+    @Override
+    void accessed(final int frame) {
+        // hits in A1in are ignored, since they are usually correlated with the first access
+        am.moveToFront(frame);
+    }
+
+    @Override
+    int victim() {
+        if (a1in.size() > maxA1inSize || am.size() == 0) {
+            final int frame = a1in.removeLast();
+            a1out.add(pages[frame]);
+            if (a1out.size() > maxA1outSize) {
+                final Iterator<Long> oldest = a1out.iterator();
+                oldest.next();
+                oldest.remove();
+            }
+            return frame;
+        }
+        return am.removeLast();
+    }
+}
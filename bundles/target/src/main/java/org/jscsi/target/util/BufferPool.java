@@ -0,0 +1,286 @@
+package org.jscsi.target.util;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A pool of direct {@link ByteBuffer}s, which are kept outside the Java heap and can therefore be handed to channels
+ * without being copied first.
+ * <p>
+ * Buffers are organized in size classes, each one a power of two between {@link #MIN_BUFFER_SIZE} and
+ * {@link #MAX_BUFFER_SIZE} bytes. {@link #lease(int)} returns a buffer of the smallest sufficient size class, which
+ * should be returned by {@link #release(ByteBuffer)} as soon as its content is no longer needed. Released buffers are
+ * kept for later leases, as long as all size classes together hold less than <code>capacity</code> bytes. Buffers which
+ * are never released are simply reclaimed by the garbage collector.
+ * <p>
+ * A single pool is shared by all connections of a target, so that the direct memory kept by the target is bounded by
+ * the capacity of the pool, regardless of the number of connections. The pool is thread-safe, and the free lists are
+ * bounded array queues, so that leasing a pooled buffer and releasing a buffer does not allocate any objects.
+ * <p>
+ * The pool only accepts buffers it has leased and which have not been released since. It therefore keeps a weak
+ * reference to each buffer it has allocated, which does not prevent leased buffers from being reclaimed. A buffer moves
+ * from leased to pooled by a compare-and-set, so of several concurrent releases of the same buffer only one takes
+ * effect. A buffer must nevertheless not be released again once it may have been leased again, since that release
+ * cannot be told apart from the one of the new lessee.
+ */
+public final class BufferPool {
+
+    /**
+     * The size of the smallest size class in bytes.
+     */
+    public static final int MIN_BUFFER_SIZE = 1 << 9;
+
+    /**
+     * The size of the largest size class in bytes, which is large enough for any data segment, since the
+     * <code>DataSegmentLength</code> field of a Basic Header Segment is three bytes long.
+     */
+    public static final int MAX_BUFFER_SIZE = 1 << 24;
+
+    /**
+     * The default maximum number of bytes kept by a pool.
+     */
+    public static final long DEFAULT_CAPACITY = 64L << 20;
+
+    /**
+     * The maximum number of buffers kept by each size class, which limits the length of the free lists of the small
+     * size classes.
+     */
+    private static final int MAX_BUFFERS_PER_SIZE_CLASS = 1024;
+
+    /**
+     * The maximum number of bytes kept by this pool.
+     */
+    private final long capacity;
+
+    /**
+     * The number of bytes currently kept by this pool.
+     */
+    private final AtomicLong pooledBytes = new AtomicLong();
+
+    /**
+     * The released buffers of each size class, the buffers of size class <code>i</code> having a capacity of
+     * <code>{@link #MIN_BUFFER_SIZE} &lt;&lt; i</code> bytes.
+     */
+    private final ArrayBlockingQueue<Allocation>[] freeLists;
+
+    /**
+     * Moves an {@link Allocation} from leased to pooled.
+     */
+    private static final AtomicReferenceFieldUpdater<Allocation, ByteBuffer> POOLED = AtomicReferenceFieldUpdater.newUpdater(Allocation.class, ByteBuffer.class, "pooled");
+
+    /**
+     * The buffers allocated by this pool.
+     */
+    private final Allocations allocations = new Allocations();
+
+    /**
+     * Creates a pool keeping up to {@link #DEFAULT_CAPACITY} bytes.
+     */
+    public BufferPool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * The constructor.
+     *
+     * @param capacity the maximum number of bytes kept by the pool
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(final long capacity) {
+        this.capacity = capacity;
+        final int sizeClasses = getSizeClass(MAX_BUFFER_SIZE) + 1;
+        freeLists = new ArrayBlockingQueue[sizeClasses];
+        for (int i = 0; i < sizeClasses; ++i) {
+            freeLists[i] = new ArrayBlockingQueue<>((int) Math.max(1, Math.min(MAX_BUFFERS_PER_SIZE_CLASS, capacity / (MIN_BUFFER_SIZE << i))));
+        }
+    }
+
+    /**
+     * Returns a direct buffer with a capacity of at least <i>length</i> bytes, its position set to zero and its limit
+     * set to <i>length</i>.
+     * <p>
+     * Note that the returned buffer may have been used before and therefore its content is not guaranteed to be
+     * <code>0</code>.
+     *
+     * @param length the required number of bytes
+     * @return a direct buffer with <i>length</i> bytes remaining
+     */
+    public ByteBuffer lease(final int length) {
+        if (length < 0 || length > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("unsupported buffer length: " + length);
+        }
+        final int sizeClass = getSizeClass(length);
+        final Allocation allocation = freeLists[sizeClass].poll();
+        final ByteBuffer buffer;
+        if (allocation == null) {
+            buffer = ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << sizeClass);
+            allocations.add(buffer);
+        } else {
+            buffer = allocation.pooled;
+            allocation.pooled = null;
+            pooledBytes.addAndGet(-buffer.capacity());
+            buffer.clear();
+        }
+        buffer.limit(length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer obtained by {@link #lease(int)} to this pool. The buffer must not be used by the caller
+     * afterwards. Buffers which have not been leased from this pool, or which are still kept by the pool since they
+     * have been released, are ignored.
+     *
+     * @param buffer the buffer to return
+     */
+    public void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        final Allocation allocation = allocations.get(buffer);
+        if (allocation == null || !POOLED.compareAndSet(allocation, null, buffer)) {
+            return;
+        }
+        // the buffer is left to the garbage collector if the pool or its size class is full
+        final int size = buffer.capacity();
+        if (pooledBytes.addAndGet(size) > capacity || !freeLists[getSizeClass(size)].offer(allocation)) {
+            pooledBytes.addAndGet(-size);
+            allocation.pooled = null;
+        }
+    }
+
+    /**
+     * Returns the number of released buffers currently kept by this pool.
+     *
+     * @return the number of pooled buffers
+     */
+    public int size() {
+        int size = 0;
+        for (ArrayBlockingQueue<Allocation> freeList : freeLists) {
+            size += freeList.size();
+        }
+        return size;
+    }
+
+    /**
+     * Returns the number of bytes currently kept by this pool.
+     *
+     * @return the capacity of all pooled buffers
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * Returns the index of the smallest size class with buffers of at least <i>length</i> bytes.
+     *
+     * @param length a buffer length
+     * @return the index of the size class
+     */
+    private static int getSizeClass(final int length) {
+        if (length <= MIN_BUFFER_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+    /**
+     * A buffer allocated by the pool. The buffer is only referenced strongly while it is pooled.
+     */
+    private static final class Allocation extends WeakReference<ByteBuffer> {
+
+        /**
+         * The identity hash code of the buffer.
+         */
+        private final int hash;
+
+        /**
+         * The next allocation in the same bucket.
+         */
+        private Allocation next;
+
+        /**
+         * The buffer while it is kept by the pool, <code>null</code> while it is leased. Not private, so that
+         * {@link BufferPool#POOLED} can access it before Java 11.
+         */
+        volatile ByteBuffer pooled;
+
+        private Allocation(final ByteBuffer buffer, final int hash, final ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.hash = hash;
+        }
+    }
+
+    /**
+     * A hash table of the {@link Allocation}s of the pool, keyed by the identity of their buffers. Lookups do not
+     * allocate any objects, and the allocations of reclaimed buffers are removed whenever a buffer is added.
+     */
+    private static final class Allocations {
+
+        private final ReferenceQueue<ByteBuffer> reclaimed = new ReferenceQueue<>();
+
+        private Allocation[] buckets = new Allocation[64];
+
+        private int size;
+
+        synchronized void add(final ByteBuffer buffer) {
+            expungeReclaimed();
+            if (size >= buckets.length - (buckets.length >> 2)) {
+                resize();
+            }
+            final int hash = System.identityHashCode(buffer);
+            final int index = hash & (buckets.length - 1);
+            final Allocation allocation = new Allocation(buffer, hash, reclaimed);
+            allocation.next = buckets[index];
+            buckets[index] = allocation;
+            ++size;
+        }
+
+        synchronized Allocation get(final ByteBuffer buffer) {
+            final int hash = System.identityHashCode(buffer);
+            for (Allocation allocation = buckets[hash & (buckets.length - 1)]; allocation != null; allocation = allocation.next) {
+                if (allocation.get() == buffer) {
+                    return allocation;
+                }
+            }
+            return null;
+        }
+
+        private void expungeReclaimed() {
+            Allocation reclaimedAllocation;
+            while ((reclaimedAllocation = (Allocation) reclaimed.poll()) != null) {
+                final int index = reclaimedAllocation.hash & (buckets.length - 1);
+                Allocation previous = null;
+                for (Allocation allocation = buckets[index]; allocation != null; allocation = allocation.next) {
+                    if (allocation == reclaimedAllocation) {
+                        if (previous == null) {
+                            buckets[index] = allocation.next;
+                        } else {
+                            previous.next = allocation.next;
+                        }
+                        --size;
+                        break;
+                    }
+                    previous = allocation;
+                }
+            }
+        }
+
+        private void resize() {
+            final Allocation[] resized = new Allocation[buckets.length << 1];
+            for (Allocation allocation : buckets) {
+                while (allocation != null) {
+                    final Allocation next = allocation.next;
+                    final int index = allocation.hash & (resized.length - 1);
+                    allocation.next = resized[index];
+                    resized[index] = allocation;
+                    allocation = next;
+                }
+            }
+            buckets = resized;
+        }
+    }
+}
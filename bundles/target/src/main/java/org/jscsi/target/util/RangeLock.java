@@ -0,0 +1,119 @@
+package org.jscsi.target.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A {@link RangeLock} grants exclusive access to byte ranges of a resource, so that writes to disjoint ranges may
+ * proceed in parallel, while overlapping ones are serialized.
+ * <p>
+ * The number of ranges held at the same time is limited by the number of commands in progress, so the held ranges are
+ * kept in a plain list. The list is guarded by a {@link Lock}, which, unlike <code>synchronized</code> blocks, does not
+ * pin virtual threads while they are waiting for a range.
+ * <p>
+ * A range is acquired for every Data-Out PDU written, so released {@link Range} objects are kept and reused by the
+ * next {@link #lock(long, long)}, which therefore does not allocate any objects once the lock has been in use.
+ */
+public final class RangeLock {
+
+    /**
+     * A held range, which is released by {@link #close()}. The object is reused for another range afterwards, so it
+     * must be closed exactly once and must not be used after it has been closed.
+     */
+    public final class Range implements AutoCloseable {
+
+        /**
+         * The first byte of the range.
+         */
+        private long start;
+
+        /**
+         * The first byte after the range.
+         */
+        private long end;
+
+        private boolean overlaps(final long otherStart, final long otherEnd) {
+            return start < otherEnd && otherStart < end;
+        }
+
+        /**
+         * Releases the range and wakes up all threads waiting for an overlapping range.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                if (held.remove(this)) {
+                    free.push(this);
+                }
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Guards {@link #held}.
+     */
+    private final Lock lock = new ReentrantLock();
+
+    /**
+     * Signalled whenever a range has been released.
+     */
+    private final Condition released = lock.newCondition();
+
+    /**
+     * The ranges which are currently held.
+     */
+    private final List<Range> held = new ArrayList<>();
+
+    /**
+     * The released ranges, which are reused by {@link #lock(long, long)}.
+     */
+    private final Deque<Range> free = new ArrayDeque<>();
+
+    /**
+     * Acquires the range of <i>length</i> bytes starting at <i>start</i>, blocking while any overlapping range is held.
+     * Ranges are not reentrant, a thread holding a range must not acquire an overlapping one.
+     *
+     * @param start  the first byte of the range
+     * @param length the length of the range in bytes
+     * @return the held range, which must be closed to release it
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Range lock(final long start, final long length) throws InterruptedException {
+        final long end = start + length;
+        lock.lock();
+        try {
+            while (overlapsHeldRange(start, end)) {
+                released.await();
+            }
+            Range range = free.poll();
+            if (range == null) {
+                range = new Range();
+            }
+            range.start = start;
+            range.end = end;
+            held.add(range);
+            return range;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean overlapsHeldRange(final long start, final long end) {
+        // indexed, since an iterator would be allocated for each range
+        for (int i = 0; i < held.size(); ++i) {
+            if (held.get(i).overlaps(start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
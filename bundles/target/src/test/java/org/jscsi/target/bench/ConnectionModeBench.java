@@ -0,0 +1,288 @@
+package org.jscsi.target.bench;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.login.ISID;
+import org.jscsi.parser.login.LoginRequestParser;
+import org.jscsi.parser.login.LoginStage;
+import org.jscsi.target.TargetServer;
+import org.jscsi.target.context.Configuration;
+import org.jscsi.target.context.ConnectionMode;
+import org.jscsi.target.context.Target;
+import org.jscsi.target.storage.RandomAccessStorageModule;
+
+
+/**
+ * Compares the {@link ConnectionMode}s of the target with a large number of mostly idle sessions.
+ * <p>
+ * For every mode, a target with a single file-backed logical unit is started and the configured number of normal
+ * sessions is logged in. Once all sessions are idle, the heap usage and the number of live platform threads are
+ * reported. Afterwards a small subset of the sessions pings the target with NOP-Out PDUs while all other sessions stay
+ * idle, and the number of round trips per second is reported.
+ * <p>
+ * Finally the same sessions issue <code>READ (10)</code> commands, {@link #QUEUE_DEPTH} at a time, which the target
+ * executes concurrently. The number of reads per second and the peak number of additional platform threads during the
+ * reads are reported, the latter being independent of the number of sessions in
+ * {@link ConnectionMode#VIRTUAL_THREAD} mode.
+ * <p>
+ * Usage: <code>ConnectionModeBench [sessions] [activeSessions] [pingsPerSession] [readsPerSession]</code>
+ */
+public class ConnectionModeBench {
+
+    static final String ADDRESS = "127.0.0.1";
+
+    static final int FIRST_PORT = 13260;
+
+    static final int BHS_LENGTH = 48;
+
+    static final String TARGET_NAME = "iqn.2014-01.org.jscsi:bench";
+
+    static final int BLOCK_SIZE = 512;
+
+    static final int STORAGE_BLOCKS = 8192;
+
+    static final int READ_BLOCKS = 8;
+
+    static final int COMMAND_WINDOW = 8;
+
+    /**
+     * The number of <code>READ</code> commands each active session keeps outstanding.
+     */
+    static final int QUEUE_DEPTH = 4;
+
+    public static void main (String[] args) throws Exception {
+        final int sessions = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final int activeSessions = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        final int pings = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+        final int reads = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+
+        System.out.println("mode                 sessions  heap [KiB]  threads  pings/s  reads/s  I/O threads");
+        int port = FIRST_PORT;
+        for (ConnectionMode mode : ConnectionMode.values()) {
+            run(mode, port++, sessions, activeSessions, pings, reads);
+        }
+        System.exit(0);
+    }
+
+    static void run (final ConnectionMode mode, final int targetPort, final int sessions, final int activeSessions, final int pings, final int reads) throws Exception {
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        System.gc();
+        final long heapBefore = memory.getHeapMemoryUsage().getUsed();
+        final int threadsBefore = threads.getThreadCount();
+
+        final File file = File.createTempFile("jscsi-bench", ".bin");
+        file.deleteOnExit();
+        final RandomAccessStorageModule storage = new RandomAccessStorageModule(STORAGE_BLOCKS, file);
+        final TargetServer server = new TargetServer(new Configuration(ADDRESS) {
+            {
+                port = targetPort;
+                connectionMode = mode;
+                commandWindowSize = COMMAND_WINDOW;
+                targets.add(new Target(TARGET_NAME, "bench", storage));
+            }
+        });
+        final ExecutorService serverThread = Executors.newSingleThreadExecutor();
+        serverThread.submit(server);
+        awaitListening(targetPort);
+
+        final List<SocketChannel> channels = new ArrayList<>(sessions);
+        for (int i = 0; i < sessions; i++) {
+            channels.add(login(targetPort, i));
+        }
+
+        // all sessions are idle now
+        Thread.sleep(1000);
+        System.gc();
+        final long heap = (memory.getHeapMemoryUsage().getUsed() - heapBefore) / 1024;
+        final int liveThreads = threads.getThreadCount() - threadsBefore;
+
+        // a few sessions are active, while all others remain idle
+        final ExecutorService clients = Executors.newFixedThreadPool(activeSessions);
+        final List<Future<Void>> results = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < activeSessions; i++) {
+            final SocketChannel channel = channels.get(i * (sessions / activeSessions));
+            results.add(clients.submit(new Callable<Void>() {
+
+                @Override
+                public Void call () throws IOException {
+                    for (int p = 0; p < pings; p++) {
+                        ping(channel, p);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        final long pingsPerSecond = (long) activeSessions * pings * 1000000000L / (System.nanoTime() - start);
+
+        // the same sessions read concurrently, which runs the stages on the threads of the sessions' dispatchers
+        threads.resetPeakThreadCount();
+        results.clear();
+        final long readStart = System.nanoTime();
+        for (int i = 0; i < activeSessions; i++) {
+            final SocketChannel channel = channels.get(i * (sessions / activeSessions));
+            results.add(clients.submit(new Callable<Void>() {
+
+                @Override
+                public Void call () throws IOException {
+                    read(channel, reads);
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        final long readsPerSecond = (long) activeSessions * reads * 1000000000L / (System.nanoTime() - readStart);
+        final int ioThreads = threads.getPeakThreadCount() - threadsBefore;
+        clients.shutdown();
+
+        System.out.println(String.format("%-20s %8d %11d %8d %8d %8d %12d", mode.getValue(), sessions, heap, liveThreads, pingsPerSecond, readsPerSecond, ioThreads));
+
+        for (SocketChannel channel : channels) {
+            channel.close();
+        }
+        server.stop();
+        // unblock the accepting thread
+        SocketChannel.open(new InetSocketAddress(ADDRESS, targetPort)).close();
+        serverThread.shutdown();
+        Thread.sleep(500);
+        storage.close();
+        file.delete();
+    }
+
+    static void awaitListening (final int port) throws InterruptedException {
+        while (true) {
+            try {
+                SocketChannel.open(new InetSocketAddress(ADDRESS, port)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    /**
+     * Opens a connection and logs in a normal session with a single Login Request PDU, transiting directly to the full
+     * feature phase.
+     */
+    static SocketChannel login (final int port, final int index) throws IOException, InternetSCSIException {
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(ADDRESS, port));
+        channel.socket().setTcpNoDelay(true);
+
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(true, true, OperationCode.LOGIN_REQUEST, "None", "None");
+        final LoginRequestParser parser = (LoginRequestParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setCurrentStageNumber(LoginStage.SECURITY_NEGOTIATION);
+        parser.setNextStageNumber(LoginStage.FULL_FEATURE_PHASE);
+        parser.setInitiatorSessionID(ISID.createRandom(index));
+        pdu.getBasicHeaderSegment().setInitiatorTaskTag(index);
+        pdu.setDataSegment(ByteBuffer.wrap(("InitiatorName=iqn.2014-01.org.jscsi:bench-" + index + "\0SessionType=Normal\0TargetName=" + TARGET_NAME + "\0AuthMethod=None\0").getBytes()));
+        pdu.write(channel);
+
+        final ByteBuffer response = readPdu(channel);
+        if ((response.get(0) & 0x3f) != OperationCode.LOGIN_RESPONSE.value() || response.get(36) != 0) {
+            throw new IOException("login of session " + index + " failed");
+        }
+        return channel;
+    }
+
+    /**
+     * Sends an immediate NOP-Out PDU and waits for the NOP-In echo.
+     */
+    static void ping (final SocketChannel channel, final int initiatorTaskTag) throws IOException {
+        final ByteBuffer nopOut = ByteBuffer.allocate(BHS_LENGTH);
+        nopOut.put(0, (byte) (0x40 | OperationCode.NOP_OUT.value()));// immediate
+        nopOut.put(1, (byte) 0x80);// final
+        nopOut.putInt(16, initiatorTaskTag);
+        nopOut.putInt(20, 0xffffffff);// Target Transfer Tag
+        while (nopOut.hasRemaining()) {
+            channel.write(nopOut);
+        }
+        final ByteBuffer nopIn = readPdu(channel);
+        if ((nopIn.get(0) & 0x3f) != OperationCode.NOP_IN.value() || nopIn.getInt(16) != initiatorTaskTag) {
+            throw new IOException("unexpected ping response");
+        }
+    }
+
+    /**
+     * Issues <code>READ (10)</code> commands of {@link #READ_BLOCKS} blocks, keeping {@link #QUEUE_DEPTH} of them
+     * outstanding, and waits for their status. The data is discarded.
+     */
+    static void read (final SocketChannel channel, final int reads) throws IOException {
+        int sent = 0;
+        int completed = 0;
+        while (completed < reads) {
+            while (sent < reads && sent - completed < QUEUE_DEPTH) {
+                final ByteBuffer command = ByteBuffer.allocate(BHS_LENGTH);
+                command.put(0, OperationCode.SCSI_COMMAND.value());
+                command.put(1, (byte) 0xc1);// final, read, simple task
+                command.putInt(16, sent);// Initiator Task Tag
+                command.putInt(20, READ_BLOCKS * BLOCK_SIZE);// Expected Data Transfer Length
+                command.putInt(24, sent);// CmdSN
+                command.put(32, (byte) 0x28);// READ (10)
+                command.putInt(34, sent * READ_BLOCKS % (STORAGE_BLOCKS - READ_BLOCKS));// LOGICAL BLOCK ADDRESS
+                command.putShort(39, (short) READ_BLOCKS);// TRANSFER LENGTH
+                while (command.hasRemaining()) {
+                    channel.write(command);
+                }
+                ++sent;
+            }
+            final ByteBuffer response = readPdu(channel);
+            final int opCode = response.get(0) & 0x3f;
+            // the status is either sent with the last Data-In PDU or in a SCSI Response PDU
+            final boolean status = opCode == OperationCode.SCSI_RESPONSE.value() || (opCode == OperationCode.SCSI_DATA_IN.value() && (response.get(1) & 0x01) != 0);
+            if (status) {
+                if (response.get(3) != 0) {
+                    throw new IOException("READ failed with status " + response.get(3));
+                }
+                ++completed;
+            } else if (opCode != OperationCode.SCSI_DATA_IN.value()) {
+                throw new IOException("unexpected PDU with operation code " + opCode);
+            }
+        }
+    }
+
+    /**
+     * Reads a complete PDU without digests.
+     */
+    static ByteBuffer readPdu (final SocketChannel channel) throws IOException {
+        final ByteBuffer bhs = ByteBuffer.allocate(BHS_LENGTH);
+        readFully(channel, bhs);
+        final int dataSegmentLength = bhs.getInt(4) & 0xffffff;
+        final int remaining = (bhs.get(4) & 0xff) * 4 + ((dataSegmentLength + 3) & ~3);
+        readFully(channel, ByteBuffer.allocate(remaining));
+        return bhs;
+    }
+
+    static void readFully (final SocketChannel channel, final ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) == -1) {
+                throw new IOException("connection closed");
+            }
+        }
+    }
+
+}
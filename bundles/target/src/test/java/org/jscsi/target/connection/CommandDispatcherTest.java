@@ -0,0 +1,213 @@
+package org.jscsi.target.connection;
+
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.target.connection.stage.TargetStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests the command window accounting and the stage execution of the {@link CommandDispatcher}.
+ */
+public class CommandDispatcherTest {
+
+    @Test
+    public void testWindowAccounting() {
+        final CommandDispatcher dispatcher = new CommandDispatcher(4);
+        final Connection connection = mock(Connection.class);
+        // ExpCmdSN = 10, no commands outstanding
+        assertEquals(dispatcher.getMaximumCommandSequenceNumber(10), 13);
+
+        dispatcher.register(1, connection);
+        dispatcher.register(2, connection);
+        assertEquals(dispatcher.getOutstandingCount(), 2);
+        // ExpCmdSN has been incremented twice by now
+        assertEquals(dispatcher.getMaximumCommandSequenceNumber(12), 13);
+
+        // retiring a command advances MaxCmdSN
+        assertTrue(dispatcher.complete(2));
+        assertEquals(dispatcher.getMaximumCommandSequenceNumber(12), 14);
+
+        // unknown tags are ignored
+        assertFalse(dispatcher.complete(42));
+        assertEquals(dispatcher.getOutstandingCount(), 1);
+    }
+
+    @Test
+    public void testDefaultWindow() {
+        final CommandDispatcher dispatcher = new CommandDispatcher(1);
+        assertEquals(dispatcher.getMaximumCommandSequenceNumber(5), 5);
+        dispatcher.register(7, mock(Connection.class));
+        assertEquals(dispatcher.getMaximumCommandSequenceNumber(6), 5);
+        dispatcher.complete(7);
+        assertEquals(dispatcher.getMaximumCommandSequenceNumber(6), 6);
+    }
+
+    @Test
+    public void testClosedConnection() {
+        final CommandDispatcher dispatcher = new CommandDispatcher(4);
+        final Connection closed = mock(Connection.class);
+        final Connection open = mock(Connection.class);
+        dispatcher.register(1, closed);
+        dispatcher.register(2, open);
+        dispatcher.register(3, closed);
+
+        assertTrue(dispatcher.completeAll(closed));
+        assertEquals(dispatcher.getOutstandingCount(), 1);
+        assertTrue(dispatcher.isOutstanding(2));
+        assertFalse(dispatcher.completeAll(closed));
+    }
+
+    @Test
+    public void testFailedStageCompletesCommand() throws Exception {
+        final CommandDispatcher dispatcher = new CommandDispatcher(4);
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        pdu.getBasicHeaderSegment().setInitiatorTaskTag(9);
+        dispatcher.register(9, mock(Connection.class));
+        final TargetStage stage = mock(TargetStage.class);
+        doThrow(new InternetSCSIException("test")).when(stage).execute(pdu);
+
+        try {
+            dispatcher.dispatch(stage, pdu, false);
+            fail("exception of the stage was swallowed");
+        } catch (InternetSCSIException e) {
+            assertEquals(e.getMessage(), "test");
+        }
+        assertFalse(dispatcher.isOutstanding(9));
+    }
+
+    @Test
+    public void testConcurrentDispatch() throws Exception {
+        final CommandDispatcher dispatcher = new CommandDispatcher(8);
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final TargetStage[] stages = new TargetStage[8];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = mock(TargetStage.class);
+            dispatcher.dispatch(stages[i], pdu, true);
+        }
+        dispatcher.awaitCompletion();
+        for (TargetStage stage : stages) {
+            verify(stage, times(1)).execute(pdu);
+        }
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testThreadFactory() throws Exception {
+        // the target passes the factory of its worker threads, e.g. of virtual threads
+        final CommandDispatcher dispatcher = new CommandDispatcher(8, runnable -> new Thread(runnable, "target worker"));
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final AtomicReference<String> threadName = new AtomicReference<>();
+        final TargetStage stage = mock(TargetStage.class);
+        doAnswer(invocation -> {
+            threadName.set(Thread.currentThread().getName());
+            return null;
+        }).when(stage).execute(pdu);
+
+        dispatcher.dispatch(stage, pdu, true);
+        dispatcher.awaitCompletion();
+        assertEquals(threadName.get(), "target worker");
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testFailurePropagation() throws Exception {
+        final CommandDispatcher dispatcher = new CommandDispatcher(2);
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final TargetStage stage = mock(TargetStage.class);
+        doThrow(new InternetSCSIException("test")).when(stage).execute(pdu);
+
+        dispatcher.dispatch(stage, pdu, true);
+        try {
+            dispatcher.awaitCompletion();
+            fail("exception of concurrently executed stage was swallowed");
+        } catch (InternetSCSIException e) {
+            assertEquals(e.getMessage(), "test");
+        }
+        dispatcher.shutdown();
+    }
+
+    /**
+     * A stage of one logical unit which does not finish must neither delay the stages of another logical unit, nor
+     * the stages of the same logical unit which may be executed concurrently.
+     */
+    @Test
+    public void testLogicalUnitIsolation() throws Exception {
+        final CommandDispatcher dispatcher = new CommandDispatcher(8);
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final LogicalUnit slowUnit = new LogicalUnit(0, mock(IPositionalStorageModule.class));
+        final LogicalUnit fastUnit = new LogicalUnit(1, mock(IPositionalStorageModule.class));
+        final CountDownLatch release = new CountDownLatch(1);
+        final TargetStage slowStage = mock(TargetStage.class);
+        doAnswer(invocation -> {
+            release.await();
+            return null;
+        }).when(slowStage).execute(pdu);
+
+        dispatcher.dispatch(slowStage, pdu, slowUnit, true);
+        final TargetStage fastStage = mock(TargetStage.class);
+        // executed by the calling thread, after the stages of the same logical unit have finished
+        dispatcher.dispatch(fastStage, pdu, fastUnit, false);
+        verify(fastStage, times(1)).execute(pdu);
+
+        final CountDownLatch executed = new CountDownLatch(1);
+        final TargetStage concurrentStage = mock(TargetStage.class);
+        doAnswer(invocation -> {
+            executed.countDown();
+            return null;
+        }).when(concurrentStage).execute(pdu);
+        dispatcher.dispatch(concurrentStage, pdu, slowUnit, true);
+        assertTrue(executed.await(10, TimeUnit.SECONDS));
+
+        release.countDown();
+        dispatcher.awaitCompletion();
+        dispatcher.shutdown();
+    }
+
+    @Test
+    public void testWorkerBudget() throws Exception {
+        final CommandDispatcher dispatcher = new CommandDispatcher(8);
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final LogicalUnit unit = new LogicalUnit(0, mock(IPositionalStorageModule.class), 2);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maximum = new AtomicInteger();
+        final TargetStage stage = mock(TargetStage.class);
+        doAnswer(invocation -> {
+            maximum.accumulateAndGet(running.incrementAndGet(), Math::max);
+            Thread.sleep(20);
+            running.decrementAndGet();
+            return null;
+        }).when(stage).execute(pdu);
+
+        for (int i = 0; i < 8; i++) {
+            dispatcher.dispatch(stage, pdu, unit, true);
+        }
+        dispatcher.awaitCompletion();
+        verify(stage, times(8)).execute(pdu);
+        assertTrue(maximum.get() <= 2, "more stages executed concurrently than workers: " + maximum.get());
+        dispatcher.shutdown();
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testIllegalWindow() {
+        new CommandDispatcher(0);
+    }
+}
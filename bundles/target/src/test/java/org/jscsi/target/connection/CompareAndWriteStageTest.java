@@ -0,0 +1,163 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.createCommand;
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.jscsi.target.connection.StageTestFixture.getStatus;
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.stage.fullfeature.CompareAndWriteStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.storage.FileChannelStorageModule;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.RandomAccessStorageModule;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class CompareAndWriteStageTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int SIZE_IN_BLOCKS = 64;
+
+    private File file;
+
+    private IPositionalStorageModule module;
+
+    private LogicalUnit logicalUnit;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        file = File.createTempFile("jscsi-compare-and-write", ".dat");
+        module = (IPositionalStorageModule) RandomAccessStorageModule.open(file, SIZE_IN_BLOCKS * BLOCK_SIZE, true, FileChannelStorageModule.class);
+        logicalUnit = new LogicalUnit(0, module);
+    }
+
+    @AfterMethod
+    public void tearDown () throws Exception {
+        module.close();
+        file.delete();
+    }
+
+    @Test
+    public void testCompareAndWrite () throws Exception {
+        final ProtocolDataUnit response = execute(8, new byte[BLOCK_SIZE], block(0x5a));
+
+        assertEquals(getStatus(response), SCSIStatus.GOOD);
+        assertEquals(read(8), block(0x5a));
+        assertEquals(read(9), new byte[BLOCK_SIZE]);
+    }
+
+    @Test
+    public void testMiscompare () throws Exception {
+        module.write(ByteBuffer.wrap(block(0x11)), 8 * BLOCK_SIZE);
+        final byte[] verifyData = block(0x11);
+        verifyData[100] = 0x22;
+
+        final ProtocolDataUnit response = execute(8, verifyData, block(0x5a));
+
+        assertEquals(getStatus(response), SCSIStatus.CHECK_CONDITION);
+        final ByteBuffer senseData = response.getDataSegment();
+        // the sense data follows the two byte SENSE LENGTH field
+        assertEquals(senseData.get(2) & 255, 0xf0);// VALID, current error in fixed format
+        assertEquals(senseData.get(4) & 15, 0x0e);// MISCOMPARE
+        assertEquals(senseData.getInt(5), 100);// INFORMATION, offset of the miscompare
+        assertEquals(senseData.getShort(14), 0x1d00);// MISCOMPARE DURING VERIFY OPERATION
+        assertEquals(read(8), block(0x11));
+    }
+
+    @Test
+    public void testOutOfRange () throws Exception {
+        final ProtocolDataUnit response = execute(SIZE_IN_BLOCKS, new byte[BLOCK_SIZE], block(0x5a));
+        assertEquals(getStatus(response), SCSIStatus.CHECK_CONDITION);
+    }
+
+    /**
+     * Lets several contenders increment a counter in one logical block with test-and-set, while another logical block
+     * is written in parallel. No increment may be lost.
+     */
+    @Test
+    public void testConcurrentContenders () throws Exception {
+        final int contenders = 8;
+        final int increments = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(contenders + 1);
+        try {
+            final List<Future<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < contenders; ++i) {
+                futures.add(executor.submit(() -> {
+                    int miscompares = 0;
+                    for (int j = 0; j < increments;) {
+                        final byte[] current = read(0);
+                        final byte[] next = current.clone();
+                        ByteBuffer.wrap(next).putInt(0, ByteBuffer.wrap(current).getInt(0) + 1);
+                        if (getStatus(execute(0, current, next)) == SCSIStatus.GOOD) {
+                            ++j;
+                        } else {
+                            ++miscompares;
+                        }
+                    }
+                    return miscompares;
+                }));
+            }
+            // unrelated writes are not blocked by the contenders
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < increments; ++j) {
+                    module.write(ByteBuffer.wrap(block(j)), 32 * BLOCK_SIZE);
+                }
+                return 0;
+            }));
+            for (final Future<Integer> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(ByteBuffer.wrap(read(0)).getInt(0), contenders * increments);
+    }
+
+    private static byte[] block (final int value) {
+        final byte[] block = new byte[BLOCK_SIZE];
+        Arrays.fill(block, (byte) value);
+        return block;
+    }
+
+    private byte[] read (final int logicalBlockAddress) throws Exception {
+        final byte[] block = new byte[BLOCK_SIZE];
+        module.read(ByteBuffer.wrap(block), (long) logicalBlockAddress * BLOCK_SIZE);
+        return block;
+    }
+
+    /**
+     * Executes a <code>COMPARE AND WRITE</code> command of one logical block, whose verify and write data are sent as
+     * immediate data, and returns the response.
+     */
+    private ProtocolDataUnit execute (final long logicalBlockAddress, final byte[] verifyData, final byte[] writeData) throws Exception {
+        final ProtocolDataUnit command = createCommand(2 * BLOCK_SIZE);
+        final ByteBuffer cdb = getCDB(command);
+        cdb.put(0, (byte) 0x89);
+        cdb.putLong(2, logicalBlockAddress);
+        cdb.put(13, (byte) 1);// NUMBER OF LOGICAL BLOCKS
+        final ByteBuffer data = ByteBuffer.allocate(2 * BLOCK_SIZE);
+        data.put(verifyData).put(writeData).flip();
+        command.setDataSegment(data);
+
+        final StageTestFixture fixture = new StageTestFixture();
+        final CompareAndWriteStage stage = new CompareAndWriteStage(fixture.createPhase());
+        stage.setLogicalUnit(logicalUnit);
+        return fixture.execute(stage, command);
+    }
+}
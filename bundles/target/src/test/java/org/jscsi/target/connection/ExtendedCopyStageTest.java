@@ -0,0 +1,193 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.createCommand;
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.jscsi.target.connection.StageTestFixture.getStatus;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.TargetServer;
+import org.jscsi.target.connection.stage.fullfeature.ExtendedCopyStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.context.Target;
+import org.jscsi.target.scsi.inquiry.NaaIdentifier;
+import org.jscsi.target.storage.FileChannelStorageModule;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.RandomAccessStorageModule;
+import org.jscsi.target.storage.StorageCopier;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class ExtendedCopyStageTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int SIZE_IN_BLOCKS = 256;
+
+    private static final String TARGET = "iqn.2010-04.local-test:target";
+
+    private static final String OTHER = "iqn.2010-04.local-test:other";
+
+    private File sourceFile;
+
+    private File destinationFile;
+
+    private File otherFile;
+
+    private Target target;
+
+    private Target other;
+
+    private IPositionalStorageModule source;
+
+    private IPositionalStorageModule destination;
+
+    private ExecutorService executor;
+
+    private TargetServer targetServer;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        sourceFile = File.createTempFile("jscsi-xcopy-src", ".dat");
+        destinationFile = File.createTempFile("jscsi-xcopy-dst", ".dat");
+        otherFile = File.createTempFile("jscsi-xcopy-other", ".dat");
+        target = new Target(TARGET, "target", Arrays.asList(new LogicalUnit(0, RandomAccessStorageModule.open(sourceFile, SIZE_IN_BLOCKS * BLOCK_SIZE, true, FileChannelStorageModule.class)),
+                new LogicalUnit(1, RandomAccessStorageModule.open(destinationFile, SIZE_IN_BLOCKS * BLOCK_SIZE, true, FileChannelStorageModule.class))));
+        source = target.getLogicalUnit(0).getStorageModule();
+        destination = target.getLogicalUnit(1).getStorageModule();
+        other = new Target(OTHER, "other", RandomAccessStorageModule.open(otherFile, SIZE_IN_BLOCKS * BLOCK_SIZE, true, FileChannelStorageModule.class));
+        executor = Executors.newCachedThreadPool();
+
+        targetServer = mock(TargetServer.class);
+        when(targetServer.getTargetNames()).thenReturn(new String[] { TARGET, OTHER });
+        when(targetServer.getTarget(TARGET)).thenReturn(target);
+        when(targetServer.getTarget(OTHER)).thenReturn(other);
+        when(targetServer.getStorageCopier()).thenReturn(new StorageCopier(executor, 8 * BLOCK_SIZE, 2));
+    }
+
+    @AfterMethod
+    public void tearDown () throws Exception {
+        executor.shutdown();
+        target.close();
+        other.close();
+        sourceFile.delete();
+        destinationFile.delete();
+        otherFile.delete();
+    }
+
+    @Test
+    public void testCopy () throws Exception {
+        final byte[] data = new byte[100 * BLOCK_SIZE];
+        for (int i = 0; i < data.length; ++i) {
+            data[i] = (byte) (i / BLOCK_SIZE);
+        }
+        source.write(ByteBuffer.wrap(data), 10 * BLOCK_SIZE);
+
+        final ByteBuffer parameterList = createParameterList(new NaaIdentifier(TARGET, 1).getValue(), 10, 20, 100);
+        final ProtocolDataUnit response = execute(parameterList);
+
+        assertEquals(getStatus(response), SCSIStatus.GOOD);
+        final byte[] copied = new byte[data.length];
+        destination.read(ByteBuffer.wrap(copied), 20 * BLOCK_SIZE);
+        assertEquals(copied, data);
+        final byte[] untouched = new byte[BLOCK_SIZE];
+        destination.read(ByteBuffer.wrap(untouched), 120 * BLOCK_SIZE);
+        assertEquals(untouched, new byte[BLOCK_SIZE]);
+    }
+
+    @Test
+    public void testUnknownLogicalUnit () throws Exception {
+        final ProtocolDataUnit response = execute(createParameterList(new NaaIdentifier("iqn.2010-04.local-test:unknown", 0).getValue(), 0, 0, 1));
+
+        assertEquals(getStatus(response), SCSIStatus.CHECK_CONDITION);
+        final ByteBuffer senseData = response.getDataSegment();
+        assertEquals(senseData.get(4) & 15, 0x0a);// COPY ABORTED
+        assertEquals(senseData.getShort(14), 0x0d02);// COPY TARGET DEVICE NOT REACHABLE
+    }
+
+    @Test
+    public void testOtherTarget () throws Exception {
+        final ProtocolDataUnit response = execute(createParameterList(new NaaIdentifier(OTHER, 0).getValue(), 0, 0, 1));
+
+        assertEquals(getStatus(response), SCSIStatus.CHECK_CONDITION);
+        final ByteBuffer senseData = response.getDataSegment();
+        assertEquals(senseData.get(4) & 15, 0x0a);// COPY ABORTED
+        assertEquals(senseData.getShort(14), 0x0d02);// COPY TARGET DEVICE NOT REACHABLE
+    }
+
+    @Test
+    public void testOutOfRange () throws Exception {
+        final ByteBuffer parameterList = createParameterList(new NaaIdentifier(TARGET, 1).getValue(), 0, SIZE_IN_BLOCKS - 1, 2);
+        final ProtocolDataUnit response = execute(parameterList);
+
+        assertEquals(getStatus(response), SCSIStatus.CHECK_CONDITION);
+        final ByteBuffer senseData = response.getDataSegment();
+        assertEquals(senseData.get(4) & 15, 0x05);// ILLEGAL REQUEST
+        assertEquals(senseData.getShort(14), 0x2100);// LOGICAL BLOCK ADDRESS OUT OF RANGE
+        final byte[] untouched = new byte[2 * BLOCK_SIZE];
+        destination.read(ByteBuffer.wrap(untouched), (SIZE_IN_BLOCKS - 2) * BLOCK_SIZE);
+        assertEquals(untouched, new byte[2 * BLOCK_SIZE]);
+    }
+
+    /**
+     * Creates a parameter list with two identification CSCD descriptors, naming the source and the given destination,
+     * and a single block device to block device segment descriptor.
+     */
+    private static ByteBuffer createParameterList (final long destinationIdentifier, final long sourceLogicalBlockAddress, final long destinationLogicalBlockAddress, final int numberOfBlocks) {
+        final ByteBuffer buffer = ByteBuffer.allocate(16 + 2 * 32 + 28);
+        buffer.putShort(2, (short) 64);// CSCD DESCRIPTOR LIST LENGTH
+        buffer.putInt(8, 28);// SEGMENT DESCRIPTOR LIST LENGTH
+        putIdentificationDescriptor(buffer, 16, new NaaIdentifier(TARGET, 0).getValue());
+        putIdentificationDescriptor(buffer, 48, destinationIdentifier);
+
+        buffer.put(80, (byte) 0x02);// DESCRIPTOR TYPE CODE, block device to block device
+        buffer.putShort(82, (short) 24);// DESCRIPTOR LENGTH
+        buffer.putShort(84, (short) 0);// SOURCE CSCD DESCRIPTOR INDEX
+        buffer.putShort(86, (short) 1);// DESTINATION CSCD DESCRIPTOR INDEX
+        buffer.putShort(90, (short) numberOfBlocks);// BLOCK DEVICE NUMBER OF BLOCKS
+        buffer.putLong(92, sourceLogicalBlockAddress);
+        buffer.putLong(100, destinationLogicalBlockAddress);
+        return buffer;
+    }
+
+    private static void putIdentificationDescriptor (final ByteBuffer buffer, final int index, final long identifier) {
+        buffer.put(index, (byte) 0xe4);// DESCRIPTOR TYPE CODE
+        buffer.put(index + 4, (byte) 0x01);// CODE SET, binary
+        buffer.put(index + 5, (byte) 0x03);// ASSOCIATION and DESIGNATOR TYPE, NAA of the logical unit
+        buffer.put(index + 7, (byte) NaaIdentifier.SIZE);// DESIGNATOR LENGTH
+        buffer.putLong(index + 8, identifier);
+        buffer.put(index + 30, (byte) (BLOCK_SIZE >> 8));// DISK BLOCK LENGTH
+    }
+
+    /**
+     * Executes an <code>EXTENDED COPY</code> command whose parameter list is sent as immediate data, and returns the
+     * response.
+     */
+    private ProtocolDataUnit execute (final ByteBuffer parameterList) throws Exception {
+        final StageTestFixture fixture = new StageTestFixture();
+        when(fixture.session.getTargetServer()).thenReturn(targetServer);
+        when(fixture.session.getTarget()).thenReturn(target);
+
+        final ProtocolDataUnit command = createCommand(parameterList.capacity());
+        final ByteBuffer cdb = getCDB(command);
+        cdb.put(0, (byte) 0x83);
+        cdb.putInt(10, parameterList.capacity());// PARAMETER LIST LENGTH
+        command.setDataSegment(parameterList);
+
+        final ExtendedCopyStage stage = new ExtendedCopyStage(fixture.createPhase());
+        stage.setLogicalUnit(target.getLogicalUnit(0));
+        return fixture.execute(stage, command);
+    }
+}
@@ -0,0 +1,150 @@
+package org.jscsi.target.connection;
+
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.connection.stage.fullfeature.InquiryStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.scsi.inquiry.NaaIdentifier;
+import org.jscsi.target.settings.ConnectionSettingsNegotiator;
+import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.settings.Settings;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.StorageCapabilities;
+import org.mockito.ArgumentCaptor;
+import org.testng.annotations.Test;
+
+
+public class InquiryStageTest {
+
+    private static final String TARGET_NAME = "iqn.2010-04.local-test:disk";
+
+    @Test
+    public void testSupportedVpdPages () throws Exception {
+        final ByteBuffer page = execute(0x00, StorageCapabilities.DEFAULT);
+        assertEquals(page.get(3), 5);// PAGE LENGTH
+        assertEquals(page.get(4) & 255, 0x00);
+        assertEquals(page.get(5) & 255, 0x83);
+        assertEquals(page.get(6) & 255, 0xb0);
+        assertEquals(page.get(7) & 255, 0xb1);
+        assertEquals(page.get(8) & 255, 0xb2);
+    }
+
+    @Test
+    public void testBlockLimits () throws Exception {
+        final ByteBuffer page = execute(0xb0, StorageCapabilities.DEFAULT);
+        assertEquals(page.get(1) & 255, 0xb0);
+        assertEquals(page.getShort(2), 0x3c);// PAGE LENGTH
+        assertEquals(page.get(5), 16);// MAXIMUM COMPARE AND WRITE LENGTH
+        assertEquals(page.getShort(6), 8);// OPTIMAL TRANSFER LENGTH GRANULARITY
+        assertEquals(page.getInt(8), Integer.MAX_VALUE / 512);// MAXIMUM TRANSFER LENGTH
+        assertEquals(page.getInt(12), settings().getMaxBurstLength() / 512);// OPTIMAL TRANSFER LENGTH
+        assertEquals(page.getInt(20), 0);// MAXIMUM UNMAP LBA COUNT
+    }
+
+    @Test
+    public void testBlockLimitsWithUnmap () throws Exception {
+        final ByteBuffer page = execute(0xb0, new StorageCapabilities(true, true, 1 << 20, false));
+        assertEquals(page.getInt(12), (1 << 20) / 512);// OPTIMAL TRANSFER LENGTH
+        assertEquals(page.getInt(20), -1);// MAXIMUM UNMAP LBA COUNT, unlimited
+        assertEquals(page.getInt(28), 8);// OPTIMAL UNMAP GRANULARITY
+        assertEquals(page.getLong(36), 0xffffffffL);// MAXIMUM WRITE SAME LENGTH
+    }
+
+    @Test
+    public void testLogicalBlockProvisioning () throws Exception {
+        ByteBuffer page = execute(0xb2, StorageCapabilities.DEFAULT);
+        assertEquals(page.get(1) & 255, 0xb2);
+        assertEquals(page.get(5), 0);// LBPU, LBPWS and LBPWS10
+        assertEquals(page.get(6), 0);// PROVISIONING TYPE
+
+        page = execute(0xb2, StorageCapabilities.THIN_PROVISIONED);
+        assertEquals(page.get(5) & 255, 0xe0);
+        assertEquals(page.get(6), 2);
+    }
+
+    @Test
+    public void testBlockDeviceCharacteristics () throws Exception {
+        final ByteBuffer page = execute(0xb1, StorageCapabilities.DEFAULT);
+        assertEquals(page.get(1) & 255, 0xb1);
+        assertEquals(page.getShort(4), 0);// MEDIUM ROTATION RATE, not reported
+        assertEquals(page.get(8) & 2, 2);// FUAB
+    }
+
+    @Test
+    public void testDeviceIdentification () throws Exception {
+        final ByteBuffer page = execute(0x83, StorageCapabilities.DEFAULT);
+        assertEquals(page.get(1) & 255, 0x83);
+        // the first designator is the NAA identifier of the logical unit, used by EXTENDED COPY
+        assertEquals(page.get(4) & 15, 0x01);// CODE SET, binary
+        assertEquals(page.get(5), 0x03);// ASSOCIATION and DESIGNATOR TYPE
+        assertEquals(page.get(7), NaaIdentifier.SIZE);// DESIGNATOR LENGTH
+        assertEquals(page.getLong(8), new NaaIdentifier(TARGET_NAME, 0).getValue());
+        // followed by the SCSI name string of the target device
+        assertEquals(page.get(17) & 255, 0xa8);// PIV, ASSOCIATION and DESIGNATOR TYPE
+    }
+
+    @Test
+    public void testUnsupportedLogicalUnit () throws Exception {
+        final ByteBuffer data = execute(false, 0x00, null);
+        // PERIPHERAL QUALIFIER 011b, PERIPHERAL DEVICE TYPE 1Fh
+        assertEquals(data.get(0) & 255, 0x7f);
+    }
+
+    private static Settings settings () {
+        return new ConnectionSettingsNegotiator(new SessionSettingsNegotiator()).getSettings();
+    }
+
+    /**
+     * Executes an {@link InquiryStage} requesting the given VPD page of a module with 512 byte logical and 4096 byte
+     * physical blocks, and returns the page.
+     */
+    private static ByteBuffer execute (final int pageCode, final StorageCapabilities capabilities) throws Exception {
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getSizeInBlocks()).thenReturn(1L << 20);
+        when(module.getBlockSize()).thenReturn(512);
+        when(module.getPhysicalBlockSize()).thenReturn(4096);
+        when(module.getCapabilities()).thenReturn(capabilities);
+        return execute(true, pageCode, new LogicalUnit(0, module));
+    }
+
+    /**
+     * Executes an {@link InquiryStage} addressed to the given logical unit and returns the inquiry data.
+     */
+    private static ByteBuffer execute (final boolean evpd, final int pageCode, final LogicalUnit logicalUnit) throws Exception {
+        final TargetSession session = mock(TargetSession.class);
+        when(session.getTargetName()).thenReturn(TARGET_NAME);
+        final Connection connection = mock(Connection.class);
+        when(connection.getTargetSession()).thenReturn(session);
+        when(connection.getSettings()).thenReturn(settings());
+
+        final ByteBuffer cdb = ByteBuffer.allocate(6);
+        cdb.put(0, (byte) 0x12);
+        cdb.put(1, (byte) (evpd ? 0x01 : 0x00));// EVPD
+        cdb.put(2, (byte) pageCode);
+        cdb.putShort(3, (short) 255);// ALLOCATION LENGTH
+
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final SCSICommandParser parser = (SCSICommandParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setExpectedDataTransferLength(255);
+        parser.getCDB().put(cdb).rewind();
+
+        final InquiryStage stage = new InquiryStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(logicalUnit);
+        stage.execute(pdu);
+
+        final ArgumentCaptor<ProtocolDataUnit> captor = ArgumentCaptor.forClass(ProtocolDataUnit.class);
+        verify(connection).sendPdu(captor.capture());
+        return captor.getValue().getDataSegment();
+    }
+}
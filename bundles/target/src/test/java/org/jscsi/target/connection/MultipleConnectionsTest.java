@@ -0,0 +1,288 @@
+package org.jscsi.target.connection;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.login.ISID;
+import org.jscsi.parser.login.LoginRequestParser;
+import org.jscsi.parser.login.LoginStage;
+import org.jscsi.parser.login.LoginStatus;
+import org.jscsi.target.TargetServer;
+import org.jscsi.target.context.Configuration;
+import org.jscsi.target.context.Target;
+import org.jscsi.target.storage.IStorageModule;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+
+/**
+ * Logs in a session, extends it by further connections and sends commands over all of them concurrently.
+ */
+public class MultipleConnectionsTest {
+
+    private static final String ADDRESS = "127.0.0.1";
+
+    private static final String TARGET_NAME = "iqn.2014-01.org.jscsi:mcs";
+
+    private static final int BHS_LENGTH = 48;
+
+    private static final int COMMAND_WINDOW = 16;
+
+    private static final int MAX_CONNECTIONS = 2;
+
+    private static final int COMMANDS_PER_CONNECTION = 200;
+
+    private int port;
+
+    private TargetServer server;
+
+    private ExecutorService serverThread;
+
+    private final List<SocketChannel> openChannels = new ArrayList<>();
+
+    @BeforeClass
+    public void startTarget () throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final IStorageModule storage = new IStorageModule() {
+
+            @Override
+            public int checkBounds (long logicalBlockAddress, int transferLengthInBlocks) {
+                return 0;
+            }
+
+            @Override
+            public long getSizeInBlocks () {
+                return 16;
+            }
+
+            @Override
+            public void read (byte[] bytes, long storageIndex) {
+            }
+
+            @Override
+            public void write (byte[] bytes, long storageIndex) {
+            }
+
+            @Override
+            public void close () {
+            }
+
+            @Override
+            public int getBlockSize () {
+                return 512;
+            }
+        };
+        server = new TargetServer(new Configuration(ADDRESS) {
+
+            {
+                port = MultipleConnectionsTest.this.port;
+                commandWindowSize = COMMAND_WINDOW;
+                maxConnections = MAX_CONNECTIONS;
+                targets.add(new Target(TARGET_NAME, "mcs", storage));
+            }
+        });
+        serverThread = Executors.newSingleThreadExecutor();
+        serverThread.submit(server);
+        while (true) {
+            try {
+                SocketChannel.open(new InetSocketAddress(ADDRESS, port)).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    @AfterClass
+    public void stopTarget () throws Exception {
+        for (SocketChannel channel : openChannels) {
+            channel.close();
+        }
+        server.stop();
+        // unblock the accepting thread
+        SocketChannel.open(new InetSocketAddress(ADDRESS, port)).close();
+        serverThread.shutdown();
+    }
+
+    @Test
+    public void testConcurrentCommands () throws Exception {
+        final ISID isid = ISID.createRandom(1);
+
+        // the leading connection negotiates MaxConnections in the operational stage
+        final SocketChannel leading = open();
+        ByteBuffer response = login(leading, isid, (short) 0, 0, LoginStage.SECURITY_NEGOTIATION, LoginStage.LOGIN_OPERATIONAL_NEGOTIATION, "InitiatorName=iqn.2014-01.org.jscsi:initiator\0SessionType=Normal\0TargetName=" + TARGET_NAME + "\0AuthMethod=None\0");
+        assertEquals(response.getShort(36), LoginStatus.SUCCESS.value());
+        response = login(leading, isid, (short) 0, 0, LoginStage.LOGIN_OPERATIONAL_NEGOTIATION, LoginStage.FULL_FEATURE_PHASE, "MaxConnections=8\0");
+        assertEquals(response.getShort(36), LoginStatus.SUCCESS.value());
+        assertTrue(new String(response.array(), BHS_LENGTH, response.getInt(4) & 0xffffff).contains("MaxConnections=" + MAX_CONNECTIONS));
+        final short tsih = response.getShort(14);
+        assertTrue(tsih != 0);
+
+        // the second connection joins the session, using a StatSN of its own
+        final SocketChannel second = open();
+        response = login(second, isid, tsih, 100, LoginStage.SECURITY_NEGOTIATION, LoginStage.FULL_FEATURE_PHASE, "InitiatorName=iqn.2014-01.org.jscsi:initiator\0SessionType=Normal\0TargetName=" + TARGET_NAME + "\0AuthMethod=None\0");
+        assertEquals(response.getShort(36), LoginStatus.SUCCESS.value());
+        assertEquals(response.getShort(14), tsih);
+        assertEquals(response.getInt(24), 100);
+
+        // the session belongs to the initiator of the leading connection
+        try (SocketChannel other = open()) {
+            response = login(other, isid, tsih, 0, LoginStage.SECURITY_NEGOTIATION, LoginStage.FULL_FEATURE_PHASE, "InitiatorName=iqn.2014-01.org.jscsi:other\0");
+            assertEquals(response.getShort(36), LoginStatus.SESSION_DOSE_NOT_EXIST.value());
+        }
+
+        // a third connection exceeds MaxConnections, an unknown TSIH identifies no session
+        try (SocketChannel third = open()) {
+            response = login(third, isid, tsih, 0, LoginStage.SECURITY_NEGOTIATION, LoginStage.FULL_FEATURE_PHASE, "InitiatorName=iqn.2014-01.org.jscsi:initiator\0");
+            assertEquals(response.getShort(36), LoginStatus.TOO_MANY_CONNECTIONS.value());
+        }
+        try (SocketChannel unknown = open()) {
+            response = login(unknown, isid, (short) (tsih + 1), 0, LoginStage.SECURITY_NEGOTIATION, LoginStage.FULL_FEATURE_PHASE, "InitiatorName=iqn.2014-01.org.jscsi:initiator\0");
+            assertEquals(response.getShort(36), LoginStatus.SESSION_DOSE_NOT_EXIST.value());
+        }
+
+        // both connections draw their CmdSNs from the same counter, so that they arrive out of order
+        final AtomicInteger commandSequenceNumber = new AtomicInteger(0);
+        final ExecutorService initiators = Executors.newFixedThreadPool(MAX_CONNECTIONS);
+        final List<Future<Void>> results = new ArrayList<>();
+        final SocketChannel[] channels = { leading, second };
+        final int[] statusSequenceNumbers = { 2, 101 };
+        for (int c = 0; c < channels.length; ++c) {
+            final SocketChannel channel = channels[c];
+            final int connection = c;
+            results.add(initiators.submit(new Callable<Void>() {
+
+                @Override
+                public Void call () throws IOException {
+                    for (int i = 0; i < COMMANDS_PER_CONNECTION; ++i) {
+                        final ByteBuffer status = testUnitReady(channel, connection * COMMANDS_PER_CONNECTION + i, commandSequenceNumber.getAndIncrement());
+                        // every connection numbers its responses independently
+                        assertEquals(status.getInt(24), statusSequenceNumbers[connection]++);
+                        assertTrue(status.getInt(32) - status.getInt(28) < COMMAND_WINDOW);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        initiators.shutdown();
+
+        // all gaps have been closed and the complete command window is available again
+        final int last = commandSequenceNumber.get();
+        response = testUnitReady(second, -1, last);
+        assertEquals(response.getInt(24), statusSequenceNumbers[1]);
+        assertEquals(response.getInt(28), last + 1);
+        assertEquals(response.getInt(32), last + COMMAND_WINDOW);
+
+        // a command received ahead of ExpCmdSN is held until the gap has been closed over the other connection
+        sendTestUnitReady(second, -2, last + 2);
+        Thread.sleep(200);
+        second.configureBlocking(false);
+        assertEquals(second.read(ByteBuffer.allocate(1)), 0);
+        second.configureBlocking(true);
+        response = testUnitReady(leading, -3, last + 1);
+        assertEquals(response.getInt(16), -3);
+        response = receiveResponse(second, -2);
+        assertEquals(response.getInt(28), last + 3);
+    }
+
+    private SocketChannel open () throws IOException {
+        final SocketChannel channel = SocketChannel.open(new InetSocketAddress(ADDRESS, port));
+        channel.socket().setTcpNoDelay(true);
+        openChannels.add(channel);
+        return channel;
+    }
+
+    /**
+     * Sends a single Login Request PDU and returns the Login Response PDU.
+     */
+    private static ByteBuffer login (final SocketChannel channel, final ISID isid, final short tsih, final int expectedStatusSequenceNumber, final LoginStage currentStage, final LoginStage nextStage, final String keyValuePairs) throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(true, true, OperationCode.LOGIN_REQUEST, "None", "None");
+        final LoginRequestParser parser = (LoginRequestParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setCurrentStageNumber(currentStage);
+        parser.setNextStageNumber(nextStage);
+        parser.setInitiatorSessionID(isid);
+        parser.setTargetSessionIdentifyingHandle(tsih);
+        parser.setExpectedStatusSequenceNumber(expectedStatusSequenceNumber);
+        pdu.setDataSegment(ByteBuffer.wrap(keyValuePairs.getBytes()));
+        pdu.write(channel);
+
+        final ByteBuffer response = readPdu(channel);
+        assertEquals(response.get(0) & 0x3f, OperationCode.LOGIN_RESPONSE.value());
+        return response;
+    }
+
+    /**
+     * Sends a TEST UNIT READY command and returns the SCSI Response PDU.
+     */
+    private static ByteBuffer testUnitReady (final SocketChannel channel, final int initiatorTaskTag, final int commandSequenceNumber) throws IOException {
+        sendTestUnitReady(channel, initiatorTaskTag, commandSequenceNumber);
+        return receiveResponse(channel, initiatorTaskTag);
+    }
+
+    private static void sendTestUnitReady (final SocketChannel channel, final int initiatorTaskTag, final int commandSequenceNumber) throws IOException {
+        final ByteBuffer command = ByteBuffer.allocate(BHS_LENGTH);
+        command.put(0, OperationCode.SCSI_COMMAND.value());
+        command.put(1, (byte) 0x81);// final, simple task
+        command.putInt(16, initiatorTaskTag);
+        command.putInt(24, commandSequenceNumber);
+        // the CDB of TEST UNIT READY is all zeros
+        while (command.hasRemaining()) {
+            channel.write(command);
+        }
+    }
+
+    /**
+     * Receives the SCSI Response PDU of a TEST UNIT READY command, which has to report GOOD status.
+     */
+    private static ByteBuffer receiveResponse (final SocketChannel channel, final int initiatorTaskTag) throws IOException {
+        final ByteBuffer response = readPdu(channel);
+        assertEquals(response.get(0) & 0x3f, OperationCode.SCSI_RESPONSE.value());
+        assertEquals(response.getInt(16), initiatorTaskTag);
+        assertEquals(response.get(3), 0);// GOOD
+        return response;
+    }
+
+    /**
+     * Reads a complete PDU without digests.
+     */
+    private static ByteBuffer readPdu (final SocketChannel channel) throws IOException {
+        final ByteBuffer bhs = ByteBuffer.allocate(BHS_LENGTH);
+        readFully(channel, bhs);
+        final int dataSegmentLength = bhs.getInt(4) & 0xffffff;
+        final ByteBuffer pdu = ByteBuffer.allocate(BHS_LENGTH + (bhs.get(4) & 0xff) * 4 + ((dataSegmentLength + 3) & ~3));
+        pdu.put(bhs.array());
+        readFully(channel, pdu);
+        return pdu;
+    }
+
+    private static void readFully (final SocketChannel channel, final ByteBuffer dst) throws IOException {
+        while (dst.hasRemaining()) {
+            if (channel.read(dst) == -1) {
+                throw new IOException("connection closed");
+            }
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package org.jscsi.target.connection;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.target.util.BufferPool;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the incremental framing of the {@link PduFramer} used by the {@link TargetReactor}.
+ */
+public class PduFramerTest {
+
+    @Test
+    public void testFragmentedPdus() throws Exception {
+        final ProtocolDataUnitFactory factory = new ProtocolDataUnitFactory();
+        final ProtocolDataUnit first = TargetPduFactory.createReadyToTransferPdu(0, 1, 2, 0, 0, 8192);
+        // an unaligned data segment, so padding has to be taken into account
+        final ProtocolDataUnit second = TargetPduFactory.createTextResponsePdu(true, false, 0, 3, -1, ByteBuffer.wrap("MaxRecvDataSegmentLength=8192".getBytes()));
+
+        final ByteBuffer firstBytes = first.serialize();
+        final ByteBuffer secondBytes = second.serialize();
+        final ByteBuffer stream = ByteBuffer.allocate(firstBytes.remaining() + secondBytes.remaining());
+        stream.put(firstBytes).put(secondBytes).flip();
+
+        final Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        final PduFramer framer = new PduFramer(createConnection(), 8);
+        final Queue<ByteBuffer> frames = new LinkedList<>();
+
+        // deliver the stream in small, odd-sized pieces
+        while (stream.hasRemaining()) {
+            final ByteBuffer piece = stream.slice();
+            piece.limit(Math.min(7, piece.remaining()));
+            stream.position(stream.position() + piece.remaining());
+            while (piece.hasRemaining()) {
+                pipe.sink().write(piece);
+            }
+            assertTrue(framer.read(pipe.source(), frames) >= 0);
+        }
+
+        assertEquals(frames.size(), 2);
+        assertEquals(frames.poll(), first.serialize());
+        final ByteBuffer frame = frames.poll();
+        assertEquals(frame, second.serialize());
+
+        // frames can be read just like a socket channel
+        final ProtocolDataUnit received = factory.create("None", "None");
+        received.read(new ReadableByteChannel() {
+
+            @Override
+            public int read(final ByteBuffer dst) {
+                final int length = Math.min(dst.remaining(), frame.remaining());
+                final ByteBuffer src = frame.slice();
+                src.limit(length);
+                dst.put(src);
+                frame.position(frame.position() + length);
+                return length;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        assertEquals(received.getBasicHeaderSegment(), second.getBasicHeaderSegment());
+
+        pipe.sink().close();
+        assertEquals(framer.read(pipe.source(), frames), -1);
+    }
+
+    @Test
+    public void testFullQueue() throws Exception {
+        final ByteBuffer pdu = TargetPduFactory.createReadyToTransferPdu(0, 1, 2, 0, 0, 8192).serialize();
+        final Pipe pipe = Pipe.open();
+        pipe.source().configureBlocking(false);
+        for (int i = 0; i < 3; ++i) {
+            pipe.sink().write(pdu.duplicate());
+        }
+
+        final PduFramer framer = new PduFramer(createConnection(), 2);
+        final Queue<ByteBuffer> frames = new LinkedList<>();
+        assertEquals(framer.read(pipe.source(), frames), 2 * pdu.remaining());
+        assertEquals(frames.size(), 2);
+        // nothing is read until a frame has been taken
+        assertEquals(framer.read(pipe.source(), frames), 0);
+        frames.poll();
+        assertEquals(framer.read(pipe.source(), frames), pdu.remaining());
+        assertEquals(frames.size(), 2);
+    }
+
+    @Test
+    public void testDigests() {
+        final ByteBuffer bhs = ByteBuffer.allocate(PduFramer.BHS_LENGTH);
+        assertEquals(PduFramer.getRemainingLength(bhs, 4, 4), 4);
+        // one Additional Header Segment word and an unaligned data segment of five bytes
+        bhs.put(4, (byte) 1);
+        bhs.put(7, (byte) 5);
+        assertEquals(PduFramer.getRemainingLength(bhs, 0, 0), 4 + 8);
+        assertEquals(PduFramer.getRemainingLength(bhs, 4, 0), 4 + 4 + 8);
+        assertEquals(PduFramer.getRemainingLength(bhs, 4, 4), 4 + 4 + 8 + 4);
+    }
+
+    private static Connection createConnection() {
+        final Connection connection = mock(Connection.class);
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        return connection;
+    }
+}
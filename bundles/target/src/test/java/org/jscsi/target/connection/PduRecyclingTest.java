@@ -0,0 +1,352 @@
+package org.jscsi.target.connection;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.DigestException;
+import java.util.Random;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.data.DataOutParser;
+import org.jscsi.parser.login.ISID;
+import org.jscsi.parser.r2t.Ready2TransferParser;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.connection.stage.fullfeature.ReadStage;
+import org.jscsi.target.connection.stage.fullfeature.WriteStage;
+import org.jscsi.target.context.DataInMode;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.settings.ConnectionSettingsNegotiator;
+import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.settings.Settings;
+import org.jscsi.target.settings.SettingsException;
+import org.jscsi.target.storage.RandomAccessStorageModule;
+import org.jscsi.target.util.BufferPool;
+import org.jscsi.target.util.FastByteArrayProvider;
+import org.jscsi.target.util.SerialArithmeticNumber;
+import org.slf4j.LoggerFactory;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+
+/**
+ * Checks that receiving the Data-Out PDUs of a <code>WRITE (10)</code> command and sending the Data-In PDUs of a
+ * <code>READ (10)</code> command do not allocate any memory per PDU, once the pools of the connection have been filled.
+ * <p>
+ * The allocations of the receiving and sending thread are measured by {@link com.sun.management.ThreadMXBean}. A
+ * hand-written {@link Connection} is used, since mocks allocate memory on every invocation.
+ */
+public class PduRecyclingTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int WARM_UP_PDUS = 20000;
+
+    private Level rootLevel;
+
+    private File file;
+
+    private RandomAccessStorageModule module;
+
+    private ServerSocketChannel server;
+
+    private SocketChannel initiator;
+
+    private SocketChannel target;
+
+    private RecyclingConnection connection;
+
+    private TargetSenderWorker worker;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        // PDUs are logged at DEBUG level
+        final Logger root = (Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        rootLevel = root.getLevel();
+        root.setLevel(Level.INFO);
+
+        file = File.createTempFile("jscsi-recycling", ".bin");
+        module = new RandomAccessStorageModule(1024, file);
+
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+        initiator = SocketChannel.open(server.socket().getLocalSocketAddress());
+        target = server.accept();
+        // R2Ts and Data-Out PDUs are exchanged in turns, which must not wait for delayed acknowledgements
+        initiator.socket().setTcpNoDelay(true);
+        target.socket().setTcpNoDelay(true);
+
+        connection = new RecyclingConnection();
+        worker = new TargetSenderWorker(connection, target, null, DataInMode.COPY, null, 0);
+        connection.worker = worker;
+        new TargetSession(null, connection, new ISID(), 0, 0);
+    }
+
+    @AfterMethod
+    public void tearDown () throws Exception {
+        initiator.close();
+        target.close();
+        server.close();
+        module.close();
+        file.delete();
+        ((Logger) LoggerFactory.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME)).setLevel(rootLevel);
+    }
+
+    @Test
+    public void testReceivingDataOutPdus () throws Exception {
+        final int segmentLength = connection.getSettings().getMaxRecvDataSegmentLength();
+        final Thread responder = new Thread(() -> answerReadyToTransferPdus(segmentLength));
+        responder.setDaemon(true);
+        responder.start();
+
+        // both commands are transferred in a single burst, so they only differ in the number of Data-Out PDUs
+        final int segmentBlocks = segmentLength / BLOCK_SIZE;
+        final long shortCommand = 2 * segmentBlocks;
+        final long longCommand = connection.getSettings().getMaxBurstLength() / BLOCK_SIZE;
+        final long additionalPdus = (longCommand - shortCommand) / segmentBlocks;
+        for (int i = 0; i < WARM_UP_PDUS / (2 + additionalPdus); ++i) {
+            write(shortCommand);
+            write(longCommand);
+        }
+        long minimum = Long.MAX_VALUE;
+        for (int i = 0; i < 5; ++i) {
+            // the fixed allocations of both commands cancel out
+            final long start = allocatedBytes();
+            write(shortCommand);
+            final long middle = allocatedBytes();
+            write(longCommand);
+            minimum = Math.min(minimum, allocatedBytes() - middle - (middle - start));
+        }
+
+        assertTrue(minimum < additionalPdus, minimum + " bytes allocated for " + additionalPdus + " additional Data-Out PDUs");
+        assertEquals(connection.getPduPool().size(), 1);
+    }
+
+    @Test
+    public void testSendingDataInPdus () throws Exception {
+        final Thread receiver = new Thread(() -> {
+            final ByteBuffer dst = ByteBuffer.allocateDirect(64 * 1024);
+            try {
+                while (initiator.read(dst) != -1) {
+                    dst.clear();
+                }
+            } catch (IOException e) {
+                // the connection has been closed
+            }
+        });
+        receiver.setDaemon(true);
+        receiver.start();
+
+        // the bytes allocated by a command do not depend on its length, apart from each Data-In PDU
+        final int segmentBlocks = connection.getSettings().getMaxRecvDataSegmentLength() / BLOCK_SIZE;
+        final long shortCommand = 4 * segmentBlocks;
+        final long longCommand = 64 * segmentBlocks;
+        for (int i = 0; i < WARM_UP_PDUS / 64; ++i) {
+            read(shortCommand);
+            read(longCommand);
+        }
+        long minimum = Long.MAX_VALUE;
+        for (int i = 0; i < 5; ++i) {
+            // the fixed allocations of both commands cancel out
+            final long start = allocatedBytes();
+            read(shortCommand);
+            final long middle = allocatedBytes();
+            read(longCommand);
+            minimum = Math.min(minimum, allocatedBytes() - middle - (middle - start));
+        }
+
+        assertTrue(minimum < 60, minimum + " bytes allocated for 60 additional Data-In PDUs");
+    }
+
+    /**
+     * Executes a <code>READ (10)</code> command of the given length, starting at the first block.
+     */
+    private void read (final long transferLength) throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final SCSICommandParser parser = (SCSICommandParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setExpectedDataTransferLength((int) transferLength * BLOCK_SIZE);
+        final ByteBuffer cdb = parser.getCDB();
+        cdb.put(0, (byte) 0x28);// READ (10)
+        cdb.putShort(7, (short) transferLength);
+
+        final ReadStage stage = new ReadStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        stage.execute(pdu);
+    }
+
+    /**
+     * Executes a <code>WRITE (10)</code> command of the given length, starting at the first block.
+     */
+    private void write (final long transferLength) throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final SCSICommandParser parser = (SCSICommandParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setExpectedDataTransferLength((int) transferLength * BLOCK_SIZE);
+        final ByteBuffer cdb = parser.getCDB();
+        cdb.put(0, (byte) 0x2a);// WRITE (10)
+        cdb.putShort(7, (short) transferLength);
+
+        final WriteStage stage = new WriteStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        stage.execute(pdu);
+    }
+
+    /**
+     * Acts as the initiator of the written commands, answering each R2T PDU with the requested Data-Out PDUs until the
+     * connection is closed.
+     */
+    private void answerReadyToTransferPdus (final int segmentLength) {
+        final byte[] data = new byte[segmentLength];
+        new Random(42).nextBytes(data);
+        try {
+            while (true) {
+                final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create("None", "None");
+                pdu.read(initiator);
+                if (pdu.getBasicHeaderSegment().getOpCode() != OperationCode.R2T) {
+                    continue;
+                }
+                final Ready2TransferParser r2t = (Ready2TransferParser) pdu.getBasicHeaderSegment().getParser();
+                int dataSequenceNumber = 0;
+                for (int offset = 0; offset < r2t.getDesiredDataTransferLength(); offset += segmentLength) {
+                    final boolean last = offset + segmentLength >= r2t.getDesiredDataTransferLength();
+                    final ByteBuffer src = createDataOutPdu(r2t.getTargetTransferTag(), dataSequenceNumber++, r2t.getBufferOffset() + offset, data, last).serialize();
+                    while (src.hasRemaining()) {
+                        initiator.write(src);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            // the connection has been closed
+        }
+    }
+
+    private static ProtocolDataUnit createDataOutPdu (final int targetTransferTag, final int dataSequenceNumber, final int bufferOffset, final byte[] data, final boolean last) {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, last, OperationCode.SCSI_DATA_OUT, "None", "None");
+        final DataOutParser parser = (DataOutParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setTargetTransferTag(targetTransferTag);
+        parser.setDataSequenceNumber(dataSequenceNumber);
+        parser.setBufferOffset(bufferOffset);
+        pdu.setDataSegment(ByteBuffer.wrap(data));
+        return pdu;
+    }
+
+    private static long allocatedBytes () {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * A connection receiving and sending PDUs through a {@link TargetSenderWorker}, like the {@link TargetConnection}.
+     */
+    private static final class RecyclingConnection implements Connection {
+
+        private final BufferPool bufferPool = new BufferPool();
+
+        private final PduPool pduPool = new PduPool();
+
+        private final FastByteArrayProvider dataInArrayProvider = new FastByteArrayProvider(4);
+
+        private TargetSenderWorker worker;
+
+        private TargetSession session;
+
+        private SerialArithmeticNumber statusSequenceNumber;
+
+        private ConnectionSettingsNegotiator connectionSettingsNegotiator;
+
+        @Override
+        public Settings getSettings () {
+            return connectionSettingsNegotiator.getSettings();
+        }
+
+        @Override
+        public SerialArithmeticNumber getStatusSequenceNumber () {
+            return statusSequenceNumber;
+        }
+
+        @Override
+        public boolean isLeadingConnection () {
+            return false;
+        }
+
+        @Override
+        public ProtocolDataUnit receivePdu () throws DigestException, InternetSCSIException, IOException, SettingsException {
+            return worker.receiveFromWire();
+        }
+
+        @Override
+        public void sendPdu (final ProtocolDataUnit pdu) throws InterruptedException, IOException, InternetSCSIException {
+            worker.sendOverWire(pdu);
+        }
+
+        @Override
+        public void sendPdu (final ProtocolDataUnit pdu, final FileChannel source, final long position) throws IOException, InternetSCSIException {
+            worker.sendOverWire(pdu, source, position);
+        }
+
+        @Override
+        public DataInMode getDataInMode () {
+            return DataInMode.COPY;
+        }
+
+        @Override
+        public ConnectionSettingsNegotiator getConnectionSettingsNegotiator () {
+            return connectionSettingsNegotiator;
+        }
+
+        @Override
+        public void setSession (final TargetSession session) {
+            this.session = session;
+            worker.setSession(session);
+        }
+
+        @Override
+        public TargetSession getTargetSession () {
+            return session;
+        }
+
+        @Override
+        public void setStatusSequenceNumber (final int statusSequenceNumber) {
+            this.statusSequenceNumber = new SerialArithmeticNumber(statusSequenceNumber);
+        }
+
+        @Override
+        public void initializeConnectionSettingsNegotiator (final SessionSettingsNegotiator sessionSettingsNegotiator) {
+            connectionSettingsNegotiator = new ConnectionSettingsNegotiator(sessionSettingsNegotiator);
+        }
+
+        @Override
+        public byte[] getDataInArray (final int length) {
+            return dataInArrayProvider.getArray(length);
+        }
+
+        @Override
+        public BufferPool getBufferPool () {
+            return bufferPool;
+        }
+
+        @Override
+        public PduPool getPduPool () {
+            return pduPool;
+        }
+
+        @Override
+        public boolean stop () {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.createCommand;
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.connection.stage.fullfeature.ReadCapacityStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.storage.StorageCapabilities;
+import org.testng.annotations.Test;
+
+
+public class ReadCapacityStageTest {
+
+    private static final long SIZE_IN_BLOCKS = 1 << 20;
+
+    @Test
+    public void testReadCapacity10 () throws Exception {
+        final ByteBuffer cdb = ByteBuffer.allocate(10);
+        cdb.put(0, (byte) 0x25);
+        final ByteBuffer parameterData = execute(cdb, 8, 4096, 4096);
+        assertEquals(parameterData.getInt(0), SIZE_IN_BLOCKS - 1);// RETURNED LOGICAL BLOCK ADDRESS
+        assertEquals(parameterData.getInt(4), 4096);// LOGICAL BLOCK LENGTH IN BYTES
+    }
+
+    @Test
+    public void testReadCapacity16 () throws Exception {
+        final ByteBuffer cdb = ByteBuffer.allocate(16);
+        cdb.put(0, (byte) 0x9e);
+        cdb.put(1, (byte) 0x10);// SERVICE ACTION
+        cdb.putInt(10, 32);// ALLOCATION LENGTH
+        final ByteBuffer parameterData = execute(cdb, 32, 512, 4096);
+        assertEquals(parameterData.getLong(0), SIZE_IN_BLOCKS - 1);// RETURNED LOGICAL BLOCK ADDRESS
+        assertEquals(parameterData.getInt(8), 512);// LOGICAL BLOCK LENGTH IN BYTES
+        assertEquals(parameterData.get(13) & 15, 3);// LOGICAL BLOCKS PER PHYSICAL BLOCK EXPONENT
+        assertEquals(parameterData.get(14) & 0x80, 0x80);// LBPME
+    }
+
+    /**
+     * Executes a {@link ReadCapacityStage} for the given CDB and returns the parameter data.
+     */
+    private static ByteBuffer execute (final ByteBuffer cdb, final int expectedDataTransferLength, final int blockSize, final int physicalBlockSize) throws Exception {
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getSizeInBlocks()).thenReturn(SIZE_IN_BLOCKS);
+        when(module.getBlockSize()).thenReturn(blockSize);
+        when(module.getPhysicalBlockSize()).thenReturn(physicalBlockSize);
+        when(module.getCapabilities()).thenReturn(StorageCapabilities.THIN_PROVISIONED);
+        final ProtocolDataUnit pdu = createCommand(expectedDataTransferLength);
+        cdb.rewind();
+        getCDB(pdu).put(cdb).rewind();
+
+        final StageTestFixture fixture = new StageTestFixture();
+        final ReadCapacityStage stage = new ReadCapacityStage(fixture.createPhase());
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        return fixture.execute(stage, pdu).getDataSegment();
+    }
+}
@@ -0,0 +1,254 @@
+package org.jscsi.target.connection;
+
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.jscsi.parser.BasicHeaderSegment;
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.data.DataInParser;
+import org.jscsi.parser.login.LoginStage;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.target.TargetServer;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.connection.stage.fullfeature.ReadStage;
+import org.jscsi.target.context.Configuration;
+import org.jscsi.target.context.DataInMode;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.settings.ConnectionSettingsNegotiator;
+import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.settings.Settings;
+import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.storage.IFileBackedStorageModule;
+import org.jscsi.target.util.BufferPool;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class ReadStageTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * Four full data segments of 8192 bytes, followed by a partial one.
+     */
+    private static final int TRANSFER_LENGTH = 75;
+
+    private static final int LOGICAL_BLOCK_ADDRESS = 3;
+
+    private ExecutorService storageExecutor;
+
+    /**
+     * A file-backed storage module, whose file is only used if the data segments are transferred from it.
+     */
+    private IFileBackedStorageModule module;
+
+    private Connection connection;
+
+    private Configuration configuration;
+
+    private Settings settings;
+
+    /**
+     * The <code>DataSN</code>, <code>Buffer Offset</code>, final flag and status flag of the sent Data-In PDUs, copied
+     * when they were sent, since the PDUs are reused.
+     */
+    private List<int[]> sent;
+
+    /**
+     * The data segments of the sent Data-In PDUs, copied when they were sent.
+     */
+    private List<byte[]> dataSegments;
+
+    /**
+     * Counted down when the second data segment is read from storage.
+     */
+    private CountDownLatch secondSegmentRead;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        storageExecutor = Executors.newCachedThreadPool();
+        settings = new ConnectionSettingsNegotiator(new SessionSettingsNegotiator()).getSettings();
+        secondSegmentRead = new CountDownLatch(1);
+
+        // every byte of the medium holds the lowest byte of its position
+        module = mock(IFileBackedStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn(1024L);
+        doAnswer(invocation -> {
+            final ByteBuffer dst = (ByteBuffer) invocation.getArguments()[0];
+            final long storageIndex = (Long) invocation.getArguments()[1];
+            if (storageIndex == LOGICAL_BLOCK_ADDRESS * BLOCK_SIZE + settings.getMaxRecvDataSegmentLength()) {
+                secondSegmentRead.countDown();
+            }
+            for (long i = storageIndex; dst.hasRemaining(); ++i) {
+                dst.put((byte) i);
+            }
+            return null;
+        }).when(module).read(any(ByteBuffer.class), anyLong());
+        doAnswer(invocation -> {
+            module.read(ByteBuffer.wrap((byte[]) invocation.getArguments()[0]), (Long) invocation.getArguments()[1]);
+            return null;
+        }).when(module).read(any(byte[].class), anyLong());
+
+        configuration = mock(Configuration.class);
+        final TargetServer targetServer = mock(TargetServer.class);
+        when(targetServer.getConfig()).thenReturn(configuration);
+        when(targetServer.getStorageExecutor()).thenReturn(storageExecutor);
+        final TargetSession session = mock(TargetSession.class);
+        when(session.getTargetServer()).thenReturn(targetServer);
+
+        connection = mock(Connection.class);
+        when(connection.getTargetSession()).thenReturn(session);
+        when(connection.getSettings()).thenReturn(settings);
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        when(connection.getDataInArray(org.mockito.Matchers.anyInt())).thenAnswer(invocation -> new byte[(Integer) invocation.getArguments()[0]]);
+        sent = new ArrayList<>();
+        dataSegments = new ArrayList<>();
+        doAnswer(invocation -> {
+            record((ProtocolDataUnit) invocation.getArguments()[0]);
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+    }
+
+    @AfterMethod
+    public void tearDown () {
+        storageExecutor.shutdownNow();
+    }
+
+    @Test
+    public void testWithoutPrefetch () throws Exception {
+        when(configuration.getReadPrefetchDepth()).thenReturn(0);
+        execute();
+        assertDataInPdus();
+    }
+
+    @Test
+    public void testPrefetch () throws Exception {
+        when(configuration.getReadPrefetchDepth()).thenReturn(2);
+        doAnswer(invocation -> {
+            // the second data segment is read before the first one has been sent
+            if (sent.isEmpty()) {
+                assertTrue(secondSegmentRead.await(10, TimeUnit.SECONDS));
+            }
+            record((ProtocolDataUnit) invocation.getArguments()[0]);
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+
+        execute();
+        assertDataInPdus();
+    }
+
+    @Test(expectedExceptions = IOException.class)
+    public void testPrefetchFailure () throws Exception {
+        when(configuration.getReadPrefetchDepth()).thenReturn(2);
+        doAnswer(invocation -> {
+            throw new IOException("medium error");
+        }).when(module).read(any(ByteBuffer.class), org.mockito.Matchers.eq((long) LOGICAL_BLOCK_ADDRESS * BLOCK_SIZE + 3 * settings.getMaxRecvDataSegmentLength()));
+
+        execute();
+    }
+
+    /**
+     * Data segments cannot be transferred from the file if a data digest has to be calculated over them.
+     */
+    @Test
+    public void testTransferToWithDataDigest () throws Exception {
+        final ConnectionSettingsNegotiator negotiator = new ConnectionSettingsNegotiator(new SessionSettingsNegotiator());
+        negotiator.beginNegotiation();
+        assertTrue(negotiator.negotiate(null, LoginStage.LOGIN_OPERATIONAL_NEGOTIATION, true, false, new ArrayList<>(Arrays.asList("DataDigest=CRC32C")), new ArrayList<>()));
+        negotiator.finishNegotiation(true);
+        settings = negotiator.getSettings();
+        assertEquals(settings.getDataDigest(), TextKeyword.CRC_32C);
+        when(connection.getSettings()).thenReturn(settings);
+        when(connection.getDataInMode()).thenReturn(DataInMode.TRANSFER_TO);
+        final File file = File.createTempFile("jscsi-read", ".bin");
+        try (FileChannel fileChannel = FileChannel.open(file.toPath())) {
+            when(module.getFileChannel()).thenReturn(fileChannel);
+
+            execute();
+            assertDataInPdus();
+            verify(connection, never()).sendPdu(any(ProtocolDataUnit.class), any(FileChannel.class), anyLong());
+        } finally {
+            file.delete();
+        }
+    }
+
+    private void execute () throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final SCSICommandParser parser = (SCSICommandParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setExpectedDataTransferLength(TRANSFER_LENGTH * BLOCK_SIZE);
+        final ByteBuffer cdb = parser.getCDB();
+        cdb.put(0, (byte) 0x28);// READ (10)
+        cdb.putInt(2, LOGICAL_BLOCK_ADDRESS);
+        cdb.putShort(7, (short) TRANSFER_LENGTH);
+
+        final ReadStage stage = new ReadStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        stage.execute(pdu);
+    }
+
+    /**
+     * Records a sent PDU. The fields and the data segment are copied, since the PDU and its buffer are reused
+     * afterwards.
+     */
+    private void record (final ProtocolDataUnit pdu) {
+        final ByteBuffer dataSegment = pdu.getDataSegment().duplicate();
+        dataSegment.rewind();
+        final BasicHeaderSegment bhs = pdu.getBasicHeaderSegment();
+        final byte[] copy = new byte[bhs.getDataSegmentLength()];
+        dataSegment.get(copy);
+        final DataInParser parser = (DataInParser) bhs.getParser();
+        sent.add(new int[] { parser.getDataSequenceNumber(), parser.getBufferOffset(), bhs.isFinalFlag() ? 1 : 0, parser.isStatusFlag() ? 1 : 0 });
+        dataSegments.add(copy);
+    }
+
+    /**
+     * Checks that the whole range has been sent in order, with the status in the last Data-In PDU.
+     */
+    private void assertDataInPdus () throws Exception {
+        final int segmentLength = settings.getMaxRecvDataSegmentLength();
+        final int totalLength = TRANSFER_LENGTH * BLOCK_SIZE;
+        assertEquals(sent.size(), (totalLength + segmentLength - 1) / segmentLength);
+        for (int i = 0; i < sent.size(); ++i) {
+            final int[] fields = sent.get(i);
+            final boolean last = i == sent.size() - 1;
+            assertEquals(fields[0], i);
+            assertEquals(fields[1], i * segmentLength);
+            assertEquals(fields[2] == 1, last);
+            if (!last) {
+                assertFalse(fields[3] == 1);
+            }
+            final byte[] data = dataSegments.get(i);
+            assertEquals(data.length, Math.min(segmentLength, totalLength - i * segmentLength));
+            for (int j = 0; j < data.length; ++j) {
+                assertEquals(data[j], (byte) (LOGICAL_BLOCK_ADDRESS * BLOCK_SIZE + i * segmentLength + j));
+            }
+        }
+        assertEquals(sent.get(sent.size() - 1)[3] == 1, settings.getImmediateData());
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.createCommand;
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.target.connection.stage.fullfeature.ReportLunsStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.context.Target;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.testng.annotations.Test;
+
+
+public class ReportLunsStageTest {
+
+    @Test
+    public void testAllLogicalUnits () throws Exception {
+        // not sorted by number on purpose
+        final ByteBuffer parameterData = execute(0x02, 0, 1000, 7);
+        assertEquals(parameterData.getInt(0), 3 * 8);// LUN LIST LENGTH
+        assertEquals(parameterData.getLong(8), 0L);
+        assertEquals(parameterData.getLong(16), 0x0007000000000000L);
+        assertEquals(parameterData.getLong(24), 0x43e8000000000000L);// flat space addressing
+    }
+
+    @Test
+    public void testWellKnownLogicalUnitsOnly () throws Exception {
+        final ByteBuffer parameterData = execute(0x01, 0, 1);
+        assertEquals(parameterData.getInt(0), 0);// LUN LIST LENGTH
+    }
+
+    /**
+     * Executes a {@link ReportLunsStage} with the given SELECT REPORT field for a target with logical units of the
+     * given numbers, and returns the parameter data.
+     */
+    private static ByteBuffer execute (final int selectReport, final Integer... numbers) throws Exception {
+        final LogicalUnit[] logicalUnits = new LogicalUnit[numbers.length];
+        for (int i = 0; i < numbers.length; ++i) {
+            logicalUnits[i] = new LogicalUnit(numbers[i], mock(IPositionalStorageModule.class));
+        }
+        final StageTestFixture fixture = new StageTestFixture();
+        when(fixture.session.getTarget()).thenReturn(new Target("iqn.2010-04.local-test:luns", "luns", Arrays.asList(logicalUnits)));
+
+        final ProtocolDataUnit pdu = createCommand(256);
+        final ByteBuffer cdb = getCDB(pdu);
+        cdb.put(0, (byte) 0xa0);
+        cdb.put(2, (byte) selectReport);
+        cdb.putInt(6, 256);// ALLOCATION LENGTH
+
+        return fixture.execute(new ReportLunsStage(fixture.createPhase()), pdu).getDataSegment();
+    }
+}
@@ -0,0 +1,85 @@
+package org.jscsi.target.connection;
+
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIResponseParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.connection.stage.fullfeature.TargetFullFeatureStage;
+import org.jscsi.target.settings.ConnectionSettingsNegotiator;
+import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.util.BufferPool;
+
+
+/**
+ * A mocked {@link TargetSession} and {@link Connection} for the tests of single full feature stages. The connection
+ * has default settings and a buffer pool, and records every PDU sent by a stage.
+ */
+final class StageTestFixture {
+
+    final TargetSession session = mock(TargetSession.class);
+
+    final Connection connection = mock(Connection.class);
+
+    /**
+     * The PDUs sent over {@link #connection}, in order.
+     */
+    final List<ProtocolDataUnit> sent = new ArrayList<>();
+
+    StageTestFixture () throws Exception {
+        when(connection.getTargetSession()).thenReturn(session);
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        when(connection.getSettings()).thenReturn(new ConnectionSettingsNegotiator(new SessionSettingsNegotiator()).getSettings());
+        doAnswer(invocation -> {
+            sent.add((ProtocolDataUnit) invocation.getArguments()[0]);
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+    }
+
+    TargetFullFeaturePhase createPhase () {
+        return new TargetFullFeaturePhase(connection);
+    }
+
+    /**
+     * Executes the given stage for the given command and returns its response, which has to be the only PDU sent.
+     */
+    ProtocolDataUnit execute (final TargetFullFeatureStage stage, final ProtocolDataUnit command) throws Exception {
+        stage.execute(command);
+        assertEquals(sent.size(), 1);
+        return sent.get(0);
+    }
+
+    /**
+     * Returns the last PDU sent, which is the response of a stage.
+     */
+    ProtocolDataUnit getResponse () {
+        return sent.get(sent.size() - 1);
+    }
+
+    static ProtocolDataUnit createCommand (final int expectedDataTransferLength) {
+        final ProtocolDataUnit command = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        ((SCSICommandParser) command.getBasicHeaderSegment().getParser()).setExpectedDataTransferLength(expectedDataTransferLength);
+        return command;
+    }
+
+    static ByteBuffer getCDB (final ProtocolDataUnit command) {
+        return ((SCSICommandParser) command.getBasicHeaderSegment().getParser()).getCDB();
+    }
+
+    static SCSIStatus getStatus (final ProtocolDataUnit response) {
+        return ((SCSIResponseParser) response.getBasicHeaderSegment().getParser()).getStatus();
+    }
+}
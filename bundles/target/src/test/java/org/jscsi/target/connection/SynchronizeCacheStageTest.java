@@ -0,0 +1,79 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.createCommand;
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.jscsi.target.connection.StageTestFixture.getStatus;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.stage.fullfeature.SynchronizeCacheStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.testng.annotations.Test;
+
+
+public class SynchronizeCacheStageTest {
+
+    private static final long SIZE_IN_BLOCKS = 1024;
+
+    @Test
+    public void testSynchronizeCache10 () throws Exception {
+        final IPositionalStorageModule module = mockModule();
+        final ByteBuffer cdb = ByteBuffer.allocate(10);
+        cdb.put(0, (byte) 0x35);
+        cdb.putInt(2, 16);// LOGICAL BLOCK ADDRESS
+        cdb.putShort(7, (short) 8);// NUMBER OF LOGICAL BLOCKS
+        assertEquals(execute(module, cdb), SCSIStatus.GOOD);
+        verify(module).flush();
+    }
+
+    @Test
+    public void testSynchronizeCache16 () throws Exception {
+        final IPositionalStorageModule module = mockModule();
+        final ByteBuffer cdb = ByteBuffer.allocate(16);
+        cdb.put(0, (byte) 0x91);
+        cdb.put(1, (byte) 0x02);// IMMED
+        assertEquals(execute(module, cdb), SCSIStatus.GOOD);
+        verify(module).flush();
+    }
+
+    @Test
+    public void testOutOfRange () throws Exception {
+        final IPositionalStorageModule module = mockModule();
+        final ByteBuffer cdb = ByteBuffer.allocate(16);
+        cdb.put(0, (byte) 0x91);
+        cdb.putLong(2, SIZE_IN_BLOCKS);// LOGICAL BLOCK ADDRESS
+        assertEquals(execute(module, cdb), SCSIStatus.CHECK_CONDITION);
+        verify(module, never()).flush();
+    }
+
+    private static IPositionalStorageModule mockModule () {
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.checkBounds(0, 0)).thenReturn(0);
+        when(module.checkBounds(16, 8)).thenReturn(0);
+        when(module.checkBounds(SIZE_IN_BLOCKS, 0)).thenReturn(1);
+        return module;
+    }
+
+    /**
+     * Executes a {@link SynchronizeCacheStage} for the given CDB and returns the status of the response.
+     */
+    private static SCSIStatus execute (final IPositionalStorageModule module, final ByteBuffer cdb) throws Exception {
+        final ProtocolDataUnit pdu = createCommand(0);
+        cdb.rewind();
+        getCDB(pdu).put(cdb).rewind();
+
+        final StageTestFixture fixture = new StageTestFixture();
+        final SynchronizeCacheStage stage = new SynchronizeCacheStage(fixture.createPhase());
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        return getStatus(fixture.execute(stage, pdu));
+    }
+}
@@ -0,0 +1,234 @@
+package org.jscsi.target.connection;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.DigestException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.login.LoginStage;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.context.DataInMode;
+import org.jscsi.target.settings.ConnectionSettingsNegotiator;
+import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.settings.TextKeyword;
+import org.jscsi.target.util.SerialArithmeticNumber;
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+/**
+ * Compares the bytes written by the {@link TargetSenderWorker} for Data-In PDUs in every {@link DataInMode} with the
+ * bytes written by the copying path.
+ */
+public class TargetSenderWorkerTest {
+
+    /**
+     * Not a multiple of four, so that the data segment has to be padded.
+     */
+    private static final int DATA_SEGMENT_LENGTH = 8195;
+
+    /**
+     * The position of the data segment within the {@link #file}.
+     */
+    private static final int FILE_OFFSET = 1000;
+
+    /**
+     * Less than {@link #DATA_SEGMENT_LENGTH}, so that the data digests are calculated in parallel.
+     */
+    private static final int PARALLEL_DIGEST_THRESHOLD = 4096;
+
+    private byte[] data;
+
+    private File file;
+
+    private RandomAccessFile randomAccessFile;
+
+    @BeforeClass
+    public void setUp() throws Exception {
+        data = new byte[DATA_SEGMENT_LENGTH];
+        new Random(42).nextBytes(data);
+        file = File.createTempFile("jscsi-data-in", ".bin");
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        randomAccessFile.seek(FILE_OFFSET);
+        randomAccessFile.write(data);
+    }
+
+    @AfterClass
+    public void tearDown() throws Exception {
+        randomAccessFile.close();
+        file.delete();
+    }
+
+    @Test
+    public void testGatheringWrite() throws Exception {
+        final byte[] expected = send(DataInMode.COPY, true, false);
+        assertEquals(expected.length, 48 + DATA_SEGMENT_LENGTH + 1 + 48);
+        assertEquals(send(DataInMode.GATHERING, true, false), expected);
+        assertEquals(send(DataInMode.GATHERING, false, false), expected);
+    }
+
+    @Test
+    public void testTransferTo() throws Exception {
+        final byte[] expected = send(DataInMode.COPY, true, false);
+        assertEquals(send(DataInMode.TRANSFER_TO, true, true), expected);
+        assertEquals(send(DataInMode.TRANSFER_TO, false, true), expected);
+    }
+
+    @Test
+    public void testTransferToKeepsFilePosition() throws Exception {
+        // the storage modules rely on the position of the file
+        final FileChannel channel = randomAccessFile.getChannel();
+        channel.position(0);
+        send(DataInMode.TRANSFER_TO, true, true);
+        assertEquals(channel.position(), 0);
+    }
+
+    /**
+     * Sends PDUs with the negotiated digests in every mode which can calculate a data digest, and reads them like an
+     * initiator, which validates the digests.
+     */
+    @Test
+    public void testSendingDigests() throws Exception {
+        for (final DataInMode mode : new DataInMode[] { DataInMode.COPY, DataInMode.GATHERING }) {
+            try (ServerSocketChannel server = ServerSocketChannel.open()) {
+                server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+                try (SocketChannel receiver = SocketChannel.open(server.socket().getLocalSocketAddress()); SocketChannel sender = server.accept()) {
+                    final TargetSenderWorker worker = new TargetSenderWorker(createDigestConnection(), sender, null, mode, null, PARALLEL_DIGEST_THRESHOLD);
+                    worker.setSession(createSession());
+                    worker.sendOverWire(TargetPduFactory.createDataInPdu(false, false, false, false, false, SCSIStatus.GOOD, 0L, 11, 0xffffffff, 0, 0, 0, ByteBuffer.wrap(data)));
+                    worker.sendOverWire(TargetPduFactory.createDataInPdu(true, false, false, false, true, SCSIStatus.GOOD, 0L, 11, 0xffffffff, 1, DATA_SEGMENT_LENGTH, 0, ByteBuffer.allocate(0)));
+                    sender.close();
+
+                    final ProtocolDataUnit first = new ProtocolDataUnitFactory().create(TextKeyword.CRC_32C, TextKeyword.CRC_32C);
+                    assertEquals(first.read(receiver), 48 + 4 + DATA_SEGMENT_LENGTH + 1 + 4);
+                    final byte[] received = new byte[DATA_SEGMENT_LENGTH];
+                    first.getDataSegment().get(received);
+                    assertEquals(received, data);
+                    // a zero-length data segment has no data digest
+                    final ProtocolDataUnit last = new ProtocolDataUnitFactory().create(TextKeyword.CRC_32C, TextKeyword.CRC_32C);
+                    assertEquals(last.read(receiver), 48 + 4);
+                    assertEquals(last.read(receiver), -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Receives a Data-Out PDU with digests, and a copy whose data segment has been corrupted.
+     */
+    @Test
+    public void testReceivingDigests() throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_DATA_OUT, TextKeyword.CRC_32C, TextKeyword.CRC_32C);
+        pdu.setDataSegment(ByteBuffer.wrap(data));
+        final ByteBuffer serialized = pdu.serialize();
+        final ByteBuffer corrupted = ByteBuffer.allocate(serialized.limit()).put(serialized.duplicate());
+        corrupted.put(100, (byte) ~corrupted.get(100)).flip();
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            try (SocketChannel initiator = SocketChannel.open(server.socket().getLocalSocketAddress()); SocketChannel target = server.accept()) {
+                initiator.write(new ByteBuffer[] { serialized, corrupted });
+                final TargetSenderWorker worker = new TargetSenderWorker(createDigestConnection(), target);
+
+                final ProtocolDataUnit received = worker.receiveFromWire();
+                final byte[] dataSegment = new byte[DATA_SEGMENT_LENGTH];
+                received.getDataSegment().get(dataSegment);
+                assertEquals(dataSegment, data);
+                try {
+                    worker.receiveFromWire();
+                    fail("the corrupted data segment has been accepted");
+                } catch (DigestException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a connection which has negotiated <code>CRC32C</code> header and data digests.
+     */
+    private static Connection createDigestConnection() {
+        final ConnectionSettingsNegotiator negotiator = new ConnectionSettingsNegotiator(new SessionSettingsNegotiator());
+        negotiator.beginNegotiation();
+        final List<String> response = new ArrayList<>();
+        assertEquals(negotiator.negotiate(null, LoginStage.LOGIN_OPERATIONAL_NEGOTIATION, true, false, new ArrayList<>(Arrays.asList("HeaderDigest=CRC32C,None", "DataDigest=CRC32C,None")), response), true);
+        assertTrue(response.contains("HeaderDigest=CRC32C"));
+        assertTrue(response.contains("DataDigest=CRC32C"));
+        negotiator.finishNegotiation(true);
+
+        final Connection connection = mock(Connection.class);
+        when(connection.getStatusSequenceNumber()).thenReturn(new SerialArithmeticNumber(3));
+        when(connection.getConnectionSettingsNegotiator()).thenReturn(negotiator);
+        when(connection.getSettings()).thenReturn(negotiator.getSettings());
+        return connection;
+    }
+
+    private static TargetSession createSession() {
+        final TargetSession session = mock(TargetSession.class);
+        when(session.getCommandDispatcher()).thenReturn(new CommandDispatcher(1));
+        when(session.getExpectedCommandSequenceNumber()).thenReturn(7);
+        when(session.getMaximumCommandSequenceNumber()).thenReturn(7);
+        return session;
+    }
+
+    /**
+     * Sends a Data-In PDU followed by a Data-In PDU with status over a loopback connection and returns the bytes
+     * received by the other end.
+     *
+     * @param mode     the mode of the sender
+     * @param blocking the blocking mode of the sender's channel
+     * @param fromFile <code>true</code> if the data segment of the first PDU is to be transferred from the file
+     * @return the received bytes
+     */
+    private byte[] send(final DataInMode mode, final boolean blocking, final boolean fromFile) throws Exception {
+        final TargetSession session = createSession();
+        final Connection connection = mock(Connection.class);
+        when(connection.getStatusSequenceNumber()).thenReturn(new SerialArithmeticNumber(3));
+
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.socket().bind(new InetSocketAddress("127.0.0.1", 0));
+            try (SocketChannel receiver = SocketChannel.open(server.socket().getLocalSocketAddress()); SocketChannel sender = server.accept()) {
+                sender.configureBlocking(blocking);
+                final TargetSenderWorker worker = new TargetSenderWorker(connection, sender, null, mode, null, 0);
+                worker.setSession(session);
+
+                final ProtocolDataUnit first = TargetPduFactory.createDataInPdu(false, false, false, false, false, SCSIStatus.GOOD, 0L, 11, 0xffffffff, 0, 0, 0, fromFile ? ByteBuffer.allocate(0) : ByteBuffer.wrap(data));
+                if (fromFile) {
+                    first.setDataSegmentLength(DATA_SEGMENT_LENGTH);
+                    worker.sendOverWire(first, randomAccessFile.getChannel(), FILE_OFFSET);
+                } else {
+                    worker.sendOverWire(first);
+                }
+                final ProtocolDataUnit last = TargetPduFactory.createDataInPdu(true, false, false, false, true, SCSIStatus.GOOD, 0L, 11, 0xffffffff, 1, DATA_SEGMENT_LENGTH, 0, ByteBuffer.allocate(0));
+                worker.sendOverWire(last);
+                sender.close();
+
+                final ByteBuffer received = ByteBuffer.allocate(2 * DATA_SEGMENT_LENGTH);
+                while (receiver.read(received) != -1) {
+                    // read until the sender has closed the connection
+                }
+                received.flip();
+                final byte[] bytes = new byte[received.remaining()];
+                received.get(bytes);
+                return bytes;
+            }
+        }
+    }
+}
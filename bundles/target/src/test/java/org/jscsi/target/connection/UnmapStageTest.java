@@ -0,0 +1,82 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.createCommand;
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.jscsi.target.connection.StageTestFixture.getStatus;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.stage.fullfeature.UnmapStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.testng.annotations.Test;
+
+
+public class UnmapStageTest {
+
+    private static final int BLOCK_SIZE = 4096;
+
+    private static final long SIZE_IN_BLOCKS = 1 << 20;
+
+    @Test
+    public void testUnmap () throws Exception {
+        final IPositionalStorageModule module = mockModule();
+        final SCSIStatus status = execute(module, new long[] { 16, 8, SIZE_IN_BLOCKS - 4, 4 });
+
+        assertEquals(status, SCSIStatus.GOOD);
+        verify(module).unmap(16L * BLOCK_SIZE, 8L * BLOCK_SIZE);
+        verify(module).unmap((SIZE_IN_BLOCKS - 4) * BLOCK_SIZE, 4L * BLOCK_SIZE);
+    }
+
+    @Test
+    public void testOutOfRange () throws Exception {
+        final IPositionalStorageModule module = mockModule();
+        final SCSIStatus status = execute(module, new long[] { 16, 8, SIZE_IN_BLOCKS - 4, 5 });
+
+        // no range is unmapped if any block descriptor is illegal
+        assertEquals(status, SCSIStatus.CHECK_CONDITION);
+        verify(module, never()).unmap(anyLong(), anyLong());
+    }
+
+    private static IPositionalStorageModule mockModule () {
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn(SIZE_IN_BLOCKS);
+        return module;
+    }
+
+    /**
+     * Executes an UNMAP command whose parameter list is sent as immediate data and returns the status.
+     *
+     * @param ranges pairs of LBA and number of logical blocks
+     */
+    private static SCSIStatus execute (final IPositionalStorageModule module, final long[] ranges) throws Exception {
+        final int parameterListLength = 8 + ranges.length / 2 * 16;
+        final ByteBuffer parameterList = ByteBuffer.allocate(parameterListLength);
+        parameterList.putShort(0, (short) (parameterListLength - 2));// UNMAP DATA LENGTH
+        parameterList.putShort(2, (short) (parameterListLength - 8));// UNMAP BLOCK DESCRIPTOR DATA LENGTH
+        for (int i = 0; i < ranges.length / 2; ++i) {
+            parameterList.putLong(8 + i * 16, ranges[2 * i]);
+            parameterList.putInt(16 + i * 16, (int) ranges[2 * i + 1]);
+        }
+
+        final ProtocolDataUnit command = createCommand(parameterListLength);
+        getCDB(command).put(0, (byte) 0x42);
+        getCDB(command).putShort(7, (short) parameterListLength);// PARAMETER LIST LENGTH
+        command.setDataSegment(parameterList);
+
+        final StageTestFixture fixture = new StageTestFixture();
+        final UnmapStage stage = new UnmapStage(fixture.createPhase());
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        return getStatus(fixture.execute(stage, command));
+    }
+}
@@ -0,0 +1,168 @@
+package org.jscsi.target.connection;
+
+
+import static org.jscsi.target.connection.StageTestFixture.getCDB;
+import static org.jscsi.target.connection.StageTestFixture.getStatus;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.data.DataOutParser;
+import org.jscsi.parser.r2t.Ready2TransferParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.connection.stage.fullfeature.WriteSameStage;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class WriteSameStageTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    /**
+     * A medium of 100 GiB.
+     */
+    private static final long SIZE_IN_BLOCKS = (100L << 30) / BLOCK_SIZE;
+
+    private IPositionalStorageModule module;
+
+    private StageTestFixture fixture;
+
+    private byte[] pattern;
+
+    /**
+     * The pattern passed to the storage module.
+     */
+    private byte[] written;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        pattern = new byte[BLOCK_SIZE];
+        for (int i = 0; i < BLOCK_SIZE; ++i) {
+            pattern[i] = (byte) (i + 1);
+        }
+        written = null;
+        module = mock(IPositionalStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn(SIZE_IN_BLOCKS);
+        doAnswer(invocation -> {
+            final ByteBuffer src = (ByteBuffer) invocation.getArguments()[0];
+            written = new byte[src.remaining()];
+            src.get(written);
+            return null;
+        }).when(module).writeSame(any(ByteBuffer.class), anyLong(), anyLong());
+
+        fixture = new StageTestFixture();
+    }
+
+    /**
+     * Writes a whole medium with a single command, transferring one logical block as immediate data.
+     */
+    @Test
+    public void testWholeMedium () throws Exception {
+        final ProtocolDataUnit command = createCommand((byte) 0x93, 0, 0, 0);// WRITE SAME (16) to the end of the medium
+        command.setDataSegment(ByteBuffer.wrap(pattern));
+
+        createStage().execute(command);
+
+        verify(module).writeSame(any(ByteBuffer.class), org.mockito.Matchers.eq(0L), org.mockito.Matchers.eq(SIZE_IN_BLOCKS * BLOCK_SIZE));
+        assertEquals(written, pattern);
+        assertResponse(SCSIStatus.GOOD);
+    }
+
+    /**
+     * Solicits the logical block with an R2T, if it has not been sent as immediate data.
+     */
+    @Test
+    public void testSolicitedBlock () throws Exception {
+        when(fixture.connection.receivePdu()).thenAnswer(invocation -> {
+            final Ready2TransferParser r2t = (Ready2TransferParser) fixture.getResponse().getBasicHeaderSegment().getParser();
+            assertEquals(r2t.getDesiredDataTransferLength(), BLOCK_SIZE);
+            final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_DATA_OUT, "None", "None");
+            final DataOutParser parser = (DataOutParser) pdu.getBasicHeaderSegment().getParser();
+            parser.setTargetTransferTag(r2t.getTargetTransferTag());
+            pdu.setDataSegment(ByteBuffer.wrap(pattern));
+            return pdu;
+        });
+
+        createStage().execute(createCommand((byte) 0x41, 0, 8, 16));// WRITE SAME (10)
+
+        verify(module).writeSame(any(ByteBuffer.class), org.mockito.Matchers.eq(8L * BLOCK_SIZE), org.mockito.Matchers.eq(16L * BLOCK_SIZE));
+        assertEquals(written, pattern);
+        assertEquals(fixture.sent.size(), 2);
+        assertResponse(SCSIStatus.GOOD);
+    }
+
+    /**
+     * Unmaps instead of writing zeros, if the module is able to deallocate the range.
+     */
+    @Test
+    public void testUnmap () throws Exception {
+        when(module.unmap(anyLong(), anyLong())).thenReturn(true);
+
+        createStage().execute(createCommand((byte) 0x93, 0x09, 0, 0));// UNMAP, NDOB
+
+        verify(module).unmap(0, SIZE_IN_BLOCKS * BLOCK_SIZE);
+        verify(module, never()).writeSame(any(ByteBuffer.class), anyLong(), anyLong());
+        assertResponse(SCSIStatus.GOOD);
+    }
+
+    /**
+     * Writes zeros, if the module has not been able to deallocate the range.
+     */
+    @Test
+    public void testUnmapFallsBackToWrite () throws Exception {
+        createStage().execute(createCommand((byte) 0x93, 0x09, 0, 0));// UNMAP, NDOB
+
+        verify(module).unmap(0, SIZE_IN_BLOCKS * BLOCK_SIZE);
+        assertEquals(written, new byte[BLOCK_SIZE]);
+        assertResponse(SCSIStatus.GOOD);
+    }
+
+    @Test
+    public void testOutOfRange () throws Exception {
+        createStage().execute(createCommand((byte) 0x93, 0x01, SIZE_IN_BLOCKS - 1, 2));
+
+        verify(module, never()).writeSame(any(ByteBuffer.class), anyLong(), anyLong());
+        assertResponse(SCSIStatus.CHECK_CONDITION);
+    }
+
+    private WriteSameStage createStage () {
+        final WriteSameStage stage = new WriteSameStage(fixture.createPhase());
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        return stage;
+    }
+
+    private static ProtocolDataUnit createCommand (final byte operationCode, final int flags, final long logicalBlockAddress, final int numberOfLogicalBlocks) {
+        final ProtocolDataUnit command = StageTestFixture.createCommand((flags & 0x01) == 0 ? BLOCK_SIZE : 0);
+        final ByteBuffer cdb = getCDB(command);
+        cdb.put(0, operationCode);
+        cdb.put(1, (byte) flags);
+        if (operationCode == 0x41) {
+            cdb.putInt(2, (int) logicalBlockAddress);
+            cdb.putShort(7, (short) numberOfLogicalBlocks);
+        } else {
+            cdb.putLong(2, logicalBlockAddress);
+            cdb.putInt(10, numberOfLogicalBlocks);
+        }
+        return command;
+    }
+
+    private void assertResponse (final SCSIStatus status) {
+        final ProtocolDataUnit response = fixture.getResponse();
+        assertEquals(response.getBasicHeaderSegment().getOpCode(), OperationCode.SCSI_RESPONSE);
+        assertEquals(getStatus(response), status);
+    }
+}
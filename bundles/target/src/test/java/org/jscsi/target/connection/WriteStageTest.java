@@ -0,0 +1,424 @@
+package org.jscsi.target.connection;
+
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.UnaryOperator;
+
+import org.jscsi.exception.InternetSCSIException;
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.data.DataOutParser;
+import org.jscsi.parser.login.LoginStage;
+import org.jscsi.parser.r2t.Ready2TransferParser;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIResponseParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.jscsi.target.TargetServer;
+import org.jscsi.target.connection.phase.TargetFullFeaturePhase;
+import org.jscsi.target.connection.stage.fullfeature.WriteStage;
+import org.jscsi.target.context.Configuration;
+import org.jscsi.target.context.LogicalUnit;
+import org.jscsi.target.context.Target;
+import org.jscsi.target.settings.ConnectionSettingsNegotiator;
+import org.jscsi.target.settings.SessionSettingsNegotiator;
+import org.jscsi.target.settings.Settings;
+import org.jscsi.target.storage.IPositionalStorageModule;
+import org.jscsi.target.util.BufferPool;
+import org.testng.annotations.Test;
+
+
+public class WriteStageTest {
+
+    private static final int BLOCK_SIZE = 512;
+
+    private static final int MAX_BURST_LENGTH = 8192;
+
+    private static final int MAX_OUTSTANDING_R2T = 8;
+
+    /**
+     * The encoded LUN of the commands, which the R2Ts must carry.
+     */
+    private static final long LUN = 0x0001000000000000L;
+
+    private static final int DATA_SEGMENT_LENGTH = 2048;
+
+    /**
+     * Writes sixteen bursts, answering the outstanding R2Ts with interleaved Data-Out PDUs, the most recently requested
+     * burst first.
+     */
+    @Test
+    public void testInterleavedBursts () throws Exception {
+        final int transferLength = 16 * MAX_BURST_LENGTH;
+        final byte[] data = new byte[transferLength];
+        new Random(42).nextBytes(data);
+        final byte[] medium = new byte[2 * transferLength];
+
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn((long) medium.length / BLOCK_SIZE);
+        doAnswer(invocation -> {
+            final ByteBuffer src = (ByteBuffer) invocation.getArguments()[0];
+            src.get(medium, ((Long) invocation.getArguments()[1]).intValue(), src.remaining());
+            return null;
+        }).when(module).write(any(ByteBuffer.class), anyLong());
+
+        final TargetSession session = mock(TargetSession.class);
+        final Connection connection = mock(Connection.class);
+        when(connection.getTargetSession()).thenReturn(session);
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        when(connection.getSettings()).thenReturn(negotiateSettings());
+
+        // the Data-Out PDUs of each requested burst
+        final List<Deque<ProtocolDataUnit>> bursts = new ArrayList<>();
+        final List<ProtocolDataUnit> responses = new ArrayList<>();
+        final int[] maxOutstanding = new int[1];
+        doAnswer(invocation -> {
+            final ProtocolDataUnit pdu = (ProtocolDataUnit) invocation.getArguments()[0];
+            if (pdu.getBasicHeaderSegment().getOpCode() == OperationCode.R2T) {
+                final Ready2TransferParser r2t = (Ready2TransferParser) pdu.getBasicHeaderSegment().getParser();
+                assertEquals(r2t.getReady2TransferSequenceNumber(), bursts.size());
+                bursts.add(createDataOutPdus(r2t, data));
+                int outstanding = 0;
+                for (Deque<ProtocolDataUnit> burst : bursts) {
+                    outstanding += burst.isEmpty() ? 0 : 1;
+                }
+                maxOutstanding[0] = Math.max(maxOutstanding[0], outstanding);
+            } else {
+                responses.add(pdu);
+            }
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+        final int[] received = new int[1];
+        when(connection.receivePdu()).thenAnswer(invocation -> {
+            // alternate between the newest and the oldest outstanding burst
+            final boolean newest = received[0]++ % 2 == 0;
+            for (int i = 0; i < bursts.size(); ++i) {
+                final Deque<ProtocolDataUnit> burst = bursts.get(newest ? bursts.size() - 1 - i : i);
+                if (!burst.isEmpty()) {
+                    return burst.poll();
+                }
+            }
+            throw new IllegalStateException("no R2T outstanding");
+        });
+
+        final ProtocolDataUnit command = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final ByteBuffer cdb = ((SCSICommandParser) command.getBasicHeaderSegment().getParser()).getCDB();
+        cdb.put(0, (byte) 0x2a);// WRITE (10)
+        cdb.putInt(2, 16);// LOGICAL BLOCK ADDRESS
+        cdb.putShort(7, (short) (transferLength / BLOCK_SIZE));// TRANSFER LENGTH
+        command.getBasicHeaderSegment().setInitiatorTaskTag(7);
+
+        final WriteStage stage = new WriteStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        stage.execute(command);
+
+        assertEquals(bursts.size(), transferLength / MAX_BURST_LENGTH);
+        assertEquals(maxOutstanding[0], MAX_OUTSTANDING_R2T);
+        assertEquals(responses.size(), 1);
+        assertEquals(((SCSIResponseParser) responses.get(0).getBasicHeaderSegment().getParser()).getStatus(), SCSIStatus.GOOD);
+        assertEquals(Arrays.copyOfRange(medium, 16 * BLOCK_SIZE, 16 * BLOCK_SIZE + transferLength), data);
+    }
+
+    /**
+     * Writes a command with immediate data and a single burst, collecting the data segments in larger writes, which are
+     * completed before the status is sent.
+     */
+    @Test
+    public void testCoalescedWrites () throws Exception {
+        final int transferLength = 16 * MAX_BURST_LENGTH;
+        final int coalescingLength = 4 * MAX_BURST_LENGTH;
+        final byte[] data = new byte[transferLength];
+        new Random(23).nextBytes(data);
+        final byte[] medium = new byte[transferLength];
+
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn((long) medium.length / BLOCK_SIZE);
+        final List<Integer> writeLengths = Collections.synchronizedList(new ArrayList<>());
+        doAnswer(invocation -> {
+            final ByteBuffer src = (ByteBuffer) invocation.getArguments()[0];
+            writeLengths.add(src.remaining());
+            src.get(medium, ((Long) invocation.getArguments()[1]).intValue(), src.remaining());
+            return null;
+        }).when(module).write(any(ByteBuffer.class), anyLong());
+
+        final ExecutorService storageExecutor = Executors.newFixedThreadPool(2);
+        final Configuration configuration = mock(Configuration.class);
+        when(configuration.getWriteCoalescingLength()).thenReturn(coalescingLength);
+        final TargetServer targetServer = mock(TargetServer.class);
+        when(targetServer.getConfig()).thenReturn(configuration);
+        when(targetServer.getStorageExecutor()).thenReturn(storageExecutor);
+        final TargetSession session = mock(TargetSession.class);
+        when(session.getTargetServer()).thenReturn(targetServer);
+
+        final Settings settings = new ConnectionSettingsNegotiator(new SessionSettingsNegotiator()).getSettings();
+        final Connection connection = mock(Connection.class);
+        when(connection.getTargetSession()).thenReturn(session);
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        when(connection.getSettings()).thenReturn(settings);
+
+        final Deque<ProtocolDataUnit> dataOutPdus = new ArrayDeque<>();
+        final List<Integer> writtenBeforeStatus = new ArrayList<>();
+        doAnswer(invocation -> {
+            final ProtocolDataUnit pdu = (ProtocolDataUnit) invocation.getArguments()[0];
+            if (pdu.getBasicHeaderSegment().getOpCode() == OperationCode.R2T) {
+                dataOutPdus.addAll(createDataOutPdus((Ready2TransferParser) pdu.getBasicHeaderSegment().getParser(), data));
+            } else {
+                int written = 0;
+                for (int length : writeLengths) {
+                    written += length;
+                }
+                writtenBeforeStatus.add(written);
+            }
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+        when(connection.receivePdu()).thenAnswer(invocation -> dataOutPdus.poll());
+
+        final ProtocolDataUnit command = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final ByteBuffer cdb = ((SCSICommandParser) command.getBasicHeaderSegment().getParser()).getCDB();
+        cdb.put(0, (byte) 0x2a);// WRITE (10)
+        cdb.putShort(7, (short) (transferLength / BLOCK_SIZE));// TRANSFER LENGTH
+        command.setDataSegment(ByteBuffer.wrap(data, 0, MAX_BURST_LENGTH).slice());
+
+        final WriteStage stage = new WriteStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(new LogicalUnit(0, module));
+        try {
+            stage.execute(command);
+        } finally {
+            storageExecutor.shutdown();
+        }
+
+        assertEquals(writeLengths, Arrays.asList(coalescingLength, coalescingLength, coalescingLength, coalescingLength));
+        assertEquals(writtenBeforeStatus, Arrays.asList(transferLength));
+        assertEquals(medium, data);
+    }
+
+    /**
+     * Repeats a Data-Out PDU of a burst, which must not complete the burst before its last PDU has been received.
+     */
+    @Test
+    public void testRepeatedDataOut () throws Exception {
+        final byte[] data = new byte[MAX_BURST_LENGTH];
+        new Random(5).nextBytes(data);
+        final byte[] medium = new byte[MAX_BURST_LENGTH];
+        final Deque<ProtocolDataUnit> remaining = writeBurst(data, medium, pdus -> {
+            final List<ProtocolDataUnit> list = new ArrayList<>(pdus);
+            final DataOutParser repeated = (DataOutParser) list.get(1).getBasicHeaderSegment().getParser();
+            list.add(2, createDataOutPdu(repeated.getTargetTransferTag(), 0, repeated.getBufferOffset(), data, false));
+            for (int i = 0; i < list.size(); ++i) {
+                ((DataOutParser) list.get(i).getBasicHeaderSegment().getParser()).setDataSequenceNumber(i);
+            }
+            return new ArrayDeque<>(list);
+        });
+
+        assertEquals(remaining.size(), 0);
+        assertEquals(medium, data);
+    }
+
+    /**
+     * Sends a Data-Out PDU whose data lies outside of the requested burst.
+     */
+    @Test (expectedExceptions = InternetSCSIException.class)
+    public void testDataOutOutsideBurst () throws Exception {
+        final byte[] data = new byte[2 * MAX_BURST_LENGTH];
+        writeBurst(data, new byte[2 * MAX_BURST_LENGTH], pdus -> {
+            ((DataOutParser) pdus.getLast().getBasicHeaderSegment().getParser()).setBufferOffset(MAX_BURST_LENGTH);
+            return pdus;
+        });
+    }
+
+    /**
+     * Pipelines a <code>READ (10)</code> command behind a <code>WRITE (10)</code> command with outstanding R2Ts. The
+     * read command is processed by the phase once the write command has received all of its data.
+     */
+    @Test
+    public void testPipelinedRead () throws Exception {
+        final int transferLength = 2 * MAX_BURST_LENGTH;
+        final byte[] data = new byte[transferLength];
+        new Random(11).nextBytes(data);
+        final byte[] medium = new byte[transferLength];
+
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn((long) medium.length / BLOCK_SIZE);
+        doAnswer(invocation -> {
+            final ByteBuffer src = (ByteBuffer) invocation.getArguments()[0];
+            src.get(medium, ((Long) invocation.getArguments()[1]).intValue(), src.remaining());
+            return null;
+        }).when(module).write(any(ByteBuffer.class), anyLong());
+        doAnswer(invocation -> {
+            final ByteBuffer dst = (ByteBuffer) invocation.getArguments()[0];
+            dst.put(medium, ((Long) invocation.getArguments()[1]).intValue(), dst.remaining());
+            return null;
+        }).when(module).read(any(ByteBuffer.class), anyLong());
+        doAnswer(invocation -> {
+            final byte[] dst = (byte[]) invocation.getArguments()[0];
+            System.arraycopy(medium, ((Long) invocation.getArguments()[1]).intValue(), dst, 0, dst.length);
+            return null;
+        }).when(module).read(any(byte[].class), anyLong());
+
+        final TargetSession session = mock(TargetSession.class);
+        when(session.isNormalSession()).thenReturn(true);
+        when(session.getTarget()).thenReturn(new Target("iqn.2010-04.local-test:pipelined", "pipelined", Arrays.asList(new LogicalUnit(1, module))));
+        when(session.getCommandDispatcher()).thenReturn(new CommandDispatcher(1));
+        final Connection connection = mock(Connection.class);
+        when(connection.getTargetSession()).thenReturn(session);
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        when(connection.getSettings()).thenReturn(negotiateSettings());
+        when(connection.getDataInArray(org.mockito.Matchers.anyInt())).thenAnswer(invocation -> new byte[(Integer) invocation.getArguments()[0]]);
+
+        // the read command is sent right after the write command, before any Data-Out PDU
+        final ProtocolDataUnit read = createCommand(0x28, 8, BLOCK_SIZE);
+        final Deque<ProtocolDataUnit> received = new ArrayDeque<>(Arrays.asList(read));
+        final List<ProtocolDataUnit> sent = new ArrayList<>();
+        doAnswer(invocation -> {
+            final ProtocolDataUnit pdu = (ProtocolDataUnit) invocation.getArguments()[0];
+            if (pdu.getBasicHeaderSegment().getOpCode() == OperationCode.R2T) {
+                received.addAll(createDataOutPdus((Ready2TransferParser) pdu.getBasicHeaderSegment().getParser(), data));
+            }
+            sent.add(pdu);
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+        when(connection.receivePdu()).thenAnswer(invocation -> received.poll());
+
+        final TargetFullFeaturePhase phase = new TargetFullFeaturePhase(connection);
+        assertEquals(phase.process(createCommand(0x2a, 7, transferLength)), true);
+
+        assertEquals(received.size(), 0);
+        assertEquals(medium, data);
+        // both R2Ts, the status of the write command, then the data of the read command
+        final ProtocolDataUnit response = sent.get(2);
+        assertEquals(response.getBasicHeaderSegment().getOpCode(), OperationCode.SCSI_RESPONSE);
+        assertEquals(response.getBasicHeaderSegment().getInitiatorTaskTag(), 7);
+        assertEquals(((SCSIResponseParser) response.getBasicHeaderSegment().getParser()).getStatus(), SCSIStatus.GOOD);
+        final ProtocolDataUnit dataIn = sent.get(3);
+        assertEquals(dataIn.getBasicHeaderSegment().getOpCode(), OperationCode.SCSI_DATA_IN);
+        assertEquals(dataIn.getBasicHeaderSegment().getInitiatorTaskTag(), 8);
+        final byte[] readData = new byte[BLOCK_SIZE];
+        dataIn.getDataSegment().get(readData);
+        assertEquals(readData, Arrays.copyOf(data, BLOCK_SIZE));
+    }
+
+    /**
+     * Creates a <code>READ (10)</code> or <code>WRITE (10)</code> command addressed to logical unit 1, which transfers
+     * the given number of bytes from the start of the medium.
+     */
+    private static ProtocolDataUnit createCommand (final int operationCode, final int initiatorTaskTag, final int transferLength) {
+        final ProtocolDataUnit command = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final SCSICommandParser parser = (SCSICommandParser) command.getBasicHeaderSegment().getParser();
+        parser.setLogicalUnitNumber(LUN);
+        parser.setExpectedDataTransferLength(transferLength);
+        parser.setReadExpectedFlag(operationCode == 0x28);
+        parser.setWriteExpectedFlag(operationCode == 0x2a);
+        final ByteBuffer cdb = parser.getCDB();
+        cdb.put(0, (byte) operationCode);
+        cdb.putShort(7, (short) (transferLength / BLOCK_SIZE));// TRANSFER LENGTH
+        command.getBasicHeaderSegment().setInitiatorTaskTag(initiatorTaskTag);
+        return command;
+    }
+
+    /**
+     * Executes a <code>WRITE (10)</code> command of {@link #MAX_BURST_LENGTH} bytes, which are requested by a single
+     * R2T. The Data-Out PDUs answering it are modified by <i>modifier</i> before they are received.
+     *
+     * @return the Data-Out PDUs which have not been received
+     */
+    private static Deque<ProtocolDataUnit> writeBurst (final byte[] data, final byte[] medium, final UnaryOperator<Deque<ProtocolDataUnit>> modifier) throws Exception {
+        final IPositionalStorageModule module = mock(IPositionalStorageModule.class);
+        when(module.getBlockSize()).thenReturn(BLOCK_SIZE);
+        when(module.getSizeInBlocks()).thenReturn((long) medium.length / BLOCK_SIZE);
+        doAnswer(invocation -> {
+            final ByteBuffer src = (ByteBuffer) invocation.getArguments()[0];
+            src.get(medium, ((Long) invocation.getArguments()[1]).intValue(), src.remaining());
+            return null;
+        }).when(module).write(any(ByteBuffer.class), anyLong());
+
+        final Connection connection = mock(Connection.class);
+        when(connection.getTargetSession()).thenReturn(mock(TargetSession.class));
+        when(connection.getBufferPool()).thenReturn(new BufferPool());
+        when(connection.getSettings()).thenReturn(negotiateSettings());
+        final Deque<ProtocolDataUnit> dataOutPdus = new ArrayDeque<>();
+        doAnswer(invocation -> {
+            final ProtocolDataUnit pdu = (ProtocolDataUnit) invocation.getArguments()[0];
+            if (pdu.getBasicHeaderSegment().getOpCode() == OperationCode.R2T) {
+                final Ready2TransferParser r2t = (Ready2TransferParser) pdu.getBasicHeaderSegment().getParser();
+                assertEquals(r2t.getLogicalUnitNumber(), LUN);
+                dataOutPdus.addAll(modifier.apply(createDataOutPdus(r2t, data)));
+            } else {
+                assertEquals(((SCSIResponseParser) pdu.getBasicHeaderSegment().getParser()).getStatus(), SCSIStatus.GOOD);
+            }
+            return null;
+        }).when(connection).sendPdu(any(ProtocolDataUnit.class));
+        when(connection.receivePdu()).thenAnswer(invocation -> dataOutPdus.poll());
+
+        final ProtocolDataUnit command = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        final SCSICommandParser parser = (SCSICommandParser) command.getBasicHeaderSegment().getParser();
+        parser.setLogicalUnitNumber(LUN);
+        final ByteBuffer cdb = parser.getCDB();
+        cdb.put(0, (byte) 0x2a);// WRITE (10)
+        cdb.putShort(7, (short) (MAX_BURST_LENGTH / BLOCK_SIZE));// TRANSFER LENGTH
+
+        final WriteStage stage = new WriteStage(new TargetFullFeaturePhase(connection));
+        stage.setLogicalUnit(new LogicalUnit(1, module));
+        stage.execute(command);
+        return dataOutPdus;
+    }
+
+    /**
+     * Returns connection settings as negotiated by an initiator which does not send any data without an R2T.
+     */
+    private static Settings negotiateSettings () {
+        final ConnectionSettingsNegotiator negotiator = new ConnectionSettingsNegotiator(new SessionSettingsNegotiator());
+        negotiator.beginNegotiation();
+        final List<String> request = new ArrayList<>(Arrays.asList("MaxOutstandingR2T=16", "MaxBurstLength=" + MAX_BURST_LENGTH, "FirstBurstLength=" + MAX_BURST_LENGTH, "ImmediateData=No", "InitialR2T=Yes"));
+        final List<String> response = new ArrayList<>();
+        assertEquals(negotiator.negotiate(null, LoginStage.LOGIN_OPERATIONAL_NEGOTIATION, true, false, request, response), true);
+        // the target does not accept as many outstanding R2Ts as offered
+        assertEquals(response.contains("MaxOutstandingR2T=" + MAX_OUTSTANDING_R2T), true);
+        negotiator.finishNegotiation(true);
+        return negotiator.getSettings();
+    }
+
+    /**
+     * Creates the Data-Out PDUs answering the given R2T.
+     */
+    private static Deque<ProtocolDataUnit> createDataOutPdus (final Ready2TransferParser r2t, final byte[] data) {
+        final Deque<ProtocolDataUnit> pdus = new ArrayDeque<>();
+        int dataSequenceNumber = 0;
+        for (int offset = 0; offset < r2t.getDesiredDataTransferLength(); offset += DATA_SEGMENT_LENGTH) {
+            final boolean last = offset + DATA_SEGMENT_LENGTH >= r2t.getDesiredDataTransferLength();
+            pdus.add(createDataOutPdu(r2t.getTargetTransferTag(), dataSequenceNumber++, r2t.getBufferOffset() + offset, data, last));
+        }
+        return pdus;
+    }
+
+    /**
+     * Creates a Data-Out PDU carrying {@link #DATA_SEGMENT_LENGTH} bytes of <i>data</i>, starting at the given offset.
+     */
+    private static ProtocolDataUnit createDataOutPdu (final int targetTransferTag, final int dataSequenceNumber, final int bufferOffset, final byte[] data, final boolean last) {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, last, OperationCode.SCSI_DATA_OUT, "None", "None");
+        final DataOutParser parser = (DataOutParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setTargetTransferTag(targetTransferTag);
+        parser.setDataSequenceNumber(dataSequenceNumber);
+        parser.setBufferOffset(bufferOffset);
+        pdu.setDataSegment(ByteBuffer.wrap(data, bufferOffset, DATA_SEGMENT_LENGTH).slice());
+        return pdu;
+    }
+}
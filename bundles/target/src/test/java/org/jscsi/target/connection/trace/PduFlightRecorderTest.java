@@ -0,0 +1,113 @@
+package org.jscsi.target.connection.trace;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.jscsi.parser.OperationCode;
+import org.jscsi.parser.ProtocolDataUnit;
+import org.jscsi.parser.ProtocolDataUnitFactory;
+import org.jscsi.parser.scsi.SCSICommandParser;
+import org.jscsi.parser.scsi.SCSIResponseParser;
+import org.jscsi.parser.scsi.SCSIStatus;
+import org.testng.annotations.Test;
+
+
+public class PduFlightRecorderTest {
+
+    @Test
+    public void testDump () throws Exception {
+        final PduFlightRecorder recorder = new PduFlightRecorder(16);
+        final ProtocolDataUnit command = createCommand(0x2a, 7);
+        ((SCSICommandParser) command.getBasicHeaderSegment().getParser()).getCDB().put(0, (byte) 0x28);
+        recorder.record(3, true, command);
+        recorder.record(3, false, createResponse(0x2a, 5));
+
+        final String[] lines = recorder.dump();
+        assertEquals(lines.length, 2);
+        assertTrue(lines[0].contains(" connection 3 received SCSI_COMMAND ITT 0x0000002a CmdSN 7 "), lines[0]);
+        assertTrue(lines[0].contains(" CDB 0x28 EDTL 512 "), lines[0]);
+        assertTrue(lines[1].contains(" connection 3 sent SCSI_RESPONSE ITT 0x0000002a StatSN 5 "), lines[1]);
+    }
+
+    @Test
+    public void testOldestRecordsAreOverwritten () throws Exception {
+        final PduFlightRecorder recorder = new PduFlightRecorder(3);
+        assertEquals(recorder.getCapacity(), 4);
+        for (int i = 0; i < 6; ++i) {
+            recorder.record(0, true, createCommand(i, i));
+        }
+        assertEquals(recorder.getRecordedCount(), 6);
+        final String[] lines = recorder.dump();
+        assertEquals(lines.length, 4);
+        assertTrue(lines[0].contains("ITT 0x00000002"), lines[0]);
+        assertTrue(lines[3].contains("ITT 0x00000005"), lines[3]);
+    }
+
+    @Test
+    public void testDisabled () throws Exception {
+        final PduFlightRecorder recorder = new PduFlightRecorder(4);
+        recorder.setEnabled(false);
+        recorder.record(0, true, createCommand(1, 1));
+        assertEquals(recorder.dump().length, 0);
+    }
+
+    @Test
+    public void testPcap () throws Exception {
+        final PduFlightRecorder recorder = new PduFlightRecorder(4);
+        final ProtocolDataUnit command = createCommand(0x11, 1);
+        command.setDataSegment(ByteBuffer.allocate(510));// padded to 512 bytes
+        recorder.record(0, true, command);
+        recorder.record(0, true, createCommand(0x12, 2));
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recorder.writePcap(out);
+        final ByteBuffer pcap = ByteBuffer.wrap(out.toByteArray());
+        assertEquals(pcap.getInt(0), 0xa1b23c4d);// magic, nanosecond timestamps
+        assertEquals(pcap.getInt(20), 101);// raw IPv4
+        final int packetSize = 16 + 40 + 48;
+        assertEquals(pcap.capacity(), 24 + 2 * packetSize);
+
+        // first packet
+        assertEquals(pcap.getInt(24 + 8), 40 + 48);// captured length
+        assertEquals(pcap.getInt(24 + 12), 40 + 48 + 512);// original length
+        final int ip = 24 + 16;
+        assertEquals(pcap.getShort(ip + 2), 40 + 48 + 512);// total length
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += pcap.getShort(ip + i) & 0xffff;
+        }
+        assertEquals((sum & 0xffff) + (sum >>> 16), 0xffff);// header checksum
+        assertEquals(pcap.getShort(ip + 22) & 0xffff, 3260);// destination port
+        assertEquals(pcap.getInt(ip + 24), 0);// sequence number
+        assertEquals(pcap.get(ip + 40) & 0x3f, OperationCode.SCSI_COMMAND.value());
+        assertEquals(pcap.getInt(ip + 40 + 16), 0x11);// ITT
+
+        // the sequence number of the second packet follows the whole first PDU
+        assertEquals(pcap.getInt(ip + packetSize + 24), 48 + 512);
+        assertEquals(pcap.getInt(ip + packetSize + 40 + 16), 0x12);
+    }
+
+    private static ProtocolDataUnit createCommand (final int initiatorTaskTag, final int commandSequenceNumber) throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_COMMAND, "None", "None");
+        pdu.getBasicHeaderSegment().setInitiatorTaskTag(initiatorTaskTag);
+        final SCSICommandParser parser = (SCSICommandParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setCommandSequenceNumber(commandSequenceNumber);
+        parser.setExpectedDataTransferLength(512);
+        parser.setTaskAttributes(SCSICommandParser.TaskAttributes.SIMPLE);
+        return pdu;
+    }
+
+    private static ProtocolDataUnit createResponse (final int initiatorTaskTag, final int statusSequenceNumber) throws Exception {
+        final ProtocolDataUnit pdu = new ProtocolDataUnitFactory().create(false, true, OperationCode.SCSI_RESPONSE, "None", "None");
+        pdu.getBasicHeaderSegment().setInitiatorTaskTag(initiatorTaskTag);
+        final SCSIResponseParser parser = (SCSIResponseParser) pdu.getBasicHeaderSegment().getParser();
+        parser.setStatusSequenceNumber(statusSequenceNumber);
+        parser.setResponse(SCSIResponseParser.ServiceResponse.COMMAND_COMPLETED_AT_TARGET);
+        parser.setStatus(SCSIStatus.GOOD);
+        return pdu;
+    }
+}
@@ -0,0 +1,63 @@
+package org.jscsi.target.scsi.cdb;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+
+public class ReadOrWriteCdbTest {
+
+    @Test
+    public void testRead12 () {
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put(0, ScsiOperationCode.READ_12.value());
+        buffer.putInt(2, 0xfffffffe);// LOGICAL BLOCK ADDRESS
+        buffer.putInt(6, 0x00100000);// TRANSFER LENGTH
+        buffer.put(10, (byte) 5);// GROUP NUMBER
+
+        final Read12Cdb cdb = new Read12Cdb(buffer);
+        assertEquals(cdb.getScsiOperationCode(), ScsiOperationCode.READ_12);
+        assertEquals(cdb.getLogicalBlockAddress(), 0xfffffffeL);
+        assertEquals(cdb.getTransferLength(), 0x00100000);
+        assertEquals(cdb.getGroupNumber(), 5);
+        assertEquals(cdb.getIllegalFieldPointers(), null);
+    }
+
+    @Test
+    public void testWrite16 () {
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put(0, ScsiOperationCode.WRITE_16.value());
+        buffer.put(1, (byte) 0x08);// FUA
+        buffer.putLong(2, 0x123456789aL);// LOGICAL BLOCK ADDRESS, beyond 2 TiB with 512 byte blocks
+        buffer.putInt(10, 0x00020000);// TRANSFER LENGTH
+        buffer.put(14, (byte) 3);// GROUP NUMBER
+
+        final Write16Cdb cdb = new Write16Cdb(buffer);
+        assertEquals(cdb.getScsiOperationCode().getCdbType(), CdbType.SIXTEEN_BYTE_COMMANDS);
+        assertEquals(cdb.getLogicalBlockAddress(), 0x123456789aL);
+        assertEquals(cdb.getTransferLength(), 0x00020000);
+        assertTrue(cdb.getForceUnitAccess());
+        assertEquals(cdb.getGroupNumber(), 3);
+        assertEquals(cdb.getIllegalFieldPointers(), null);
+    }
+
+    @Test
+    public void testOutOfRangeValues () {
+        final ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.put(0, ScsiOperationCode.READ_16.value());
+        buffer.putLong(2, 0x8000000000000000L);
+        buffer.putInt(10, 0x80000000);
+
+        // values beyond the signed range are negative and fail every bounds check
+        final Read16Cdb cdb = new Read16Cdb(buffer);
+        assertTrue(cdb.getLogicalBlockAddress() < 0);
+        assertTrue(cdb.getTransferLength() < 0);
+        cdb.addIllegalFieldPointerForLogicalBlockAddress();
+        cdb.addIllegalFieldPointerForTransferLength();
+        assertEquals(cdb.getIllegalFieldPointers().length, 2);
+    }
+}
@@ -0,0 +1,51 @@
+package org.jscsi.target.scsi.lun;
+
+
+import static org.testng.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+
+public class LogicalUnitNumberTest {
+
+    @Test
+    public void testPeripheralDeviceAddressing () {
+        assertEquals(LogicalUnitNumber.encode(0), 0L);
+        assertEquals(LogicalUnitNumber.encode(5), 0x0005000000000000L);
+        assertEquals(LogicalUnitNumber.decode(0x0005000000000000L), 5);
+        assertEquals(LogicalUnitNumber.decode(LogicalUnitNumber.encode(255)), 255);
+    }
+
+    @Test
+    public void testFlatSpaceAddressing () {
+        assertEquals(LogicalUnitNumber.encode(256), 0x4100000000000000L);
+        assertEquals(LogicalUnitNumber.encode(LogicalUnitNumber.MAXIMUM_NUMBER), 0x7fff000000000000L);
+        // initiators may address logical units below 256 with flat space addressing, too
+        assertEquals(LogicalUnitNumber.decode(0x4005000000000000L), 5);
+        assertEquals(LogicalUnitNumber.decode(LogicalUnitNumber.encode(0x1234)), 0x1234);
+    }
+
+    @Test
+    public void testUnsupportedAddressing () {
+        // a second level of the hierarchy
+        assertEquals(LogicalUnitNumber.decode(0x0001000100000000L), -1);
+        // logical unit addressing
+        assertEquals(LogicalUnitNumber.decode(0x8001000000000000L), -1);
+        // bus identifier of peripheral device addressing
+        assertEquals(LogicalUnitNumber.decode(0x0101000000000000L), -1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testNumberOutOfRange () {
+        LogicalUnitNumber.encode(LogicalUnitNumber.MAXIMUM_NUMBER + 1);
+    }
+
+    @Test
+    public void testSerialize () {
+        final ByteBuffer buffer = ByteBuffer.allocate(LogicalUnitNumber.SIZE);
+        new LogicalUnitNumber(LogicalUnitNumber.encode(300)).serialize(buffer, 0);
+        assertEquals(buffer.getLong(0), 0x412c000000000000L);
+    }
+}
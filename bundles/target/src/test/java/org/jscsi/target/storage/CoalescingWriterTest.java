@@ -0,0 +1,139 @@
+package org.jscsi.target.storage;
+
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jscsi.target.util.BufferPool;
+import org.jscsi.target.util.RangeLock;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class CoalescingWriterTest {
+
+    private static final int SIZE = 256 * 1024;
+
+    private static final int SEGMENT_LENGTH = 2048;
+
+    private static final int COALESCING_LENGTH = 16 * 1024;
+
+    private byte[] medium;
+
+    /**
+     * The storage index and length of each write issued to the {@link #module}.
+     */
+    private List<long[]> writes;
+
+    private IPositionalStorageModule module;
+
+    private BufferPool bufferPool;
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        medium = new byte[SIZE];
+        writes = Collections.synchronizedList(new ArrayList<>());
+        module = mock(IPositionalStorageModule.class);
+        doAnswer(invocation -> {
+            final ByteBuffer src = (ByteBuffer) invocation.getArguments()[0];
+            final long storageIndex = (Long) invocation.getArguments()[1];
+            writes.add(new long[] { storageIndex, src.remaining() });
+            src.get(medium, (int) storageIndex, src.remaining());
+            return null;
+        }).when(module).write(any(ByteBuffer.class), anyLong());
+        bufferPool = new BufferPool();
+        executor = Executors.newFixedThreadPool(3);
+    }
+
+    @AfterMethod
+    public void tearDown () {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testContiguousSegments () throws Exception {
+        final byte[] data = random(SIZE);
+        final int length = 5 * COALESCING_LENGTH + SEGMENT_LENGTH;
+        try (CoalescingWriter writer = new CoalescingWriter(module, new RangeLock(), bufferPool, executor, COALESCING_LENGTH)) {
+            for (int offset = 0; offset < length; offset += SEGMENT_LENGTH) {
+                writer.write(ByteBuffer.wrap(data, offset, SEGMENT_LENGTH), 4096 + offset);
+            }
+            writer.flush();
+        }
+
+        // five full buffers and the rest
+        assertEquals(writes.size(), 6);
+        for (long[] write : writes) {
+            assertEquals(write[1], write[0] == 4096 + 5 * COALESCING_LENGTH ? SEGMENT_LENGTH : COALESCING_LENGTH);
+        }
+        assertEquals(Arrays.copyOfRange(medium, 4096, 4096 + length), Arrays.copyOf(data, length));
+        // one buffer is filled while the others are written, and all of them have been returned
+        assertTrue(bufferPool.size() > 0 && bufferPool.size() <= CoalescingWriter.DEFAULT_DEPTH + 1);
+    }
+
+    @Test
+    public void testDiscontiguousSegments () throws Exception {
+        final byte[] data = random(SIZE);
+        try (CoalescingWriter writer = new CoalescingWriter(module, new RangeLock(), bufferPool, executor, COALESCING_LENGTH)) {
+            writer.write(ByteBuffer.wrap(data, 0, SEGMENT_LENGTH), 0);
+            writer.write(ByteBuffer.wrap(data, SEGMENT_LENGTH, SEGMENT_LENGTH), SEGMENT_LENGTH);
+            // a gap, followed by a segment longer than the coalescing length
+            writer.write(ByteBuffer.wrap(data, 4 * SEGMENT_LENGTH, 2 * COALESCING_LENGTH), 4 * SEGMENT_LENGTH);
+            // preceding the previous segment
+            writer.write(ByteBuffer.wrap(data, 3 * SEGMENT_LENGTH, SEGMENT_LENGTH), 3 * SEGMENT_LENGTH);
+            writer.flush();
+        }
+
+        // the writes are issued in this order, but may complete in any order
+        final List<String> expected = Arrays.asList("0+" + 2 * SEGMENT_LENGTH, 4 * SEGMENT_LENGTH + "+" + 2 * COALESCING_LENGTH, 3 * SEGMENT_LENGTH + "+" + SEGMENT_LENGTH);
+        final List<String> actual = new ArrayList<>();
+        for (long[] write : writes) {
+            actual.add(write[0] + "+" + write[1]);
+        }
+        Collections.sort(actual);
+        Collections.sort(expected);
+        assertEquals(actual, expected);
+        assertEquals(Arrays.copyOfRange(medium, 3 * SEGMENT_LENGTH, 4 * SEGMENT_LENGTH + 2 * COALESCING_LENGTH), Arrays.copyOfRange(data, 3 * SEGMENT_LENGTH, 4 * SEGMENT_LENGTH + 2 * COALESCING_LENGTH));
+    }
+
+    @Test
+    public void testFailedWrite () throws Exception {
+        doThrow(new IOException("medium error")).when(module).write(any(ByteBuffer.class), eq((long) COALESCING_LENGTH));
+        final byte[] data = random(SIZE);
+        try (CoalescingWriter writer = new CoalescingWriter(module, new RangeLock(), bufferPool, executor, COALESCING_LENGTH)) {
+            for (int offset = 0; offset < 3 * COALESCING_LENGTH; offset += SEGMENT_LENGTH) {
+                writer.write(ByteBuffer.wrap(data, offset, SEGMENT_LENGTH), offset);
+            }
+            writer.flush();
+            fail("the failed write has not been reported");
+        } catch (IOException e) {
+            assertEquals(e.getMessage(), "medium error");
+        }
+    }
+
+    private static byte[] random (final int length) {
+        final byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
@@ -0,0 +1,225 @@
+package org.jscsi.target.storage;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+
+public class FileChannelStorageModuleTest {
+
+    private static final int THREADS = 8;
+
+    private static final int REGION_SIZE = 64 * 1024;
+
+    private static final int ROUNDS = 16;
+
+    private File file;
+
+    private IPositionalStorageModule module;
+
+    @BeforeClass
+    public void setUp () throws Exception {
+        file = File.createTempFile("jscsi-file-channel", ".dat");
+        module = (IPositionalStorageModule) RandomAccessStorageModule.open(file, THREADS * REGION_SIZE, true, FileChannelStorageModule.class);
+    }
+
+    @AfterClass
+    public void tearDown () throws Exception {
+        module.close();
+        file.delete();
+    }
+
+    @Test
+    public void testOpen () {
+        assertTrue(module instanceof FileChannelStorageModule);
+        assertEquals(module.getSizeInBlocks(), THREADS * REGION_SIZE / 512);
+        assertEquals(module.checkBounds(THREADS * REGION_SIZE / 512, 1), 1);
+    }
+
+    @Test
+    public void testWriteBack () throws Exception {
+        assertFalse(module.getCapabilities().hasVolatileWriteCache());
+
+        final File writeBackFile = File.createTempFile("jscsi-write-back", ".dat");
+        final IPositionalStorageModule writeBackModule = (IPositionalStorageModule) RandomAccessStorageModule.open(writeBackFile, REGION_SIZE, true, FileChannelStorageModule.class, true);
+        try {
+            assertTrue(writeBackModule.getCapabilities().hasVolatileWriteCache());
+            writeBackModule.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 512);
+            writeBackModule.flush();
+            final byte[] bytes = new byte[3];
+            writeBackModule.read(bytes, 512);
+            assertEquals(bytes, new byte[] { 1, 2, 3 });
+        } finally {
+            writeBackModule.close();
+            writeBackFile.delete();
+        }
+    }
+
+    @Test (expectedExceptions = IOException.class)
+    public void testWriteBackUnsupported () throws Exception {
+        final File writeBackFile = File.createTempFile("jscsi-write-back", ".dat");
+        try {
+            RandomAccessStorageModule.open(writeBackFile, REGION_SIZE, true, JCloudsStorageModule.class, true);
+        } finally {
+            writeBackFile.delete();
+        }
+    }
+
+    @Test
+    public void testBlockSize () throws Exception {
+        assertEquals(module.getPhysicalBlockSize(), 512);
+
+        // 512 byte logical blocks on 4096 byte physical blocks
+        final File emulatedFile = File.createTempFile("jscsi-block-size", ".dat");
+        final IStorageModule emulated = RandomAccessStorageModule.open(emulatedFile, REGION_SIZE, true, FileChannelStorageModule.class, false, 512, 4096);
+        try {
+            assertEquals(emulated.getBlockSize(), 512);
+            assertEquals(emulated.getPhysicalBlockSize(), 4096);
+            assertEquals(emulated.getSizeInBlocks(), REGION_SIZE / 512);
+        } finally {
+            emulated.close();
+            emulatedFile.delete();
+        }
+
+        // 4096 byte logical blocks
+        final File nativeFile = File.createTempFile("jscsi-block-size", ".dat");
+        final IStorageModule nativeModule = RandomAccessStorageModule.open(nativeFile, REGION_SIZE + 512, true, FileChannelStorageModule.class, false, 4096, 4096);
+        try {
+            assertEquals(nativeModule.getBlockSize(), 4096);
+            assertEquals(nativeModule.getSizeInBlocks(), REGION_SIZE / 4096);
+            assertEquals(nativeModule.checkBounds(REGION_SIZE / 4096 - 1, 1), 0);
+            assertEquals(nativeModule.checkBounds(REGION_SIZE / 4096 - 1, 2), 2);
+        } finally {
+            nativeModule.close();
+            nativeFile.delete();
+        }
+    }
+
+    @Test
+    public void testUnmapAndWriteSame () throws Exception {
+        final File unmapFile = File.createTempFile("jscsi-unmap", ".dat");
+        final IPositionalStorageModule unmapModule = (IPositionalStorageModule) RandomAccessStorageModule.open(unmapFile, REGION_SIZE, true, FileChannelStorageModule.class);
+        try {
+            assertTrue(unmapModule.getCapabilities().isUnmapSupported());
+            final byte[] pattern = new byte[512];
+            for (int i = 0; i < pattern.length; ++i) {
+                pattern[i] = (byte) (i + 1);
+            }
+            unmapModule.writeSame(ByteBuffer.wrap(pattern), 0, REGION_SIZE);
+            final long fileLength = unmapFile.length();
+
+            // ranges followed by data stay allocated and unchanged
+            assertFalse(unmapModule.unmap(4096, 4096));
+            final byte[] bytes = new byte[512];
+            unmapModule.read(bytes, 4096);
+            assertEquals(bytes, pattern);
+
+            // the tail of the medium is deallocated and read as zeros
+            assertTrue(unmapModule.unmap(REGION_SIZE - 8192, 8192));
+            unmapModule.read(bytes, REGION_SIZE - 512);
+            assertEquals(bytes, new byte[512]);
+            unmapModule.read(bytes, REGION_SIZE - 8704);
+            assertEquals(bytes, pattern);
+            assertEquals(unmapFile.length(), fileLength);
+        } finally {
+            unmapModule.close();
+            unmapFile.delete();
+        }
+    }
+
+    @Test
+    public void testReadBeyondEndOfFile () throws Exception {
+        final File shortFile = File.createTempFile("jscsi-end-of-file", ".dat");
+        final IPositionalStorageModule shortModule = (IPositionalStorageModule) RandomAccessStorageModule.open(shortFile, REGION_SIZE, true, FileChannelStorageModule.class);
+        try {
+            shortModule.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0);
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(shortFile, "rw")) {
+                randomAccessFile.setLength(2);
+            }
+
+            final ByteBuffer dst = ByteBuffer.allocateDirect(4);
+            dst.put(0, (byte) 9).put(1, (byte) 9).put(2, (byte) 9).put(3, (byte) 9);
+            shortModule.read(dst, 0);
+            assertEquals(dst.position(), 4);
+            dst.flip();
+            assertEquals(dst, ByteBuffer.wrap(new byte[] { 1, 2, 0, 0 }));
+        } finally {
+            shortModule.close();
+            shortFile.delete();
+        }
+    }
+
+    @Test (expectedExceptions = IllegalArgumentException.class)
+    public void testIllegalBlockSize () throws Exception {
+        final File illegalFile = File.createTempFile("jscsi-block-size", ".dat");
+        try {
+            RandomAccessStorageModule.open(illegalFile, REGION_SIZE, true, FileChannelStorageModule.class, false, 4096, 512);
+        } finally {
+            illegalFile.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentReadsAndWrites () throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            final List<Future<Void>> results = new ArrayList<>();
+            for (int t = 0; t < THREADS; ++t) {
+                final int thread = t;
+                results.add(executor.submit(new Callable<Void>() {
+
+                    @Override
+                    public Void call () throws Exception {
+                        final long storageIndex = (long) thread * REGION_SIZE;
+                        final ByteBuffer src = ByteBuffer.allocateDirect(REGION_SIZE);
+                        final ByteBuffer dst = ByteBuffer.allocate(REGION_SIZE);
+                        for (int round = 0; round < ROUNDS; ++round) {
+                            src.clear();
+                            while (src.hasRemaining()) {
+                                src.put((byte) (thread * 31 + round));
+                            }
+                            src.flip();
+                            module.write(src, storageIndex);
+
+                            dst.clear();
+                            module.read(dst, storageIndex);
+                            dst.flip();
+                            src.rewind();
+                            assertEquals(dst, src);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // the last round of every thread is stored
+        final byte[] bytes = new byte[THREADS * REGION_SIZE];
+        module.read(bytes, 0);
+        for (int t = 0; t < THREADS; ++t) {
+            assertEquals(bytes[t * REGION_SIZE], (byte) (t * 31 + ROUNDS - 1));
+            assertEquals(bytes[(t + 1) * REGION_SIZE - 1], (byte) (t * 31 + ROUNDS - 1));
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.jscsi.target.storage;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class MappedStorageModuleTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private static final int SIZE = 3 * SEGMENT_SIZE + 1024;
+
+    private File file;
+
+    @BeforeMethod
+    public void setUp () throws IOException {
+        file = File.createTempFile("jscsi-mapped", ".dat");
+    }
+
+    @AfterMethod
+    public void tearDown () {
+        file.delete();
+    }
+
+    @Test
+    public void testOpen () throws IOException {
+        final IStorageModule module = RandomAccessStorageModule.open(file, SIZE, true, MappedStorageModule.class);
+        try {
+            assertTrue(module instanceof MappedStorageModule);
+            assertEquals(module.getSizeInBlocks(), SIZE / 512);
+            assertTrue(((IPositionalStorageModule) module).getCapabilities().hasVolatileWriteCache());
+        } finally {
+            module.close();
+        }
+    }
+
+    @Test
+    public void testAcrossSegments () throws IOException {
+        final MappedStorageModule module = new MappedStorageModule(SIZE / 512, file, SEGMENT_SIZE);
+        final byte[] bytes = new byte[2 * SEGMENT_SIZE + 100];
+        for (int i = 0; i < bytes.length; ++i) {
+            bytes[i] = (byte) i;
+        }
+        final long storageIndex = SEGMENT_SIZE - 50;
+        try {
+            module.write(ByteBuffer.wrap(bytes), storageIndex);
+
+            final ByteBuffer dst = ByteBuffer.allocateDirect(bytes.length);
+            module.read(dst, storageIndex);
+            dst.flip();
+            assertEquals(dst, ByteBuffer.wrap(bytes));
+            module.flush();
+        } finally {
+            module.close();
+        }
+
+        // the data has reached the file
+        final byte[] stored = new byte[bytes.length];
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.seek(storageIndex);
+            randomAccessFile.readFully(stored);
+        } finally {
+            randomAccessFile.close();
+        }
+        assertEquals(stored, bytes);
+    }
+
+    @Test (expectedExceptions = IOException.class)
+    public void testClosed () throws IOException {
+        final MappedStorageModule module = new MappedStorageModule(SIZE / 512, file, SEGMENT_SIZE);
+        module.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0);
+        module.close();
+        // closing again has no effect
+        module.close();
+        module.read(ByteBuffer.allocate(3), 0);
+    }
+
+    @Test (expectedExceptions = IOException.class)
+    public void testOutOfBounds () throws IOException {
+        final MappedStorageModule module = new MappedStorageModule(SIZE / 512, file, SEGMENT_SIZE);
+        try {
+            module.read(new byte[1024], SIZE - 512);
+        } finally {
+            module.close();
+        }
+    }
+}
@@ -7,6 +7,8 @@ import static org.testng.Assert.fail;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 import org.testng.annotations.AfterClass;
 import org.testng.annotations.BeforeClass;
@@ -60,6 +62,51 @@ public class RandomAccessStorageModuleTest {
 
     }
 
+    @Test
+    public void testWriteBuffer () throws IOException {
+        final byte[] writeArray = new byte[8192];
+        for (int i = 0; i < writeArray.length; ++i) {
+            writeArray[i] = (byte) i;
+        }
+        // a direct buffer whose position is not zero
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(writeArray.length + 16);
+        buffer.position(16);
+        buffer.put(writeArray);
+        buffer.position(16);
+
+        module.write(buffer, 4096);
+        assertEquals(buffer.remaining(), 0);
+
+        final byte[] readArray = new byte[writeArray.length];
+        module.read(readArray, 4096);
+        assertEquals(readArray, writeArray);
+
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(writeArray.length);
+        ((IPositionalStorageModule) module).read(readBuffer, 4096);
+        assertEquals(readBuffer.remaining(), 0);
+        readBuffer.flip();
+        assertEquals(readBuffer, ByteBuffer.wrap(writeArray));
+    }
+
+    @Test
+    public void testReadBeyondEndOfFile () throws IOException {
+        final File shortFile = File.createTempFile("jscsi-end-of-file", ".dat");
+        final IPositionalStorageModule shortModule = (IPositionalStorageModule) RandomAccessStorageModule.open(shortFile, 4096, true, RandomAccessStorageModule.class);
+        try {
+            shortModule.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }), 0);
+            try (RandomAccessFile randomAccessFile = new RandomAccessFile(shortFile, "rw")) {
+                randomAccessFile.setLength(2);
+            }
+
+            final byte[] bytes = new byte[] { 9, 9, 9, 9 };
+            shortModule.read(bytes, 0);
+            assertEquals(bytes, new byte[] { 1, 2, 0, 0 });
+        } finally {
+            shortModule.close();
+            shortFile.delete();
+        }
+    }
+
     @Test
     public void testCheckBounds0 () {
         // should all be within bounds
@@ -0,0 +1,97 @@
+package org.jscsi.target.storage;
+
+
+import static org.testng.Assert.assertEquals;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+
+public class StorageCopierTest {
+
+    private static final int SIZE = 256 * 1024;
+
+    private File srcFile;
+
+    private File dstFile;
+
+    private IPositionalStorageModule src;
+
+    private IPositionalStorageModule dst;
+
+    private ExecutorService executor;
+
+    @BeforeMethod
+    public void setUp () throws Exception {
+        srcFile = File.createTempFile("jscsi-copy-src", ".dat");
+        dstFile = File.createTempFile("jscsi-copy-dst", ".dat");
+        src = (IPositionalStorageModule) RandomAccessStorageModule.open(srcFile, SIZE, true, FileChannelStorageModule.class);
+        dst = (IPositionalStorageModule) RandomAccessStorageModule.open(dstFile, SIZE, true, FileChannelStorageModule.class);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterMethod
+    public void tearDown () throws Exception {
+        executor.shutdown();
+        src.close();
+        dst.close();
+        srcFile.delete();
+        dstFile.delete();
+    }
+
+    @Test
+    public void testCopy () throws Exception {
+        final byte[] data = random(SIZE);
+        src.write(ByteBuffer.wrap(data), 0);
+
+        // the length is no multiple of the chunk size, so the last chunk is shorter
+        final int length = 100 * 1024 + 512;
+        new StorageCopier(executor, 4096, 3).copy(src, 4096, dst, 8192, length);
+
+        final byte[] copied = new byte[SIZE];
+        dst.read(ByteBuffer.wrap(copied), 0);
+        for (int i = 0; i < SIZE; ++i) {
+            final byte expected = i >= 8192 && i < 8192 + length ? data[i - 8192 + 4096] : 0;
+            if (copied[i] != expected) {
+                assertEquals(copied[i], expected, "byte " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testOverlappingCopy () throws Exception {
+        final byte[] data = random(SIZE);
+        final StorageCopier copier = new StorageCopier(executor, 4096, 3);
+
+        // forwards, the destination starts after the source
+        src.write(ByteBuffer.wrap(data), 0);
+        copier.copy(src, 0, src, 1024, 64 * 1024);
+        assertRange(src, 1024, data, 0, 64 * 1024);
+
+        // backwards, the destination starts before the source
+        src.write(ByteBuffer.wrap(data), 0);
+        copier.copy(src, 1024, src, 0, 64 * 1024);
+        assertRange(src, 0, data, 1024, 64 * 1024);
+    }
+
+    private static void assertRange (final IPositionalStorageModule module, final long index, final byte[] expected, final int offset, final int length) throws Exception {
+        final byte[] actual = new byte[length];
+        module.read(ByteBuffer.wrap(actual), index);
+        final byte[] range = new byte[length];
+        System.arraycopy(expected, offset, range, 0, length);
+        assertEquals(actual, range);
+    }
+
+    private static byte[] random (final int length) {
+        final byte[] data = new byte[length];
+        new Random(42).nextBytes(data);
+        return data;
+    }
+}
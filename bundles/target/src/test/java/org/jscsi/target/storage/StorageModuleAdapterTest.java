@@ -0,0 +1,104 @@
+package org.jscsi.target.storage;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.testng.annotations.Test;
+
+
+public class StorageModuleAdapterTest {
+
+    private static final int SIZE = 4096;
+
+    /**
+     * A module supporting only the byte array methods.
+     */
+    private static final class ArrayStorageModule implements IStorageModule {
+
+        private final byte[] storage = new byte[SIZE];
+
+        @Override
+        public int checkBounds (long logicalBlockAddress, int transferLengthInBlocks) {
+            return 0;
+        }
+
+        @Override
+        public long getSizeInBlocks () {
+            return SIZE / getBlockSize();
+        }
+
+        @Override
+        public void read (byte[] bytes, long storageIndex) throws IOException {
+            System.arraycopy(storage, (int) storageIndex, bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void write (byte[] bytes, long storageIndex) throws IOException {
+            System.arraycopy(bytes, 0, storage, (int) storageIndex, bytes.length);
+        }
+
+        @Override
+        public void close () throws IOException {
+        }
+
+        @Override
+        public int getBlockSize () {
+            return 512;
+        }
+    }
+
+    @Test
+    public void testAdapt () throws IOException {
+        final ArrayStorageModule module = new ArrayStorageModule();
+        final IPositionalStorageModule adapted = StorageModuleAdapter.adapt(module);
+        assertSame(((StorageModuleAdapter) adapted).getModule(), module);
+        assertSame(StorageModuleAdapter.adapt(adapted), adapted);
+        assertEquals(adapted.getSizeInBlocks(), 8);
+        assertSame(adapted.getCapabilities(), StorageCapabilities.DEFAULT);
+
+        final File file = File.createTempFile("jscsi-storage", ".dat");
+        final IStorageModule randomAccess = RandomAccessStorageModule.open(file, SIZE, true, RandomAccessStorageModule.class);
+        try {
+            // positional modules are not wrapped
+            assertSame(StorageModuleAdapter.adapt(randomAccess), randomAccess);
+        } finally {
+            randomAccess.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testReadAndWriteBuffers () throws IOException {
+        final ArrayStorageModule module = new ArrayStorageModule();
+        final IPositionalStorageModule adapted = StorageModuleAdapter.adapt(module);
+
+        // a direct buffer and a slice of a heap buffer have to be copied
+        final ByteBuffer direct = ByteBuffer.allocateDirect(100);
+        for (int i = 0; i < 100; ++i) {
+            direct.put((byte) i);
+        }
+        direct.flip();
+        adapted.write(direct, 1000);
+        assertEquals(direct.remaining(), 0);
+        assertEquals(module.storage[1000], 0);
+        assertEquals(module.storage[1099], 99);
+
+        final ByteBuffer heap = ByteBuffer.allocate(110);
+        heap.position(10);
+        adapted.read(heap, 1000);
+        assertEquals(heap.remaining(), 0);
+        assertEquals(heap.get(10), 0);
+        assertEquals(heap.get(109), 99);
+
+        // a wrapped array is passed on
+        final ByteBuffer wrapped = ByteBuffer.wrap(new byte[] { 1, 2, 3 });
+        adapted.write(wrapped, 0);
+        assertEquals(wrapped.remaining(), 0);
+        assertEquals(module.storage[2], 3);
+    }
+}
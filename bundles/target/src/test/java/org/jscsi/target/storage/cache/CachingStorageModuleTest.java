@@ -0,0 +1,266 @@
+package org.jscsi.target.storage.cache;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jscsi.target.storage.IStorageModule;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+
+public class CachingStorageModuleTest {
+
+    private static final int PAGE_SIZE = 4096;
+
+    private static final int SIZE = 64 * PAGE_SIZE + 512;
+
+    /**
+     * A module keeping its data in a byte array and counting the accesses.
+     */
+    private static class ArrayStorageModule implements IStorageModule {
+
+        private final byte[] storage = new byte[SIZE];
+
+        private int reads;
+
+        private int writes;
+
+        @Override
+        public int checkBounds (long logicalBlockAddress, int transferLengthInBlocks) {
+            return 0;
+        }
+
+        @Override
+        public long getSizeInBlocks () {
+            return SIZE / getBlockSize();
+        }
+
+        @Override
+        public void read (byte[] bytes, long storageIndex) throws IOException {
+            ++reads;
+            System.arraycopy(storage, (int) storageIndex, bytes, 0, bytes.length);
+        }
+
+        @Override
+        public void write (byte[] bytes, long storageIndex) throws IOException {
+            ++writes;
+            System.arraycopy(bytes, 0, storage, (int) storageIndex, bytes.length);
+        }
+
+        @Override
+        public void close () throws IOException {
+        }
+
+        @Override
+        public int getBlockSize () {
+            return 512;
+        }
+    }
+
+    @DataProvider (name = "policies")
+    public Object[][] policies () {
+        final EvictionPolicy[] policies = EvictionPolicy.values();
+        final Object[][] parameters = new Object[policies.length][];
+        for (int i = 0; i < policies.length; ++i) {
+            parameters[i] = new Object[] { policies[i] };
+        }
+        return parameters;
+    }
+
+    @Test (dataProvider = "policies")
+    public void testRandomAccess (final EvictionPolicy policy) throws IOException {
+        final ArrayStorageModule backing = new ArrayStorageModule();
+        // 16 pages in 4 shards, a quarter of the medium
+        final CachingStorageModule cache = new CachingStorageModule(backing, 16 * PAGE_SIZE, PAGE_SIZE, 4, policy, 2);
+        final byte[] expected = new byte[SIZE];
+        final Random random = new Random(42);
+
+        for (int i = 0; i < 2000; ++i) {
+            final int storageIndex = random.nextInt(SIZE);
+            final int length = random.nextInt(Math.min(3 * PAGE_SIZE, SIZE - storageIndex)) + 1;
+            if (random.nextBoolean()) {
+                final byte[] bytes = new byte[length];
+                random.nextBytes(bytes);
+                cache.write(ByteBuffer.wrap(bytes), storageIndex);
+                System.arraycopy(bytes, 0, expected, storageIndex, length);
+            } else {
+                final ByteBuffer dst = ByteBuffer.allocate(length);
+                cache.read(dst, storageIndex);
+                assertEquals(dst.array(), Arrays.copyOfRange(expected, storageIndex, storageIndex + length));
+            }
+        }
+
+        final PageCacheStatistics statistics = cache.getStatistics();
+        assertTrue(statistics.getEvictions() > 0);
+        assertTrue(statistics.getHitRate() > 0 && statistics.getHitRate() < 1);
+        assertTrue(statistics.getDirtyBytes() > 0);
+
+        cache.flush();
+        assertEquals(statistics.getDirtyBytes(), 0);
+        assertEquals(backing.storage, expected);
+    }
+
+    @Test
+    public void testWriteBack () throws IOException {
+        final ArrayStorageModule backing = new ArrayStorageModule();
+        final CachingStorageModule cache = new CachingStorageModule(backing, 4 * PAGE_SIZE, PAGE_SIZE, 1, EvictionPolicy.LRU, 0);
+        assertTrue(cache.getCapabilities().hasVolatileWriteCache());
+
+        // complete pages are not loaded before being overwritten
+        cache.write(ByteBuffer.wrap(new byte[2 * PAGE_SIZE]), PAGE_SIZE);
+        assertEquals(backing.reads, 0);
+        assertEquals(backing.writes, 0);
+        assertEquals(cache.getStatistics().getDirtyBytes(), 2 * PAGE_SIZE);
+
+        // the last page is shorter than the others
+        cache.write(ByteBuffer.wrap(new byte[] { 1 }), SIZE - 1);
+        assertEquals(backing.reads, 1);
+        assertEquals(cache.getStatistics().getDirtyBytes(), 2 * PAGE_SIZE + 512);
+
+        cache.close();
+        assertEquals(backing.writes, 3);
+        assertEquals(backing.storage[SIZE - 1], 1);
+        assertEquals(cache.getStatistics().getWrittenBackPages(), 3);
+    }
+
+    @Test
+    public void testReadAhead () throws IOException {
+        final ArrayStorageModule backing = new ArrayStorageModule();
+        final CachingStorageModule cache = new CachingStorageModule(backing, 16 * PAGE_SIZE, PAGE_SIZE, 4, EvictionPolicy.LRU, 4);
+        final ByteBuffer dst = ByteBuffer.allocate(PAGE_SIZE);
+
+        // the first read is not known to be sequential
+        cache.read(dst, 0);
+        assertEquals(cache.getStatistics().getReadAheadPages(), 0);
+        dst.clear();
+        cache.read(dst, PAGE_SIZE);
+        assertEquals(cache.getStatistics().getReadAheadPages(), 4);
+
+        // the following pages are hits
+        for (int page = 2; page < 6; ++page) {
+            dst.clear();
+            cache.read(dst, page * PAGE_SIZE);
+        }
+        assertEquals(cache.getStatistics().getMisses(), 2);
+        assertEquals(cache.getStatistics().getHits(), 4);
+    }
+
+    @Test
+    public void testReadAheadExecutor () throws IOException {
+        final ArrayStorageModule backing = new ArrayStorageModule();
+        final CachingStorageModule cache = new CachingStorageModule(backing, 16 * PAGE_SIZE, PAGE_SIZE, 4, EvictionPolicy.LRU, 4);
+        final List<Runnable> tasks = new ArrayList<>();
+        cache.setReadAheadExecutor(new Executor() {
+
+            @Override
+            public void execute (final Runnable command) {
+                tasks.add(command);
+            }
+        });
+        final ByteBuffer dst = ByteBuffer.allocate(PAGE_SIZE);
+        cache.read(dst, 0);
+        dst.clear();
+        cache.read(dst, PAGE_SIZE);
+
+        // the pages are only loaded by the executor
+        assertEquals(tasks.size(), 1);
+        assertEquals(backing.reads, 2);
+        tasks.get(0).run();
+        assertEquals(backing.reads, 6);
+        assertEquals(cache.getStatistics().getReadAheadPages(), 4);
+    }
+
+    @Test
+    public void testConcurrentMiss () throws Exception {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch loaded = new CountDownLatch(1);
+        final ArrayStorageModule backing = new ArrayStorageModule() {
+
+            @Override
+            public void read (final byte[] bytes, final long storageIndex) throws IOException {
+                if (storageIndex == PAGE_SIZE) {
+                    loading.countDown();
+                    try {
+                        loaded.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                }
+                super.read(bytes, storageIndex);
+            }
+        };
+        backing.storage[PAGE_SIZE] = 7;
+        final CachingStorageModule cache = new CachingStorageModule(backing, 4 * PAGE_SIZE, PAGE_SIZE, 1, EvictionPolicy.LRU, 0);
+        cache.read(ByteBuffer.allocate(1), 0);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            final ByteBuffer first = ByteBuffer.allocate(1);
+            final ByteBuffer second = ByteBuffer.allocate(1);
+            final Future<?> firstRead = executor.submit(() -> {
+                cache.read(first, PAGE_SIZE);
+                return null;
+            });
+            loading.await();
+
+            // the lock is not held while the page is loaded
+            cache.read(ByteBuffer.allocate(1), 0);
+
+            // a second read of the page waits for it, instead of loading it again
+            final Future<?> secondRead = executor.submit(() -> {
+                cache.read(second, PAGE_SIZE);
+                return null;
+            });
+            loaded.countDown();
+            firstRead.get();
+            secondRead.get();
+            assertEquals(first.get(0), 7);
+            assertEquals(second.get(0), 7);
+            assertEquals(backing.reads, 2);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testScanResistance () throws IOException {
+        final ArrayStorageModule backing = new ArrayStorageModule();
+        final CachingStorageModule cache = new CachingStorageModule(backing, 8 * PAGE_SIZE, PAGE_SIZE, 1, EvictionPolicy.TWO_Q, 0);
+        final ByteBuffer dst = ByteBuffer.allocate(PAGE_SIZE);
+
+        // make the first two pages hot: load, evict to A1out by scanning, load again into Am
+        for (int page = 0; page < 10; ++page) {
+            dst.clear();
+            cache.read(dst, page * PAGE_SIZE);
+        }
+        for (int page = 0; page < 2; ++page) {
+            dst.clear();
+            cache.read(dst, page * PAGE_SIZE);
+        }
+
+        // a long scan does not evict them
+        for (int page = 16; page < 64; ++page) {
+            dst.clear();
+            cache.read(dst, page * PAGE_SIZE);
+        }
+        final long misses = cache.getStatistics().getMisses();
+        for (int page = 0; page < 2; ++page) {
+            dst.clear();
+            cache.read(dst, page * PAGE_SIZE);
+        }
+        assertEquals(cache.getStatistics().getMisses(), misses);
+    }
+}
@@ -0,0 +1,123 @@
+package org.jscsi.target.util;
+
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNotSame;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+
+import org.testng.annotations.Test;
+
+
+public class BufferPoolTest {
+
+    @Test
+    public void testSizeClasses () {
+        final BufferPool pool = new BufferPool();
+        assertEquals(pool.lease(0).capacity(), BufferPool.MIN_BUFFER_SIZE);
+        assertEquals(pool.lease(512).capacity(), 512);
+        assertEquals(pool.lease(513).capacity(), 1024);
+        assertEquals(pool.lease(8192).capacity(), 8192);
+        assertEquals(pool.lease(8193).capacity(), 16384);
+
+        final ByteBuffer buffer = pool.lease(8195);
+        assertTrue(buffer.isDirect());
+        assertEquals(buffer.position(), 0);
+        assertEquals(buffer.limit(), 8195);
+    }
+
+    @Test
+    public void testReuse () {
+        final BufferPool pool = new BufferPool();
+        final ByteBuffer buffer = pool.lease(4096);
+        buffer.position(100);
+        pool.release(buffer);
+        assertEquals(pool.size(), 1);
+
+        // a shorter length of the same size class gets the same buffer, reset
+        final ByteBuffer reused = pool.lease(3000);
+        assertSame(reused, buffer);
+        assertEquals(reused.position(), 0);
+        assertEquals(reused.limit(), 3000);
+        assertEquals(pool.size(), 0);
+
+        // other size classes are unaffected
+        pool.release(reused);
+        assertNotSame(pool.lease(8192), buffer);
+        assertEquals(pool.size(), 1);
+    }
+
+    @Test
+    public void testCapacity () {
+        final BufferPool pool = new BufferPool(2 * 4096);
+        final ByteBuffer[] buffers = new ByteBuffer[3];
+        for (int i = 0; i < buffers.length; ++i) {
+            buffers[i] = pool.lease(4096);
+        }
+        for (ByteBuffer buffer : buffers) {
+            pool.release(buffer);
+        }
+        assertEquals(pool.size(), 2);
+        assertEquals(pool.getPooledBytes(), 2 * 4096);
+
+        // the capacity is shared by all size classes
+        pool.release(pool.lease(1024));
+        assertEquals(pool.size(), 2);
+        pool.lease(4096);
+        pool.release(pool.lease(1024));
+        assertEquals(pool.size(), 2);
+        assertEquals(pool.getPooledBytes(), 4096 + 1024);
+    }
+
+    @Test
+    public void testForeignBuffers () {
+        final BufferPool pool = new BufferPool();
+
+        // buffers not leased from the pool are ignored
+        pool.release(ByteBuffer.allocate(1024));
+        pool.release(ByteBuffer.allocateDirect(1000));
+        pool.release(ByteBuffer.allocateDirect(4096));
+        pool.release(new BufferPool().lease(4096));
+        assertEquals(pool.size(), 0);
+
+        // as are buffers released twice
+        final ByteBuffer buffer = pool.lease(4096);
+        pool.release(buffer);
+        pool.release(buffer);
+        assertEquals(pool.size(), 1);
+        assertSame(pool.lease(4096), buffer);
+        assertEquals(pool.size(), 0);
+    }
+
+    @Test
+    public void testConcurrentRelease () throws Exception {
+        final BufferPool pool = new BufferPool();
+        for (int i = 0; i < 1000; ++i) {
+            // a buffer released by several threads at once is only pooled once
+            final ByteBuffer buffer = pool.lease(4096);
+            final CyclicBarrier barrier = new CyclicBarrier(4);
+            final Thread[] threads = new Thread[barrier.getParties()];
+            for (int j = 0; j < threads.length; ++j) {
+                threads[j] = new Thread(() -> {
+                    try {
+                        barrier.await();
+                    } catch (InterruptedException | BrokenBarrierException e) {
+                        return;
+                    }
+                    pool.release(buffer);
+                });
+                threads[j].start();
+            }
+            for (final Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(pool.size(), 1);
+            assertEquals(pool.getPooledBytes(), 4096);
+        }
+        assertNotSame(pool.lease(4096), pool.lease(4096));
+    }
+}
@@ -0,0 +1,52 @@
+package org.jscsi.target.util;
+
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+
+public class RangeLockTest {
+
+    @Test
+    public void testDisjointRanges () throws Exception {
+        final RangeLock rangeLock = new RangeLock();
+        try (RangeLock.Range range = rangeLock.lock(0, 512)) {
+            assertTrue(acquireInOtherThread(rangeLock, 512, 512).await(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testOverlappingRanges () throws Exception {
+        final RangeLock rangeLock = new RangeLock();
+        final CountDownLatch acquired;
+        try (RangeLock.Range range = rangeLock.lock(0, 1024)) {
+            acquired = acquireInOtherThread(rangeLock, 1023, 2);
+            assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+        }
+        // the waiting thread gets the range as soon as it is released
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Acquires and releases a range in a new thread, returning a latch which is counted down once the range has been
+     * acquired.
+     */
+    private static CountDownLatch acquireInOtherThread (final RangeLock rangeLock, final long start, final long length) {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        final Thread thread = new Thread(() -> {
+            try (RangeLock.Range range = rangeLock.lock(start, length)) {
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+        return acquired;
+    }
+}